@@ -0,0 +1,82 @@
+package org.deepsymmetry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ways of getting a frame rendered into an ARGB image ready to send: drawing it into the 565
+ * display image with Java2D and then encoding that, or converting the ARGB pixels directly, with and
+ * without dithering.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArgbConvertBenchmark {
+
+    private BufferedImage argbImage;
+    private int[] argbPixels;
+    private BufferedImage displayImage;
+    private Graphics2D displayGraphics;
+    private short[] displayPixels;
+    private FrameEncoder encoder;
+    private ByteBuffer frameBuffer;
+
+    @Setup
+    public void setUp() {
+        argbImage = new BufferedImage(Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = argbImage.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT,
+                Color.BLUE));
+        graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        graphics.dispose();
+        argbPixels = ((DataBufferInt) argbImage.getRaster().getDataBuffer()).getData();
+        displayImage = Wayang.createDisplayImage();
+        displayGraphics = displayImage.createGraphics();
+        displayPixels = Wayang.displayPixels(displayImage);
+        encoder = Wayang.getFrameEncoder();
+        frameBuffer = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        displayGraphics.dispose();
+    }
+
+    /**
+     * Draws the ARGB image into the display image, then encodes that.
+     */
+    @Benchmark
+    public ByteBuffer drawThenEncode() {
+        displayGraphics.drawImage(argbImage, 0, 0, null);
+        encoder.encode(displayPixels, 0, Wayang.DISPLAY_HEIGHT, frameBuffer, 0);
+        return frameBuffer;
+    }
+
+    /**
+     * Converts the ARGB pixels straight into the frame buffer.
+     */
+    @Benchmark
+    public ByteBuffer convert() {
+        ArgbFrameConverter.PLAIN.convert(argbPixels, 0, Wayang.DISPLAY_WIDTH, false, 0, Wayang.DISPLAY_HEIGHT,
+                frameBuffer);
+        return frameBuffer;
+    }
+
+    /**
+     * Converts the ARGB pixels straight into the frame buffer, with ordered dithering.
+     */
+    @Benchmark
+    public ByteBuffer convertDithered() {
+        ArgbFrameConverter.DITHERED.convert(argbPixels, 0, Wayang.DISPLAY_WIDTH, false, 0, Wayang.DISPLAY_HEIGHT,
+                frameBuffer);
+        return frameBuffer;
+    }
+}
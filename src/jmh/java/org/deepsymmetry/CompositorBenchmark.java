@@ -0,0 +1,109 @@
+package org.deepsymmetry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares producing a typical screen, a static background of grid lines with three overlays of which only one
+ * changes each frame, by redrawing and encoding the whole display image and by sending it through a
+ * {@link Compositor} which recomposites only the layer that changed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompositorBenchmark {
+
+    private BufferedImage displayImage;
+    private Graphics2D graphics;
+    private short[] displayPixels;
+    private final FrameEncoder encoder = new WideFrameEncoder();
+    private Compositor compositor;
+    private Layer meter;
+    private Graphics2D meterGraphics;
+    private ByteBuffer frame;
+    private int frameCount;
+
+    @Setup
+    public void setUp() {
+        displayImage = Wayang.createDisplayImage();
+        graphics = displayImage.createGraphics();
+        displayPixels = Wayang.displayPixels(displayImage);
+        frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+
+        compositor = new Compositor();
+        Graphics2D background = compositor.addLayer().getImage().createGraphics();
+        drawBackground(background);
+        background.dispose();
+        for (int i = 0; i < 2; i++) {
+            Layer label = compositor.addLayer();
+            label.setColorKey(Color.BLACK);
+            Graphics2D labelGraphics = label.getImage().createGraphics();
+            drawLabels(labelGraphics, i);
+            labelGraphics.dispose();
+        }
+        meter = compositor.addLayer();
+        meter.setColorKey(Color.BLACK);
+        meterGraphics = meter.getImage().createGraphics();
+        compositor.encode(frame);
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphics.dispose();
+        meterGraphics.dispose();
+    }
+
+    private static void drawBackground(Graphics2D g) {
+        g.setColor(new Color(20, 20, 40));
+        g.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        g.setColor(Color.DARK_GRAY);
+        for (int x = 0; x < Wayang.DISPLAY_WIDTH; x += 20) {
+            g.drawLine(x, 0, x, Wayang.DISPLAY_HEIGHT);
+        }
+        for (int y = 0; y < Wayang.DISPLAY_HEIGHT; y += 20) {
+            g.drawLine(0, y, Wayang.DISPLAY_WIDTH, y);
+        }
+    }
+
+    private static void drawLabels(Graphics2D g, int row) {
+        g.setColor(Color.WHITE);
+        for (int slot = 0; slot < 8; slot++) {
+            g.drawString("Param " + slot, slot * 120 + 4, 20 + row * 20);
+        }
+    }
+
+    private void drawMeter(Graphics2D g, boolean clear) {
+        frameCount++;
+        if (clear) {
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 120, Wayang.DISPLAY_WIDTH, 20);
+        }
+        g.setColor(Color.GREEN);
+        g.fillRect(0, 120, (frameCount * 7) % Wayang.DISPLAY_WIDTH, 20);
+    }
+
+    @Benchmark
+    public ByteBuffer redrawEverything() {
+        drawBackground(graphics);
+        drawLabels(graphics, 0);
+        drawLabels(graphics, 1);
+        drawMeter(graphics, false);
+        encoder.encode(displayPixels, 0, Wayang.DISPLAY_HEIGHT, frame, 0);
+        return frame;
+    }
+
+    @Benchmark
+    public ByteBuffer compositeChangedLayer() {
+        drawMeter(meterGraphics, true);
+        meter.markDirty(120, 20);
+        compositor.encode(frame);
+        return frame;
+    }
+}
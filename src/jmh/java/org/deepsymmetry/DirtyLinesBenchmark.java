@@ -0,0 +1,56 @@
+package org.deepsymmetry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sending frames in which only a small value readout changes, over a loopback transport, with and
+ * without dirty tracking, to show how encoding costs follow the size of the change once only dirty lines are
+ * encoded.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirtyLinesBenchmark {
+
+    @Param({"false", "true"})
+    public boolean dirtyTracking;
+
+    private Graphics2D graphics;
+    private int value;
+
+    @Setup
+    public void setUp() {
+        Wayang.setDirtyTracking(dirtyTracking);
+        Wayang.open(new LoopbackFrameTransport());
+        graphics = Wayang.createGraphics();
+        graphics.setColor(Color.DARK_GRAY);
+        graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        graphics.setFont(new Font(Font.MONOSPACED, Font.BOLD, 16));
+        Wayang.sendFrame();
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphics.dispose();
+        Wayang.close();
+        Wayang.setDirtyTracking(false);
+    }
+
+    /**
+     * Redraws a 120x20 readout and sends the frame.
+     */
+    @Benchmark
+    public void sendReadout() {
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(420, 70, 120, 20);
+        graphics.setColor(Color.GREEN);
+        graphics.drawString(Integer.toString(value++ % 1000), 430, 86);
+        Wayang.sendFrame();
+    }
+}
@@ -0,0 +1,102 @@
+package org.deepsymmetry;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures drawing into the 565 display image, and recording it to an animated GIF, without needing a
+ * Push 2 attached, both in an ordinary image and in one whose pixels are held in native memory. Run from
+ * the project directory so the sample image in {@code assets} can be found.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DisplayImageBenchmark {
+
+    @Param({"HEAP", "DIRECT_COPY"})
+    public String rasterMode;
+
+    private BufferedImage displayImage;
+    private Graphics2D graphics;
+    private BufferedImage photo;
+    private Font font;
+    private int frame;
+
+    private ImageOutputStream gifOutput;
+    private GifSequenceWriter gifWriter;
+
+    /**
+     * Discards everything written to it, so GIF encoding can be measured without disk I/O.
+     */
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        displayImage = (RasterMode.valueOf(rasterMode) == RasterMode.HEAP) ? Wayang.createDisplayImage() :
+                new DirectDisplayRaster().getImage();
+        graphics = displayImage.createGraphics();
+        photo = ImageIO.read(new File("assets/Wayang_Pandawa.jpg"));
+        font = new Font(Font.SANS_SERIF, Font.BOLD, 24);
+        drawFrame();
+    }
+
+    @Setup(Level.Iteration)
+    public void startGif() throws IOException {
+        gifOutput = new MemoryCacheImageOutputStream(DISCARD);
+        gifWriter = new GifSequenceWriter(gifOutput, displayImage, 50, true);
+    }
+
+    @TearDown(Level.Iteration)
+    public void finishGif() throws IOException {
+        gifWriter.close();
+        gifOutput.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    /**
+     * Draws a typical frame: a background, a scaled photo like the one in the hardware test, and a label.
+     */
+    @Benchmark
+    public BufferedImage drawFrame() {
+        graphics.setColor(Color.DARK_GRAY);
+        graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        graphics.drawImage(photo, 0, 0, 409, Wayang.DISPLAY_HEIGHT, null);
+        graphics.setColor(Color.WHITE);
+        graphics.setFont(font);
+        graphics.drawString("Frame " + (frame++ & 0xff), 500, 90);
+        return displayImage;
+    }
+
+    /**
+     * Appends the display image to an animated GIF.
+     */
+    @Benchmark
+    public void writeGifFrame() throws IOException {
+        gifWriter.writeToSequence(displayImage);
+        gifOutput.flushBefore(gifOutput.getStreamPosition());
+    }
+}
@@ -0,0 +1,93 @@
+package org.deepsymmetry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the stages involved in turning the display image into bytes ready to send to the Push 2, without
+ * needing one attached. Run with the JMH {@code gc} profiler (as the {@code benchmarks} Maven profile does)
+ * to see the bytes allocated per operation alongside the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncodeBenchmark {
+
+    /**
+     * Which frame encoder to measure.
+     */
+    @Param({"scalar", "wide", "lut"})
+    public String encoderName;
+
+    private FrameEncoder encoder;
+    private BufferedImage displayImage;
+    private short[] pixels;
+    private short[] extracted;
+    private ByteBuffer frameBuffer;
+
+    @Setup
+    public void setUp() {
+        if ("scalar".equals(encoderName)) {
+            encoder = new ScalarFrameEncoder();
+        } else if ("lut".equals(encoderName)) {
+            encoder = new LookupTableFrameEncoder(0.8, 1.2, 1.0, 0.95, 0.9);
+        } else {
+            encoder = new WideFrameEncoder();
+        }
+        displayImage = Wayang.createDisplayImage();
+        pixels = Wayang.displayPixels(displayImage);
+        Random random = new Random(42);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) random.nextInt();
+        }
+        extracted = new short[pixels.length];
+        System.arraycopy(pixels, 0, extracted, 0, pixels.length);  // Each benchmark has its own state.
+        frameBuffer = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+    }
+
+    /**
+     * Just the masking and padding of a frame's worth of pixel samples.
+     */
+    @Benchmark
+    public ByteBuffer maskPixels() {
+        encoder.encode(extracted, 0, Wayang.DISPLAY_HEIGHT, frameBuffer, 0);
+        return frameBuffer;
+    }
+
+    /**
+     * Copying a frame's worth of pixel samples out of the display image raster.
+     */
+    @Benchmark
+    public short[] extractRaster() {
+        displayImage.getRaster().getDataElements(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, extracted);
+        return extracted;
+    }
+
+    /**
+     * Encoding the display image into a direct buffer the way {@link Wayang#sendFrame()} does, reading the
+     * array which backs the raster.
+     */
+    @Benchmark
+    public ByteBuffer encodeFrame() {
+        encoder.encode(Wayang.displayPixels(displayImage), 0, Wayang.DISPLAY_HEIGHT, frameBuffer, 0);
+        return frameBuffer;
+    }
+
+    /**
+     * Encoding the display image into a direct buffer by first copying the pixels out of the raster, for
+     * comparison with {@link #encodeFrame()}.
+     */
+    @Benchmark
+    public ByteBuffer encodeFrameViaRasterCopy() {
+        displayImage.getRaster().getDataElements(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, extracted);
+        encoder.encode(extracted, 0, Wayang.DISPLAY_HEIGHT, frameBuffer, 0);
+        return frameBuffer;
+    }
+}
@@ -0,0 +1,110 @@
+package org.deepsymmetry;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the thread sending frames is held up by recording them to an animated GIF: copying each
+ * frame into the background {@link GifRecorder}, compared with the work the background threads then do
+ * to quantize it, and with writing it synchronously through {@link GifSequenceWriter}. Run from the project
+ * directory so the sample image in {@code assets} can be found.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GifRecorderBenchmark {
+
+    /**
+     * Discards everything written to it, so GIF encoding can be measured without disk I/O.
+     */
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private BufferedImage displayImage;
+    private ByteBuffer frame;
+    private byte[] indices;
+    private GifRecorder recorder;
+    private MemoryCacheImageOutputStream recorderOutput;
+    private GifSequenceWriter sequenceWriter;
+    private MemoryCacheImageOutputStream sequenceOutput;
+    private long now;
+
+    @Setup
+    public void setUp() throws IOException {
+        displayImage = Wayang.createDisplayImage();
+        Graphics2D graphics = displayImage.createGraphics();
+        graphics.setColor(Color.DARK_GRAY);
+        graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        graphics.drawImage(ImageIO.read(new File("assets/Wayang_Pandawa.jpg")), 0, 0, 409, Wayang.DISPLAY_HEIGHT,
+                null);
+        graphics.dispose();
+        frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        Wayang.getFrameEncoder().encode(Wayang.displayPixels(displayImage), 0, Wayang.DISPLAY_HEIGHT, frame, 0);
+        indices = new byte[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+    }
+
+    @Setup(Level.Iteration)
+    public void startRecording() throws IOException {
+        recorderOutput = new MemoryCacheImageOutputStream(DISCARD);
+        recorder = new GifRecorder(recorderOutput, 4, 1);
+        sequenceOutput = new MemoryCacheImageOutputStream(DISCARD);
+        sequenceWriter = new GifSequenceWriter(sequenceOutput, displayImage, 50, true);
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopRecording() throws IOException {
+        recorder.close();
+        recorderOutput.close();
+        sequenceWriter.close();
+        sequenceOutput.close();
+    }
+
+    /**
+     * The cost to the sending thread of handing a frame to the background recorder, or of dropping it when
+     * the background threads have fallen behind, which is most of the time when frames arrive this quickly.
+     */
+    @Benchmark
+    public void captureFrame() {
+        now += 50000000L;
+        recorder.beginFrame(now);
+        recorder.appendPixels(frame);
+        recorder.endFrame();
+    }
+
+    /**
+     * The palette conversion each frame needs on a background thread.
+     */
+    @Benchmark
+    public byte[] quantizeFrame() {
+        GifRecorder.quantize(frame, indices);
+        return indices;
+    }
+
+    /**
+     * The cost to the sending thread of writing a frame synchronously.
+     */
+    @Benchmark
+    public void writeSynchronously() throws IOException {
+        sequenceWriter.writeToSequence(displayImage);
+        sequenceOutput.flushBefore(sequenceOutput.getStreamPosition());
+    }
+}
@@ -0,0 +1,50 @@
+package org.deepsymmetry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the complete pipeline of encoding and sending frames, over a loopback transport so that no
+ * Push 2 is needed. The loopback completes transfers instantly, so this measures the overhead of the
+ * library itself rather than the USB connection. Each raster mode is measured, since they prepare frames
+ * in different ways.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"HEAP", "DIRECT_IN_PLACE", "DIRECT_COPY"})
+    public String rasterMode;
+
+    @Setup
+    public void setUp() {
+        Wayang.setRasterMode(RasterMode.valueOf(rasterMode));
+        Wayang.open(new LoopbackFrameTransport());
+    }
+
+    @TearDown
+    public void tearDown() {
+        Wayang.close();
+    }
+
+    /**
+     * Sends a frame, waiting for the transfers to finish.
+     */
+    @Benchmark
+    public void sendFrame() {
+        Wayang.sendFrame();
+    }
+
+    /**
+     * Sends a frame asynchronously, waiting only when all the asynchronous frame buffers are in use.
+     */
+    @Benchmark
+    public void sendFrameAsync() {
+        Wayang.sendFrameAsync();
+    }
+}
@@ -0,0 +1,81 @@
+package org.deepsymmetry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares fitting a 720p video frame to the display with Java2D's bilinear interpolation against the
+ * precomputed area-averaging and Lanczos filters of {@link ImageScaler}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScalerBenchmark {
+
+    @Param({"FIT", "FILL"})
+    public String mode;
+
+    private BufferedImage source;
+    private BufferedImage displayImage;
+    private Graphics2D graphics;
+    private Rectangle target;
+    private ImageScaler area;
+    private ImageScaler lanczos;
+
+    @Setup
+    public void setUp() {
+        source = new BufferedImage(1280, 720, BufferedImage.TYPE_INT_RGB);
+        Graphics2D sourceGraphics = source.createGraphics();
+        sourceGraphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, 1280, 720, Color.BLUE));
+        sourceGraphics.fillRect(0, 0, 1280, 720);
+        sourceGraphics.setColor(Color.WHITE);
+        for (int x = 0; x < 1280; x += 3) {
+            sourceGraphics.drawLine(x, 0, 1280 - x, 720);
+        }
+        sourceGraphics.dispose();
+
+        displayImage = Wayang.createDisplayImage();
+        graphics = displayImage.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        area = new ImageScaler(1280, 720, ImageScaler.Mode.valueOf(mode), ImageScaler.Filter.AREA_AVERAGE);
+        lanczos = new ImageScaler(1280, 720, ImageScaler.Mode.valueOf(mode), ImageScaler.Filter.LANCZOS3);
+        Rectangle bounds = area.getTargetBounds();
+        if (ImageScaler.Mode.valueOf(mode) == ImageScaler.Mode.FILL) {
+            double scale = (double) Wayang.DISPLAY_WIDTH / 1280;
+            int height = (int) Math.round(720 * scale);
+            bounds = new Rectangle(0, (Wayang.DISPLAY_HEIGHT - height) / 2, Wayang.DISPLAY_WIDTH, height);
+        }
+        target = bounds;
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage java2dBilinear() {
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        graphics.drawImage(source, target.x, target.y, target.width, target.height, null);
+        return displayImage;
+    }
+
+    @Benchmark
+    public BufferedImage areaAverage() {
+        area.scale(source, displayImage);
+        return displayImage;
+    }
+
+    @Benchmark
+    public BufferedImage lanczos3() {
+        lanczos.scale(source, displayImage);
+        return displayImage;
+    }
+}
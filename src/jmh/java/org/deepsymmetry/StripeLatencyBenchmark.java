@@ -0,0 +1,44 @@
+package org.deepsymmetry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency from asking for a frame to be sent until its last byte has been transferred, for a
+ * range of stripe sizes. The loopback transport simulates the bandwidth of a USB 2.0 bulk endpoint and the
+ * turnaround time of each transfer, so this shows the trade-off between overlapping encoding with sending
+ * and the overhead of splitting the frame into more transfers.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StripeLatencyBenchmark {
+
+    @Param({"160", "80", "40", "20", "10"})
+    public int stripeLines;
+
+    @Setup
+    public void setUp() {
+        Wayang.open(new LoopbackFrameTransport(125, 40000000));
+        Wayang.setKeepAliveInterval(0);  // Send every frame, even though the image never changes.
+        Wayang.setStripeLines(stripeLines);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Wayang.setStripeLines(Wayang.DISPLAY_HEIGHT);
+        Wayang.close();
+    }
+
+    /**
+     * Sends a frame, waiting for its last byte to be transferred.
+     */
+    @Benchmark
+    public void sendFrame() {
+        Wayang.sendFrame();
+    }
+}
@@ -0,0 +1,78 @@
+package org.deepsymmetry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares redrawing a typical screen of parameter labels and values, eight slots of two lines each, through
+ * Java2D and by copying pre-rasterized glyphs from a {@link SpriteAtlas}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextRenderBenchmark {
+
+    @Param({"HEAP", "DIRECT_COPY"})
+    public String rasterMode;
+
+    private static final String[] NAMES = {"Cutoff", "Resonance", "Attack", "Decay", "Sustain", "Release",
+            "Drive", "Mix"};
+
+    private BufferedImage displayImage;
+    private Graphics2D graphics;
+    private Font font;
+    private DisplaySurface surface;
+    private GlyphSet glyphs;
+    private StringBuilder value = new StringBuilder();
+    private int frame;
+
+    @Setup
+    public void setUp() {
+        displayImage = (RasterMode.valueOf(rasterMode) == RasterMode.HEAP) ? Wayang.createDisplayImage() :
+                new DirectDisplayRaster().getImage();
+        graphics = displayImage.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        font = new Font(Font.SANS_SERIF, Font.BOLD, 18);
+        graphics.setFont(font);
+        surface = DisplaySurface.forImage(displayImage);
+        glyphs = new SpriteAtlas().addGlyphs(font, Color.WHITE, Color.BLACK,
+                " 0123456789.%-ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz");
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage graphics2D() {
+        frame++;
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        graphics.setColor(Color.WHITE);
+        for (int slot = 0; slot < NAMES.length; slot++) {
+            graphics.drawString(NAMES[slot], slot * 120 + 4, 40);
+            graphics.drawString(Integer.toString((frame + slot) % 1000) + "%", slot * 120 + 4, 80);
+        }
+        return displayImage;
+    }
+
+    @Benchmark
+    public BufferedImage atlas() {
+        frame++;
+        surface.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, Color.BLACK);
+        for (int slot = 0; slot < NAMES.length; slot++) {
+            surface.drawText(glyphs, NAMES[slot], slot * 120 + 4, 40);
+            value.setLength(0);
+            value.append((frame + slot) % 1000).append('%');
+            surface.drawText(glyphs, value, slot * 120 + 4, 80);
+        }
+        return displayImage;
+    }
+}
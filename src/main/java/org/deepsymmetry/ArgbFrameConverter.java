@@ -0,0 +1,266 @@
+package org.deepsymmetry;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Converts 32-bit ARGB (or xBGR) pixels straight into the masked, padded BGR565 format the Push wants, in a
+ * single pass, without going through a display image and Java2D's generic color conversion loops.
+ *
+ * Each channel is converted by looking it up in a table which already holds the quantized value shifted into
+ * place and XORed with the matching bits of the signal shaping pattern, so a pixel costs three lookups and
+ * two ORs. There is a separate set of tables for each cell of a 4&times;4 ordered (Bayer) dithering matrix;
+ * when dithering, each holds values biased by that cell's threshold, which breaks up the banding that
+ * reducing smooth gradients to 5 and 6 bits would otherwise cause. Without dithering, channels are rounded
+ * to the nearest level the display can show. Alpha is ignored, so pixels are treated as opaque.
+ *
+ * @author James Elliott
+ */
+final class ArgbFrameConverter {
+
+    /**
+     * The thresholds of the 4&times;4 Bayer matrix, in row-major order.
+     */
+    private static final int[] BAYER = {0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9, 15, 7, 13, 5};
+
+    /**
+     * The signal shaping pattern applied to pixels at even and odd x coordinates.
+     */
+    private static final int[] MASKS = {0xf3e7, 0xffe7};
+
+    /**
+     * Converts without dithering.
+     */
+    static final ArgbFrameConverter PLAIN = new ArgbFrameConverter(false);
+
+    /**
+     * Converts with 4&times;4 ordered dithering.
+     */
+    static final ArgbFrameConverter DITHERED = new ArgbFrameConverter(true);
+
+    /**
+     * The red lookup tables, 256 entries for each cell of the dithering matrix, indexed by
+     * {@code (((y & 3) << 2 | (x & 3)) << 8) | red}.
+     */
+    private final char[] red = new char[16 * 256];
+
+    /**
+     * The green lookup tables, arranged like {@link #red}.
+     */
+    private final char[] green = new char[16 * 256];
+
+    /**
+     * The blue lookup tables, arranged like {@link #red}.
+     */
+    private final char[] blue = new char[16 * 256];
+
+    /**
+     * Build the lookup tables.
+     *
+     * @param dither whether the tables should apply ordered dithering.
+     */
+    private ArgbFrameConverter(boolean dither) {
+        for (int cell = 0; cell < 16; cell++) {
+            int threshold = dither ? BAYER[cell] : -1;
+            int mask = MASKS[cell & 1];
+            for (int value = 0; value < 256; value++) {
+                int index = (cell << 8) | value;
+                red[index] = (char) (quantize(value, 5, threshold) ^ (mask & 0x001f));
+                green[index] = (char) ((quantize(value, 6, threshold) << 5) ^ (mask & 0x07e0));
+                blue[index] = (char) ((quantize(value, 5, threshold) << 11) ^ (mask & 0xf800));
+            }
+        }
+    }
+
+    /**
+     * Reduce an 8-bit channel value to fewer bits, scaling it so that full intensity stays full intensity.
+     *
+     * @param value     the channel value.
+     * @param bits      the number of bits in the result.
+     * @param threshold the dithering matrix threshold, from 0 to 15, or -1 to round to the nearest level.
+     *
+     * @return the reduced value.
+     */
+    private static int quantize(int value, int bits, int threshold) {
+        int levels = (1 << bits) - 1;
+        if (threshold < 0) {
+            return ((value * levels) + 127) / 255;
+        }
+        // Round up when the fractional part of the scaled value exceeds this cell's threshold, which lies
+        // midway through its sixteenth of the range between levels.
+        return ((value * levels * 32) + ((2 * threshold + 1) * 255)) / (255 * 32);
+    }
+
+    /**
+     * Look up the masked BGR565 value of a pixel.
+     *
+     * @param pixel     the 32-bit pixel.
+     * @param cell      the offset of the tables for the pixel's cell in the dithering matrix.
+     * @param redShift  how far the red channel must be shifted right to reach the low byte.
+     * @param blueShift how far the blue channel must be shifted right to reach the low byte.
+     *
+     * @return the 16 bits to send to the display.
+     */
+    private int convert(int pixel, int cell, int redShift, int blueShift) {
+        return red[cell | ((pixel >>> redShift) & 0xff)] | green[cell | ((pixel >>> 8) & 0xff)] |
+                blue[cell | ((pixel >>> blueShift) & 0xff)];
+    }
+
+    /**
+     * Convert lines of pixels into a buffer that is ready to send to the display. The padding at the end of
+     * each line is left untouched.
+     *
+     * @param pixels      the pixels, {@link Wayang#DISPLAY_WIDTH} of which are converted from each line.
+     * @param offset      the index of the first pixel of the first line to be converted.
+     * @param stride      the distance between the start of each line in {@code pixels}.
+     * @param bgr         {@code true} if the pixels hold blue in their low byte rather than red.
+     * @param firstLine   the display line at which the converted pixels belong, which determines where they
+     *                    are stored, and which row of the dithering matrix applies.
+     * @param lineCount   the number of lines to convert.
+     * @param destination a little-endian buffer like those returned by {@link Wayang#allocateFrameBuffer(int)},
+     *                    big enough to hold the entire frame.
+     *
+     * @throws IllegalArgumentException if the destination buffer is not little-endian.
+     */
+    void convert(int[] pixels, int offset, int stride, boolean bgr, int firstLine, int lineCount,
+                 ByteBuffer destination) {
+        if (destination.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Destination buffer must be little-endian");
+        }
+        int redShift = bgr ? 0 : 16;
+        int blueShift = bgr ? 16 : 0;
+        for (int y = 0; y < lineCount; y++) {
+            int line = firstLine + y;
+            int row = (line & 3) << 10;
+            int source = offset + (y * stride);
+            int target = line * Wayang.BYTES_PER_LINE;
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x += 4) {
+                long quad = convert(pixels[source + x], row, redShift, blueShift) |
+                        ((long) convert(pixels[source + x + 1], row | 0x100, redShift, blueShift) << 16) |
+                        ((long) convert(pixels[source + x + 2], row | 0x200, redShift, blueShift) << 32) |
+                        ((long) convert(pixels[source + x + 3], row | 0x300, redShift, blueShift) << 48);
+                destination.putLong(target + (x * 2), quad);
+            }
+        }
+    }
+
+    /**
+     * Convert an entire frame of packed 24-bit RGB or 32-bit BGRA pixels, as produced by video tools, held in
+     * a buffer starting at index zero, with lines {@link Wayang#DISPLAY_WIDTH} pixels apart.
+     *
+     * @param pixels        the pixel bytes: red, green, blue for three bytes per pixel, or blue, green, red,
+     *                      alpha for four (which is the same as little-endian ARGB).
+     * @param bytesPerPixel three or four.
+     * @param destination   a little-endian buffer like those returned by {@link Wayang#allocateFrameBuffer(int)}.
+     *
+     * @throws IllegalArgumentException if the destination buffer is not little-endian, or the pixel size is
+     *                                  not supported.
+     */
+    void convert(ByteBuffer pixels, int bytesPerPixel, ByteBuffer destination) {
+        if (destination.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Destination buffer must be little-endian");
+        }
+        if (bytesPerPixel != 3 && bytesPerPixel != 4) {
+            throw new IllegalArgumentException("Pixels must be three or four bytes long, got " + bytesPerPixel);
+        }
+        ByteBuffer source = pixels.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int[] quad = new int[4];
+        for (int line = 0; line < Wayang.DISPLAY_HEIGHT; line++) {
+            int row = (line & 3) << 10;
+            int start = line * Wayang.DISPLAY_WIDTH * bytesPerPixel;
+            int target = line * Wayang.BYTES_PER_LINE;
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x += 4) {
+                for (int i = 0; i < 4; i++) {
+                    int index = start + ((x + i) * bytesPerPixel);
+                    if (bytesPerPixel == 4) {
+                        quad[i] = source.getInt(index);
+                    } else {
+                        quad[i] = ((source.get(index) & 0xff) << 16) | ((source.get(index + 1) & 0xff) << 8) |
+                                (source.get(index + 2) & 0xff);
+                    }
+                }
+                long packed = convert(quad[0], row, 16, 0) |
+                        ((long) convert(quad[1], row | 0x100, 16, 0) << 16) |
+                        ((long) convert(quad[2], row | 0x200, 16, 0) << 32) |
+                        ((long) convert(quad[3], row | 0x300, 16, 0) << 48);
+                destination.putLong(target + (x * 2), packed);
+            }
+        }
+    }
+
+    /**
+     * Convert an entire frame of pixels held in a buffer, starting at its current position, with lines
+     * {@link Wayang#DISPLAY_WIDTH} pixels apart. The buffer's position is not changed.
+     *
+     * @param pixels      the ARGB pixels.
+     * @param destination a little-endian buffer like those returned by {@link Wayang#allocateFrameBuffer(int)}.
+     *
+     * @throws IllegalArgumentException if the destination buffer is not little-endian.
+     */
+    void convert(IntBuffer pixels, ByteBuffer destination) {
+        if (pixels.hasArray()) {
+            convert(pixels.array(), pixels.arrayOffset() + pixels.position(), Wayang.DISPLAY_WIDTH, false,
+                    0, Wayang.DISPLAY_HEIGHT, destination);
+            return;
+        }
+        if (destination.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Destination buffer must be little-endian");
+        }
+        int start = pixels.position();
+        for (int line = 0; line < Wayang.DISPLAY_HEIGHT; line++) {
+            int row = (line & 3) << 10;
+            int source = start + (line * Wayang.DISPLAY_WIDTH);
+            int target = line * Wayang.BYTES_PER_LINE;
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x += 4) {
+                long quad = convert(pixels.get(source + x), row, 16, 0) |
+                        ((long) convert(pixels.get(source + x + 1), row | 0x100, 16, 0) << 16) |
+                        ((long) convert(pixels.get(source + x + 2), row | 0x200, 16, 0) << 32) |
+                        ((long) convert(pixels.get(source + x + 3), row | 0x300, 16, 0) << 48);
+                destination.putLong(target + (x * 2), quad);
+            }
+        }
+    }
+
+    /**
+     * Convert the top left corner of an image into a buffer that is ready to send to the display. Images of type
+     * {@link BufferedImage#TYPE_INT_RGB}, {@link BufferedImage#TYPE_INT_ARGB}, {@link BufferedImage#TYPE_INT_ARGB_PRE}
+     * and {@link BufferedImage#TYPE_INT_BGR} are converted straight from their pixel arrays; others are read a
+     * line at a time through {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}.
+     *
+     * @param image       an image at least as big as the display.
+     * @param scratchLine space for a line of pixels read from images of other types, or {@code null} to allocate
+     *                    it if needed.
+     * @param destination a little-endian buffer like those returned by {@link Wayang#allocateFrameBuffer(int)}.
+     *
+     * @return the scratch line, which the caller can keep for next time.
+     *
+     * @throws IllegalArgumentException if the destination buffer is not little-endian.
+     */
+    int[] convert(BufferedImage image, int[] scratchLine, ByteBuffer destination) {
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB ||
+                type == BufferedImage.TYPE_INT_ARGB_PRE || type == BufferedImage.TYPE_INT_BGR) {
+            WritableRaster raster = image.getRaster();
+            SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            int offset = buffer.getOffset() +
+                    model.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+            convert(buffer.getData(), offset, model.getScanlineStride(), type == BufferedImage.TYPE_INT_BGR,
+                    0, Wayang.DISPLAY_HEIGHT, destination);
+            return scratchLine;
+        }
+        if (scratchLine == null) {
+            scratchLine = new int[Wayang.DISPLAY_WIDTH];
+        }
+        for (int line = 0; line < Wayang.DISPLAY_HEIGHT; line++) {
+            image.getRGB(0, line, Wayang.DISPLAY_WIDTH, 1, scratchLine, 0, Wayang.DISPLAY_WIDTH);
+            convert(scratchLine, 0, Wayang.DISPLAY_WIDTH, false, line, 1, destination);
+        }
+        return scratchLine;
+    }
+}
@@ -0,0 +1,338 @@
+package org.deepsymmetry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds frames from a stack of {@link Layer}s, such as a static background with a few overlays that change
+ * independently, without redrawing or recompositing the ones that have not changed. The result of compositing
+ * each layer over those beneath it is cached, so a frame costs only the lines of the layers which were marked
+ * dirty (and of the layers above them). The changed lines of the topmost layer are composited and masked
+ * into a frame buffer in a single pass, one line at a time while it is in the processor's cache, so there is
+ * no separate encoding step, and the unchanged lines of the frame are not touched at all. Layers beneath a
+ * completely opaque one are not composited either.
+ *
+ * Send the result with {@link PushDisplay#sendFrame(Compositor)}, or encode it yourself with
+ * {@link #encode(ByteBuffer)}. A compositor is not thread-safe; draw into its layers on the same thread that
+ * sends its frames.
+ *
+ * @author James Elliott
+ */
+public class Compositor {
+
+    /**
+     * The value of the signal shaping mask for four pixels, as it is applied to a little-endian long.
+     */
+    private static final long MASK = 0xffe7f3e7ffe7f3e7L;
+
+    /**
+     * Spreads a 565 pixel across an int so that all three channels can be scaled by a five-bit weight at once,
+     * with room for each to grow: the green bits move to the upper half, and red and blue stay in the lower.
+     */
+    private static final int SPREAD = 0x07e0f81f;
+
+    /**
+     * The layers, from the bottom to the top.
+     */
+    private final List<Layer> layers = new ArrayList<Layer>();
+
+    /**
+     * Set when layers have been added or removed, so every cached composite needs to be worked out again.
+     */
+    private boolean restacked = true;
+
+    /**
+     * The index of the opaque layer on which the cached composites were built, or -1 if they were built on
+     * black, so we can tell when they need to be worked out again from a different starting point.
+     */
+    private int cachedBase = -1;
+
+    /**
+     * A line of black pixels, over which the bottom layer is composited when it is not opaque.
+     */
+    private final short[] blackLine = new short[Wayang.DISPLAY_WIDTH];
+
+    /**
+     * The masked, padded frame, as last composited. Only the lines which change need to be masked again.
+     */
+    private final ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+
+    /**
+     * The first line which has changed in the composite beneath the top layer during the current frame.
+     */
+    private int changedFirst;
+
+    /**
+     * The line after the last one which has changed in the composite beneath the top layer during the current
+     * frame.
+     */
+    private int changedEnd;
+
+    /**
+     * The number of lines that have been composited into the cache, for measuring how much work it saves.
+     */
+    private long linesComposited = 0;
+
+    /**
+     * Add a new layer on top of all the others. It starts out black and opaque, so it hides the layers
+     * beneath until it is drawn into and given a color key or opacity.
+     *
+     * @return the new layer.
+     */
+    public Layer addLayer() {
+        Layer layer = new Layer();
+        layers.add(layer);
+        restacked = true;
+        return layer;
+    }
+
+    /**
+     * Remove a layer, so it no longer contributes to the frames.
+     *
+     * @param layer the layer to remove.
+     *
+     * @return {@code true} if it was one of our layers.
+     */
+    public boolean removeLayer(Layer layer) {
+        if (layers.remove(layer)) {
+            layer.composite = null;
+            restacked = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the layers, from the bottom to the top.
+     *
+     * @return an unmodifiable view of the layers.
+     */
+    public List<Layer> getLayers() {
+        return Collections.unmodifiableList(layers);
+    }
+
+    /**
+     * Check whether anything has changed since the last frame was encoded, so callers which only need to send
+     * changed frames can skip this one.
+     *
+     * @return {@code true} if a layer has been added, removed, or marked dirty.
+     */
+    public boolean isDirty() {
+        if (restacked) {
+            return true;
+        }
+        for (Layer layer : layers) {
+            if (layer.isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find out how many lines have been composited into the cache, which grows only as fast as layers change.
+     *
+     * @return the number of cached lines that have been worked out.
+     */
+    public long getLinesComposited() {
+        return linesComposited;
+    }
+
+    /**
+     * Composite the layers and copy the resulting frame into a buffer, laid out the way frames are sent to the
+     * display and already masked, padding and all.
+     *
+     * @param destination a little-endian buffer able to hold a whole frame, like those returned by
+     *                    {@link Wayang#allocateFrameBuffer(int)}.
+     *
+     * @throws IllegalArgumentException if the buffer is not little-endian or is too small.
+     */
+    public void encode(ByteBuffer destination) {
+        if (destination.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Destination buffer must be little-endian");
+        }
+        if (destination.capacity() < Wayang.BYTES_PER_LINE * Wayang.DISPLAY_HEIGHT) {
+            throw new IllegalArgumentException("Destination buffer is too small to hold the display");
+        }
+        ByteBuffer source = update().duplicate();
+        source.clear();
+        ByteBuffer target = destination.duplicate();
+        target.clear();
+        target.put(source);
+    }
+
+    /**
+     * Bring the frame up to date with any changes to the layers. The changed lines of the top layer are
+     * composited and masked into the frame one at a time, while each is still in the processor's cache; the
+     * rest of the frame already holds what it needs, so costs nothing.
+     *
+     * @return the masked, padded frame, which will be changed by the next call.
+     */
+    ByteBuffer update() {
+        int top = layers.size() - 1;
+        short[] below = updateCache(top);
+        Layer topLayer = (top >= 0) ? layers.get(top) : null;
+        short[] source = null;
+        boolean compositing = false;
+        if (topLayer != null) {
+            if (topLayer.isDirty()) {
+                changedFirst = Math.min(changedFirst, topLayer.dirtyFirst);
+                changedEnd = Math.max(changedEnd, topLayer.dirtyEnd);
+            }
+            if (top == cachedBase) {
+                source = topLayer.pixels;  // It hides everything beneath it, so can be masked as it is.
+            } else {
+                if (topLayer.composite == null) {
+                    topLayer.composite = new short[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+                    changedFirst = 0;
+                    changedEnd = Wayang.DISPLAY_HEIGHT;
+                }
+                source = topLayer.composite;
+                compositing = true;
+                linesComposited += Math.max(0, changedEnd - changedFirst);
+            }
+        }
+
+        for (int y = changedFirst; y < changedEnd; y++) {
+            int offset = y * Wayang.DISPLAY_WIDTH;
+            if (source == null) {
+                maskLine(blackLine, 0, frame, y * Wayang.BYTES_PER_LINE);
+                continue;
+            }
+            if (compositing) {
+                if (below == null) {
+                    blend(topLayer, offset, blackLine, 0, source, offset);
+                } else {
+                    blend(topLayer, offset, below, offset, source, offset);
+                }
+            }
+            maskLine(source, offset, frame, y * Wayang.BYTES_PER_LINE);
+        }
+        for (Layer layer : layers) {
+            layer.markClean();
+        }
+        restacked = false;
+        return frame;
+    }
+
+    /**
+     * Bring the cached composites of all the layers beneath the top one up to date, working out again only the
+     * lines which have changed in them or in a layer beneath them. Leaves the range of lines which changed
+     * in {@link #changedFirst} and {@link #changedEnd}, since the top layer needs them composited again too.
+     *
+     * @param top the index of the top layer.
+     *
+     * @return the pixels of everything beneath the top layer, or {@code null} if that is just black.
+     */
+    private short[] updateCache(int top) {
+        int base = -1;
+        for (int i = top; i >= 0; i--) {
+            if (layers.get(i).isOpaque()) {
+                base = i;
+                break;
+            }
+        }
+        boolean rebuild = restacked || base != cachedBase;
+        cachedBase = base;
+        changedFirst = rebuild ? 0 : Wayang.DISPLAY_HEIGHT;
+        changedEnd = rebuild ? Wayang.DISPLAY_HEIGHT : 0;
+        if (base == top) {
+            return null;  // The top layer hides everything, so nothing beneath it matters.
+        }
+
+        short[] below = null;
+        for (int i = Math.max(base, 0); i < top; i++) {
+            Layer layer = layers.get(i);
+            if (layer.isDirty()) {
+                changedFirst = Math.min(changedFirst, layer.dirtyFirst);
+                changedEnd = Math.max(changedEnd, layer.dirtyEnd);
+            }
+            if (i == base) {
+                below = layer.pixels;  // An opaque layer is its own composite.
+                continue;
+            }
+            if (layer.composite == null) {
+                layer.composite = new short[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+                changedFirst = 0;  // Everything above this needs to be worked out from scratch too.
+                changedEnd = Wayang.DISPLAY_HEIGHT;
+            }
+            for (int y = changedFirst; y < changedEnd; y++) {
+                int offset = y * Wayang.DISPLAY_WIDTH;
+                if (below == null) {
+                    blend(layer, offset, blackLine, 0, layer.composite, offset);
+                } else {
+                    blend(layer, offset, below, offset, layer.composite, offset);
+                }
+            }
+            linesComposited += Math.max(0, changedEnd - changedFirst);
+            below = layer.composite;
+        }
+        return below;
+    }
+
+    /**
+     * Composite one line of a layer over what is beneath it.
+     *
+     * @param layer        the layer being composited.
+     * @param layerOffset  the index of the first pixel of the line within the layer.
+     * @param below        the pixels beneath the layer.
+     * @param belowOffset  the index of the first pixel of the line within {@code below}.
+     * @param target       where the composited line should be stored.
+     * @param targetOffset the index at which the first composited pixel should be stored.
+     */
+    private static void blend(Layer layer, int layerOffset, short[] below, int belowOffset,
+                              short[] target, int targetOffset) {
+        short[] pixels = layer.pixels;
+        if (layer.isInvisible()) {
+            System.arraycopy(below, belowOffset, target, targetOffset, Wayang.DISPLAY_WIDTH);
+            return;
+        }
+        int key = layer.getColorKey();
+        int weight = layer.blendWeight();
+        if (weight == 32) {
+            if (key < 0) {
+                System.arraycopy(pixels, layerOffset, target, targetOffset, Wayang.DISPLAY_WIDTH);
+            } else {
+                for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                    short pixel = pixels[layerOffset + x];
+                    target[targetOffset + x] = ((pixel & 0xffff) == key) ? below[belowOffset + x] : pixel;
+                }
+            }
+            return;
+        }
+        int inverse = 32 - weight;
+        for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+            int pixel = pixels[layerOffset + x] & 0xffff;
+            int under = below[belowOffset + x] & 0xffff;
+            if (pixel == key) {
+                target[targetOffset + x] = (short) under;
+            } else {
+                int over = (pixel | (pixel << 16)) & SPREAD;
+                int back = (under | (under << 16)) & SPREAD;
+                int mixed = ((over * weight + back * inverse) >>> 5) & SPREAD;
+                target[targetOffset + x] = (short) (mixed | (mixed >>> 16));
+            }
+        }
+    }
+
+    /**
+     * Mask one line of pixels into a frame buffer.
+     *
+     * @param line        the pixels.
+     * @param offset      the index of the first pixel of the line.
+     * @param destination the little-endian frame buffer.
+     * @param position    the index within the buffer at which the line belongs.
+     */
+    private static void maskLine(short[] line, int offset, ByteBuffer destination, int position) {
+        for (int x = 0; x < Wayang.DISPLAY_WIDTH; x += 4) {
+            long quad = (line[offset + x] & 0xffffL) |
+                    ((line[offset + x + 1] & 0xffffL) << 16) |
+                    ((line[offset + x + 2] & 0xffffL) << 32) |
+                    ((long) line[offset + x + 3] << 48);
+            destination.putLong(position + (x * 2), quad ^ MASK);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.deepsymmetry;
+
+import java.awt.image.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A display image whose pixels live in a direct buffer laid out exactly as the Push expects them: each line
+ * {@link Wayang#BYTES_PER_LINE} bytes long, with each pixel stored little-endian. Preparing a frame for
+ * sending therefore only requires applying the signal shaping mask, either in place or while copying it
+ * into a transfer buffer, rather than expanding each line into a separate buffer.
+ *
+ * Java2D does not have specialized loops for a {@link DataBuffer} it does not know, so drawing into this
+ * image is slower than drawing into one created by {@link Wayang#createDisplayImage()}. Which is faster
+ * overall depends on how much is drawn each frame; the benchmarks measure both.
+ *
+ * @author James Elliott
+ */
+class DirectDisplayRaster {
+
+    /**
+     * The signal shaping pattern, as it appears when four pixels are packed into a little-endian long.
+     */
+    private static final long MASK = 0xffe7f3e7ffe7f3e7L;
+
+    /**
+     * The number of bytes of pixel data in each line, ahead of the padding.
+     */
+    private static final int PIXEL_BYTES_PER_LINE = Wayang.DISPLAY_WIDTH * 2;
+
+    /**
+     * The number of pixels from the start of one line to the start of the next, including the padding.
+     */
+    private static final int PIXEL_STRIDE = Wayang.BYTES_PER_LINE / 2;
+
+    /**
+     * Presents the direct buffer to Java2D as a buffer of unsigned shorts.
+     */
+    private static class DirectDataBuffer extends DataBuffer {
+
+        /**
+         * The native memory holding the pixels.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Constructor wraps the buffer.
+         *
+         * @param buffer a little-endian buffer holding one pixel in each pair of bytes.
+         */
+        private DirectDataBuffer(ByteBuffer buffer) {
+            super(TYPE_USHORT, buffer.capacity() / 2);
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return buffer.getShort(i << 1) & 0xffff;
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            buffer.putShort(i << 1, (short) val);
+        }
+    }
+
+    /**
+     * The native memory holding the pixels, laid out as they are sent to the Push.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The image which draws into {@link #buffer}.
+     */
+    private final BufferedImage image;
+
+    /**
+     * Allocates the buffer and builds an image which draws into it.
+     */
+    DirectDisplayRaster() {
+        buffer = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        SampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_USHORT,
+                Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, PIXEL_STRIDE, new int[] {0x001f, 0x07e0, 0xf800});
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, new DirectDataBuffer(buffer), null);
+        ColorModel colorModel = new DirectColorModel(16, 0x001f, 0x07e0, 0xf800);
+        image = new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Get the image whose pixels are stored in our buffer.
+     *
+     * @return the display image.
+     */
+    BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Get the native memory holding the pixels.
+     *
+     * @return the little-endian buffer, with lines {@link Wayang#BYTES_PER_LINE} bytes apart.
+     */
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Find the native memory holding the pixels of an image, if it was created by one of these rasters.
+     *
+     * @param image the image whose pixels are wanted.
+     *
+     * @return the little-endian buffer, with lines {@link Wayang#BYTES_PER_LINE} bytes apart, or {@code null}
+     *         if the image stores its pixels some other way.
+     */
+    static ByteBuffer bufferOf(BufferedImage image) {
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        if (dataBuffer instanceof DirectDataBuffer) {
+            return ((DirectDataBuffer) dataBuffer).buffer;
+        }
+        return null;
+    }
+
+    /**
+     * Apply the signal shaping mask to the pixels in place, so the buffer can be sent to the display as it
+     * is. Calling this again removes the mask. The padding at the end of each line is left untouched.
+     */
+    void maskInPlace() {
+        maskInPlace(0, Wayang.DISPLAY_HEIGHT);
+    }
+
+    /**
+     * Apply (or remove) the signal shaping mask in place for a range of lines only, so that different
+     * parts of the image can be masked on different threads.
+     *
+     * @param firstLine the first line of pixels to be masked.
+     * @param lineCount the number of lines of pixels to be masked.
+     */
+    void maskInPlace(int firstLine, int lineCount) {
+        for (int line = firstLine; line < firstLine + lineCount; line++) {
+            int start = line * Wayang.BYTES_PER_LINE;
+            int end = start + PIXEL_BYTES_PER_LINE;
+            for (int i = start; i < end; i += 8) {
+                buffer.putLong(i, buffer.getLong(i) ^ MASK);
+            }
+        }
+    }
+
+    /**
+     * Copy a range of lines into a buffer that is ready to send to the display, applying the signal shaping
+     * mask along the way. As with {@link FrameEncoder#encode(short[], int, int, ByteBuffer, int)}, the padding
+     * at the end of each line is left untouched.
+     *
+     * @param firstLine   the first line of pixels to be masked.
+     * @param lineCount   the number of lines of pixels to be masked.
+     * @param destination a little-endian buffer like those returned by {@link Wayang#allocateFrameBuffer(int)}.
+     * @param offset      the index within the destination buffer at which the first line should be stored.
+     *
+     * @throws IllegalArgumentException if the destination buffer is not little-endian.
+     */
+    void maskInto(int firstLine, int lineCount, ByteBuffer destination, int offset) {
+        if (destination.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Destination buffer must be little-endian");
+        }
+        for (int line = 0; line < lineCount; line++) {
+            int source = (firstLine + line) * Wayang.BYTES_PER_LINE;
+            int target = offset + (line * Wayang.BYTES_PER_LINE);
+            for (int i = 0; i < PIXEL_BYTES_PER_LINE; i += 8) {
+                destination.putLong(target + i, buffer.getLong(source + i) ^ MASK);
+            }
+        }
+    }
+
+    /**
+     * Check whether two buffers of the same size hold the same bytes, comparing eight at a time, without
+     * disturbing their positions or allocating anything.
+     *
+     * @param a the first buffer.
+     * @param b the second buffer.
+     *
+     * @return {@code true} if they have the same capacity and contents.
+     */
+    static boolean sameContent(ByteBuffer a, ByteBuffer b) {
+        int size = a.capacity();
+        if (b.capacity() != size) {
+            return false;
+        }
+        int i = 0;
+        for (; i <= size - 8; i += 8) {
+            if (a.getLong(i) != b.getLong(i)) {
+                return false;
+            }
+        }
+        for (; i < size; i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the contents of one buffer into another of the same size, eight bytes at a time, without
+     * disturbing their positions or allocating anything.
+     *
+     * @param source      the buffer to copy from.
+     * @param destination the buffer to copy into, which must be at least as large.
+     */
+    static void copy(ByteBuffer source, ByteBuffer destination) {
+        int size = source.capacity();
+        int i = 0;
+        for (; i <= size - 8; i += 8) {
+            destination.putLong(i, source.getLong(i));
+        }
+        for (; i < size; i++) {
+            destination.put(i, source.get(i));
+        }
+    }
+}
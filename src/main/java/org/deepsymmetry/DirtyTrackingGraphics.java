@@ -0,0 +1,618 @@
+package org.deepsymmetry;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.TextLayout;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.text.AttributedCharacterIterator;
+import java.util.Map;
+
+/**
+ * Draws in a display image, passing everything on to the image's own graphics, and then tells the display
+ * which lines the drawing touched, so that when dirty tracking is on, only those lines need to be encoded for
+ * the next frame. The bounds of each drawing operation are worked out in device space, allowing for the
+ * current transform, stroke and clip, and are rounded outwards (with an extra line either side for
+ * antialiasing), so the lines marked always include every one which could have changed, and sometimes a few
+ * which did not. Lines are marked after the drawing has been done, so a frame being sent at the same time
+ * either includes the change, or the lines are encoded again for the following frame.
+ *
+ * Images which are still loading when drawn (as opposed to {@link BufferedImage}s, which are always ready)
+ * can finish drawing later without being noticed, so mark those lines with
+ * {@link PushDisplay#markDirty(int, int)} once the image has loaded.
+ *
+ * @author James Elliott
+ */
+class DirtyTrackingGraphics extends Graphics2D {
+
+    /**
+     * How far beyond the ends of a line a square cap or the corner of a bevel join can reach, as a multiple of
+     * half the line width.
+     */
+    private static final double SQRT_2 = Math.sqrt(2.0);
+
+    /**
+     * The graphics of the display image, which do the actual drawing.
+     */
+    private final Graphics2D delegate;
+
+    /**
+     * The display whose lines we mark dirty.
+     */
+    private final PushDisplay display;
+
+    /**
+     * Constructor simply sets the immutable fields.
+     *
+     * @param delegate the graphics of the display image.
+     * @param display  the display whose lines should be marked dirty.
+     */
+    DirtyTrackingGraphics(Graphics2D delegate, PushDisplay display) {
+        this.delegate = delegate;
+        this.display = display;
+    }
+
+    /**
+     * Mark the lines covered by a rectangle in user space, as clipped, once it has been transformed to device
+     * space.
+     *
+     * @param x      the left edge of the rectangle.
+     * @param y      the top edge of the rectangle.
+     * @param width  the width of the rectangle.
+     * @param height the height of the rectangle.
+     */
+    private void markUser(double x, double y, double width, double height) {
+        AffineTransform transform = delegate.getTransform();
+        double top;
+        double bottom;
+        if (transform.getShearX() == 0 && transform.getShearY() == 0) {  // The usual case, no shapes to build.
+            double y1 = y * transform.getScaleY() + transform.getTranslateY();
+            double y2 = (y + height) * transform.getScaleY() + transform.getTranslateY();
+            top = Math.min(y1, y2);
+            bottom = Math.max(y1, y2);
+        } else {
+            Rectangle2D device = transform.createTransformedShape(new Rectangle2D.Double(x, y, width, height))
+                    .getBounds2D();
+            top = device.getMinY();
+            bottom = device.getMaxY();
+        }
+        Shape clip = delegate.getClip();
+        if (clip != null) {
+            Rectangle2D clipBounds = transform.createTransformedShape(clip).getBounds2D();
+            top = Math.max(top, clipBounds.getMinY());
+            bottom = Math.min(bottom, clipBounds.getMaxY());
+        }
+        if (Double.isNaN(top) || Double.isNaN(bottom) || bottom < top) {
+            return;  // Nothing visible was drawn.
+        }
+        int first = (int) Math.max(-1, Math.floor(top) - 1);
+        int end = (int) Math.min(Wayang.DISPLAY_HEIGHT + 1, Math.ceil(bottom) + 1);
+        display.markDirty(first, end - first);
+    }
+
+    /**
+     * Mark the lines covered by a rectangle in user space.
+     *
+     * @param bounds the rectangle.
+     */
+    private void markUser(Rectangle2D bounds) {
+        markUser(bounds.getX(), bounds.getY(), bounds.getWidth(), bounds.getHeight());
+    }
+
+    /**
+     * Mark the lines covered by the outline of a rectangle drawn with the current stroke.
+     *
+     * @param x      the left edge of the rectangle.
+     * @param y      the top edge of the rectangle.
+     * @param width  the width of the rectangle.
+     * @param height the height of the rectangle.
+     */
+    private void markStroked(double x, double y, double width, double height) {
+        Stroke stroke = delegate.getStroke();
+        if (stroke instanceof BasicStroke) {
+            BasicStroke basic = (BasicStroke) stroke;
+            double half = Math.max(basic.getLineWidth(), 1.0) / 2;
+            double reach = (basic.getLineJoin() == BasicStroke.JOIN_MITER) ?
+                    half * Math.max(basic.getMiterLimit(), SQRT_2) : half * SQRT_2;
+            markUser(x - reach, y - reach, width + 2 * reach, height + 2 * reach);
+        } else {
+            markUser(stroke.createStrokedShape(new Rectangle2D.Double(x, y, width, height)).getBounds2D());
+        }
+    }
+
+    /**
+     * Mark the lines covered by the outline of a shape drawn with the current stroke.
+     *
+     * @param shape the shape.
+     */
+    private void markStroked(Shape shape) {
+        Stroke stroke = delegate.getStroke();
+        if (stroke instanceof BasicStroke) {
+            Rectangle2D bounds = shape.getBounds2D();
+            markStroked(bounds.getX(), bounds.getY(), bounds.getWidth(), bounds.getHeight());
+        } else {
+            markUser(stroke.createStrokedShape(shape).getBounds2D());
+        }
+    }
+
+    /**
+     * Mark the lines covered by text drawn with the current font. The string's advance gives its width, and
+     * the font's largest glyph its height, which allows for accents and descenders whatever the text.
+     *
+     * @param text the text.
+     * @param x    where its baseline starts.
+     * @param y    the position of its baseline.
+     */
+    private void markText(String text, double x, double y) {
+        Font font = delegate.getFont();
+        FontRenderContext context = delegate.getFontRenderContext();
+        Rectangle2D logical = font.getStringBounds(text, context);
+        Rectangle2D glyph = font.getMaxCharBounds(context);
+        markUser(x + Math.min(logical.getX(), 0) - glyph.getWidth(), y + glyph.getY(),
+                logical.getWidth() + 2 * glyph.getWidth(), glyph.getHeight());
+    }
+
+    /**
+     * Mark the lines covered by styled text.
+     *
+     * @param iterator the text, with its attributes.
+     * @param x        where its baseline starts.
+     * @param y        the position of its baseline.
+     */
+    private void markText(AttributedCharacterIterator iterator, double x, double y) {
+        if (iterator.getEndIndex() > iterator.getBeginIndex()) {
+            Rectangle2D bounds = new TextLayout(iterator, delegate.getFontRenderContext()).getBounds();
+            markUser(x + bounds.getX() - 1, y + bounds.getY() - 1, bounds.getWidth() + 2, bounds.getHeight() + 2);
+        }
+    }
+
+    /**
+     * Mark the lines covered by an image drawn at its own size.
+     *
+     * @param image    the image.
+     * @param x        the left edge at which it was drawn.
+     * @param y        the top edge at which it was drawn.
+     * @param observer told about the image's size if it is not yet known.
+     */
+    private void markImage(Image image, int x, int y, ImageObserver observer) {
+        int width = image.getWidth(observer);
+        int height = image.getHeight(observer);
+        if (width < 0 || height < 0) {
+            display.markDirty();  // Size not known yet.
+        } else {
+            markUser(x, y, width, height);
+        }
+    }
+
+    /**
+     * Mark the lines covered by the image drawn between two corners, in either order.
+     *
+     * @param x1 the x coordinate of one corner.
+     * @param y1 the y coordinate of one corner.
+     * @param x2 the x coordinate of the opposite corner.
+     * @param y2 the y coordinate of the opposite corner.
+     */
+    private void markCorners(int x1, int y1, int x2, int y2) {
+        markUser(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1), Math.abs(y2 - y1));
+    }
+
+    @Override
+    public void draw(Shape s) {
+        delegate.draw(s);
+        markStroked(s);
+    }
+
+    @Override
+    public boolean drawImage(Image img, AffineTransform xform, ImageObserver obs) {
+        boolean result = delegate.drawImage(img, xform, obs);
+        int width = img.getWidth(obs);
+        int height = img.getHeight(obs);
+        if (width < 0 || height < 0) {
+            display.markDirty();
+        } else {
+            Rectangle2D bounds = new Rectangle2D.Double(0, 0, width, height);
+            markUser((xform == null) ? bounds : xform.createTransformedShape(bounds).getBounds2D());
+        }
+        return result;
+    }
+
+    @Override
+    public void drawImage(BufferedImage img, BufferedImageOp op, int x, int y) {
+        delegate.drawImage(img, op, x, y);
+        Rectangle2D bounds = (op == null) ? new Rectangle2D.Double(0, 0, img.getWidth(), img.getHeight()) :
+                op.getBounds2D(img);
+        markUser(x + bounds.getX(), y + bounds.getY(), bounds.getWidth(), bounds.getHeight());
+    }
+
+    @Override
+    public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+        delegate.drawRenderedImage(img, xform);
+        Rectangle2D bounds = new Rectangle2D.Double(img.getMinX(), img.getMinY(), img.getWidth(), img.getHeight());
+        markUser((xform == null) ? bounds : xform.createTransformedShape(bounds).getBounds2D());
+    }
+
+    @Override
+    public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
+        delegate.drawRenderableImage(img, xform);
+        Rectangle2D bounds = new Rectangle2D.Double(img.getMinX(), img.getMinY(), img.getWidth(), img.getHeight());
+        markUser((xform == null) ? bounds : xform.createTransformedShape(bounds).getBounds2D());
+    }
+
+    @Override
+    public void drawString(String str, int x, int y) {
+        delegate.drawString(str, x, y);
+        markText(str, x, y);
+    }
+
+    @Override
+    public void drawString(String str, float x, float y) {
+        delegate.drawString(str, x, y);
+        markText(str, x, y);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, int x, int y) {
+        delegate.drawString(iterator, x, y);
+        markText(iterator, x, y);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, float x, float y) {
+        delegate.drawString(iterator, x, y);
+        markText(iterator, x, y);
+    }
+
+    @Override
+    public void drawGlyphVector(GlyphVector g, float x, float y) {
+        delegate.drawGlyphVector(g, x, y);
+        Rectangle2D bounds = g.getVisualBounds();
+        markUser(x + bounds.getX() - 1, y + bounds.getY() - 1, bounds.getWidth() + 2, bounds.getHeight() + 2);
+    }
+
+    @Override
+    public void fill(Shape s) {
+        delegate.fill(s);
+        markUser(s.getBounds2D());
+    }
+
+    @Override
+    public boolean hit(Rectangle rect, Shape s, boolean onStroke) {
+        return delegate.hit(rect, s, onStroke);
+    }
+
+    @Override
+    public GraphicsConfiguration getDeviceConfiguration() {
+        return delegate.getDeviceConfiguration();
+    }
+
+    @Override
+    public void setComposite(Composite comp) {
+        delegate.setComposite(comp);
+    }
+
+    @Override
+    public void setPaint(Paint paint) {
+        delegate.setPaint(paint);
+    }
+
+    @Override
+    public void setStroke(Stroke s) {
+        delegate.setStroke(s);
+    }
+
+    @Override
+    public void setRenderingHint(RenderingHints.Key hintKey, Object hintValue) {
+        delegate.setRenderingHint(hintKey, hintValue);
+    }
+
+    @Override
+    public Object getRenderingHint(RenderingHints.Key hintKey) {
+        return delegate.getRenderingHint(hintKey);
+    }
+
+    @Override
+    public void setRenderingHints(Map<?, ?> hints) {
+        delegate.setRenderingHints(hints);
+    }
+
+    @Override
+    public void addRenderingHints(Map<?, ?> hints) {
+        delegate.addRenderingHints(hints);
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return delegate.getRenderingHints();
+    }
+
+    @Override
+    public void translate(int x, int y) {
+        delegate.translate(x, y);
+    }
+
+    @Override
+    public void translate(double tx, double ty) {
+        delegate.translate(tx, ty);
+    }
+
+    @Override
+    public void rotate(double theta) {
+        delegate.rotate(theta);
+    }
+
+    @Override
+    public void rotate(double theta, double x, double y) {
+        delegate.rotate(theta, x, y);
+    }
+
+    @Override
+    public void scale(double sx, double sy) {
+        delegate.scale(sx, sy);
+    }
+
+    @Override
+    public void shear(double shx, double shy) {
+        delegate.shear(shx, shy);
+    }
+
+    @Override
+    public void transform(AffineTransform Tx) {
+        delegate.transform(Tx);
+    }
+
+    @Override
+    public void setTransform(AffineTransform Tx) {
+        delegate.setTransform(Tx);
+    }
+
+    @Override
+    public AffineTransform getTransform() {
+        return delegate.getTransform();
+    }
+
+    @Override
+    public Paint getPaint() {
+        return delegate.getPaint();
+    }
+
+    @Override
+    public Composite getComposite() {
+        return delegate.getComposite();
+    }
+
+    @Override
+    public void setBackground(Color color) {
+        delegate.setBackground(color);
+    }
+
+    @Override
+    public Color getBackground() {
+        return delegate.getBackground();
+    }
+
+    @Override
+    public Stroke getStroke() {
+        return delegate.getStroke();
+    }
+
+    @Override
+    public void clip(Shape s) {
+        delegate.clip(s);
+    }
+
+    @Override
+    public FontRenderContext getFontRenderContext() {
+        return delegate.getFontRenderContext();
+    }
+
+    @Override
+    public Graphics create() {
+        return new DirtyTrackingGraphics((Graphics2D) delegate.create(), display);
+    }
+
+    @Override
+    public Color getColor() {
+        return delegate.getColor();
+    }
+
+    @Override
+    public void setColor(Color c) {
+        delegate.setColor(c);
+    }
+
+    @Override
+    public void setPaintMode() {
+        delegate.setPaintMode();
+    }
+
+    @Override
+    public void setXORMode(Color c1) {
+        delegate.setXORMode(c1);
+    }
+
+    @Override
+    public Font getFont() {
+        return delegate.getFont();
+    }
+
+    @Override
+    public void setFont(Font font) {
+        delegate.setFont(font);
+    }
+
+    @Override
+    public FontMetrics getFontMetrics(Font f) {
+        return delegate.getFontMetrics(f);
+    }
+
+    @Override
+    public Rectangle getClipBounds() {
+        return delegate.getClipBounds();
+    }
+
+    @Override
+    public void clipRect(int x, int y, int width, int height) {
+        delegate.clipRect(x, y, width, height);
+    }
+
+    @Override
+    public void setClip(int x, int y, int width, int height) {
+        delegate.setClip(x, y, width, height);
+    }
+
+    @Override
+    public Shape getClip() {
+        return delegate.getClip();
+    }
+
+    @Override
+    public void setClip(Shape clip) {
+        delegate.setClip(clip);
+    }
+
+    @Override
+    public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+        delegate.copyArea(x, y, width, height, dx, dy);
+        markUser(x + dx, y + dy, width, height);
+    }
+
+    @Override
+    public void drawLine(int x1, int y1, int x2, int y2) {
+        delegate.drawLine(x1, y1, x2, y2);
+        markStroked(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1), Math.abs(y2 - y1));
+    }
+
+    @Override
+    public void fillRect(int x, int y, int width, int height) {
+        delegate.fillRect(x, y, width, height);
+        markUser(x, y, width, height);
+    }
+
+    @Override
+    public void drawRect(int x, int y, int width, int height) {
+        delegate.drawRect(x, y, width, height);
+        markStroked(x, y, width, height);
+    }
+
+    @Override
+    public void clearRect(int x, int y, int width, int height) {
+        delegate.clearRect(x, y, width, height);
+        markUser(x, y, width, height);
+    }
+
+    @Override
+    public void drawRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        delegate.drawRoundRect(x, y, width, height, arcWidth, arcHeight);
+        markStroked(x, y, width, height);
+    }
+
+    @Override
+    public void fillRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        delegate.fillRoundRect(x, y, width, height, arcWidth, arcHeight);
+        markUser(x, y, width, height);
+    }
+
+    @Override
+    public void drawOval(int x, int y, int width, int height) {
+        delegate.drawOval(x, y, width, height);
+        markStroked(x, y, width, height);
+    }
+
+    @Override
+    public void fillOval(int x, int y, int width, int height) {
+        delegate.fillOval(x, y, width, height);
+        markUser(x, y, width, height);
+    }
+
+    @Override
+    public void drawArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        delegate.drawArc(x, y, width, height, startAngle, arcAngle);
+        markStroked(x, y, width, height);
+    }
+
+    @Override
+    public void fillArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        delegate.fillArc(x, y, width, height, startAngle, arcAngle);
+        markUser(x, y, width, height);
+    }
+
+    @Override
+    public void drawPolyline(int[] xPoints, int[] yPoints, int nPoints) {
+        delegate.drawPolyline(xPoints, yPoints, nPoints);
+        if (nPoints > 0) {
+            markStroked(new Polygon(xPoints, yPoints, nPoints));
+        }
+    }
+
+    @Override
+    public void drawPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        delegate.drawPolygon(xPoints, yPoints, nPoints);
+        if (nPoints > 0) {
+            markStroked(new Polygon(xPoints, yPoints, nPoints));
+        }
+    }
+
+    @Override
+    public void fillPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        delegate.fillPolygon(xPoints, yPoints, nPoints);
+        if (nPoints > 0) {
+            markUser(new Polygon(xPoints, yPoints, nPoints).getBounds2D());
+        }
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+        boolean result = delegate.drawImage(img, x, y, observer);
+        markImage(img, x, y, observer);
+        return result;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, ImageObserver observer) {
+        boolean result = delegate.drawImage(img, x, y, width, height, observer);
+        markCorners(x, y, x + width, y + height);
+        return result;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, Color bgcolor, ImageObserver observer) {
+        boolean result = delegate.drawImage(img, x, y, bgcolor, observer);
+        markImage(img, x, y, observer);
+        return result;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, Color bgcolor,
+                             ImageObserver observer) {
+        boolean result = delegate.drawImage(img, x, y, width, height, bgcolor, observer);
+        markCorners(x, y, x + width, y + height);
+        return result;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2,
+                             ImageObserver observer) {
+        boolean result = delegate.drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, observer);
+        markCorners(dx1, dy1, dx2, dy2);
+        return result;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2,
+                             Color bgcolor, ImageObserver observer) {
+        boolean result = delegate.drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, bgcolor, observer);
+        markCorners(dx1, dy1, dx2, dy2);
+        return result;
+    }
+
+    @Override
+    public void dispose() {
+        delegate.dispose();
+    }
+}
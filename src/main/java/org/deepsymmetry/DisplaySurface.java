@@ -0,0 +1,292 @@
+package org.deepsymmetry;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Draws {@link Sprite}s, text and filled rectangles straight into the pixels behind a display image, without
+ * going through Java2D. Each row of a sprite is copied with a single
+ * {@link System#arraycopy(Object, int, Object, int, int)} (or a bulk buffer transfer, when the pixels live in
+ * native memory), so redrawing a screen full of labels takes microseconds rather than the milliseconds that
+ * font rasterization and compositing would. Everything drawn is clipped to the display.
+ *
+ * Obtain a surface for the image returned by {@link Wayang#open()} (in any {@link RasterMode}), and draw into
+ * it before sending each frame, exactly as you would with a {@link Graphics2D}; the two can be mixed freely.
+ * If the display is only encoding the lines which have changed (see {@link PushDisplay#setDirtyTracking(boolean)}),
+ * obtain the surface with {@link #forDisplay(PushDisplay)}, which marks the lines it draws in as dirty; a
+ * surface from {@link #forImage(BufferedImage)} writes to the pixels behind the display's back, so anything it
+ * draws will not be sent until those lines are marked with {@link PushDisplay#markDirty(int, int)}. A surface
+ * is not thread-safe, so use one for each thread that draws.
+ *
+ * @author James Elliott
+ */
+public class DisplaySurface {
+
+    /**
+     * The pixels of an ordinary display image, if that is what we are drawing into.
+     */
+    private final short[] pixels;
+
+    /**
+     * The pixels in native memory, laid out with the display's line stride, if that is what we are
+     * drawing into.
+     */
+    private final ShortBuffer buffer;
+
+    /**
+     * The distance, in pixels, from the start of one line to the start of the next.
+     */
+    private final int stride;
+
+    /**
+     * A line of a single color, used to fill rectangles in native memory with bulk transfers.
+     */
+    private final short[] fillLine;
+
+    /**
+     * The color currently stored in {@link #fillLine}.
+     */
+    private short fillColor;
+
+    /**
+     * The display whose image we draw into, which is told about the lines we change, or {@code null} if we
+     * were not created for a display.
+     */
+    private final PushDisplay display;
+
+    /**
+     * Set up a surface for one of the two ways display pixels can be stored.
+     *
+     * @param pixels  the pixels of a display image, or {@code null}.
+     * @param buffer  the pixels in native memory, or {@code null}.
+     * @param stride  the distance from the start of one line to the start of the next.
+     * @param display the display to tell about the lines we change, or {@code null}.
+     */
+    private DisplaySurface(short[] pixels, ShortBuffer buffer, int stride, PushDisplay display) {
+        this.pixels = pixels;
+        this.buffer = buffer;
+        this.stride = stride;
+        this.display = display;
+        if (buffer != null) {
+            fillLine = new short[Wayang.DISPLAY_WIDTH];
+        } else {
+            fillLine = null;
+        }
+    }
+
+    /**
+     * Create a surface which draws into a display image returned by {@link Wayang#open()} or
+     * {@link Wayang#openAll()}. The display is not told which lines have been drawn in, so if it is tracking
+     * dirty lines, use {@link #forDisplay(PushDisplay)} instead.
+     *
+     * @param displayImage the image whose pixels are to be drawn into.
+     *
+     * @return a surface that draws into the image.
+     *
+     * @throws IllegalArgumentException if the image is not a display image.
+     */
+    public static DisplaySurface forImage(BufferedImage displayImage) {
+        return forImage(displayImage, null);
+    }
+
+    /**
+     * Create a surface which draws into the image of a display, marking every line it draws in as dirty, so
+     * that what it draws is encoded and sent even when the display only encodes the lines which have changed.
+     *
+     * @param display the display whose image is to be drawn into.
+     *
+     * @return a surface that draws into the display's image.
+     */
+    public static DisplaySurface forDisplay(PushDisplay display) {
+        return forImage(display.getImage(), display);
+    }
+
+    /**
+     * Create a surface which draws into a display image.
+     *
+     * @param displayImage the image whose pixels are to be drawn into.
+     * @param display      the display to tell about the lines we change, or {@code null}.
+     *
+     * @return a surface that draws into the image.
+     *
+     * @throws IllegalArgumentException if the image is not a display image.
+     */
+    private static DisplaySurface forImage(BufferedImage displayImage, PushDisplay display) {
+        ByteBuffer direct = DirectDisplayRaster.bufferOf(displayImage);
+        if (direct != null) {
+            return forBuffer(direct, display);
+        }
+        if (displayImage.getWidth() != Wayang.DISPLAY_WIDTH || displayImage.getHeight() != Wayang.DISPLAY_HEIGHT ||
+                !(displayImage.getRaster().getDataBuffer() instanceof DataBufferUShort) ||
+                displayImage.getRaster().getParent() != null) {
+            throw new IllegalArgumentException("Image was not created as a display image");
+        }
+        return new DisplaySurface(Wayang.displayPixels(displayImage), null, Wayang.DISPLAY_WIDTH, display);
+    }
+
+    /**
+     * Create a surface which draws into a buffer laid out the way frames are sent to the display, with
+     * each line {@link Wayang#BYTES_PER_LINE} bytes long, such as one returned by
+     * {@link Wayang#allocateFrameBuffer(int)}. The pixels are drawn without the signal shaping mask, which
+     * must be applied before the buffer is sent.
+     *
+     * @param frame the buffer to be drawn into, large enough to hold all the lines of the display.
+     *
+     * @return a surface that draws into the buffer.
+     *
+     * @throws IllegalArgumentException if the buffer is not little-endian or is too small.
+     */
+    public static DisplaySurface forBuffer(ByteBuffer frame) {
+        return forBuffer(frame, null);
+    }
+
+    /**
+     * Create a surface which draws into a buffer laid out the way frames are sent to the display.
+     *
+     * @param frame   the buffer to be drawn into, large enough to hold all the lines of the display.
+     * @param display the display to tell about the lines we change, or {@code null}.
+     *
+     * @return a surface that draws into the buffer.
+     *
+     * @throws IllegalArgumentException if the buffer is not little-endian or is too small.
+     */
+    private static DisplaySurface forBuffer(ByteBuffer frame, PushDisplay display) {
+        if (frame.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Frame buffer must be little-endian");
+        }
+        if (frame.capacity() < Wayang.BYTES_PER_LINE * Wayang.DISPLAY_HEIGHT) {
+            throw new IllegalArgumentException("Frame buffer is too small to hold the display");
+        }
+        ByteBuffer whole = frame.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        whole.clear();
+        return new DisplaySurface(null, whole.asShortBuffer(), Wayang.BYTES_PER_LINE / 2, display);
+    }
+
+    /**
+     * Copy pixels into the surface.
+     *
+     * @param source      the array holding the pixels.
+     * @param sourceIndex the index of the first pixel to copy.
+     * @param target      the index within the surface at which the first pixel belongs.
+     * @param length      the number of pixels to copy.
+     */
+    private void copy(short[] source, int sourceIndex, int target, int length) {
+        if (pixels != null) {
+            System.arraycopy(source, sourceIndex, pixels, target, length);
+        } else {
+            buffer.position(target);
+            buffer.put(source, sourceIndex, length);
+        }
+    }
+
+    /**
+     * If we were created for a display, tell it that some lines have been drawn in.
+     *
+     * @param firstLine the first line drawn in.
+     * @param lineCount the number of lines drawn in.
+     */
+    private void touched(int firstLine, int lineCount) {
+        if (display != null) {
+            display.markDirty(firstLine, lineCount);
+        }
+    }
+
+    /**
+     * Draw a sprite. Its transparent pixels leave whatever was already there untouched.
+     *
+     * @param sprite the sprite to draw.
+     * @param x      the horizontal position of its left edge.
+     * @param y      the vertical position of its top edge.
+     */
+    public void blit(Sprite sprite, int x, int y) {
+        int[] runs = sprite.runs;
+        int width = sprite.getWidth();
+        for (int i = 0; i < runs.length; i += 3) {
+            int row = runs[i];
+            int line = y + row;
+            if (line < 0) {
+                continue;
+            }
+            if (line >= Wayang.DISPLAY_HEIGHT) {
+                break;
+            }
+            int start = x + runs[i + 1];
+            int end = start + runs[i + 2];
+            int skipped = 0;
+            if (start < 0) {
+                skipped = -start;
+                start = 0;
+            }
+            end = Math.min(end, Wayang.DISPLAY_WIDTH);
+            if (start < end) {
+                copy(sprite.pixels, sprite.offset + (row * width) + runs[i + 1] + skipped,
+                        (line * stride) + start, end - start);
+            }
+        }
+        touched(y, sprite.getHeight());
+    }
+
+    /**
+     * Fill a rectangle with a solid color, for example to clear a slot before drawing a new value into it.
+     *
+     * @param x      the horizontal position of the left edge of the rectangle.
+     * @param y      the vertical position of the top edge of the rectangle.
+     * @param width  the width of the rectangle.
+     * @param height the height of the rectangle.
+     * @param color  the color with which to fill it.
+     */
+    public void fillRect(int x, int y, int width, int height, Color color) {
+        int left = Math.max(x, 0);
+        int right = Math.min(x + width, Wayang.DISPLAY_WIDTH);
+        int top = Math.max(y, 0);
+        int bottom = Math.min(y + height, Wayang.DISPLAY_HEIGHT);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        short pixel = SpriteAtlas.pack(color.getRGB());
+        if (pixels != null) {
+            for (int line = top; line < bottom; line++) {
+                Arrays.fill(pixels, (line * stride) + left, (line * stride) + right, pixel);
+            }
+        } else {
+            if (pixel != fillColor) {
+                Arrays.fill(fillLine, pixel);
+                fillColor = pixel;
+            }
+            for (int line = top; line < bottom; line++) {
+                copy(fillLine, 0, (line * stride) + left, right - left);
+            }
+        }
+        touched(top, bottom - top);
+    }
+
+    /**
+     * Draw a line of text using glyphs from a {@link SpriteAtlas}. Characters which are not part of the
+     * glyph set are skipped, and take no space.
+     *
+     * @param glyphs the glyphs with which to draw the text.
+     * @param text   the text to draw.
+     * @param x      the horizontal position at which the text starts.
+     * @param y      the vertical position of the baseline, as for {@link Graphics2D#drawString(String, int, int)}.
+     *
+     * @return the horizontal position just past the end of the text, where more could be drawn.
+     */
+    public int drawText(GlyphSet glyphs, CharSequence text, int x, int y) {
+        int top = y - glyphs.getAscent();
+        for (int i = 0; i < text.length(); i++) {
+            Sprite glyph = glyphs.glyph(text.charAt(i));
+            if (glyph != null) {
+                if (x < Wayang.DISPLAY_WIDTH) {
+                    blit(glyph, x, top);
+                }
+                x += glyph.getWidth();
+            }
+        }
+        return x;
+    }
+}
@@ -0,0 +1,239 @@
+package org.deepsymmetry;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds frames which have already been encoded into the masked, padded format the Push wants, in direct
+ * buffers that can be handed straight to the frame transport, so that content which is shown repeatedly
+ * (like the frames of a looping {@link GifAnimation}) only needs to be decoded, scaled and encoded once. The
+ * total size of the frames held is bounded; when a new frame would exceed the limit, the frames which have
+ * gone longest without being used are discarded to make room.
+ *
+ * Frames are identified by an owner (such as the animation they belong to) and an index. Cached buffers are
+ * never modified or reused, so a frame that is discarded while it is being sent is not disturbed.
+ *
+ * @author James Elliott
+ */
+public class EncodedFrameCache {
+
+    /**
+     * The cache used by animations which are not given one of their own.
+     */
+    private static final EncodedFrameCache shared = new EncodedFrameCache(64L * 1024 * 1024);
+
+    /**
+     * Identifies a cached frame.
+     */
+    private static final class Key {
+
+        /**
+         * The object the frame belongs to.
+         */
+        private final Object owner;
+
+        /**
+         * The position of the frame within its owner.
+         */
+        private final int index;
+
+        /**
+         * Constructor simply records the identifying values.
+         *
+         * @param owner the object the frame belongs to.
+         * @param index the position of the frame within its owner.
+         */
+        private Key(Object owner, int index) {
+            this.owner = owner;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof Key) && ((Key) other).owner == owner && ((Key) other).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(owner) * 31) + index;
+        }
+    }
+
+    /**
+     * The cached frames, in order from least to most recently used.
+     */
+    private final LinkedHashMap<Key, ByteBuffer> frames = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+
+    /**
+     * The most bytes of frames we will hold.
+     */
+    private long maxBytes;
+
+    /**
+     * The number of bytes of frames we currently hold.
+     */
+    private long bytes = 0;
+
+    /**
+     * The number of times a requested frame was found in the cache.
+     */
+    private long hits = 0;
+
+    /**
+     * The number of times a requested frame was not in the cache.
+     */
+    private long misses = 0;
+
+    /**
+     * Get the cache shared by animations which are not given one of their own, which starts out able to
+     * hold 64 MB of frames (a little over two hundred).
+     *
+     * @return the shared cache.
+     */
+    public static EncodedFrameCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param maxBytes the most bytes of frames the cache will hold.
+     *
+     * @throws IllegalArgumentException if {@code maxBytes} is negative.
+     */
+    public EncodedFrameCache(long maxBytes) {
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Change how many bytes of frames the cache can hold, discarding the least recently used ones if needed.
+     *
+     * @param maxBytes the most bytes of frames the cache will hold; each frame takes
+     *                 {@value Wayang#BYTES_PER_LINE} bytes for each of the display's
+     *                 {@value Wayang#DISPLAY_HEIGHT} lines.
+     *
+     * @throws IllegalArgumentException if {@code maxBytes} is negative.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        }
+        this.maxBytes = maxBytes;
+        evict(0);
+    }
+
+    /**
+     * Check how many bytes of frames the cache can hold.
+     *
+     * @return the size limit.
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Check how many bytes of frames the cache is holding.
+     *
+     * @return the total capacity of the cached buffers.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Check how many frames the cache is holding.
+     *
+     * @return the number of cached frames.
+     */
+    public synchronized int getFrameCount() {
+        return frames.size();
+    }
+
+    /**
+     * Check how many requested frames were found in the cache.
+     *
+     * @return the number of cache hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Check how many requested frames had to be encoded because they were not in the cache.
+     *
+     * @return the number of cache misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Look up a frame, marking it as recently used.
+     *
+     * @param owner the object the frame belongs to.
+     * @param index the position of the frame within its owner.
+     *
+     * @return the encoded frame, or {@code null} if it is not in the cache.
+     */
+    synchronized ByteBuffer get(Object owner, int index) {
+        ByteBuffer frame = frames.get(new Key(owner, index));
+        if (frame == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return frame;
+    }
+
+    /**
+     * Add a frame to the cache, discarding the least recently used ones if needed to make room. A frame
+     * bigger than the whole cache is not kept.
+     *
+     * @param owner the object the frame belongs to.
+     * @param index the position of the frame within its owner.
+     * @param frame the encoded frame, which must not be modified once cached.
+     */
+    synchronized void put(Object owner, int index, ByteBuffer frame) {
+        if (frame.capacity() > maxBytes) {
+            return;
+        }
+        ByteBuffer replaced = frames.remove(new Key(owner, index));
+        if (replaced != null) {
+            bytes -= replaced.capacity();
+        }
+        evict(frame.capacity());
+        frames.put(new Key(owner, index), frame);
+        bytes += frame.capacity();
+    }
+
+    /**
+     * Discard all the frames belonging to an owner, because they will not be needed again.
+     *
+     * @param owner the object whose frames should be discarded.
+     */
+    synchronized void remove(Object owner) {
+        Iterator<Map.Entry<Key, ByteBuffer>> iterator = frames.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, ByteBuffer> entry = iterator.next();
+            if (entry.getKey().owner == owner) {
+                bytes -= entry.getValue().capacity();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Discard the least recently used frames until there is room for more.
+     *
+     * @param needed the number of bytes that are about to be added.
+     */
+    private void evict(long needed) {
+        Iterator<ByteBuffer> iterator = frames.values().iterator();
+        while (bytes + needed > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().capacity();
+            iterator.remove();
+        }
+    }
+}
@@ -4,6 +4,8 @@ import org.usb4java.Context;
 import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Used to handle events sent by LibUsb when using asynchronous I/O.
  *
@@ -37,13 +39,52 @@ public class EventHandlingThread extends Thread {
         this.abort = true;
     }
 
+    /**
+     * Counts the errors reported while handling events.
+     */
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /**
+     * Find out how many times handling events has failed. Each failure is also reported on standard error, and
+     * the thread carries on, so transfers already in flight can still complete (or fail) and report back.
+     *
+     * @return the number of errors reported by LibUsb or thrown by transfer callbacks since the thread started.
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * How long to pause after an error, so a persistent problem does not leave the thread spinning.
+     */
+    private static final long ERROR_BACKOFF_MILLIS = 100;
+
     @Override
     public void run() {
         while (!this.abort) {
-            int result = LibUsb.handleEventsTimeout(context, 250000);
-            if (result != LibUsb.SUCCESS) {
-                throw new LibUsbException("Unable to handle events", result);
+            try {
+                int result = LibUsb.handleEventsTimeout(context, 250000);
+                if (result != LibUsb.SUCCESS) {
+                    reportError(new LibUsbException("Unable to handle events", result));
+                }
+            } catch (RuntimeException e) {
+                reportError(e);
             }
         }
     }
+
+    /**
+     * Record and report a problem encountered while handling events, then pause briefly before trying again.
+     *
+     * @param e the problem encountered.
+     */
+    private void reportError(RuntimeException e) {
+        errorCount.incrementAndGet();
+        System.err.println("Problem handling asynchronous USB events, continuing: " + e);
+        try {
+            Thread.sleep(ERROR_BACKOFF_MILLIS);
+        } catch (InterruptedException ie) {
+            abort();
+        }
+    }
 }
@@ -0,0 +1,28 @@
+package org.deepsymmetry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts pixel samples from the display image into the format the Push 2 expects to receive over USB: each
+ * line expanded with padding at the end so it takes an even 2,048 bytes, and the pixel data masked with the
+ * "signal shaping pattern" described in Ableton's documentation. Different implementations trade simplicity
+ * for speed; {@link Wayang#setFrameEncoder(FrameEncoder)} chooses which one is used.
+ *
+ * @author James Elliott
+ */
+public interface FrameEncoder {
+
+    /**
+     * Expand and mask a range of lines of pixel samples into a buffer that is ready to send to the display.
+     * Only the bytes holding pixel data are written; the padding at the end of each line is left untouched.
+     *
+     * @param pixels      the unmasked, un-padded pixel data, with one pixel in each short, and lines
+     *                    {@link Wayang#DISPLAY_WIDTH} pixels long
+     * @param firstLine   the first line of pixels to be masked
+     * @param lineCount   the number of lines of pixels to be masked
+     * @param destination a little-endian buffer into which the split, padded, and masked pixel bytes should be
+     *                    stored, like those returned by {@link Wayang#allocateFrameBuffer(int)}
+     * @param offset      the index within the destination buffer at which the first line should be stored
+     */
+    void encode(short[] pixels, int firstLine, int lineCount, ByteBuffer destination, int offset);
+}
@@ -0,0 +1,515 @@
+package org.deepsymmetry;
+
+import org.usb4java.LibUsbException;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lets any number of threads publish finished frames without ever waiting for USB. Each frame is converted
+ * into one of a small pool of frame buffers on the publishing thread, then placed in a single-slot mailbox,
+ * replacing (and discarding) any frame which had not yet been picked up. A dedicated sender thread always
+ * takes the newest frame from the mailbox and sends it, so the display shows the freshest state the
+ * producers have reached, however long each transfer takes. While no new frame arrives, the sender re-sends
+ * the last one often enough that the Push does not blank its display.
+ *
+ * With the default of three buffers, one producer can be filling a buffer while another waits in the
+ * mailbox and a third is being sent; each additional thread publishing at the same time needs one more.
+ * Handing buffers around uses only atomic operations, so neither producers nor the sender ever block one
+ * another. Created by {@link PushDisplay#startMailbox(int)}.
+ *
+ * @author James Elliott
+ */
+public class FrameMailbox {
+
+    /**
+     * The longest we let the display go without a frame while no new ones are published; the Push blanks
+     * its display after two seconds without one.
+     */
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * How long the sender pauses after failing to send a frame, so a persistent problem does not leave it
+     * spinning.
+     */
+    private static final long ERROR_BACKOFF_MILLIS = 100;
+
+    /**
+     * A buffer holding a converted frame, along with what we need to know about it.
+     */
+    private static class Frame {
+
+        /**
+         * The masked, padded pixel data for the entire display.
+         */
+        final ByteBuffer buffer = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+
+        /**
+         * Holds a line of pixels read from an image which can't be converted directly; allocated when first
+         * needed.
+         */
+        int[] scratchLine = null;
+
+        /**
+         * The {@link System#nanoTime()} at which the frame was published.
+         */
+        long publishedAt;
+    }
+
+    /**
+     * The display to which frames are sent.
+     */
+    private final PushDisplay display;
+
+    /**
+     * Buffers which are not in use; empty elements are {@code null}.
+     */
+    private final AtomicReferenceArray<Frame> free;
+
+    /**
+     * The newest published frame, if the sender has not yet picked it up.
+     */
+    private final AtomicReference<Frame> latest = new AtomicReference<Frame>();
+
+    /**
+     * The thread on which frames are sent.
+     */
+    private final Thread thread;
+
+    /**
+     * Set when the sender should stop.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Set when the last frame sent should be sent again right away, because the display was reconnected.
+     */
+    private volatile boolean resendRequested = false;
+
+    /**
+     * Whether frames are converted with ordered dithering.
+     */
+    private volatile boolean dithering;
+
+    /**
+     * Counts the frames which have been published.
+     */
+    private final AtomicLong framesPublished = new AtomicLong();
+
+    /**
+     * Counts the published frames which were replaced by a newer one before they could be sent.
+     */
+    private final AtomicLong framesDiscarded = new AtomicLong();
+
+    /**
+     * Counts the frames which could not be published because every buffer was in use.
+     */
+    private final AtomicLong framesRejected = new AtomicLong();
+
+    /**
+     * Counts the published frames which have been sent, not including keep-alive resends.
+     */
+    private final AtomicLong framesSent = new AtomicLong();
+
+    /**
+     * Counts the frames which could not be sent because of a problem communicating with the display.
+     */
+    private final AtomicLong sendErrors = new AtomicLong();
+
+    /**
+     * Counts the times the sender thread has gone around its loop, so tests can check that it sleeps while
+     * there is nothing to do. Only written by the sender thread.
+     */
+    private volatile long loopPasses = 0;
+
+    /**
+     * Constructor allocates the frame buffers and sets up the sender thread, but does not start it.
+     *
+     * @param display     the display to which frames will be sent.
+     * @param bufferCount how many frame buffers to allocate.
+     * @param dithering   whether frames should initially be converted with ordered dithering.
+     *
+     * @throws IllegalArgumentException if fewer than three buffers are requested.
+     */
+    FrameMailbox(PushDisplay display, int bufferCount, boolean dithering) {
+        if (bufferCount < 3) {
+            throw new IllegalArgumentException("A frame mailbox needs at least three buffers");
+        }
+        this.display = display;
+        this.dithering = dithering;
+        free = new AtomicReferenceArray<Frame>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            free.set(i, new Frame());
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "Wayang frame sender");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start sending frames.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop sending frames, waiting for the frame in progress (if any) to finish. Frames published after this
+     * are rejected.
+     */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                System.err.println("Interrupted waiting for frame sender to stop.");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Check whether frames published to the mailbox are still being sent.
+     *
+     * @return {@code true} if it has been started and not stopped.
+     */
+    public boolean isRunning() {
+        return thread.isAlive() && !stopped;
+    }
+
+    /**
+     * Control whether published frames are converted with 4&times;4 ordered dithering, which removes the
+     * banding that smooth gradients would otherwise show. Starts out matching the display's setting.
+     *
+     * @param dither {@code true} to dither frames published from now on.
+     */
+    public void setDithering(boolean dither) {
+        dithering = dither;
+    }
+
+    /**
+     * Check whether published frames are converted with ordered dithering.
+     *
+     * @return {@code true} if frames are being dithered.
+     */
+    public boolean isDithering() {
+        return dithering;
+    }
+
+    /**
+     * Publish a frame of ARGB pixels, {@value Wayang#DISPLAY_WIDTH} to a line, starting at index zero. The
+     * pixels are converted on the calling thread, and may be reused as soon as this returns. Alpha is ignored.
+     *
+     * @param argb the pixels.
+     *
+     * @return {@code true} if the frame was published, {@code false} if every buffer was in use by other
+     *         publishing threads (or the mailbox has been stopped), so it was dropped.
+     *
+     * @throws IllegalArgumentException if the array is too small to hold a frame.
+     */
+    public boolean publish(int[] argb) {
+        if (argb.length < Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT) {
+            throw new IllegalArgumentException("Pixel array is too small to hold a " + Wayang.DISPLAY_WIDTH + "x" +
+                    Wayang.DISPLAY_HEIGHT + " frame");
+        }
+        Frame frame = claim();
+        if (frame == null) {
+            return false;
+        }
+        converter().convert(argb, 0, Wayang.DISPLAY_WIDTH, false, 0, Wayang.DISPLAY_HEIGHT, frame.buffer);
+        post(frame);
+        return true;
+    }
+
+    /**
+     * Publish the top left corner of an image. The image is converted on the calling thread, and may be drawn
+     * to again as soon as this returns. Images whose pixels are stored as {@code int} ARGB or xBGR values are
+     * converted straight from their pixel arrays; other types work too, but more slowly.
+     *
+     * @param image the image to publish.
+     *
+     * @return {@code true} if the frame was published, {@code false} if every buffer was in use by other
+     *         publishing threads (or the mailbox has been stopped), so it was dropped.
+     *
+     * @throws IllegalArgumentException if the image is smaller than the display.
+     */
+    public boolean publish(BufferedImage image) {
+        if (image.getWidth() < Wayang.DISPLAY_WIDTH || image.getHeight() < Wayang.DISPLAY_HEIGHT) {
+            throw new IllegalArgumentException("Image must be at least " + Wayang.DISPLAY_WIDTH + "x" +
+                    Wayang.DISPLAY_HEIGHT + " pixels");
+        }
+        Frame frame = claim();
+        if (frame == null) {
+            return false;
+        }
+        frame.scratchLine = converter().convert(image, frame.scratchLine, frame.buffer);
+        post(frame);
+        return true;
+    }
+
+    /**
+     * Publish an image of any size, resampled to fit the display by a scaler created for images of that size.
+     * The image is scaled and converted on the calling thread (with help from the common fork/join pool), and
+     * may be drawn to again as soon as this returns.
+     *
+     * @param image  the image to publish.
+     * @param scaler how to fit the image to the display.
+     *
+     * @return {@code true} if the frame was published, {@code false} if every buffer was in use by other
+     *         publishing threads (or the mailbox has been stopped), so it was dropped.
+     *
+     * @throws IllegalArgumentException if the image is not the size the scaler was created for.
+     */
+    public boolean publish(BufferedImage image, ImageScaler scaler) {
+        if (image.getWidth() != scaler.getSourceWidth() || image.getHeight() != scaler.getSourceHeight()) {
+            throw new IllegalArgumentException("Scaler works with " + scaler.getSourceWidth() + "x" +
+                    scaler.getSourceHeight() + " images, got " + image.getWidth() + "x" + image.getHeight());
+        }
+        Frame frame = claim();
+        if (frame == null) {
+            return false;
+        }
+        scaler.encode(image, frame.buffer, converter());
+        post(frame);
+        return true;
+    }
+
+    /**
+     * Publish the next frame of a raw video stream, reading it straight into one of our buffers on the calling
+     * thread. If every buffer is in use, the frame is read and thrown away, so the stream keeps up.
+     *
+     * @param reader the stream from which to read the frame.
+     *
+     * @return {@code true} if a frame was read (whether or not it could be published), {@code false} if the
+     *         stream has ended.
+     *
+     * @throws IOException if there is a problem reading the stream.
+     */
+    boolean publish(RawVideoReader reader) throws IOException {
+        Frame frame = claim();
+        if (frame == null) {
+            return reader.skipFrame();
+        }
+        boolean complete = false;
+        try {
+            complete = reader.readFrame(frame.buffer, converter());
+        } finally {
+            if (complete) {
+                post(frame);
+            } else {
+                release(frame);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Find the converter which matches our dithering setting.
+     *
+     * @return the converter to use for published frames.
+     */
+    private ArgbFrameConverter converter() {
+        return dithering ? ArgbFrameConverter.DITHERED : ArgbFrameConverter.PLAIN;
+    }
+
+    /**
+     * Find a buffer in which to convert a frame being published. If none is free, takes the frame waiting in
+     * the mailbox, since the one being published will replace it anyway.
+     *
+     * @return the buffer, or {@code null} if every one is in use, or the mailbox has been stopped.
+     */
+    private Frame claim() {
+        if (!stopped) {
+            for (int i = 0; i < free.length(); i++) {
+                Frame frame = free.get(i);
+                if (frame != null && free.compareAndSet(i, frame, null)) {
+                    return frame;
+                }
+            }
+            Frame stale = latest.getAndSet(null);
+            if (stale != null) {
+                framesDiscarded.incrementAndGet();
+                return stale;
+            }
+        }
+        framesRejected.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Return a buffer to the pool. There is always an empty place for it, since there are exactly as many
+     * places as buffers.
+     *
+     * @param frame the buffer which is no longer needed.
+     */
+    private void release(Frame frame) {
+        while (true) {
+            for (int i = 0; i < free.length(); i++) {
+                if (free.get(i) == null && free.compareAndSet(i, null, frame)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Place a converted frame in the mailbox, discarding any older frame still waiting there, and wake the
+     * sender.
+     *
+     * @param frame the buffer holding the newly converted frame.
+     */
+    private void post(Frame frame) {
+        frame.publishedAt = System.nanoTime();
+        framesPublished.incrementAndGet();
+        Frame stale = latest.getAndSet(frame);
+        if (stale != null) {
+            framesDiscarded.incrementAndGet();
+            release(stale);
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Ask for the last frame sent to be sent again as soon as possible, because the display has been
+     * reconnected after losing its connection. If a newer frame is waiting, that is sent instead.
+     */
+    void resend() {
+        resendRequested = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Sends the newest frame whenever one is published, and re-sends the last one when none has been for a
+     * while, until stopped.
+     */
+    private void loop() {
+        Frame showing = null;  // The frame most recently sent, kept for keep-alive resends.
+        long lastSent = System.nanoTime();
+        while (!stopped) {
+            loopPasses++;
+            Frame frame = latest.getAndSet(null);
+            long now = System.nanoTime();
+            if (frame != null) {
+                if (showing != null) {
+                    release(showing);
+                }
+                showing = frame;
+                if (send(frame, frame.publishedAt)) {
+                    framesSent.incrementAndGet();
+                }
+                lastSent = System.nanoTime();
+            } else if (showing != null && (resendRequested || now - lastSent >= KEEP_ALIVE_NANOS)) {
+                resendRequested = false;
+                send(showing, now);
+                lastSent = System.nanoTime();
+            } else if (showing == null) {
+                LockSupport.park(this);  // Nothing to keep alive until a frame is published.
+            } else {
+                LockSupport.parkNanos(this, Math.max(1, KEEP_ALIVE_NANOS - (now - lastSent)));
+            }
+        }
+        if (showing != null) {
+            release(showing);
+        }
+        Frame unsent = latest.getAndSet(null);
+        if (unsent != null) {
+            release(unsent);
+        }
+    }
+
+    /**
+     * Send a frame to the display, reporting and counting any problem rather than letting it stop the sender.
+     *
+     * @param frame       the frame to send.
+     * @param requestedAt the {@link System#nanoTime()} from which the frame's latency should be measured.
+     *
+     * @return {@code true} if the frame was sent.
+     */
+    private boolean send(Frame frame, long requestedAt) {
+        try {
+            display.sendEncodedFrame(frame.buffer, requestedAt);
+            return true;
+        } catch (IllegalStateException e) {
+            stopped = true;  // The display has been closed.
+        } catch (LibUsbException e) {
+            sendErrors.incrementAndGet();
+            System.err.println("Problem sending frame from mailbox, continuing: " + e);
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(ERROR_BACKOFF_MILLIS));
+        } catch (RuntimeException e) {  // Such as from a recorder; must not silently end the sender thread.
+            sendErrors.incrementAndGet();
+            display.getMetrics().frameFailed();  // Unlike LibUsb failures, the display has not counted it.
+            System.err.println("Unexpected problem sending frame from mailbox, continuing: " + e);
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(ERROR_BACKOFF_MILLIS));
+        }
+        return false;
+    }
+
+    /**
+     * Check how many frames have been published.
+     *
+     * @return the number of frames accepted by {@link #publish(int[])} and {@link #publish(BufferedImage)}, or
+     *         read from a {@link RawVideoReader}.
+     */
+    public long getFramesPublished() {
+        return framesPublished.get();
+    }
+
+    /**
+     * Check how many published frames have been sent to the display, not counting keep-alive resends.
+     *
+     * @return the number of frames sent.
+     */
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    /**
+     * Check how many times the sender thread has gone around its loop, looking for something to do.
+     *
+     * @return the number of passes through the sender loop.
+     */
+    long getLoopPasses() {
+        return loopPasses;
+    }
+
+    /**
+     * Check how many published frames were never sent, because a newer frame replaced them first.
+     *
+     * @return the number of stale frames discarded.
+     */
+    public long getFramesDiscarded() {
+        return framesDiscarded.get();
+    }
+
+    /**
+     * Check how many frames could not be published because every buffer was in use by other publishing
+     * threads, or the mailbox had been stopped.
+     *
+     * @return the number of frames rejected.
+     */
+    public long getFramesRejected() {
+        return framesRejected.get();
+    }
+
+    /**
+     * Check how many frames could not be sent because of a problem communicating with the display, or any
+     * other unexpected problem while sending them.
+     *
+     * @return the number of failed sends, including keep-alive resends.
+     */
+    public long getSendErrors() {
+        return sendErrors.get();
+    }
+}
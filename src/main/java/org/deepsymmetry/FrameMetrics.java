@@ -0,0 +1,574 @@
+package org.deepsymmetry;
+
+import org.usb4java.LibUsb;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of how well frames are making their way to the display: how many are sent, skipped, dropped
+ * or fail, how long encoding and transferring them takes, and which errors LibUsb reports. Everything is
+ * recorded in pre-allocated atomic counters, so the sending threads and the LibUsb event thread can update
+ * it without allocating or blocking. Each display has its own metrics, which are registered with the
+ * platform MBean server while it is open, under the name given by {@link PushDisplay#getMetricsObjectName()},
+ * so they can be watched with tools like JConsole or VisualVM; they can also be obtained directly from
+ * {@link PushDisplay#getMetrics()}.
+ *
+ * @author James Elliott
+ */
+public class FrameMetrics implements FrameMetricsMXBean {
+
+    /**
+     * How many recent send times we remember in order to calculate the frame rate; enough to cover one
+     * second at well beyond the rate the display can accept.
+     */
+    private static final int RECENT_SENDS = 256;
+
+    /**
+     * The names of the LibUsb error codes and transfer statuses we count, indexed by {@link #errorIndex(int)}.
+     */
+    private static final String[] ERROR_NAMES = {
+            "LIBUSB_SUCCESS",
+            "LIBUSB_TRANSFER_ERROR", "LIBUSB_TRANSFER_TIMED_OUT", "LIBUSB_TRANSFER_CANCELLED",
+            "LIBUSB_TRANSFER_STALL", "LIBUSB_TRANSFER_NO_DEVICE", "LIBUSB_TRANSFER_OVERFLOW",
+            "LIBUSB_ERROR_IO", "LIBUSB_ERROR_INVALID_PARAM", "LIBUSB_ERROR_ACCESS", "LIBUSB_ERROR_NO_DEVICE",
+            "LIBUSB_ERROR_NOT_FOUND", "LIBUSB_ERROR_BUSY", "LIBUSB_ERROR_TIMEOUT", "LIBUSB_ERROR_OVERFLOW",
+            "LIBUSB_ERROR_PIPE", "LIBUSB_ERROR_INTERRUPTED", "LIBUSB_ERROR_NO_MEM", "LIBUSB_ERROR_NOT_SUPPORTED",
+            "LIBUSB_ERROR_OTHER", "UNKNOWN"
+    };
+
+    /**
+     * Counts the frames which were completely and successfully sent.
+     */
+    private final AtomicLong framesSent = new AtomicLong();
+
+    /**
+     * Holds the {@link System#nanoTime()} at which recent frames were sent, indexed by their position in
+     * {@link #framesSent}, modulo {@link #RECENT_SENDS}.
+     */
+    private final AtomicLongArray recentSends = new AtomicLongArray(RECENT_SENDS);
+
+    /**
+     * Counts the frames dropped because no asynchronous frame buffer was free.
+     */
+    private final AtomicLong framesDropped = new AtomicLong();
+
+    /**
+     * Counts the frames which were not sent because they were unchanged.
+     */
+    private final AtomicLong framesSkipped = new AtomicLong();
+
+    /**
+     * Counts the frames which could not be sent because of an error.
+     */
+    private final AtomicLong framesFailed = new AtomicLong();
+
+    /**
+     * Counts the asynchronous transfers which have been submitted but not yet finished.
+     */
+    private final AtomicInteger transfersInFlight = new AtomicInteger();
+
+    /**
+     * Counts the transfers which succeeded but sent less data than they should have.
+     */
+    private final AtomicLong shortTransfers = new AtomicLong();
+
+    /**
+     * Counts the failures reported by LibUsb, indexed by {@link #errorIndex(int)}.
+     */
+    private final AtomicLongArray errorCounts = new AtomicLongArray(ERROR_NAMES.length);
+
+    /**
+     * Records how long it takes to encode each frame.
+     */
+    private final LatencyHistogram encodeTimes = new LatencyHistogram();
+
+    /**
+     * Records how long it takes for all the transfers of each frame to complete.
+     */
+    private final LatencyHistogram transferTimes = new LatencyHistogram();
+
+    /**
+     * Records how long it takes from asking for each frame to be sent until its last byte has been transferred.
+     */
+    private final LatencyHistogram frameLatencies = new LatencyHistogram();
+
+    /**
+     * Counts the times the connection to the display was lost.
+     */
+    private final AtomicLong connectionsLost = new AtomicLong();
+
+    /**
+     * Counts the times the display was reconnected after its connection was lost.
+     */
+    private final AtomicLong reconnections = new AtomicLong();
+
+    /**
+     * The {@link System#nanoTime()} at which we started opening or reconnecting the display.
+     */
+    private volatile long connectingSince;
+
+    /**
+     * Set while we are waiting for the first frame to be sent after opening or reconnecting the display.
+     */
+    private volatile boolean awaitingFirstFrame = false;
+
+    /**
+     * How long it took from starting to open or reconnect the display until the first frame was sent, in
+     * nanoseconds, or -1 if no frame has been sent yet.
+     */
+    private volatile long timeToFirstFrame = -1;
+
+    /**
+     * The transport over which frames are being sent, so we can check on its event thread.
+     */
+    private volatile FrameTransport transport = null;
+
+    /**
+     * The name under which we are registered with the platform MBean server, if we are.
+     */
+    private ObjectName registeredName = null;
+
+    /**
+     * Figure out where to count a LibUsb error code or transfer status.
+     *
+     * @param code a negative error code returned by a LibUsb function, or the status of an asynchronous transfer.
+     *
+     * @return the index of the counter in {@link #errorCounts}.
+     */
+    private static int errorIndex(int code) {
+        if (code >= LibUsb.TRANSFER_ERROR && code <= LibUsb.TRANSFER_OVERFLOW) {
+            return code;
+        }
+        if (code <= LibUsb.ERROR_IO && code >= LibUsb.ERROR_NOT_SUPPORTED) {
+            return LibUsb.TRANSFER_OVERFLOW - code;
+        }
+        if (code == LibUsb.ERROR_OTHER) {
+            return ERROR_NAMES.length - 2;
+        }
+        return ERROR_NAMES.length - 1;
+    }
+
+    /**
+     * Find the name of a LibUsb error code or transfer status, for reporting.
+     *
+     * @param code a negative error code returned by a LibUsb function, or the status of an asynchronous transfer.
+     *
+     * @return the name under which failures with that code are counted.
+     */
+    static String errorName(int code) {
+        return ERROR_NAMES[errorIndex(code)];
+    }
+
+    /**
+     * Set the transport whose event thread we report on.
+     *
+     * @param transport the transport over which frames are sent, or {@code null} if the display is closed.
+     */
+    void setTransport(FrameTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Record that a frame was completely and successfully sent.
+     *
+     * @param transferNanos how long its transfers took.
+     * @param now           the current {@link System#nanoTime()}.
+     */
+    void frameSent(long transferNanos, long now) {
+        transferTimes.record(transferNanos);
+        long index = framesSent.getAndIncrement();
+        recentSends.set((int) (index % RECENT_SENDS), now);
+        if (awaitingFirstFrame) {
+            awaitingFirstFrame = false;
+            timeToFirstFrame = now - connectingSince;
+        }
+    }
+
+    /**
+     * Record that we have started opening the display, so the time until the first frame is sent can be
+     * measured.
+     *
+     * @param startedAt the {@link System#nanoTime()} at which we started.
+     */
+    void connecting(long startedAt) {
+        connectingSince = startedAt;
+        timeToFirstFrame = -1;
+        awaitingFirstFrame = true;
+    }
+
+    /**
+     * Record that the connection to the display has been lost, so there is no time to first frame until it is
+     * reconnected.
+     */
+    void connectionLost() {
+        connectionsLost.incrementAndGet();
+        awaitingFirstFrame = false;
+        timeToFirstFrame = -1;
+    }
+
+    /**
+     * Record that the display has been reconnected, so the time until the first frame is sent can be measured.
+     *
+     * @param startedAt the {@link System#nanoTime()} at which we started reconnecting.
+     */
+    void reconnected(long startedAt) {
+        reconnections.incrementAndGet();
+        connecting(startedAt);
+    }
+
+    /**
+     * Record that a frame was dropped because no asynchronous frame buffer was free.
+     */
+    void frameDropped() {
+        framesDropped.incrementAndGet();
+    }
+
+    /**
+     * Record that a frame did not need to be sent, because it was unchanged.
+     */
+    void frameSkipped() {
+        framesSkipped.incrementAndGet();
+    }
+
+    /**
+     * Record that a frame could not be sent because of an error.
+     */
+    void frameFailed() {
+        framesFailed.incrementAndGet();
+    }
+
+    /**
+     * Record how long it took to encode a frame.
+     *
+     * @param nanos the time spent encoding.
+     */
+    void frameEncoded(long nanos) {
+        encodeTimes.record(nanos);
+    }
+
+    /**
+     * Record how long it took from asking for a frame to be sent until its last byte was transferred.
+     *
+     * @param nanos the time taken to encode and transfer the frame, including any overlap between the two.
+     */
+    void frameLatency(long nanos) {
+        frameLatencies.record(nanos);
+    }
+
+    /**
+     * Record that an asynchronous transfer has been submitted.
+     */
+    void transferSubmitted() {
+        transfersInFlight.incrementAndGet();
+    }
+
+    /**
+     * Record the outcome of an asynchronous transfer.
+     *
+     * @param status         the transfer status reported by LibUsb.
+     * @param actualLength   the number of bytes actually sent.
+     * @param expectedLength the number of bytes that should have been sent.
+     *
+     * @return {@code true} if the transfer succeeded.
+     */
+    boolean transferFinished(int status, int actualLength, int expectedLength) {
+        transfersInFlight.decrementAndGet();
+        if (status != LibUsb.TRANSFER_COMPLETED) {
+            errorCounts.incrementAndGet(errorIndex(status));
+            return false;
+        }
+        if (actualLength < expectedLength) {
+            shortTransfers.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Record the outcome of a synchronous transfer. As with asynchronous transfers, one which sent fewer bytes
+     * than it should have did not succeed, even though the transport reported no error.
+     *
+     * @param result         the value returned by the transport.
+     * @param actualLength   the number of bytes actually sent.
+     * @param expectedLength the number of bytes that should have been sent.
+     *
+     * @return {@code true} if the transfer succeeded.
+     */
+    boolean transferResult(int result, int actualLength, int expectedLength) {
+        if (result != LibUsb.SUCCESS) {
+            transferError(result);
+            return false;
+        }
+        if (actualLength < expectedLength) {
+            shortTransfers.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Record that LibUsb reported an error.
+     *
+     * @param code the error code.
+     */
+    void transferError(int code) {
+        errorCounts.incrementAndGet(errorIndex(code));
+    }
+
+    /**
+     * Register with the platform MBean server, so we can be monitored over JMX. Problems are reported but
+     * otherwise ignored, since they should not stop the display from working.
+     *
+     * @param name the object name under which to register.
+     */
+    synchronized void register(String name) {
+        if (registeredName == null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = new ObjectName(name);
+                server.registerMBean(this, objectName);
+                registeredName = objectName;
+            } catch (JMException e) {
+                System.err.println("Unable to register frame metrics with JMX: " + e);
+            }
+        }
+    }
+
+    /**
+     * Remove our registration with the platform MBean server, if we are registered.
+     */
+    synchronized void unregister() {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                System.err.println("Unable to unregister frame metrics from JMX: " + e);
+            }
+            registeredName = null;
+        }
+    }
+
+    @Override
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    @Override
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    @Override
+    public long getFramesSkipped() {
+        return framesSkipped.get();
+    }
+
+    @Override
+    public long getFramesFailed() {
+        return framesFailed.get();
+    }
+
+    /**
+     * Calculates the frame rate from the frames sent within the last second.
+     *
+     * @return the rate at which frames have recently been sent successfully.
+     */
+    @Override
+    public double getFramesPerSecond() {
+        long now = System.nanoTime();
+        long windowStart = now - TimeUnit.SECONDS.toNanos(1);
+        long count = framesSent.get();
+        long newest = 0;
+        long oldest = 0;
+        int found = 0;
+        for (long i = count - 1; i >= 0 && i >= count - RECENT_SENDS; i--) {
+            long sent = recentSends.get((int) (i % RECENT_SENDS));
+            if (sent - windowStart < 0) {
+                break;
+            }
+            if (found == 0) {
+                newest = sent;
+            }
+            oldest = sent;
+            found++;
+        }
+        if (found < 2 || newest == oldest) {
+            return 0.0;
+        }
+        return (found - 1) * (double) TimeUnit.SECONDS.toNanos(1) / (newest - oldest);
+    }
+
+    @Override
+    public int getTransfersInFlight() {
+        return transfersInFlight.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return errorCounts.get(errorIndex(LibUsb.TRANSFER_TIMED_OUT)) + errorCounts.get(errorIndex(LibUsb.ERROR_TIMEOUT));
+    }
+
+    @Override
+    public long getShortTransfers() {
+        return shortTransfers.get();
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (int i = 1; i < ERROR_NAMES.length; i++) {
+            long count = errorCounts.get(i);
+            if (count > 0) {
+                result.put(ERROR_NAMES[i], count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks on the thread which handles LibUsb events. Transports that do not use LibUsb asynchronous
+     * transfers have no such thread, and neither does a LibUsb transport before it sends its first frame
+     * asynchronously, so this only reports {@code false} when the display is closed or the thread has died.
+     *
+     * @return {@code true} unless the event thread needed by asynchronous transfers has stopped.
+     */
+    @Override
+    public boolean isEventThreadAlive() {
+        FrameTransport currentTransport = transport;
+        if (currentTransport == null) {
+            return false;
+        }
+        return !(currentTransport instanceof UsbFrameTransport) ||
+                !((UsbFrameTransport) currentTransport).hasEventThreadDied();
+    }
+
+    @Override
+    public double getEncodeTimeMeanMicros() {
+        return encodeTimes.meanMicros();
+    }
+
+    @Override
+    public long getEncodeTimeP50Micros() {
+        return encodeTimes.percentileMicros(50);
+    }
+
+    @Override
+    public long getEncodeTimeP99Micros() {
+        return encodeTimes.percentileMicros(99);
+    }
+
+    @Override
+    public long getEncodeTimeMaxMicros() {
+        return encodeTimes.maxMicros();
+    }
+
+    @Override
+    public long[] getEncodeTimeHistogram() {
+        return encodeTimes.bucketCounts();
+    }
+
+    @Override
+    public double getTransferTimeMeanMicros() {
+        return transferTimes.meanMicros();
+    }
+
+    @Override
+    public long getTransferTimeP50Micros() {
+        return transferTimes.percentileMicros(50);
+    }
+
+    @Override
+    public long getTransferTimeP99Micros() {
+        return transferTimes.percentileMicros(99);
+    }
+
+    @Override
+    public long getTransferTimeMaxMicros() {
+        return transferTimes.maxMicros();
+    }
+
+    @Override
+    public long[] getTransferTimeHistogram() {
+        return transferTimes.bucketCounts();
+    }
+
+    @Override
+    public double getFrameLatencyMeanMicros() {
+        return frameLatencies.meanMicros();
+    }
+
+    @Override
+    public long getFrameLatencyP50Micros() {
+        return frameLatencies.percentileMicros(50);
+    }
+
+    @Override
+    public long getFrameLatencyP99Micros() {
+        return frameLatencies.percentileMicros(99);
+    }
+
+    @Override
+    public long getFrameLatencyMaxMicros() {
+        return frameLatencies.maxMicros();
+    }
+
+    @Override
+    public long[] getFrameLatencyHistogram() {
+        return frameLatencies.bucketCounts();
+    }
+
+    @Override
+    public long getConnectionsLost() {
+        return connectionsLost.get();
+    }
+
+    @Override
+    public long getReconnections() {
+        return reconnections.get();
+    }
+
+    @Override
+    public long getTimeToFirstFrameMicros() {
+        long nanos = timeToFirstFrame;
+        return (nanos < 0) ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public long[] getHistogramBucketLimitsMicros() {
+        long[] result = new long[LatencyHistogram.BUCKETS];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = LatencyHistogram.bucketLimitMicros(i);
+        }
+        return result;
+    }
+
+    /**
+     * Start counting again from zero. The number of transfers in flight is left alone, since those
+     * transfers will still report when they finish.
+     */
+    @Override
+    public void reset() {
+        framesSent.set(0);
+        framesDropped.set(0);
+        framesSkipped.set(0);
+        framesFailed.set(0);
+        shortTransfers.set(0);
+        connectionsLost.set(0);
+        reconnections.set(0);
+        for (int i = 0; i < ERROR_NAMES.length; i++) {
+            errorCounts.set(i, 0);
+        }
+        encodeTimes.reset();
+        transferTimes.reset();
+        frameLatencies.reset();
+    }
+}
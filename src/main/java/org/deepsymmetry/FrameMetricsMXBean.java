@@ -0,0 +1,167 @@
+package org.deepsymmetry;
+
+import java.util.Map;
+
+/**
+ * The management interface through which {@link FrameMetrics} are published over JMX, so that monitoring
+ * tools can see how well frames are reaching the display. Latencies are reported in microseconds;
+ * percentiles are the upper bound of the power-of-two histogram bucket in which they fall.
+ *
+ * @author James Elliott
+ */
+public interface FrameMetricsMXBean {
+
+    /**
+     * @return the number of frames which have been completely and successfully sent.
+     */
+    long getFramesSent();
+
+    /**
+     * @return the number of frames which were dropped because all the asynchronous frame buffers were busy.
+     */
+    long getFramesDropped();
+
+    /**
+     * @return the number of frames which did not need to be sent because the display image was unchanged.
+     */
+    long getFramesSkipped();
+
+    /**
+     * @return the number of frames which could not be sent because of an error.
+     */
+    long getFramesFailed();
+
+    /**
+     * @return the rate at which frames have recently been sent successfully.
+     */
+    double getFramesPerSecond();
+
+    /**
+     * @return the number of asynchronous transfers which have been submitted but have not yet finished.
+     */
+    int getTransfersInFlight();
+
+    /**
+     * @return the number of transfers which timed out.
+     */
+    long getTimeouts();
+
+    /**
+     * @return the number of transfers which reported success, but sent fewer bytes than they should have.
+     */
+    long getShortTransfers();
+
+    /**
+     * @return the number of failed transfers, keyed by the name of the LibUsb error code or transfer status.
+     */
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * @return {@code true} if the thread which handles LibUsb events for asynchronous transfers is running.
+     */
+    boolean isEventThreadAlive();
+
+    /**
+     * @return the mean time taken to encode a frame.
+     */
+    double getEncodeTimeMeanMicros();
+
+    /**
+     * @return the median time taken to encode a frame.
+     */
+    long getEncodeTimeP50Micros();
+
+    /**
+     * @return the 99th percentile of the time taken to encode a frame.
+     */
+    long getEncodeTimeP99Micros();
+
+    /**
+     * @return the longest time taken to encode a frame.
+     */
+    long getEncodeTimeMaxMicros();
+
+    /**
+     * @return the number of frame encodings that fell into each histogram bucket, see
+     *         {@link #getHistogramBucketLimitsMicros()}.
+     */
+    long[] getEncodeTimeHistogram();
+
+    /**
+     * @return the mean time taken for all the USB transfers of a frame to complete.
+     */
+    double getTransferTimeMeanMicros();
+
+    /**
+     * @return the median time taken for all the USB transfers of a frame to complete.
+     */
+    long getTransferTimeP50Micros();
+
+    /**
+     * @return the 99th percentile of the time taken for all the USB transfers of a frame to complete.
+     */
+    long getTransferTimeP99Micros();
+
+    /**
+     * @return the longest time taken for all the USB transfers of a frame to complete.
+     */
+    long getTransferTimeMaxMicros();
+
+    /**
+     * @return the number of frame transfers that fell into each histogram bucket, see
+     *         {@link #getHistogramBucketLimitsMicros()}.
+     */
+    long[] getTransferTimeHistogram();
+
+    /**
+     * @return the mean time from asking for a frame to be sent until its last byte was transferred.
+     */
+    double getFrameLatencyMeanMicros();
+
+    /**
+     * @return the median time from asking for a frame to be sent until its last byte was transferred.
+     */
+    long getFrameLatencyP50Micros();
+
+    /**
+     * @return the 99th percentile of the time from asking for a frame to be sent until its last byte was transferred.
+     */
+    long getFrameLatencyP99Micros();
+
+    /**
+     * @return the longest time from asking for a frame to be sent until its last byte was transferred.
+     */
+    long getFrameLatencyMaxMicros();
+
+    /**
+     * @return the number of frame latencies that fell into each histogram bucket, see
+     *         {@link #getHistogramBucketLimitsMicros()}.
+     */
+    long[] getFrameLatencyHistogram();
+
+    /**
+     * @return the number of times the connection to the display was lost, for example by unplugging it.
+     */
+    long getConnectionsLost();
+
+    /**
+     * @return the number of times the display was reconnected after its connection was lost.
+     */
+    long getReconnections();
+
+    /**
+     * @return how long it took from starting to open the display, or most recently reconnect it, until the
+     *         first frame was sent, or -1 if none has been sent since, or the display is disconnected.
+     */
+    long getTimeToFirstFrameMicros();
+
+    /**
+     * @return the number of microseconds below which all durations in each histogram bucket fall.
+     */
+    long[] getHistogramBucketLimitsMicros();
+
+    /**
+     * Start counting again from zero.
+     */
+    void reset();
+}
@@ -0,0 +1,226 @@
+package org.deepsymmetry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a capture file written by a {@link FrameRecorder}. The file is memory-mapped, and slices of the
+ * mapping are handed straight to the frame transport, so playback involves no encoding or copying. Pass
+ * one to {@link Wayang#replay(FramePlayer)} to send its frames to the display at their original timing.
+ *
+ * @author James Elliott
+ */
+public class FramePlayer implements Closeable {
+
+    /**
+     * The capture file.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * The time at which each frame was sent, in nanoseconds since recording started.
+     */
+    private final long[] timestamps;
+
+    /**
+     * The header sent before each frame, as slices of the mapped file.
+     */
+    private final ByteBuffer[] headers;
+
+    /**
+     * The pixel data of each frame, as slices of the mapped file.
+     */
+    private final ByteBuffer[] frames;
+
+    /**
+     * Set when playback should stop early.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Open and map a capture file.
+     *
+     * @param captureFile a file written by a {@link FrameRecorder}.
+     *
+     * @throws IOException if there is a problem reading the file, or it is not a capture file.
+     */
+    public FramePlayer(File captureFile) throws IOException {
+        file = new RandomAccessFile(captureFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < FrameRecorder.FILE_HEADER_SIZE) {
+                throw new IOException("File is too short to be a Wayang frame capture: " + captureFile);
+            }
+            ByteBuffer fileHeader = channel.map(FileChannel.MapMode.READ_ONLY, 0, FrameRecorder.FILE_HEADER_SIZE);
+            fileHeader.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[FrameRecorder.MAGIC.length];
+            fileHeader.get(magic);
+            if (!Arrays.equals(magic, FrameRecorder.MAGIC)) {
+                throw new IOException("Not a Wayang frame capture file: " + captureFile);
+            }
+            int version = fileHeader.getInt();
+            if (version != FrameRecorder.VERSION) {
+                throw new IOException("Unsupported frame capture version " + version + ": " + captureFile);
+            }
+            int headerSize = fileHeader.getInt();
+            int frameSize = fileHeader.getInt();
+            long frameCount = fileHeader.getLong(FrameRecorder.FRAME_COUNT_OFFSET);
+            long recordSize = FrameRecorder.TIMESTAMP_SIZE + headerSize + frameSize;
+            if (frameCount < 0 || frameCount > Integer.MAX_VALUE ||
+                    FrameRecorder.FILE_HEADER_SIZE + (frameCount * recordSize) > channel.size()) {
+                throw new IOException("Frame capture file is truncated or corrupt: " + captureFile);
+            }
+
+            timestamps = new long[(int) frameCount];
+            headers = new ByteBuffer[(int) frameCount];
+            frames = new ByteBuffer[(int) frameCount];
+
+            // Map as many frames at a time as will fit in a single mapping.
+            int framesPerMapping = (int) Math.max(1, Integer.MAX_VALUE / recordSize);
+            MappedByteBuffer mapping = null;
+            for (int i = 0; i < frameCount; i++) {
+                int slot = i % framesPerMapping;
+                if (slot == 0) {
+                    long framesToMap = Math.min(framesPerMapping, frameCount - i);
+                    mapping = channel.map(FileChannel.MapMode.READ_ONLY,
+                            FrameRecorder.FILE_HEADER_SIZE + (i * recordSize), framesToMap * recordSize);
+                    mapping.order(ByteOrder.LITTLE_ENDIAN);
+                }
+                int start = (int) (slot * recordSize);
+                timestamps[i] = mapping.getLong(start);
+                headers[i] = slice(mapping, start + FrameRecorder.TIMESTAMP_SIZE, headerSize);
+                frames[i] = slice(mapping, start + FrameRecorder.TIMESTAMP_SIZE + headerSize, frameSize);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a slice of part of a mapped region.
+     *
+     * @param mapping the mapped region.
+     * @param start   the index at which the slice starts.
+     * @param length  the length of the slice.
+     *
+     * @return the slice.
+     */
+    private static ByteBuffer slice(ByteBuffer mapping, int start, int length) {
+        ByteBuffer view = mapping.duplicate();
+        view.limit(start + length).position(start);
+        return view.slice();
+    }
+
+    /**
+     * Check how many frames were captured.
+     *
+     * @return the number of frames that can be replayed.
+     */
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    /**
+     * Check how long the capture lasts.
+     *
+     * @return the number of nanoseconds from the first frame to the last.
+     */
+    public long getDuration() {
+        return (frames.length < 2) ? 0 : timestamps[frames.length - 1] - timestamps[0];
+    }
+
+    /**
+     * Get the time at which a frame was sent.
+     *
+     * @param frame the index of the frame.
+     *
+     * @return the number of nanoseconds since recording started.
+     */
+    public long getTimestamp(int frame) {
+        return timestamps[frame];
+    }
+
+    /**
+     * Get the header that was sent before a frame.
+     *
+     * @param frame the index of the frame.
+     *
+     * @return the header, as a read-only part of the mapped file.
+     */
+    ByteBuffer getHeader(int frame) {
+        return headers[frame];
+    }
+
+    /**
+     * Get the masked, padded pixel data that was sent for a frame.
+     *
+     * @param frame the index of the frame.
+     *
+     * @return the pixel data, as a read-only part of the mapped file.
+     */
+    ByteBuffer getFrame(int frame) {
+        return frames[frame];
+    }
+
+    /**
+     * Ask playback in progress to stop after the current frame.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Implemented by whatever is sending the frames being played.
+     */
+    interface Sender {
+
+        /**
+         * Send a frame.
+         *
+         * @param header the frame header.
+         * @param frame  the masked, padded pixel data.
+         */
+        void send(ByteBuffer header, ByteBuffer frame);
+    }
+
+    /**
+     * Send all the frames, with the same spacing in time as when they were captured, unless {@link #stop()}
+     * is called first.
+     *
+     * @param sender sends each frame.
+     */
+    void play(Sender sender) {
+        stopped = false;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames.length && !stopped; i++) {
+            long due = start + (timestamps[i] - timestamps[0]);
+            long remaining = due - System.nanoTime();
+            while (remaining > 0 && !stopped) {
+                LockSupport.parkNanos(remaining);
+                remaining = due - System.nanoTime();
+            }
+            if (!stopped) {
+                sender.send(headers[i], frames[i]);
+            }
+        }
+    }
+
+    /**
+     * Close the capture file. The mapped frames remain valid until they are garbage collected.
+     *
+     * @throws IOException if there is a problem closing the file.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
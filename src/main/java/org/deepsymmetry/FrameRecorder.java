@@ -0,0 +1,229 @@
+package org.deepsymmetry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Captures exactly what is sent to the display (each frame header and the masked, padded pixel data that
+ * follows it, along with the time at which it was sent) into a memory-mapped capture file, so it can later
+ * be replayed by a {@link FramePlayer} without any encoding work. Started by
+ * {@link Wayang#startRecording(File)}.
+ *
+ * The file starts with a {@value #FILE_HEADER_SIZE} byte header: the magic bytes {@code WAYANGFR}, then
+ * little-endian ints holding the format version, the size of the frame header, and the size of the frame
+ * pixel data, followed by a long holding the number of complete frames in the file. Then come the frames,
+ * each of which is a little-endian long holding the number of nanoseconds since recording started, the
+ * frame header, and the pixel data. The file may be longer than the frames it holds.
+ *
+ * @author James Elliott
+ */
+public class FrameRecorder implements Closeable {
+
+    /**
+     * The bytes which identify a capture file.
+     */
+    static final byte[] MAGIC = {'W', 'A', 'Y', 'A', 'N', 'G', 'F', 'R'};
+
+    /**
+     * The version of the capture file format we write.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The size of the header at the start of the capture file.
+     */
+    static final int FILE_HEADER_SIZE = 32;
+
+    /**
+     * The position within the file header of the count of complete frames.
+     */
+    static final int FRAME_COUNT_OFFSET = 24;
+
+    /**
+     * The size of the timestamp that starts each frame record.
+     */
+    static final int TIMESTAMP_SIZE = 8;
+
+    /**
+     * How many frames are mapped into memory at a time.
+     */
+    private static final int FRAMES_PER_SEGMENT = 16;
+
+    /**
+     * The capture file.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * The channel used to map regions of the capture file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The mapped file header, so the frame count can be updated as frames are completed.
+     */
+    private final MappedByteBuffer fileHeader;
+
+    /**
+     * The size of the header that is sent before each frame.
+     */
+    private final int headerSize;
+
+    /**
+     * The size of the pixel data of each frame.
+     */
+    private final int frameSize;
+
+    /**
+     * The size of each frame record in the file.
+     */
+    private final int recordSize;
+
+    /**
+     * The {@link System#nanoTime()} at which recording started.
+     */
+    private final long startTime;
+
+    /**
+     * The region of the file into which frames are currently being written.
+     */
+    private MappedByteBuffer segment = null;
+
+    /**
+     * The number of the first frame that fits in the current segment.
+     */
+    private long segmentFirstFrame = 0;
+
+    /**
+     * The number of complete frames recorded.
+     */
+    private long frameCount = 0;
+
+    /**
+     * The number of bytes of pixel data recorded so far for the frame in progress, or -1 if no frame is
+     * in progress.
+     */
+    private int pixelsRecorded = -1;
+
+    /**
+     * Create a capture file, ready to record frames.
+     *
+     * @param captureFile the file to create (or overwrite).
+     * @param headerSize  the size of the header sent before each frame.
+     * @param frameSize   the size of the pixel data sent for each frame.
+     *
+     * @throws IOException if there is a problem creating the file.
+     */
+    FrameRecorder(File captureFile, int headerSize, int frameSize) throws IOException {
+        this.headerSize = headerSize;
+        this.frameSize = frameSize;
+        this.recordSize = TIMESTAMP_SIZE + headerSize + frameSize;
+        file = new RandomAccessFile(captureFile, "rw");
+        try {
+            file.setLength(0);
+            channel = file.getChannel();
+            fileHeader = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE);
+            fileHeader.order(ByteOrder.LITTLE_ENDIAN);
+            fileHeader.put(MAGIC).putInt(VERSION).putInt(headerSize).putInt(frameSize).putLong(0);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Start recording a frame, mapping a new region of the file if the current one is full. If a previous frame
+     * was started but never finished (because sending it failed), it is discarded.
+     *
+     * @param now    the {@link System#nanoTime()} at which the frame was sent.
+     * @param header the header sent before the frame's pixel data.
+     *
+     * @throws IOException if there is a problem mapping the file.
+     */
+    void beginFrame(long now, ByteBuffer header) throws IOException {
+        if (segment == null || frameCount >= segmentFirstFrame + FRAMES_PER_SEGMENT) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, FILE_HEADER_SIZE + (frameCount * recordSize),
+                    (long) FRAMES_PER_SEGMENT * recordSize);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segmentFirstFrame = frameCount;
+        }
+        int slot = (int) (frameCount - segmentFirstFrame);
+        segment.position(slot * recordSize);
+        segment.putLong(now - startTime);
+        copy(header, headerSize);
+        pixelsRecorded = 0;
+    }
+
+    /**
+     * Record some of the pixel data of the frame in progress.
+     *
+     * @param pixels the bytes sent, all of which (from index zero to its capacity) are recorded.
+     */
+    void appendPixels(ByteBuffer pixels) {
+        if (pixelsRecorded < 0 || pixelsRecorded + pixels.capacity() > frameSize) {
+            throw new IllegalStateException("Pixel data does not fit in the frame being recorded");
+        }
+        copy(pixels, pixels.capacity());
+        pixelsRecorded += pixels.capacity();
+    }
+
+    /**
+     * Finish recording the frame in progress, which becomes part of the capture once all its pixel data
+     * has been recorded.
+     */
+    void endFrame() {
+        if (pixelsRecorded == frameSize) {
+            frameCount++;
+            fileHeader.putLong(FRAME_COUNT_OFFSET, frameCount);
+        }
+        pixelsRecorded = -1;
+    }
+
+    /**
+     * Copy bytes into the current segment. The source may be a transfer buffer, stripe or mailbox buffer that
+     * other threads are reading at the same time, so we copy from a view of it rather than changing its
+     * position and limit, even temporarily.
+     *
+     * @param source the buffer to copy from, starting at index zero.
+     * @param length the number of bytes to copy.
+     */
+    private void copy(ByteBuffer source, int length) {
+        ByteBuffer view = source.duplicate();
+        view.limit(length).position(0);
+        segment.put(view);
+    }
+
+    /**
+     * Check how many complete frames have been recorded.
+     *
+     * @return the number of frames in the capture file.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Finish recording, writing everything to disk.
+     *
+     * @throws IOException if there is a problem writing the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (segment != null) {
+                segment.force();
+            }
+            fileHeader.force();
+        } finally {
+            segment = null;
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.deepsymmetry;
+
+import org.usb4java.LibUsb;
+
+/**
+ * Reports that an asynchronous transfer of part of a frame did not reach the display intact, either
+ * because LibUsb reported a transfer status other than {@code LibUsb.TRANSFER_COMPLETED}, or because
+ * fewer bytes were sent than should have been. Used to complete the futures returned by
+ * {@link PushDisplay#sendFrameAsync()} exceptionally.
+ *
+ * @author James Elliott
+ */
+public class FrameTransferException extends RuntimeException {
+
+    /**
+     * Identifies the version of our serialized form.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The LibUsb transfer status reported when the transfer finished.
+     */
+    private final int status;
+
+    /**
+     * The number of bytes that were actually sent.
+     */
+    private final int actualLength;
+
+    /**
+     * The number of bytes that should have been sent.
+     */
+    private final int expectedLength;
+
+    /**
+     * Constructor records the details of the failed transfer.
+     *
+     * @param status         the LibUsb transfer status reported when the transfer finished.
+     * @param actualLength   the number of bytes that were actually sent.
+     * @param expectedLength the number of bytes that should have been sent.
+     */
+    FrameTransferException(int status, int actualLength, int expectedLength) {
+        super("Asynchronous transfer to Push 2 display failed: " +
+                ((status == LibUsb.TRANSFER_COMPLETED) ? "short transfer" : FrameMetrics.errorName(status)) +
+                ", sent " + actualLength + " of " + expectedLength + " bytes");
+        this.status = status;
+        this.actualLength = actualLength;
+        this.expectedLength = expectedLength;
+    }
+
+    /**
+     * Get the status LibUsb reported for the transfer, which is {@code LibUsb.TRANSFER_COMPLETED} if the
+     * transfer failed only because it was short.
+     *
+     * @return the LibUsb transfer status.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Get the number of bytes the transfer actually sent.
+     *
+     * @return the actual length of the transfer.
+     */
+    public int getActualLength() {
+        return actualLength;
+    }
+
+    /**
+     * Get the number of bytes the transfer should have sent.
+     *
+     * @return the expected length of the transfer.
+     */
+    public int getExpectedLength() {
+        return expectedLength;
+    }
+}
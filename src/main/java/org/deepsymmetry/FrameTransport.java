@@ -0,0 +1,103 @@
+package org.deepsymmetry;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Carries frame headers and pixel data to a display. The standard implementation, {@link UsbFrameTransport},
+ * sends them to a Push 2 using LibUsb bulk transfers, but others can stand in for it, such as the
+ * {@link LoopbackFrameTransport} which allows the whole pipeline to be exercised without any hardware.
+ * Results are reported using the LibUsb error and transfer status codes, whatever the implementation.
+ *
+ * @author James Elliott
+ */
+public interface FrameTransport {
+
+    /**
+     * Receives notification when an asynchronous transfer has finished.
+     */
+    interface Listener {
+
+        /**
+         * Called when an asynchronous transfer has finished, successfully or otherwise. Called on a thread
+         * belonging to the transport, so must return promptly.
+         *
+         * @param transfer     the transfer which finished
+         * @param status       the LibUsb transfer status, {@code LibUsb.TRANSFER_COMPLETED} if all went well
+         * @param actualLength the number of bytes actually sent
+         */
+        void transferFinished(Transfer transfer, int status, int actualLength);
+    }
+
+    /**
+     * A pre-allocated asynchronous transfer of a particular buffer, which can be submitted over and over
+     * without any further allocation.
+     */
+    interface Transfer {
+
+        /**
+         * Start sending the buffer. The listener will be called when it has been sent. Must not be called
+         * again until that has happened.
+         *
+         * @return {@code LibUsb.SUCCESS} if the transfer was started, or a LibUsb error code
+         */
+        int submit();
+
+        /**
+         * Ask for the transfer to be abandoned, if it is in progress. The listener will still be called.
+         *
+         * @return {@code LibUsb.SUCCESS} if cancellation was requested, or a LibUsb error code
+         */
+        int cancel();
+
+        /**
+         * Release any resources held by the transfer. Must not be called while it is in progress.
+         */
+        void free();
+
+        /**
+         * Get the value that was associated with this transfer when it was prepared.
+         *
+         * @return the user data
+         */
+        Object userData();
+    }
+
+    /**
+     * Send a buffer, waiting until it has been sent.
+     *
+     * @param data        the bytes to send, all of which (from index zero to its capacity) will be sent
+     * @param transferred will have the number of bytes actually sent stored at index zero
+     * @param timeout     how many milliseconds to wait before giving up
+     *
+     * @return {@code LibUsb.SUCCESS} if the data was sent, or a LibUsb error code
+     */
+    int send(ByteBuffer data, IntBuffer transferred, long timeout);
+
+    /**
+     * Prepare a reusable asynchronous transfer of a buffer.
+     *
+     * @param data     the bytes to send each time the transfer is submitted, all of which (from index zero to
+     *                 its capacity) will be sent
+     * @param listener will be called whenever the transfer finishes
+     * @param userData an arbitrary value that can later be retrieved from the transfer
+     * @param timeout  how many milliseconds to wait before giving up on each submission
+     *
+     * @return the prepared transfer
+     */
+    Transfer prepare(ByteBuffer data, Listener listener, Object userData, long timeout);
+
+    /**
+     * Check whether the calling thread is the one on which asynchronous transfers finish and their listeners
+     * are called. That thread must never wait for another transfer to finish, since it is the only one which
+     * could report it.
+     *
+     * @return {@code true} if called on the thread which delivers transfer completions
+     */
+    boolean isCompletionThread();
+
+    /**
+     * Release everything held by the transport. All prepared transfers must have finished and been freed.
+     */
+    void close();
+}
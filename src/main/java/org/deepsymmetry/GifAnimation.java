@@ -0,0 +1,468 @@
+package org.deepsymmetry;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays an animated GIF file on the display. Frames are composited the way a browser would show them,
+ * honoring each frame's position and disposal method, then scaled to fit the display (preserving their
+ * aspect ratio, centered on black), and encoded into the format the Push wants. Encoded frames are kept in
+ * an {@link EncodedFrameCache}, so once an animation has played through, looping it again only costs the
+ * USB transfers. Pass one to {@link Wayang#play(GifAnimation)} to show it.
+ *
+ * Frames are decoded lazily, in order, while the previous frame is on the display. If some have been
+ * discarded from the cache, the animation is composited again from its first frame as it plays.
+ *
+ * @author James Elliott
+ */
+public class GifAnimation implements Closeable {
+
+    /**
+     * The longest we let the display go without a frame while waiting out a long frame delay; the Push
+     * blanks its display after two seconds without one.
+     */
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * How far playback may fall behind schedule (for example while the first pass is being decoded) before
+     * we give up trying to catch up, and just carry on from the current time.
+     */
+    private static final long MAX_LAG_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The delay we use for frames which ask for none (or 10 ms), as browsers do, since such files generally
+     * expect it.
+     */
+    private static final int DEFAULT_DELAY_CENTISECONDS = 10;
+
+    /**
+     * The disposal method which clears the frame's area to the background.
+     */
+    private static final String RESTORE_TO_BACKGROUND = "restoreToBackgroundColor";
+
+    /**
+     * The disposal method which restores the canvas to how it was before the frame was drawn.
+     */
+    private static final String RESTORE_TO_PREVIOUS = "restoreToPrevious";
+
+    /**
+     * Decodes the frames of the file.
+     */
+    private final ImageReader reader;
+
+    /**
+     * The stream from which the reader gets the file.
+     */
+    private final ImageInputStream input;
+
+    /**
+     * Where encoded frames are kept.
+     */
+    private final EncodedFrameCache cache;
+
+    /**
+     * The header sent before each frame.
+     */
+    private final ByteBuffer headerBuffer = Wayang.createHeaderBuffer();
+
+    /**
+     * The horizontal position of each frame on the canvas.
+     */
+    private final int[] lefts;
+
+    /**
+     * The vertical position of each frame on the canvas.
+     */
+    private final int[] tops;
+
+    /**
+     * The width of each frame.
+     */
+    private final int[] widths;
+
+    /**
+     * The height of each frame.
+     */
+    private final int[] heights;
+
+    /**
+     * How each frame is disposed of before the next is drawn.
+     */
+    private final String[] disposals;
+
+    /**
+     * How long each frame is shown, in nanoseconds.
+     */
+    private final long[] delays;
+
+    /**
+     * How many times the animation repeats after it is first shown, or -1 to repeat forever.
+     */
+    private final int repeats;
+
+    /**
+     * The canvas on which frames are composited, the size of the animation's logical screen.
+     */
+    private final BufferedImage canvas;
+
+    /**
+     * Holds a copy of the canvas while a frame whose disposal method restores it is showing.
+     */
+    private final BufferedImage savedCanvas;
+
+    /**
+     * The display-sized image into which the canvas is scaled.
+     */
+    private final BufferedImage scaled;
+
+    /**
+     * The index of the last frame composited onto the canvas, or -1 if it is empty.
+     */
+    private int compositedThrough = -1;
+
+    /**
+     * Set when playback should stop early.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Open an animated GIF, keeping its encoded frames in the shared cache.
+     *
+     * @param file the GIF file.
+     *
+     * @throws IOException if there is a problem reading the file, or it is not a GIF.
+     */
+    public GifAnimation(File file) throws IOException {
+        this(file, EncodedFrameCache.getShared());
+    }
+
+    /**
+     * Open an animated GIF.
+     *
+     * @param file  the GIF file.
+     * @param cache where the encoded frames will be kept.
+     *
+     * @throws IOException if there is a problem reading the file, or it is not a GIF.
+     */
+    public GifAnimation(File file, EncodedFrameCache cache) throws IOException {
+        this.cache = cache;
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("gif");
+        if (!readers.hasNext()) {
+            throw new IOException("No GIF decoder is available");
+        }
+        input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            throw new IOException("Unable to read " + file);
+        }
+        reader = readers.next();
+        try {
+            reader.setInput(input, false);
+            int frameCount = reader.getNumImages(true);
+            if (frameCount < 1) {
+                throw new IOException("GIF file contains no frames: " + file);
+            }
+            lefts = new int[frameCount];
+            tops = new int[frameCount];
+            widths = new int[frameCount];
+            heights = new int[frameCount];
+            disposals = new String[frameCount];
+            delays = new long[frameCount];
+            int width = 0;
+            int height = 0;
+            IIOMetadata streamMetadata = reader.getStreamMetadata();
+            if (streamMetadata != null) {
+                IIOMetadataNode screen = findNode((IIOMetadataNode) streamMetadata.getAsTree(
+                        "javax_imageio_gif_stream_1.0"), "LogicalScreenDescriptor");
+                if (screen != null) {
+                    width = Integer.parseInt(screen.getAttribute("logicalScreenWidth"));
+                    height = Integer.parseInt(screen.getAttribute("logicalScreenHeight"));
+                }
+            }
+            int loopCount = -1;
+            for (int i = 0; i < frameCount; i++) {
+                IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i).getAsTree(
+                        "javax_imageio_gif_image_1.0");
+                IIOMetadataNode descriptor = findNode(root, "ImageDescriptor");
+                lefts[i] = Integer.parseInt(descriptor.getAttribute("imageLeftPosition"));
+                tops[i] = Integer.parseInt(descriptor.getAttribute("imageTopPosition"));
+                widths[i] = Integer.parseInt(descriptor.getAttribute("imageWidth"));
+                heights[i] = Integer.parseInt(descriptor.getAttribute("imageHeight"));
+                width = Math.max(width, lefts[i] + widths[i]);
+                height = Math.max(height, tops[i] + heights[i]);
+                IIOMetadataNode control = findNode(root, "GraphicControlExtension");
+                int delay = DEFAULT_DELAY_CENTISECONDS;
+                if (control != null) {
+                    disposals[i] = control.getAttribute("disposalMethod");
+                    delay = Integer.parseInt(control.getAttribute("delayTime"));
+                    if (delay <= 1) {
+                        delay = DEFAULT_DELAY_CENTISECONDS;
+                    }
+                }
+                delays[i] = TimeUnit.MILLISECONDS.toNanos(delay * 10L);
+                if (i == 0) {
+                    loopCount = findLoopCount(root);
+                }
+            }
+            repeats = (loopCount == 0) ? -1 : Math.max(0, loopCount);
+            canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            savedCanvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            scaled = new BufferedImage(Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (RuntimeException e) {  // Malformed metadata.
+            close();
+            throw new IOException("Unable to interpret GIF file " + file, e);
+        }
+    }
+
+    /**
+     * Find the first child of a metadata node with a particular name.
+     *
+     * @param parent the node whose children should be searched.
+     * @param name   the name of the desired child.
+     *
+     * @return the child, or {@code null} if there is none with that name.
+     */
+    private static IIOMetadataNode findNode(IIOMetadataNode parent, String name) {
+        for (int i = 0; i < parent.getLength(); i++) {
+            if (parent.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode) parent.item(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the loop count stored in the Netscape application extension of a frame.
+     *
+     * @param root the frame's metadata.
+     *
+     * @return the loop count, where zero means forever, or -1 if the frame has no loop count.
+     */
+    private static int findLoopCount(IIOMetadataNode root) {
+        IIOMetadataNode extensions = findNode(root, "ApplicationExtensions");
+        if (extensions != null) {
+            for (int i = 0; i < extensions.getLength(); i++) {
+                IIOMetadataNode extension = (IIOMetadataNode) extensions.item(i);
+                if ("NETSCAPE".equals(extension.getAttribute("applicationID"))) {
+                    byte[] data = (byte[]) extension.getUserObject();
+                    if (data != null && data.length >= 3 && data[0] == 1) {
+                        return (data[1] & 0xff) | ((data[2] & 0xff) << 8);
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check how many frames the animation has.
+     *
+     * @return the number of frames.
+     */
+    public int getFrameCount() {
+        return delays.length;
+    }
+
+    /**
+     * Check how long a frame is shown.
+     *
+     * @param frame the index of the frame.
+     *
+     * @return the frame delay, in milliseconds.
+     */
+    public long getDelay(int frame) {
+        return TimeUnit.NANOSECONDS.toMillis(delays[frame]);
+    }
+
+    /**
+     * Check how many times the animation is repeated after it is first shown. As in browsers, an animation
+     * with no loop count is shown once, and one whose loop count is zero repeats until stopped.
+     *
+     * @return the number of repeats, or -1 if it repeats until {@link #stop()} is called.
+     */
+    public int getRepeatCount() {
+        return repeats;
+    }
+
+    /**
+     * Get a frame in the format the Push wants, encoding it if it is not already in the cache.
+     *
+     * @param frame the index of the frame.
+     *
+     * @return the masked, padded pixel data for the frame.
+     *
+     * @throws IOException if there is a problem decoding the frame.
+     */
+    synchronized ByteBuffer getEncodedFrame(int frame) throws IOException {
+        ByteBuffer encoded = cache.get(this, frame);
+        if (encoded == null) {
+            compositeThrough(frame);
+            Graphics2D graphics = scaled.createGraphics();
+            try {
+                graphics.setColor(Color.BLACK);
+                graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                double scale = Math.min((double) Wayang.DISPLAY_WIDTH / canvas.getWidth(),
+                        (double) Wayang.DISPLAY_HEIGHT / canvas.getHeight());
+                int width = (int) Math.round(canvas.getWidth() * scale);
+                int height = (int) Math.round(canvas.getHeight() * scale);
+                graphics.drawImage(canvas, (Wayang.DISPLAY_WIDTH - width) / 2, (Wayang.DISPLAY_HEIGHT - height) / 2,
+                        width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            encoded = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+            int[] pixels = ((DataBufferInt) scaled.getRaster().getDataBuffer()).getData();
+            ArgbFrameConverter.PLAIN.convert(pixels, 0, Wayang.DISPLAY_WIDTH, false, 0, Wayang.DISPLAY_HEIGHT,
+                    encoded);
+            cache.put(this, frame, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Bring the canvas up to date, so it shows a frame as it should appear. Frames are composited in order,
+     * so if an earlier frame is needed, we start again from the beginning.
+     *
+     * @param frame the frame which should be showing.
+     *
+     * @throws IOException if there is a problem decoding a frame.
+     */
+    private void compositeThrough(int frame) throws IOException {
+        if (frame <= compositedThrough) {
+            clear(canvas, 0, 0, canvas.getWidth(), canvas.getHeight());
+            compositedThrough = -1;
+        }
+        while (compositedThrough < frame) {
+            if (compositedThrough >= 0) {  // Dispose of the frame now being replaced.
+                int previous = compositedThrough;
+                if (RESTORE_TO_BACKGROUND.equals(disposals[previous])) {
+                    clear(canvas, lefts[previous], tops[previous], widths[previous], heights[previous]);
+                } else if (RESTORE_TO_PREVIOUS.equals(disposals[previous])) {
+                    copy(savedCanvas, canvas);
+                }
+            }
+            int next = compositedThrough + 1;
+            if (RESTORE_TO_PREVIOUS.equals(disposals[next])) {
+                copy(canvas, savedCanvas);
+            }
+            Graphics2D graphics = canvas.createGraphics();
+            try {
+                graphics.drawImage(reader.read(next), lefts[next], tops[next], null);
+            } finally {
+                graphics.dispose();
+            }
+            compositedThrough = next;
+        }
+    }
+
+    /**
+     * Make part of an image transparent. We treat the GIF background color as transparent, as browsers do.
+     *
+     * @param image  the image to clear.
+     * @param x      the left edge of the area to clear.
+     * @param y      the top edge of the area to clear.
+     * @param width  the width of the area to clear.
+     * @param height the height of the area to clear.
+     */
+    private static void clear(BufferedImage image, int x, int y, int width, int height) {
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setComposite(AlphaComposite.Clear);
+            graphics.fillRect(x, y, width, height);
+        } finally {
+            graphics.dispose();
+        }
+    }
+
+    /**
+     * Copy the pixels of one image to another of the same size.
+     *
+     * @param source      the image to copy.
+     * @param destination the image to replace.
+     */
+    private static void copy(BufferedImage source, BufferedImage destination) {
+        int[] from = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+        int[] to = ((DataBufferInt) destination.getRaster().getDataBuffer()).getData();
+        System.arraycopy(from, 0, to, 0, from.length);
+    }
+
+    /**
+     * Ask playback in progress to stop after the current frame.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Send the frames, each for as long as its delay asks, repeating as many times as the file says, unless
+     * {@link #stop()} is called first. While a frame is showing, the next one is prepared, and if the delay
+     * is long, the frame is re-sent often enough that the display does not blank.
+     *
+     * @param sender sends each frame.
+     *
+     * @throws IOException if there is a problem decoding a frame.
+     */
+    void play(FramePlayer.Sender sender) throws IOException {
+        stopped = false;
+        ByteBuffer current = null;
+        long lastSent = 0;
+        long due = System.nanoTime();
+        for (int pass = 0; !stopped && (repeats < 0 || pass <= repeats); pass++) {
+            for (int i = 0; i < delays.length && !stopped; i++) {
+                ByteBuffer next = getEncodedFrame(i);
+                long now = System.nanoTime();
+                while (!stopped && due - now > 0) {
+                    if (current != null && now - lastSent >= KEEP_ALIVE_NANOS) {
+                        sender.send(headerBuffer, current);
+                        lastSent = now;
+                    }
+                    long wait = due - now;
+                    if (current != null) {
+                        wait = Math.min(wait, KEEP_ALIVE_NANOS - (now - lastSent));
+                    }
+                    LockSupport.parkNanos(wait);
+                    now = System.nanoTime();
+                }
+                if (stopped) {
+                    break;
+                }
+                sender.send(headerBuffer, next);
+                current = next;
+                lastSent = System.nanoTime();
+                if (lastSent - due > MAX_LAG_NANOS) {
+                    due = lastSent;  // Fell too far behind to catch up smoothly.
+                }
+                due += delays[i];
+            }
+        }
+    }
+
+    /**
+     * Close the file, and discard the animation's frames from the cache.
+     *
+     * @throws IOException if there is a problem closing the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        cache.remove(this);
+        reader.dispose();
+        input.close();
+    }
+}
@@ -0,0 +1,671 @@
+package org.deepsymmetry;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import org.w3c.dom.NodeList;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records what is sent to the display as an animated GIF, for documentation and bug reports, without
+ * slowing down the code that sends frames. Started by {@link Wayang#startGifRecording(File)}.
+ *
+ * Sending a frame only copies its bytes into one of a fixed pool of buffers, which takes a fraction of a
+ * millisecond; if every buffer is still waiting to be written, the frame is dropped rather than making the
+ * sender wait. Worker threads then convert the frames to a fixed 256-color palette, derived from the
+ * display's own colors by keeping the top three bits of red and green and two of blue, using a single table
+ * lookup per pixel, so ImageIO never has to build a palette. A single writer thread adds the frames to the
+ * GIF in the order they were sent, with delays matching the times at which they were sent.
+ *
+ * GIF delays are measured in hundredths of a second, and most viewers slow down frames shown for less than
+ * {@value #MINIMUM_DELAY} hundredths, so a frame sent sooner than that after the previous one replaces it
+ * in the recording, and is counted as dropped.
+ *
+ * @author James Elliott
+ */
+public class GifRecorder implements Closeable {
+
+    /**
+     * The shortest delay, in hundredths of a second, that the recording will contain.
+     */
+    static final int MINIMUM_DELAY = 2;
+
+    /**
+     * The longest delay, in hundredths of a second, that a GIF can hold.
+     */
+    private static final int MAXIMUM_DELAY = 65535;
+
+    /**
+     * The signal shaping pattern, as it appears when four pixels are packed into a little-endian long.
+     */
+    private static final long MASK = 0xffe7f3e7ffe7f3e7L;
+
+    /**
+     * The color model of the recorded frames: 3 bits of red, 3 of green and 2 of blue, in that order from
+     * the top of each palette index.
+     */
+    static final IndexColorModel PALETTE;
+
+    /**
+     * Maps each unmasked BGR565 display pixel to the nearest color in {@link #PALETTE}.
+     */
+    static final byte[] PALETTE_INDEX = new byte[65536];
+
+    static {
+        byte[] reds = new byte[256];
+        byte[] greens = new byte[256];
+        byte[] blues = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            reds[i] = (byte) ((((i >> 5) & 7) * 255 + 3) / 7);
+            greens[i] = (byte) ((((i >> 2) & 7) * 255 + 3) / 7);
+            blues[i] = (byte) (((i & 3) * 255 + 1) / 3);
+        }
+        PALETTE = new IndexColorModel(8, 256, reds, greens, blues);
+        for (int pixel = 0; pixel < 65536; pixel++) {
+            int red = ((pixel & 0x1f) * 7 + 15) / 31;
+            int green = (((pixel >> 5) & 0x3f) * 7 + 31) / 63;
+            int blue = (((pixel >> 11) & 0x1f) * 3 + 15) / 31;
+            PALETTE_INDEX[pixel] = (byte) ((red << 5) | (green << 2) | blue);
+        }
+    }
+
+    /**
+     * A pooled buffer holding one captured frame on its way to the GIF.
+     */
+    private static final class Frame {
+
+        /**
+         * The masked, padded bytes that were sent to the display.
+         */
+        final ByteBuffer wire;
+
+        /**
+         * The frame converted to the recording palette.
+         */
+        final BufferedImage image;
+
+        /**
+         * The palette indices of {@link #image}, one byte per pixel.
+         */
+        final byte[] indices;
+
+        /**
+         * The {@link System#nanoTime()} at which the frame was sent.
+         */
+        long sentAt;
+
+        /**
+         * Set once {@link #indices} holds the converted frame.
+         */
+        boolean quantized;
+
+        /**
+         * Constructor allocates the buffers, unless this is the {@link #END} marker.
+         *
+         * @param allocate whether buffers are needed.
+         */
+        Frame(boolean allocate) {
+            if (allocate) {
+                wire = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+                image = new BufferedImage(Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT,
+                        BufferedImage.TYPE_BYTE_INDEXED, PALETTE);
+                indices = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            } else {
+                wire = null;
+                image = null;
+                indices = null;
+            }
+        }
+    }
+
+    /**
+     * Marks the end of the frames, so the worker threads and writer know to finish.
+     */
+    private static final Frame END = new Frame(false);
+
+    /**
+     * The frame buffers which are available to capture into.
+     */
+    private final BlockingQueue<Frame> free;
+
+    /**
+     * The frames waiting to be converted to the recording palette.
+     */
+    private final BlockingQueue<Frame> unquantized;
+
+    /**
+     * All captured frames, in the order they are to be written.
+     */
+    private final BlockingQueue<Frame> unwritten;
+
+    /**
+     * The threads converting frames to the recording palette.
+     */
+    private final Thread[] workers;
+
+    /**
+     * The thread writing the GIF.
+     */
+    private final Thread writerThread;
+
+    /**
+     * Where the GIF is being written.
+     */
+    private final ImageOutputStream output;
+
+    /**
+     * Whether we opened {@link #output}, and so should close it.
+     */
+    private final boolean ownsOutput;
+
+    /**
+     * The ImageIO writer which encodes the GIF.
+     */
+    private final ImageWriter writer;
+
+    /**
+     * The settings with which frames are written.
+     */
+    private final ImageWriteParam param;
+
+    /**
+     * The metadata for frames with each delay we have needed so far, so it is only built once.
+     */
+    private final Map<Integer, IIOMetadata> metadataByDelay = new HashMap<Integer, IIOMetadata>();
+
+    /**
+     * Whether the first frame has been written yet.
+     */
+    private boolean wroteFirstFrame = false;
+
+    /**
+     * The frame being captured, or {@code null} if there is none, or it is being dropped.
+     */
+    private Frame capturing = null;
+
+    /**
+     * How many bytes of the frame being captured have been copied so far.
+     */
+    private int capturedBytes = 0;
+
+    /**
+     * The number of frames captured into buffers.
+     */
+    private final AtomicLong capturedCount = new AtomicLong();
+
+    /**
+     * The number of frames dropped, either because no buffer was free or because they were sent too soon
+     * after the previous frame to be shown in a GIF.
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * The number of frames added to the GIF.
+     */
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    /**
+     * The problem that stopped the GIF from being written, if any.
+     */
+    private volatile IOException failure = null;
+
+    /**
+     * Start recording into a file, with four buffers and a single worker thread.
+     *
+     * @param file the file to which the GIF should be written; it will be replaced if it already exists.
+     *
+     * @throws IOException if there is a problem creating the file, or the GIF cannot be started.
+     */
+    public GifRecorder(File file) throws IOException {
+        this(createOutput(file), true, 4, 1);
+    }
+
+    /**
+     * Start recording into an output stream. Only displays can capture the frames, so this is used by tests and
+     * benchmarks which feed the recorder directly.
+     *
+     * @param output      where the GIF should be written; it is left open when recording stops.
+     * @param bufferCount the number of frames that can be waiting to be written before more are dropped.
+     * @param workerCount the number of threads converting frames to the recording palette.
+     *
+     * @throws IOException              if no GIF writer is available, or the GIF cannot be started.
+     * @throws IllegalArgumentException if there is not at least one worker, and at least two buffers.
+     */
+    GifRecorder(ImageOutputStream output, int bufferCount, int workerCount) throws IOException {
+        this(output, false, bufferCount, workerCount);
+    }
+
+    /**
+     * Open a file to which a GIF can be written.
+     *
+     * @param file the file to be written.
+     *
+     * @return a stream writing to the file.
+     *
+     * @throws IOException if the file cannot be created.
+     */
+    private static ImageOutputStream createOutput(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        }
+        ImageOutputStream output = ImageIO.createImageOutputStream(file);
+        if (output == null) {
+            throw new IOException("Unable to create " + file);
+        }
+        return output;
+    }
+
+    /**
+     * Set up the buffers and threads, and start the GIF. If the GIF cannot be started, an output we own is
+     * closed before giving up, since nothing else will close it.
+     *
+     * @param output      where the GIF should be written.
+     * @param ownsOutput  whether the output should be closed when recording stops, or fails to start.
+     * @param bufferCount the number of frames that can be waiting to be written.
+     * @param workerCount the number of threads converting frames to the recording palette.
+     *
+     * @throws IOException if no GIF writer is available, or the GIF cannot be started.
+     */
+    private GifRecorder(ImageOutputStream output, boolean ownsOutput, int bufferCount, int workerCount)
+            throws IOException {
+        this.output = output;
+        this.ownsOutput = ownsOutput;
+        ImageWriter gifWriter = null;
+        boolean started = false;
+        try {
+            if (bufferCount < 2 || workerCount < 1) {
+                throw new IllegalArgumentException("Need at least two buffers and one worker");
+            }
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+            if (!writers.hasNext()) {
+                throw new IIOException("No GIF Image Writers Exist");
+            }
+            gifWriter = writers.next();
+            param = gifWriter.getDefaultWriteParam();
+            gifWriter.setOutput(output);
+            gifWriter.prepareWriteSequence(buildStreamMetadata(gifWriter));
+            started = true;
+        } finally {
+            if (!started) {
+                if (gifWriter != null) {
+                    gifWriter.dispose();
+                }
+                if (ownsOutput) {
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        System.err.println("Unable to close GIF output after failing to start recording: " + e);
+                    }
+                }
+            }
+        }
+        writer = gifWriter;
+
+        free = new ArrayBlockingQueue<Frame>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(new Frame(true));
+        }
+        unquantized = new ArrayBlockingQueue<Frame>(bufferCount + workerCount);
+        unwritten = new ArrayBlockingQueue<Frame>(bufferCount + 1);
+
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    quantizeFrames();
+                }
+            }, "Wayang GIF quantizer " + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeFrames();
+            }
+        }, "Wayang GIF writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Start capturing a frame which has just been sent, if there is a buffer free to hold it.
+     *
+     * @param now the {@link System#nanoTime()} at which the frame was sent.
+     */
+    void beginFrame(long now) {
+        capturing = free.poll();
+        capturedBytes = 0;
+        if (capturing == null) {
+            droppedCount.incrementAndGet();
+        } else {
+            capturing.sentAt = now;
+        }
+    }
+
+    /**
+     * Capture some of the pixel data of the frame in progress.
+     *
+     * @param pixels the bytes sent, all of which (from index zero to its capacity) are captured.
+     */
+    void appendPixels(ByteBuffer pixels) {
+        if (capturing == null) {
+            return;
+        }
+        ByteBuffer wire = capturing.wire;
+        int size = pixels.capacity();
+        if (capturedBytes + size > wire.capacity()) {
+            throw new IllegalStateException("Pixel data does not fit in the frame being captured");
+        }
+        int i = 0;
+        for (; i <= size - 8; i += 8) {
+            wire.putLong(capturedBytes + i, pixels.getLong(i));
+        }
+        for (; i < size; i++) {
+            wire.put(capturedBytes + i, pixels.get(i));
+        }
+        capturedBytes += size;
+    }
+
+    /**
+     * Finish capturing the frame in progress, handing it to the workers if all its pixel data arrived.
+     */
+    void endFrame() {
+        Frame frame = capturing;
+        capturing = null;
+        if (frame == null) {
+            return;
+        }
+        if (capturedBytes != frame.wire.capacity()) {
+            free.add(frame);  // Sending failed partway through.
+            return;
+        }
+        frame.quantized = false;
+        capturedCount.incrementAndGet();
+        // These can never be full, since they have room for every buffer we own.
+        unwritten.add(frame);
+        unquantized.add(frame);
+    }
+
+    /**
+     * The body of each worker thread: convert frames to the recording palette until told to stop.
+     */
+    private void quantizeFrames() {
+        while (true) {
+            Frame frame;
+            try {
+                frame = unquantized.take();
+            } catch (InterruptedException e) {
+                System.err.println("GIF quantizer interrupted, stopping.");
+                return;
+            }
+            if (frame == END) {
+                return;
+            }
+            quantize(frame.wire, frame.indices);
+            synchronized (frame) {
+                frame.quantized = true;
+                frame.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Convert the masked, padded bytes sent to the display into palette indices.
+     *
+     * @param wire    the bytes sent.
+     * @param indices where the palette index of each pixel should be stored.
+     */
+    static void quantize(ByteBuffer wire, byte[] indices) {
+        for (int y = 0; y < Wayang.DISPLAY_HEIGHT; y++) {
+            int source = y * Wayang.BYTES_PER_LINE;
+            int target = y * Wayang.DISPLAY_WIDTH;
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x += 4) {
+                long quad = wire.getLong(source + (x * 2)) ^ MASK;
+                indices[target + x] = PALETTE_INDEX[(int) (quad & 0xffff)];
+                indices[target + x + 1] = PALETTE_INDEX[(int) ((quad >>> 16) & 0xffff)];
+                indices[target + x + 2] = PALETTE_INDEX[(int) ((quad >>> 32) & 0xffff)];
+                indices[target + x + 3] = PALETTE_INDEX[(int) (quad >>> 48)];
+            }
+        }
+    }
+
+    /**
+     * The body of the writer thread: add frames to the GIF, in the order they were sent, as soon as each has
+     * been quantized and the one after it has arrived (so we know how long it was shown), until told to stop.
+     */
+    private void writeFrames() {
+        Frame pending = null;
+        long pendingTime = 0;  // When the pending frame starts, in hundredths of a second into the recording.
+        long firstSentAt = 0;
+        try {
+            while (true) {
+                Frame frame = unwritten.take();
+                if (frame == END) {
+                    break;
+                }
+                synchronized (frame) {
+                    while (!frame.quantized) {
+                        frame.wait();
+                    }
+                }
+                if (pending == null) {
+                    firstSentAt = frame.sentAt;
+                } else {
+                    // Measure delays from the start of the recording, so rounding errors don't accumulate.
+                    long frameTime = (frame.sentAt - firstSentAt + 5000000L) / 10000000L;
+                    if (frameTime - pendingTime < MINIMUM_DELAY) {  // Too soon to show; replaces the pending one.
+                        droppedCount.incrementAndGet();
+                        free.add(pending);
+                        pending = frame;
+                        continue;
+                    }
+                    write(pending, (int) Math.min(frameTime - pendingTime, MAXIMUM_DELAY));
+                    free.add(pending);
+                    pendingTime = frameTime;
+                }
+                pending = frame;
+            }
+        } catch (InterruptedException e) {
+            System.err.println("GIF writer interrupted, stopping.");
+        }
+        if (pending != null) {
+            write(pending, 10);
+        }
+        if (failure == null) {
+            try {
+                writer.endWriteSequence();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Add a frame to the GIF, unless a previous problem means we have given up writing.
+     *
+     * @param frame the frame to write.
+     * @param delay how long it should be shown, in hundredths of a second.
+     */
+    private void write(Frame frame, int delay) {
+        if (failure != null) {
+            return;
+        }
+        try {
+            IIOMetadata metadata;
+            if (!wroteFirstFrame) {
+                metadata = buildMetadata(frame.image, delay, true);
+                wroteFirstFrame = true;
+            } else {
+                metadata = metadataByDelay.get(delay);
+                if (metadata == null) {
+                    metadata = buildMetadata(frame.image, delay, false);
+                    metadataByDelay.put(delay, metadata);
+                }
+            }
+            writer.writeToSequence(new IIOImage(frame.image, null, metadata), param);
+            writtenCount.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println("Stopping GIF recording because of a problem writing it: " + e);
+            failure = e;
+        }
+    }
+
+    /**
+     * Build the metadata describing the GIF as a whole, which sets the size of the animation and holds the
+     * recording palette as the global color table, so it does not need to be repeated in every frame.
+     *
+     * @param gifWriter the writer which will write the GIF.
+     *
+     * @return the metadata.
+     *
+     * @throws IOException if the metadata cannot be built.
+     */
+    private IIOMetadata buildStreamMetadata(ImageWriter gifWriter) throws IOException {
+        IIOMetadata metadata = gifWriter.getDefaultStreamMetadata(param);
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+        IIOMetadataNode screen = new IIOMetadataNode("LogicalScreenDescriptor");
+        screen.setAttribute("logicalScreenWidth", Integer.toString(Wayang.DISPLAY_WIDTH));
+        screen.setAttribute("logicalScreenHeight", Integer.toString(Wayang.DISPLAY_HEIGHT));
+        screen.setAttribute("colorResolution", "8");
+        screen.setAttribute("pixelAspectRatio", "0");
+        root.appendChild(screen);
+        IIOMetadataNode table = new IIOMetadataNode("GlobalColorTable");
+        table.setAttribute("sizeOfGlobalColorTable", "256");
+        table.setAttribute("backgroundColorIndex", "0");
+        table.setAttribute("sortFlag", "FALSE");
+        for (int i = 0; i < 256; i++) {
+            IIOMetadataNode entry = new IIOMetadataNode("ColorTableEntry");
+            entry.setAttribute("index", Integer.toString(i));
+            entry.setAttribute("red", Integer.toString(PALETTE.getRed(i)));
+            entry.setAttribute("green", Integer.toString(PALETTE.getGreen(i)));
+            entry.setAttribute("blue", Integer.toString(PALETTE.getBlue(i)));
+            table.appendChild(entry);
+        }
+        root.appendChild(table);
+        metadata.setFromTree(format, root);
+        return metadata;
+    }
+
+    /**
+     * Build the metadata describing a frame of the GIF.
+     *
+     * @param image the frame, whose type determines the defaults.
+     * @param delay how long the frame should be shown, in hundredths of a second.
+     * @param first whether this is the first frame, which should also tell viewers to loop the animation.
+     *
+     * @return the metadata.
+     *
+     * @throws IOException if the metadata cannot be built.
+     */
+    private IIOMetadata buildMetadata(BufferedImage image, int delay, boolean first) throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image),
+                param);
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+        // Use the global color table, rather than a local one, and skip the needless work of interlacing.
+        NodeList tables = root.getElementsByTagName("LocalColorTable");
+        for (int i = tables.getLength() - 1; i >= 0; i--) {
+            root.removeChild(tables.item(i));
+        }
+        ((IIOMetadataNode) root.getElementsByTagName("ImageDescriptor").item(0)).setAttribute("interlaceFlag",
+                "FALSE");
+        IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(delay));
+        control.setAttribute("transparentColorIndex", "0");
+        root.appendChild(control);
+        if (first) {
+            IIOMetadataNode extensions = new IIOMetadataNode("ApplicationExtensions");
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[] {1, 0, 0});  // Loop forever.
+            extensions.appendChild(loop);
+            root.appendChild(extensions);
+        }
+        metadata.setFromTree(format, root);
+        return metadata;
+    }
+
+    /**
+     * Check how many frames have been captured to be written to the GIF.
+     *
+     * @return the number of frames captured.
+     */
+    public long getCapturedCount() {
+        return capturedCount.get();
+    }
+
+    /**
+     * Check how many frames were left out of the recording, because they were sent while every buffer was
+     * still waiting to be written, or too soon after the previous frame for a GIF to show them.
+     *
+     * @return the number of frames dropped.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Check how many frames have been added to the GIF so far.
+     *
+     * @return the number of frames written.
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Stop recording, waiting for the frames already captured to be written, and finish the GIF. Frames must
+     * no longer be captured once this has been called; {@link Wayang#stopGifRecording()} takes care of that.
+     *
+     * @throws IOException if there was a problem writing the GIF.
+     */
+    @Override
+    public void close() throws IOException {
+        capturing = null;
+        try {
+            unwritten.put(END);
+            for (int i = 0; i < workers.length; i++) {
+                unquantized.put(END);
+            }
+            writerThread.join();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for GIF to be written", e);
+        } finally {
+            writer.dispose();
+            if (ownsOutput) {
+                output.close();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.deepsymmetry;
+
+/**
+ * The characters of a font, rasterized in a particular color by {@link SpriteAtlas#addGlyphs}, which can be
+ * drawn into a {@link DisplaySurface} without going through Java2D.
+ *
+ * @author James Elliott
+ */
+public final class GlyphSet {
+
+    /**
+     * The lowest character in the set.
+     */
+    private final char first;
+
+    /**
+     * The sprite for each character, indexed by its distance from {@link #first}, or {@code null} for
+     * characters that were not rasterized.
+     */
+    private final Sprite[] glyphs;
+
+    /**
+     * The distance from the top of each glyph to the baseline.
+     */
+    private final int ascent;
+
+    /**
+     * The height of each glyph.
+     */
+    private final int height;
+
+    /**
+     * Constructor used by {@link SpriteAtlas} once it has rasterized the characters.
+     *
+     * @param first  the lowest character in the set.
+     * @param glyphs the sprites for each character from {@code first} on.
+     * @param ascent the distance from the top of each glyph to the baseline.
+     * @param height the height of each glyph.
+     */
+    GlyphSet(char first, Sprite[] glyphs, int ascent, int height) {
+        this.first = first;
+        this.glyphs = glyphs;
+        this.ascent = ascent;
+        this.height = height;
+    }
+
+    /**
+     * Find the sprite which draws a character.
+     *
+     * @param c the character wanted.
+     *
+     * @return its sprite, or {@code null} if it is not part of the set.
+     */
+    Sprite glyph(char c) {
+        int index = c - first;
+        return (index >= 0 && index < glyphs.length) ? glyphs[index] : null;
+    }
+
+    /**
+     * Measure how much horizontal space some text will take up, to help align it within a slot. Characters
+     * which are not part of the set take no space.
+     *
+     * @param text the text to be measured.
+     *
+     * @return the sum of the advances of its characters.
+     */
+    public int getWidth(CharSequence text) {
+        int width = 0;
+        for (int i = 0; i < text.length(); i++) {
+            Sprite glyph = glyph(text.charAt(i));
+            if (glyph != null) {
+                width += glyph.getWidth();
+            }
+        }
+        return width;
+    }
+
+    /**
+     * Get the distance from the top of each glyph to its baseline.
+     *
+     * @return the font's ascent.
+     */
+    public int getAscent() {
+        return ascent;
+    }
+
+    /**
+     * Get the height of each glyph.
+     *
+     * @return the font's ascent plus its descent.
+     */
+    public int getHeight() {
+        return height;
+    }
+}
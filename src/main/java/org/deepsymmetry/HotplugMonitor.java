@@ -0,0 +1,184 @@
+package org.deepsymmetry;
+
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.HotplugCallback;
+import org.usb4java.HotplugCallbackHandle;
+import org.usb4java.LibUsb;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Watches for Push 2 units being unplugged and plugged back in, so that displays which lost their connection
+ * can be reconnected without the application having to notice. Where LibUsb supports hotplug notification,
+ * it tells us as soon as a Push arrives or leaves; otherwise (for example on Windows) we fall back to
+ * enumerating the USB devices periodically, but only while some display is waiting to be reconnected.
+ * The notifications arrive on the LibUsb event thread, where devices must not be opened, so the actual
+ * work is handed off to a thread of our own. Started by {@link Wayang#setAutoReconnect(boolean)}.
+ *
+ * @author James Elliott
+ */
+class HotplugMonitor {
+
+    /**
+     * How often we look for displays waiting to be reconnected when LibUsb cannot tell us about new devices.
+     */
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /**
+     * How often we look anyway when LibUsb does tell us about new devices, in case a device arrived just
+     * before its display noticed that the old connection was gone, or could not be opened at first.
+     */
+    private static final long HOTPLUG_SAFETY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The LibUsb context shared with the displays, which we keep acquired while running.
+     */
+    private final SharedUsbContext usbContext;
+
+    /**
+     * The LibUsb context itself, once we have acquired it.
+     */
+    private Context context = null;
+
+    /**
+     * The thread which reconnects displays.
+     */
+    private final Thread thread;
+
+    /**
+     * Identifies our hotplug callback, if LibUsb supports hotplug notification and it was registered.
+     */
+    private HotplugCallbackHandle callbackHandle = null;
+
+    /**
+     * The names of Push 2 devices which LibUsb has told us have left, for the monitor thread to deal with.
+     */
+    private final ConcurrentLinkedQueue<String> departed = new ConcurrentLinkedQueue<String>();
+
+    /**
+     * Set when it is worth looking for displays to reconnect right away.
+     */
+    private volatile boolean rescanNeeded = true;
+
+    /**
+     * Set when the monitor should stop.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Receives hotplug notifications on the LibUsb event thread, and passes them on to the monitor thread.
+     */
+    private final HotplugCallback callback = new HotplugCallback() {
+        @Override
+        public int processEvent(Context context, Device device, int event, Object userData) {
+            if (event == LibUsb.HOTPLUG_EVENT_DEVICE_LEFT) {
+                departed.add(Wayang.deviceName(device));
+            }
+            rescanNeeded = true;
+            LockSupport.unpark(thread);
+            return 0;  // Keep the callback registered.
+        }
+    };
+
+    /**
+     * Constructor sets up the monitor thread, but does not start it.
+     *
+     * @param usbContext the LibUsb context shared with the displays.
+     */
+    HotplugMonitor(SharedUsbContext usbContext) {
+        this.usbContext = usbContext;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "Wayang hotplug monitor");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start watching for devices, registering for hotplug notification if LibUsb supports it on this platform.
+     *
+     * @throws org.usb4java.LibUsbException if LibUsb cannot be initialized.
+     */
+    void start() {
+        context = usbContext.acquire();
+        if (LibUsb.hasCapability(LibUsb.CAP_HAS_HOTPLUG)) {
+            HotplugCallbackHandle handle = new HotplugCallbackHandle();
+            int result = LibUsb.hotplugRegisterCallback(context,
+                    LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED | LibUsb.HOTPLUG_EVENT_DEVICE_LEFT, LibUsb.HOTPLUG_NO_FLAGS,
+                    Wayang.PUSH_VENDOR_ID, Wayang.PUSH_PRODUCT_ID, LibUsb.HOTPLUG_MATCH_ANY, callback, null, handle);
+            if (result == LibUsb.SUCCESS) {
+                callbackHandle = handle;
+                usbContext.startEventThread();  // Hotplug callbacks are delivered while handling events.
+            } else {
+                System.err.println("Unable to register for USB hotplug events, polling instead: " +
+                        LibUsb.errorName(result));
+            }
+        }
+        thread.start();
+    }
+
+    /**
+     * Check whether LibUsb is telling us when devices arrive and leave, rather than us having to poll.
+     *
+     * @return {@code true} if hotplug notification is in use.
+     */
+    boolean isUsingHotplug() {
+        return callbackHandle != null;
+    }
+
+    /**
+     * Let the monitor know that a display has lost its connection, so it should start looking for the
+     * device to return.
+     */
+    void displayDisconnected() {
+        rescanNeeded = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stop watching for devices, waiting for any reconnection in progress to finish.
+     */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted waiting for hotplug monitor to stop.");
+            Thread.currentThread().interrupt();
+        }
+        if (callbackHandle != null) {
+            LibUsb.hotplugDeregisterCallback(context, callbackHandle);
+            callbackHandle = null;
+        }
+        usbContext.release();
+    }
+
+    /**
+     * Deals with departed devices and reconnects returning ones until stopped.
+     */
+    private void loop() {
+        long interval = isUsingHotplug() ? HOTPLUG_SAFETY_NANOS : POLL_INTERVAL_NANOS;
+        while (!stopped) {
+            String name = departed.poll();
+            while (name != null) {
+                Wayang.deviceDeparted(name);
+                name = departed.poll();
+            }
+            rescanNeeded = false;
+            try {
+                Wayang.reconnectDisplays();
+            } catch (RuntimeException e) {
+                System.err.println("Problem reconnecting Push 2 displays, will try again: " + e);
+            }
+            if (!rescanNeeded && departed.isEmpty()) {
+                LockSupport.parkNanos(this, interval);
+            }
+        }
+    }
+}
@@ -0,0 +1,816 @@
+package org.deepsymmetry;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scales images of one particular size, such as the frames of a camera or video, to the display, with much
+ * better quality than Java2D's bilinear interpolation (which skips most of the source pixels when shrinking
+ * a large image), and writes the result straight into the display image's 16-bit pixels or a frame buffer.
+ *
+ * Everything that depends only on the sizes involved is worked out once, when the scaler is created: which
+ * source pixels contribute to each output pixel, and how much, for both the columns and the rows. Each frame
+ * is then resampled in two passes using integer arithmetic, first across each source line which contributes
+ * to the output, then down each output column, with both passes split by rows across the common fork/join
+ * pool. A scaler keeps working buffers, so frames are scaled one at a time; use a separate scaler for each video
+ * stream which needs to be scaled at the same time as others.
+ *
+ * @author James Elliott
+ */
+public class ImageScaler {
+
+    /**
+     * How images whose shape differs from the display's are fitted to it.
+     */
+    public enum Mode {
+
+        /**
+         * Scale the whole image to be as large as will fit on the display, centered, with black bars at the
+         * sides or the top and bottom.
+         */
+        FIT,
+
+        /**
+         * Scale the image to cover the whole display, cropping whatever sticks out equally from each side.
+         */
+        FILL,
+
+        /**
+         * Scale the image to exactly the size of the display, distorting it if its shape is different.
+         */
+        STRETCH
+    }
+
+    /**
+     * How source pixels are combined into output pixels.
+     */
+    public enum Filter {
+
+        /**
+         * Average the source pixels covered by each output pixel, weighted by how much of each is covered.
+         * Fast, and free of aliasing when shrinking; soft when enlarging.
+         */
+        AREA_AVERAGE,
+
+        /**
+         * Combine the source pixels with a three-lobed Lanczos window, which keeps edges sharper when shrinking
+         * and enlarging alike, at the cost of several times as much work, and slight ringing around hard edges.
+         */
+        LANCZOS3
+    }
+
+    /**
+     * The number of fractional bits in the filter weights.
+     */
+    private static final int WEIGHT_BITS = 14;
+
+    /**
+     * The number of fractional bits kept in the results of the horizontal pass.
+     */
+    private static final int INTERMEDIATE_BITS = 6;
+
+    /**
+     * The fewest rows a pass will be split into for a single task, so the work is not split too finely for
+     * the overhead to pay off.
+     */
+    private static final int ROWS_PER_TASK = 8;
+
+    /**
+     * Which source pixels contribute to each pixel along one axis of the output, and how much.
+     */
+    private static final class Kernel {
+
+        /**
+         * The first source pixel which contributes to each output pixel.
+         */
+        final int[] first;
+
+        /**
+         * The number of source pixels which contribute to each output pixel; the weights of those which
+         * contribute less than the most are zero.
+         */
+        final int taps;
+
+        /**
+         * The weights of the contributing source pixels, {@link #taps} for each output pixel, with
+         * {@value #WEIGHT_BITS} fractional bits, adding up to exactly one for each output pixel.
+         */
+        final int[] weights;
+
+        /**
+         * Constructor simply sets the immutable fields.
+         *
+         * @param first   the first source pixel which contributes to each output pixel.
+         * @param taps    the number of source pixels which contribute to each output pixel.
+         * @param weights the weights of the contributing source pixels.
+         */
+        Kernel(int[] first, int taps, int[] weights) {
+            this.first = first;
+            this.taps = taps;
+            this.weights = weights;
+        }
+    }
+
+    /**
+     * The width of the images which can be scaled.
+     */
+    private final int sourceWidth;
+
+    /**
+     * The height of the images which can be scaled.
+     */
+    private final int sourceHeight;
+
+    /**
+     * How images are fitted to the display.
+     */
+    private final Mode mode;
+
+    /**
+     * How source pixels are combined.
+     */
+    private final Filter filter;
+
+    /**
+     * The part of the display covered by the scaled image.
+     */
+    private final Rectangle target;
+
+    /**
+     * Which source columns contribute to each column of {@link #target}.
+     */
+    private final Kernel columns;
+
+    /**
+     * Which source rows contribute to each row of {@link #target}.
+     */
+    private final Kernel rows;
+
+    /**
+     * The first source row which contributes to the output.
+     */
+    private final int firstSourceRow;
+
+    /**
+     * The number of source rows which contribute to the output.
+     */
+    private final int sourceRowCount;
+
+    /**
+     * The red channel of the source rows after the horizontal pass, {@code target.width} to a row, with
+     * {@value #INTERMEDIATE_BITS} fractional bits.
+     */
+    private final int[] red;
+
+    /**
+     * The green channel of the source rows after the horizontal pass, arranged like {@link #red}.
+     */
+    private final int[] green;
+
+    /**
+     * The blue channel of the source rows after the horizontal pass, arranged like {@link #red}.
+     */
+    private final int[] blue;
+
+    /**
+     * Create a scaler for images of a particular size.
+     *
+     * @param sourceWidth  the width of the images which will be scaled.
+     * @param sourceHeight the height of the images which will be scaled.
+     * @param mode         how images are fitted to the display, when their shape differs from it.
+     * @param filter       how source pixels are combined into output pixels.
+     *
+     * @throws IllegalArgumentException if a dimension is not positive, or the mode or filter is missing.
+     */
+    public ImageScaler(int sourceWidth, int sourceHeight, Mode mode, Filter filter) {
+        if (sourceWidth < 1 || sourceHeight < 1) {
+            throw new IllegalArgumentException("Source dimensions must be positive, got " + sourceWidth + "x" +
+                    sourceHeight);
+        }
+        if (mode == null || filter == null) {
+            throw new IllegalArgumentException("mode and filter must not be null");
+        }
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.mode = mode;
+        this.filter = filter;
+
+        double windowX = 0;
+        double windowY = 0;
+        double windowWidth = sourceWidth;
+        double windowHeight = sourceHeight;
+        double scaleX = (double) Wayang.DISPLAY_WIDTH / sourceWidth;
+        double scaleY = (double) Wayang.DISPLAY_HEIGHT / sourceHeight;
+        switch (mode) {
+            case FIT:
+                double fit = Math.min(scaleX, scaleY);
+                int width = Math.max(1, (int) Math.round(sourceWidth * fit));
+                int height = Math.max(1, (int) Math.round(sourceHeight * fit));
+                target = new Rectangle((Wayang.DISPLAY_WIDTH - width) / 2, (Wayang.DISPLAY_HEIGHT - height) / 2,
+                        width, height);
+                break;
+
+            case FILL:
+                double fill = Math.max(scaleX, scaleY);
+                windowWidth = Wayang.DISPLAY_WIDTH / fill;
+                windowHeight = Wayang.DISPLAY_HEIGHT / fill;
+                windowX = (sourceWidth - windowWidth) / 2;
+                windowY = (sourceHeight - windowHeight) / 2;
+                target = new Rectangle(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+                break;
+
+            default:
+                target = new Rectangle(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        }
+        columns = buildKernel(filter, sourceWidth, windowX, windowWidth, target.width);
+        rows = buildKernel(filter, sourceHeight, windowY, windowHeight, target.height);
+
+        int firstRow = sourceHeight;
+        int endRow = 0;
+        for (int first : rows.first) {
+            firstRow = Math.min(firstRow, first);
+            endRow = Math.max(endRow, first + rows.taps);
+        }
+        firstSourceRow = firstRow;
+        sourceRowCount = endRow - firstRow;
+        red = new int[sourceRowCount * target.width];
+        green = new int[red.length];
+        blue = new int[red.length];
+    }
+
+    /**
+     * Work out which source pixels contribute to each pixel along one axis of the output, and how much.
+     *
+     * @param filter       how source pixels are combined.
+     * @param sourceSize   the number of source pixels along the axis.
+     * @param windowStart  where the part of the source being scaled starts, in source pixels.
+     * @param windowLength how many source pixels the part being scaled spans.
+     * @param outputSize   the number of output pixels it is scaled to.
+     *
+     * @return the contributing pixels and their weights.
+     */
+    private static Kernel buildKernel(Filter filter, int sourceSize, double windowStart, double windowLength,
+                                      int outputSize) {
+        double step = windowLength / outputSize;  // Source pixels per output pixel.
+        double footprint = Math.max(step, 1.0);  // When enlarging, still blend with the neighbors.
+        double radius = (filter == Filter.LANCZOS3) ? 3 * footprint : footprint / 2;
+        int span = Math.min(sourceSize, (int) Math.ceil(radius * 2) + 2);
+        double[][] contributions = new double[outputSize][];
+        int[] first = new int[outputSize];
+        int taps = 1;
+
+        for (int i = 0; i < outputSize; i++) {
+            double center = windowStart + (i + 0.5) * step;
+            int low = (int) Math.floor(center - radius);
+            int high = (int) Math.ceil(center + radius);
+            double[] weights = new double[sourceSize];
+            int lowest = sourceSize;
+            int highest = -1;
+            for (int j = low; j <= high; j++) {
+                double weight;
+                if (filter == Filter.LANCZOS3) {
+                    weight = lanczos3((j + 0.5 - center) / footprint);
+                } else {
+                    weight = Math.max(0, Math.min(j + 1, center + radius) - Math.max(j, center - radius));
+                }
+                if (weight != 0) {
+                    int index = Math.max(0, Math.min(sourceSize - 1, j));  // Repeat the edge pixels.
+                    weights[index] += weight;
+                    lowest = Math.min(lowest, index);
+                    highest = Math.max(highest, index);
+                }
+            }
+            if (highest < 0) {  // Can only happen through rounding at the very edge; use the nearest pixel.
+                lowest = highest = Math.max(0, Math.min(sourceSize - 1, (int) Math.floor(center)));
+                weights[lowest] = 1;
+            }
+            first[i] = lowest;
+            contributions[i] = weights;
+            taps = Math.max(taps, highest - lowest + 1);
+        }
+        taps = Math.min(taps, span);
+
+        int[] fixed = new int[outputSize * taps];
+        for (int i = 0; i < outputSize; i++) {
+            first[i] = Math.min(first[i], sourceSize - taps);
+            double[] weights = contributions[i];
+            double sum = 0;
+            for (int t = 0; t < taps; t++) {
+                sum += weights[first[i] + t];
+            }
+            int total = 0;
+            int largest = 0;
+            for (int t = 0; t < taps; t++) {
+                int weight = (int) Math.round(weights[first[i] + t] / sum * (1 << WEIGHT_BITS));
+                fixed[i * taps + t] = weight;
+                total += weight;
+                if (weight > fixed[i * taps + largest]) {
+                    largest = t;
+                }
+            }
+            fixed[i * taps + largest] += (1 << WEIGHT_BITS) - total;  // Make sure flat areas stay flat.
+        }
+        return new Kernel(first, taps, fixed);
+    }
+
+    /**
+     * The three-lobed Lanczos window.
+     *
+     * @param x the distance from the center, in output pixels.
+     *
+     * @return the weight of a source pixel at that distance.
+     */
+    private static double lanczos3(double x) {
+        if (x == 0) {
+            return 1;
+        }
+        if (x <= -3 || x >= 3) {
+            return 0;
+        }
+        double pi = Math.PI * x;
+        return 3 * Math.sin(pi) * Math.sin(pi / 3) / (pi * pi);
+    }
+
+    /**
+     * Get the width of the images this scaler works with.
+     *
+     * @return the source width.
+     */
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    /**
+     * Get the height of the images this scaler works with.
+     *
+     * @return the source height.
+     */
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    /**
+     * Find out how images are fitted to the display.
+     *
+     * @return the fit mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Find out how source pixels are combined.
+     *
+     * @return the filter.
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Find the part of the display which the scaled image covers, which is all of it unless the mode is
+     * {@link Mode#FIT} and the image has a different shape from the display.
+     *
+     * @return the bounds of the scaled image on the display.
+     */
+    public Rectangle getTargetBounds() {
+        return new Rectangle(target);
+    }
+
+    /**
+     * Supplies the lines of the source image to the horizontal pass.
+     */
+    private interface Source {
+
+        /**
+         * Check whether lines need to be copied into a scratch array to be read.
+         *
+         * @return {@code true} if {@link #line(int, int[])} needs a scratch array.
+         */
+        boolean copies();
+
+        /**
+         * Find the pixels of a source line.
+         *
+         * @param y       the line.
+         * @param scratch if {@link #copies()}, an array of {@link #sourceWidth} elements which belongs to the
+         *                calling thread, in which to copy them; otherwise {@code null}.
+         *
+         * @return the array holding the pixels, which may or may not be {@code scratch}.
+         */
+        int[] line(int y, int[] scratch);
+
+        /**
+         * Find where a source line starts in the array returned by {@link #line(int, int[])}.
+         *
+         * @param y the line.
+         *
+         * @return the index of its first pixel.
+         */
+        int offset(int y);
+    }
+
+    /**
+     * Receives the lines of the scaled image from the vertical pass.
+     */
+    private interface Sink {
+
+        /**
+         * Store one line of the display.
+         *
+         * @param y    the display line.
+         * @param argb the pixels of the whole line, {@value Wayang#DISPLAY_WIDTH} of them.
+         */
+        void line(int y, int[] argb);
+    }
+
+    /**
+     * Resample one pass over a range of rows, splitting itself across the fork/join pool.
+     */
+    private final class PassTask extends RecursiveAction {
+
+        /**
+         * Identifies the version of our serialized form, which tasks never actually need.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Whether this is the vertical pass.
+         */
+        private final boolean vertical;
+
+        /**
+         * The first row to work on: an index into the contributing source rows for the horizontal pass, or a
+         * display line for the vertical pass.
+         */
+        private final int start;
+
+        /**
+         * The row after the last one to work on.
+         */
+        private final int end;
+
+        /**
+         * Where the source pixels come from.
+         */
+        private final Source source;
+
+        /**
+         * Where the output lines go.
+         */
+        private final Sink sink;
+
+        /**
+         * Constructor simply sets the immutable fields.
+         *
+         * @param vertical whether this is the vertical pass.
+         * @param start    the first row to work on.
+         * @param end      the row after the last one to work on.
+         * @param source   where the source pixels come from.
+         * @param sink     where the output lines go.
+         */
+        PassTask(boolean vertical, int start, int end, Source source, Sink sink) {
+            this.vertical = vertical;
+            this.start = start;
+            this.end = end;
+            this.source = source;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > ROWS_PER_TASK) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new PassTask(vertical, start, middle, source, sink),
+                        new PassTask(vertical, middle, end, source, sink));
+            } else if (vertical) {
+                int[] line = new int[Wayang.DISPLAY_WIDTH];
+                for (int y = start; y < end; y++) {
+                    verticalPass(y, line);
+                    sink.line(y, line);
+                }
+            } else {
+                int[] scratch = source.copies() ? new int[sourceWidth] : null;
+                for (int row = start; row < end; row++) {
+                    int y = firstSourceRow + row;
+                    horizontalPass(source.line(y, scratch), source.offset(y), row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resample one source line horizontally, storing the result in the intermediate buffers.
+     *
+     * @param pixels the array holding the source line.
+     * @param offset the index of its first pixel.
+     * @param row    the index of the line among the contributing source rows.
+     */
+    private void horizontalPass(int[] pixels, int offset, int row) {
+        int taps = columns.taps;
+        int[] weights = columns.weights;
+        int rounding = 1 << (WEIGHT_BITS - INTERMEDIATE_BITS - 1);
+        int base = row * target.width;
+        for (int x = 0; x < target.width; x++) {
+            int source = offset + columns.first[x];
+            int w = x * taps;
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            for (int t = 0; t < taps; t++) {
+                int pixel = pixels[source + t];
+                int weight = weights[w + t];
+                r += ((pixel >> 16) & 0xff) * weight;
+                g += ((pixel >> 8) & 0xff) * weight;
+                b += (pixel & 0xff) * weight;
+            }
+            red[base + x] = (r + rounding) >> (WEIGHT_BITS - INTERMEDIATE_BITS);
+            green[base + x] = (g + rounding) >> (WEIGHT_BITS - INTERMEDIATE_BITS);
+            blue[base + x] = (b + rounding) >> (WEIGHT_BITS - INTERMEDIATE_BITS);
+        }
+    }
+
+    /**
+     * Resample one display line vertically from the intermediate buffers, filling any part of the line outside
+     * the scaled image with black.
+     *
+     * @param y    the display line.
+     * @param line where the RGB pixels of the whole line are stored.
+     */
+    private void verticalPass(int y, int[] line) {
+        int row = y - target.y;
+        if (row < 0 || row >= target.height) {
+            java.util.Arrays.fill(line, 0);
+            return;
+        }
+        int taps = rows.taps;
+        int[] weights = rows.weights;
+        int shift = WEIGHT_BITS + INTERMEDIATE_BITS;
+        int rounding = 1 << (shift - 1);
+        int base = (rows.first[row] - firstSourceRow) * target.width;
+        int w = row * taps;
+        for (int x = 0; x < target.width; x++) {
+            int r = rounding;
+            int g = rounding;
+            int b = rounding;
+            int index = base + x;
+            for (int t = 0; t < taps; t++) {
+                int weight = weights[w + t];
+                r += red[index] * weight;
+                g += green[index] * weight;
+                b += blue[index] * weight;
+                index += target.width;
+            }
+            line[target.x + x] = (clamp(r >> shift) << 16) | (clamp(g >> shift) << 8) | clamp(b >> shift);
+        }
+        for (int x = 0; x < target.x; x++) {
+            line[x] = 0;
+        }
+        for (int x = target.x + target.width; x < Wayang.DISPLAY_WIDTH; x++) {
+            line[x] = 0;
+        }
+    }
+
+    /**
+     * Keep a channel value within range, since the negative lobes of the Lanczos window can overshoot.
+     *
+     * @param value the filtered channel value.
+     *
+     * @return the value, limited to between 0 and 255.
+     */
+    private static int clamp(int value) {
+        return (value < 0) ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Resample a frame through both passes.
+     *
+     * @param source where the source pixels come from.
+     * @param sink   where the output lines go.
+     */
+    private void resample(Source source, Sink sink) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        pool.invoke(new PassTask(false, 0, sourceRowCount, source, null));
+        pool.invoke(new PassTask(true, 0, Wayang.DISPLAY_HEIGHT, null, sink));
+    }
+
+    /**
+     * Wrap an array of pixels as a source.
+     *
+     * @param argb   the pixels, with red in bits 16-23, green in bits 8-15 and blue in bits 0-7.
+     * @param offset the index of the top left pixel.
+     * @param stride the distance between the starts of successive lines.
+     *
+     * @return the source.
+     */
+    private Source arraySource(final int[] argb, final int offset, final int stride) {
+        if (stride < sourceWidth || offset < 0 ||
+                offset + ((long) stride * (sourceHeight - 1)) + sourceWidth > argb.length) {
+            throw new IllegalArgumentException("Pixel array does not hold a " + sourceWidth + "x" + sourceHeight +
+                    " image with offset " + offset + " and stride " + stride);
+        }
+        return new Source() {
+            @Override
+            public boolean copies() {
+                return false;
+            }
+
+            @Override
+            public int[] line(int y, int[] scratch) {
+                return argb;
+            }
+
+            @Override
+            public int offset(int y) {
+                return offset + (y * stride);
+            }
+        };
+    }
+
+    /**
+     * Wrap an image as a source, reading its pixel array directly if they are stored as {@code int} RGB
+     * values, or a line at a time otherwise.
+     *
+     * @param image the image to be scaled.
+     *
+     * @return the source.
+     *
+     * @throws IllegalArgumentException if the image is not the size this scaler works with.
+     */
+    private Source imageSource(final BufferedImage image) {
+        if (image.getWidth() != sourceWidth || image.getHeight() != sourceHeight) {
+            throw new IllegalArgumentException("Scaler works with " + sourceWidth + "x" + sourceHeight +
+                    " images, got " + image.getWidth() + "x" + image.getHeight());
+        }
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB ||
+                type == BufferedImage.TYPE_INT_ARGB_PRE) {
+            WritableRaster raster = image.getRaster();
+            SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            int offset = buffer.getOffset() +
+                    model.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+            return arraySource(buffer.getData(), offset, model.getScanlineStride());
+        }
+        return new Source() {
+            @Override
+            public boolean copies() {
+                return true;
+            }
+
+            @Override
+            public int[] line(int y, int[] scratch) {
+                image.getRGB(0, y, sourceWidth, 1, scratch, 0, sourceWidth);
+                return scratch;
+            }
+
+            @Override
+            public int offset(int y) {
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * Build a sink which stores lines in a display image.
+     *
+     * @param displayImage an image with the dimensions and pixel format of the display, such as the one
+     *                     returned by {@link PushDisplay#getImage()}.
+     *
+     * @return the sink.
+     *
+     * @throws IllegalArgumentException if the image is not a display image.
+     */
+    private static Sink displaySink(BufferedImage displayImage) {
+        if (displayImage.getWidth() != Wayang.DISPLAY_WIDTH || displayImage.getHeight() != Wayang.DISPLAY_HEIGHT ||
+                displayImage.getRaster().getTransferType() != java.awt.image.DataBuffer.TYPE_USHORT) {
+            throw new IllegalArgumentException("Target must be a display image");
+        }
+        final WritableRaster raster = displayImage.getRaster();
+        if (raster.getDataBuffer() instanceof DataBufferUShort) {
+            final short[] pixels = Wayang.displayPixels(displayImage);
+            return new Sink() {
+                @Override
+                public void line(int y, int[] argb) {
+                    int base = y * Wayang.DISPLAY_WIDTH;
+                    for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                        pixels[base + x] = SpriteAtlas.pack(argb[x]);
+                    }
+                }
+            };
+        }
+        return new Sink() {  // Stored in native memory, see RasterMode.
+            @Override
+            public void line(int y, int[] argb) {
+                short[] packed = new short[Wayang.DISPLAY_WIDTH];
+                for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                    packed[x] = SpriteAtlas.pack(argb[x]);
+                }
+                raster.setDataElements(0, y, Wayang.DISPLAY_WIDTH, 1, packed);
+            }
+        };
+    }
+
+    /**
+     * Build a sink which converts lines into a frame buffer.
+     *
+     * @param frame     a little-endian buffer like those returned by {@link Wayang#allocateFrameBuffer(int)}.
+     * @param converter how to convert and mask the pixels.
+     *
+     * @return the sink.
+     */
+    private static Sink frameSink(final ByteBuffer frame, final ArgbFrameConverter converter) {
+        return new Sink() {
+            @Override
+            public void line(int y, int[] argb) {
+                converter.convert(argb, 0, Wayang.DISPLAY_WIDTH, false, y, 1, frame);
+            }
+        };
+    }
+
+    /**
+     * Scale an image into a display image, replacing everything in it. Anything drawn into the display image
+     * afterwards shows on top of the scaled image when the frame is sent. This writes straight into the
+     * image's pixels, so if its display only encodes the lines which have changed (see
+     * {@link PushDisplay#setDirtyTracking(boolean)}), use {@link #scale(BufferedImage, PushDisplay)} instead,
+     * or call {@link PushDisplay#markDirty()} afterwards.
+     *
+     * @param source       the image to scale, which must be the size this scaler was created for.
+     * @param displayImage the display image, as returned by {@link PushDisplay#getImage()}.
+     *
+     * @throws IllegalArgumentException if either image is the wrong size or type.
+     */
+    public synchronized void scale(BufferedImage source, BufferedImage displayImage) {
+        resample(imageSource(source), displaySink(displayImage));
+    }
+
+    /**
+     * Scale an array of pixels, such as a decoded video frame, into a display image, replacing everything in it.
+     * Like {@link #scale(BufferedImage, BufferedImage)}, this does not mark the display image dirty; see
+     * {@link #scale(int[], int, int, PushDisplay)}.
+     *
+     * @param argb         the pixels, with red in bits 16-23, green in bits 8-15 and blue in bits 0-7; alpha is
+     *                     ignored.
+     * @param offset       the index of the top left pixel.
+     * @param stride       the distance between the starts of successive lines.
+     * @param displayImage the display image, as returned by {@link PushDisplay#getImage()}.
+     *
+     * @throws IllegalArgumentException if the array is too small, or the display image is the wrong size or type.
+     */
+    public synchronized void scale(int[] argb, int offset, int stride, BufferedImage displayImage) {
+        resample(arraySource(argb, offset, stride), displaySink(displayImage));
+    }
+
+    /**
+     * Scale an image into the image of a display, replacing everything in it, and mark the whole image dirty,
+     * so it is all encoded for the next frame even when the display only encodes the lines which have changed.
+     *
+     * @param source  the image to scale, which must be the size this scaler was created for.
+     * @param display the display whose image is to be replaced.
+     *
+     * @throws IllegalArgumentException if the image is the wrong size or type.
+     */
+    public void scale(BufferedImage source, PushDisplay display) {
+        scale(source, display.getImage());
+        display.markDirty();
+    }
+
+    /**
+     * Scale an array of pixels into the image of a display, replacing everything in it, and mark the whole
+     * image dirty, so it is all encoded for the next frame even when the display only encodes the lines which
+     * have changed.
+     *
+     * @param argb    the pixels, with red in bits 16-23, green in bits 8-15 and blue in bits 0-7; alpha is
+     *                ignored.
+     * @param offset  the index of the top left pixel.
+     * @param stride  the distance between the starts of successive lines.
+     * @param display the display whose image is to be replaced.
+     *
+     * @throws IllegalArgumentException if the array is too small.
+     */
+    public void scale(int[] argb, int offset, int stride, PushDisplay display) {
+        scale(argb, offset, stride, display.getImage());
+        display.markDirty();
+    }
+
+    /**
+     * Scale an image straight into a frame buffer, masked and padded ready to send, without going through a
+     * display image.
+     *
+     * @param source    the image to scale, which must be the size this scaler was created for.
+     * @param frame     a little-endian buffer like those returned by {@link Wayang#allocateFrameBuffer(int)}.
+     * @param converter how to convert and mask the pixels.
+     *
+     * @throws IllegalArgumentException if the image is the wrong size.
+     */
+    synchronized void encode(BufferedImage source, ByteBuffer frame, ArgbFrameConverter converter) {
+        resample(imageSource(source), frameSink(frame, converter));
+    }
+}
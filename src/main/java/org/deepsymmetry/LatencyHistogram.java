@@ -0,0 +1,136 @@
+package org.deepsymmetry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how long an operation takes in power-of-two buckets of microseconds, so that latency distributions
+ * can be tracked from any thread without allocating memory or taking locks.
+ *
+ * @author James Elliott
+ */
+class LatencyHistogram {
+
+    /**
+     * The number of buckets. Bucket zero holds durations under a microsecond, and bucket <em>n</em> holds
+     * those of at least 2<sup>n-1</sup> and under 2<sup>n</sup> microseconds; the last bucket also holds
+     * everything longer.
+     */
+    static final int BUCKETS = 32;
+
+    /**
+     * The number of durations recorded in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The number of durations recorded.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The sum of all durations recorded, in nanoseconds.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * The longest duration recorded, in nanoseconds.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record how long an operation took.
+     *
+     * @param nanos the duration, in nanoseconds.
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Find the upper bound of a bucket.
+     *
+     * @param bucket the bucket index.
+     *
+     * @return the number of microseconds below which all durations in the bucket fall.
+     */
+    static long bucketLimitMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Estimate a percentile of the recorded durations.
+     *
+     * @param percentile the percentile desired, from 0 to 100.
+     *
+     * @return the upper bound, in microseconds, of the bucket in which that percentile falls, or zero if
+     *         nothing has been recorded.
+     */
+    long percentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketLimitMicros(i), maxMicros());
+            }
+        }
+        return maxMicros();
+    }
+
+    /**
+     * Get the mean of the recorded durations.
+     *
+     * @return the mean, in microseconds, or zero if nothing has been recorded.
+     */
+    double meanMicros() {
+        long n = count.get();
+        return (n == 0) ? 0 : total.get() / (n * 1000.0);
+    }
+
+    /**
+     * Get the longest recorded duration.
+     *
+     * @return the maximum, in microseconds.
+     */
+    long maxMicros() {
+        return (max.get() + 999) / 1000;
+    }
+
+    /**
+     * Get the number of durations recorded in each bucket.
+     *
+     * @return the counts, indexed by bucket.
+     */
+    long[] bucketCounts() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
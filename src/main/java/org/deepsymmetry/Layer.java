@@ -0,0 +1,246 @@
+package org.deepsymmetry;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * One layer of a {@link Compositor}: a full-screen image in the display's own pixel format, which can be drawn
+ * into with a {@link Graphics2D} or a {@link DisplaySurface}, and which is shown over the layers beneath it,
+ * either opaquely, with a color key marking the pixels through which they show, or blended at some opacity.
+ *
+ * The compositor cannot see drawing operations, so after changing a layer's pixels call {@link #markDirty()}
+ * (or {@link #markDirty(int, int)} with just the lines that changed); layers which have not been marked are
+ * taken from the compositor's cache. Layers are not thread-safe, and must not be drawn into while their
+ * compositor is encoding a frame.
+ *
+ * @author James Elliott
+ */
+public class Layer {
+
+    /**
+     * The image which is drawn into.
+     */
+    private final BufferedImage image;
+
+    /**
+     * The pixels behind {@link #image}.
+     */
+    final short[] pixels;
+
+    /**
+     * How strongly the layer covers what is beneath it, from 0 (not at all) to 255 (completely).
+     */
+    private int opacity = 255;
+
+    /**
+     * The pixel value which is treated as transparent, or -1 if every pixel is drawn.
+     */
+    private int colorKey = -1;
+
+    /**
+     * Whether the layer is shown at all.
+     */
+    private boolean visible = true;
+
+    /**
+     * The first line which has changed since the layer was last composited.
+     */
+    int dirtyFirst;
+
+    /**
+     * The line after the last one which has changed since the layer was last composited, so the layer is
+     * clean when this is not greater than {@link #dirtyFirst}.
+     */
+    int dirtyEnd;
+
+    /**
+     * The result of compositing this layer over all those beneath it, kept so that it need not be worked out
+     * again until this layer or one beneath it changes. Allocated by the compositor when first needed.
+     */
+    short[] composite;
+
+    /**
+     * Constructor used by {@link Compositor#addLayer()}. New layers are black, opaque, and dirty.
+     */
+    Layer() {
+        image = Wayang.createDisplayImage();
+        pixels = Wayang.displayPixels(image);
+        markDirty();
+    }
+
+    /**
+     * Get the image holding the layer's pixels, to draw into with {@link BufferedImage#createGraphics()} or
+     * {@link DisplaySurface#forImage(BufferedImage)}.
+     *
+     * @return an image with the dimensions and pixel format of the display.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Record that the whole layer has changed, so it will be composited again when the next frame is encoded.
+     */
+    public void markDirty() {
+        dirtyFirst = 0;
+        dirtyEnd = Wayang.DISPLAY_HEIGHT;
+    }
+
+    /**
+     * Record that some lines of the layer have changed, so they will be composited again when the next frame
+     * is encoded. Lines outside the display are ignored.
+     *
+     * @param firstLine the first line which has changed.
+     * @param lineCount the number of lines which have changed.
+     */
+    public void markDirty(int firstLine, int lineCount) {
+        int first = Math.max(0, firstLine);
+        int end = Math.min(Wayang.DISPLAY_HEIGHT, firstLine + Math.max(0, lineCount));
+        if (first >= end) {
+            return;
+        }
+        if (dirtyFirst >= dirtyEnd) {
+            dirtyFirst = first;
+            dirtyEnd = end;
+        } else {
+            dirtyFirst = Math.min(dirtyFirst, first);
+            dirtyEnd = Math.max(dirtyEnd, end);
+        }
+    }
+
+    /**
+     * Check whether the layer has changed since it was last composited.
+     *
+     * @return {@code true} if any lines have been marked dirty.
+     */
+    public boolean isDirty() {
+        return dirtyFirst < dirtyEnd;
+    }
+
+    /**
+     * Record that the layer has been composited.
+     */
+    void markClean() {
+        dirtyFirst = 0;
+        dirtyEnd = 0;
+    }
+
+    /**
+     * Set how strongly the layer covers the layers beneath it. The display can only show 32 levels of red and
+     * blue, so opacities are blended in 33 steps.
+     *
+     * @param opacity from 0 (invisible) to 255 (completely opaque, the default).
+     *
+     * @throws IllegalArgumentException if {@code opacity} is out of range.
+     */
+    public void setOpacity(int opacity) {
+        if (opacity < 0 || opacity > 255) {
+            throw new IllegalArgumentException("opacity must be between 0 and 255");
+        }
+        if (opacity != this.opacity) {
+            this.opacity = opacity;
+            markDirty();
+        }
+    }
+
+    /**
+     * Check how strongly the layer covers the layers beneath it.
+     *
+     * @return the opacity, from 0 (invisible) to 255 (completely opaque).
+     */
+    public int getOpacity() {
+        return opacity;
+    }
+
+    /**
+     * Find the weight with which the layer is blended, in the resolution the compositor uses.
+     *
+     * @return the opacity scaled to the range 0 to 32.
+     */
+    int blendWeight() {
+        return (opacity * 32 + 127) / 255;
+    }
+
+    /**
+     * Choose a color which is treated as transparent, so the layers beneath show through wherever it has been
+     * drawn. Pixels are compared after conversion to the display's format, so any color which rounds to the
+     * same display color is also transparent.
+     *
+     * @param color the transparent color, or {@code null} to make every pixel of the layer visible.
+     */
+    public void setColorKey(Color color) {
+        int key = (color == null) ? -1 : (SpriteAtlas.pack(color.getRGB()) & 0xffff);
+        if (key != colorKey) {
+            colorKey = key;
+            markDirty();
+        }
+    }
+
+    /**
+     * Find the pixel value which is treated as transparent.
+     *
+     * @return the display-format pixel, or -1 if every pixel is drawn.
+     */
+    int getColorKey() {
+        return colorKey;
+    }
+
+    /**
+     * Check whether the layer has a transparent color.
+     *
+     * @return {@code true} if {@link #setColorKey(Color)} has been given a color.
+     */
+    public boolean hasColorKey() {
+        return colorKey >= 0;
+    }
+
+    /**
+     * Choose whether the layer is shown. Hiding a layer keeps its pixels, and costs no more than changing it.
+     *
+     * @param visible {@code true} to show the layer, {@code false} to hide it.
+     */
+    public void setVisible(boolean visible) {
+        if (visible != this.visible) {
+            this.visible = visible;
+            markDirty();
+        }
+    }
+
+    /**
+     * Check whether the layer is shown.
+     *
+     * @return {@code true} unless it has been hidden.
+     */
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * Check whether the layer hides everything beneath it, so they need not be composited at all.
+     *
+     * @return {@code true} if the layer is visible, completely opaque, and has no transparent color.
+     */
+    boolean isOpaque() {
+        return visible && opacity == 255 && colorKey < 0;
+    }
+
+    /**
+     * Check whether the layer can be skipped when compositing, because it does not change anything.
+     *
+     * @return {@code true} if the layer is hidden or completely transparent.
+     */
+    boolean isInvisible() {
+        return !visible || blendWeight() == 0;
+    }
+
+    /**
+     * Fill the whole layer with a color, such as its transparent color, and mark it dirty.
+     *
+     * @param color the color to fill with.
+     */
+    public void clear(Color color) {
+        Arrays.fill(pixels, SpriteAtlas.pack(color.getRGB()));
+        markDirty();
+    }
+}
@@ -0,0 +1,264 @@
+package org.deepsymmetry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A frame encoder which corrects the colors of the display image as it masks them, to make up for the Push
+ * panel's response differing from the monitor the graphics were designed on, or to dim the whole display on a
+ * dark stage. Every possible 16-bit pixel value is looked up in a table of 65,536 entries, built whenever the
+ * correction changes, which folds together the brightness, gamma, and color balance, along with the signal
+ * shaping pattern. Encoding a frame therefore costs the same whatever the correction. On varied images, whose
+ * lookups range over the whole 128 KB table rather than staying in the fastest cache, it takes around half
+ * again as long as the {@link WideFrameEncoder}, which is still much cheaper than adjusting the image in
+ * Java2D each frame.
+ *
+ * Changing the correction builds a new table and then swaps it in at once, without locking, so it can be done
+ * from any thread while frames are being sent, for example to fade the display smoothly. Displays notice the
+ * change before their next frame, and encode all of it again even if the image has not changed. Each call to
+ * {@link #encode(short[], int, int, ByteBuffer, int)} uses a single table throughout, although the stripes of
+ * a frame (see {@link PushDisplay#setStripeLines(int)}) may straddle a change.
+ *
+ * The correction applies to frames encoded from the display image in the default {@link RasterMode#HEAP}
+ * mode; display images held in native memory, and frames sent as ARGB pixels, are masked in other ways. Like
+ * the wide encoder, this relies on little-endian long writes.
+ *
+ * @author James Elliott
+ */
+public class LookupTableFrameEncoder implements FrameEncoder {
+
+    /**
+     * The signal shaping pattern for even pixels, which is folded into the table.
+     */
+    private static final int EVEN_MASK = 0xf3e7;
+
+    /**
+     * What must be applied to four pixels looked up in the table to turn the odd ones' masks from the even
+     * pattern into the odd pattern, {@code 0xffe7}.
+     */
+    private static final long ODD_ADJUSTMENT = ((long) (0xffe7 ^ EVEN_MASK) << 48) | ((0xffe7 ^ EVEN_MASK) << 16);
+
+    /**
+     * The masked, corrected value of every pixel, indexed by the uncorrected pixel. Replaced, never modified,
+     * when the correction changes.
+     */
+    private volatile short[] table;
+
+    /**
+     * Counts the tables which have been built, so displays can tell when frames they encoded earlier are out of
+     * date. Incremented after the new table is in place.
+     */
+    private volatile long generation = 0;
+
+    /**
+     * How bright the display is, from zero (black) to one (unchanged).
+     */
+    private double brightness = 1.0;
+
+    /**
+     * The exponent applied to each color channel, scaled from zero to one.
+     */
+    private double gamma = 1.0;
+
+    /**
+     * How strongly red is shown, relative to the other channels.
+     */
+    private double redGain = 1.0;
+
+    /**
+     * How strongly green is shown, relative to the other channels.
+     */
+    private double greenGain = 1.0;
+
+    /**
+     * How strongly blue is shown, relative to the other channels.
+     */
+    private double blueGain = 1.0;
+
+    /**
+     * Create an encoder which does not yet change any colors, producing the same bytes as the other encoders.
+     */
+    public LookupTableFrameEncoder() {
+        table = buildTable();
+    }
+
+    /**
+     * Create an encoder with an initial color correction.
+     *
+     * @param brightness how bright the display should be, from zero (black) to one (unchanged).
+     * @param gamma      the exponent applied to each color channel, scaled from zero to one; values above one
+     *                   darken the middle tones, values below one lighten them.
+     * @param redGain    how strongly red is shown, where one leaves it unchanged.
+     * @param greenGain  how strongly green is shown, where one leaves it unchanged.
+     * @param blueGain   how strongly blue is shown, where one leaves it unchanged.
+     *
+     * @throws IllegalArgumentException if any value is out of range.
+     */
+    public LookupTableFrameEncoder(double brightness, double gamma, double redGain, double greenGain,
+                                   double blueGain) {
+        setCorrection(brightness, gamma, redGain, greenGain, blueGain);
+    }
+
+    /**
+     * Change all aspects of the color correction at once, building and swapping in a new table.
+     *
+     * @param brightness how bright the display should be, from zero (black) to one (unchanged).
+     * @param gamma      the exponent applied to each color channel, scaled from zero to one; values above one
+     *                   darken the middle tones, values below one lighten them.
+     * @param redGain    how strongly red is shown, where one leaves it unchanged.
+     * @param greenGain  how strongly green is shown, where one leaves it unchanged.
+     * @param blueGain   how strongly blue is shown, where one leaves it unchanged.
+     *
+     * @throws IllegalArgumentException if the brightness is not between zero and one, the gamma is not
+     *                                  positive, or a gain is negative.
+     */
+    public synchronized void setCorrection(double brightness, double gamma, double redGain, double greenGain,
+                                           double blueGain) {
+        if (!(brightness >= 0.0 && brightness <= 1.0)) {
+            throw new IllegalArgumentException("Brightness must be between 0 and 1, got " + brightness);
+        }
+        if (!(gamma > 0.0) || Double.isInfinite(gamma)) {
+            throw new IllegalArgumentException("Gamma must be positive, got " + gamma);
+        }
+        if (!(redGain >= 0.0 && greenGain >= 0.0 && blueGain >= 0.0) ||
+                Double.isInfinite(redGain + greenGain + blueGain)) {
+            throw new IllegalArgumentException("Color gains cannot be negative");
+        }
+        this.brightness = brightness;
+        this.gamma = gamma;
+        this.redGain = redGain;
+        this.greenGain = greenGain;
+        this.blueGain = blueGain;
+        table = buildTable();
+        generation++;  // Only changed while holding our lock.
+    }
+
+    /**
+     * Change how bright the display is, keeping the rest of the color correction, for example to fade it in or
+     * out a step at a time from a render loop.
+     *
+     * @param brightness how bright the display should be, from zero (black) to one (unchanged).
+     *
+     * @throws IllegalArgumentException if the brightness is not between zero and one.
+     */
+    public synchronized void setBrightness(double brightness) {
+        setCorrection(brightness, gamma, redGain, greenGain, blueGain);
+    }
+
+    /**
+     * Check how bright the display is.
+     *
+     * @return the brightness, from zero (black) to one (unchanged).
+     */
+    public synchronized double getBrightness() {
+        return brightness;
+    }
+
+    /**
+     * Check the exponent applied to each color channel.
+     *
+     * @return the gamma, where one leaves the colors unchanged.
+     */
+    public synchronized double getGamma() {
+        return gamma;
+    }
+
+    /**
+     * Check how strongly red is shown.
+     *
+     * @return the red gain, where one leaves it unchanged.
+     */
+    public synchronized double getRedGain() {
+        return redGain;
+    }
+
+    /**
+     * Check how strongly green is shown.
+     *
+     * @return the green gain, where one leaves it unchanged.
+     */
+    public synchronized double getGreenGain() {
+        return greenGain;
+    }
+
+    /**
+     * Check how strongly blue is shown.
+     *
+     * @return the blue gain, where one leaves it unchanged.
+     */
+    public synchronized double getBlueGain() {
+        return blueGain;
+    }
+
+    /**
+     * Find out which table is in use, so that a display can tell whether bytes it encoded earlier, and may be
+     * about to send again, were produced with the current correction.
+     *
+     * @return a number which changes every time the correction does.
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Work out the corrected levels of one color channel. Since the display has only 32 or 64 levels of each,
+     * the expensive arithmetic is done once per level rather than once per table entry.
+     *
+     * @param levels the number of levels the channel has.
+     * @param gain   how strongly the channel is shown.
+     *
+     * @return the corrected level for each uncorrected level.
+     */
+    private int[] channelCurve(int levels, double gain) {
+        int[] curve = new int[levels];
+        int max = levels - 1;
+        for (int level = 0; level < levels; level++) {
+            double value = brightness * gain * Math.pow((double) level / max, gamma);
+            curve[level] = (int) Math.round(Math.min(1.0, value) * max);
+        }
+        return curve;
+    }
+
+    /**
+     * Build the table for the current color correction. The display image stores red in the low five bits of
+     * each pixel, green in the middle six, and blue in the high five.
+     *
+     * @return the masked, corrected value of every pixel.
+     */
+    private short[] buildTable() {
+        int[] red = channelCurve(32, redGain);
+        int[] green = channelCurve(64, greenGain);
+        int[] blue = channelCurve(32, blueGain);
+        short[] result = new short[65536];
+        for (int pixel = 0; pixel < result.length; pixel++) {
+            int corrected = red[pixel & 0x1f] | (green[(pixel >> 5) & 0x3f] << 5) | (blue[pixel >> 11] << 11);
+            result[pixel] = (short) (corrected ^ EVEN_MASK);
+        }
+        return result;
+    }
+
+    @Override
+    public void encode(short[] pixels, int firstLine, int lineCount, ByteBuffer destination, int offset) {
+        if (destination.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Destination buffer must be little-endian");
+        }
+        short[] lookup = table;
+        for (int y = 0; y < lineCount; y++) {
+            int pixelOffset = (firstLine + y) * Wayang.DISPLAY_WIDTH;
+            int destinationOffset = offset + (y * Wayang.BYTES_PER_LINE);
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x += 4) {
+                long quad = (lookup[pixels[pixelOffset + x] & 0xffff] & 0xffffL) |
+                        ((lookup[pixels[pixelOffset + x + 1] & 0xffff] & 0xffffL) << 16) |
+                        ((lookup[pixels[pixelOffset + x + 2] & 0xffff] & 0xffffL) << 32) |
+                        ((long) lookup[pixels[pixelOffset + x + 3] & 0xffff] << 48);
+                destination.putLong(destinationOffset + (x * 2), quad ^ ODD_ADJUSTMENT);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LookupTableFrameEncoder[brightness=" + getBrightness() + ", gamma=" + getGamma() + ", red=" +
+                getRedGain() + ", green=" + getGreenGain() + ", blue=" + getBlueGain() + "]";
+    }
+}
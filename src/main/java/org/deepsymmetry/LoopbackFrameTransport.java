@@ -0,0 +1,389 @@
+package org.deepsymmetry;
+
+import org.usb4java.LibUsb;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A frame transport which sends nowhere, so that the complete pipeline of opening, drawing, encoding and
+ * sending frames (including asynchronous transfers and their completion callbacks) can be tested, measured
+ * and profiled without a Push 2 attached. Pass one to {@link Wayang#open(FrameTransport)}.
+ *
+ * Transfers are accepted in the order they are sent, as a USB endpoint would, and can be made to take a
+ * realistic amount of time by configuring a simulated latency and bandwidth. Each transfer occupies the
+ * simulated link for as long as its size and the bandwidth dictate, then completes after the latency.
+ * Synchronous sends which would not complete within their timeout give up when it expires, as they would on
+ * a real device, reporting however much of the data had crossed the link by then.
+ *
+ * @author James Elliott
+ */
+public class LoopbackFrameTransport implements FrameTransport {
+
+    /**
+     * Can be registered to examine the data which arrives at the loopback transport.
+     */
+    public interface Receiver {
+
+        /**
+         * Called when a transfer completes.
+         *
+         * @param data the buffer which was sent, which must not be modified or retained
+         */
+        void received(ByteBuffer data);
+    }
+
+    /**
+     * How long each transfer takes to complete once it has made it across the simulated link, in nanoseconds.
+     */
+    private final long latencyNanos;
+
+    /**
+     * The simulated link speed, or zero if data crosses instantly.
+     */
+    private final long bytesPerSecond;
+
+    /**
+     * The {@link System#nanoTime()} at which the simulated link will have finished with all the data
+     * submitted so far.
+     */
+    private long linkBusyUntil = System.nanoTime();
+
+    /**
+     * Asynchronous transfers that have been submitted but not yet completed, in the order they will complete.
+     */
+    private final ArrayDeque<LoopbackTransfer> pending = new ArrayDeque<LoopbackTransfer>();
+
+    /**
+     * Delivers completions of asynchronous transfers; started the first time one is prepared.
+     */
+    private Thread completionThread = null;
+
+    /**
+     * Set when the transport has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * If not null, is told about each transfer that completes.
+     */
+    private volatile Receiver receiver = null;
+
+    /**
+     * Counts the transfers that have completed.
+     */
+    private final AtomicLong transfersReceived = new AtomicLong();
+
+    /**
+     * Counts the bytes that have been received.
+     */
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * Create a loopback transport on which transfers complete immediately.
+     */
+    public LoopbackFrameTransport() {
+        this(0, 0);
+    }
+
+    /**
+     * Create a loopback transport which simulates the time it takes to send data over a real link.
+     *
+     * @param latencyMicroseconds how long each transfer takes to complete once its data has been sent.
+     * @param bytesPerSecond      how quickly data can be sent, or zero if there should be no limit.
+     *
+     * @throws IllegalArgumentException if either value is negative.
+     */
+    public LoopbackFrameTransport(long latencyMicroseconds, long bytesPerSecond) {
+        if (latencyMicroseconds < 0 || bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Latency and bandwidth cannot be negative");
+        }
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicroseconds);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Register an object to examine the data that arrives.
+     *
+     * @param receiver will be called with each buffer as its transfer completes, or {@code null} to stop
+     *                 examining the data.
+     */
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * Check how many transfers have completed.
+     *
+     * @return the number of headers and frame chunks that have been received.
+     */
+    public long getTransfersReceived() {
+        return transfersReceived.get();
+    }
+
+    /**
+     * Check how much data has been received.
+     *
+     * @return the number of bytes received.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Work out when a transfer starting now will complete, and mark the simulated link busy until its data
+     * has been sent. Must be called while holding the lock.
+     *
+     * @param size the number of bytes being transferred.
+     *
+     * @return the {@link System#nanoTime()} at which the transfer will complete.
+     */
+    private long scheduleTransfer(int size) {
+        long start = Math.max(System.nanoTime(), linkBusyUntil);
+        long sendTime = (bytesPerSecond == 0) ? 0 : (size * TimeUnit.SECONDS.toNanos(1)) / bytesPerSecond;
+        linkBusyUntil = start + sendTime;
+        return linkBusyUntil + latencyNanos;
+    }
+
+    /**
+     * Work out how much of a transfer crosses the simulated link in a given amount of time.
+     *
+     * @param elapsed how long the link was sending the transfer, in nanoseconds.
+     * @param size    the number of bytes in the transfer.
+     *
+     * @return the number of bytes sent in that time.
+     */
+    private int bytesSent(long elapsed, int size) {
+        if (bytesPerSecond == 0) {
+            return size;  // The data crosses instantly, it is only the latency we ran out of time waiting for.
+        }
+        return (int) Math.min(size, (elapsed * bytesPerSecond) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Wait until the specified time.
+     *
+     * @param time the {@link System#nanoTime()} to wait for.
+     */
+    private static void waitUntil(long time) {
+        long remaining = time - System.nanoTime();
+        while (remaining > 0) {
+            LockSupport.parkNanos(remaining);
+            remaining = time - System.nanoTime();
+        }
+    }
+
+    /**
+     * Record the arrival of a transfer's data.
+     *
+     * @param data the buffer that was sent.
+     */
+    private void receive(ByteBuffer data) {
+        transfersReceived.incrementAndGet();
+        bytesReceived.addAndGet(data.capacity());
+        Receiver currentReceiver = receiver;
+        if (currentReceiver != null) {
+            currentReceiver.received(data);
+        }
+    }
+
+    @Override
+    public int send(ByteBuffer data, IntBuffer transferred, long timeout) {
+        if (closed) {
+            return LibUsb.ERROR_NO_DEVICE;
+        }
+        long now = System.nanoTime();
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long start;
+        long sent;
+        long completion;
+        synchronized (this) {
+            start = Math.max(now, linkBusyUntil);
+            completion = scheduleTransfer(data.capacity());
+            sent = linkBusyUntil;
+        }
+        if (timeout > 0 && completion > deadline) {  // As with libusb, a timeout of zero means wait forever.
+            waitUntil(deadline);
+            long stopped = Math.max(start, Math.min(sent, deadline));
+            synchronized (this) {
+                if (linkBusyUntil == sent) {  // Nothing has been queued behind us, so free the rest of the link.
+                    linkBusyUntil = stopped;
+                }
+            }
+            transferred.put(0, bytesSent(stopped - start, data.capacity()));
+            return LibUsb.ERROR_TIMEOUT;
+        }
+        waitUntil(completion);
+        receive(data);
+        transferred.put(0, data.capacity());
+        return LibUsb.SUCCESS;
+    }
+
+    @Override
+    public synchronized FrameTransport.Transfer prepare(ByteBuffer data, Listener listener, Object userData,
+                                                        long timeout) {
+        if (completionThread == null) {
+            completionThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliverCompletions();
+                }
+            }, "Wayang loopback transport");
+            completionThread.setDaemon(true);
+            completionThread.start();
+        }
+        return new LoopbackTransfer(data, listener, userData);
+    }
+
+    @Override
+    public synchronized boolean isCompletionThread() {
+        return completionThread != null && Thread.currentThread() == completionThread;
+    }
+
+    /**
+     * Runs on the completion thread, waiting for each asynchronous transfer to complete, and reporting it to
+     * its listener. Once the transport has been closed, every transfer still pending is reported as cancelled
+     * before the thread exits, so nothing is left waiting for it.
+     */
+    private void deliverCompletions() {
+        while (true) {
+            LoopbackTransfer transfer;
+            synchronized (this) {
+                transfer = pending.peek();
+                if (transfer == null) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            awaitCompletion(transfer);
+            synchronized (this) {
+                pending.poll();
+            }
+            if (transfer.cancelled || closed) {
+                transfer.listener.transferFinished(transfer, LibUsb.TRANSFER_CANCELLED, 0);
+            } else {
+                receive(transfer.data);
+                transfer.listener.transferFinished(transfer, LibUsb.TRANSFER_COMPLETED, transfer.data.capacity());
+            }
+        }
+    }
+
+    /**
+     * Wait until an asynchronous transfer completes, it is cancelled, or the transport is closed, either of
+     * which unparks the completion thread.
+     *
+     * @param transfer the transfer to wait for.
+     */
+    private void awaitCompletion(LoopbackTransfer transfer) {
+        long remaining = transfer.completion - System.nanoTime();
+        while (remaining > 0 && !transfer.cancelled && !closed) {
+            LockSupport.parkNanos(this, remaining);
+            remaining = transfer.completion - System.nanoTime();
+        }
+    }
+
+    /**
+     * An asynchronous transfer on the loopback transport.
+     */
+    private class LoopbackTransfer implements FrameTransport.Transfer {
+
+        /**
+         * The buffer to be sent.
+         */
+        private final ByteBuffer data;
+
+        /**
+         * Told when the transfer finishes.
+         */
+        private final Listener listener;
+
+        /**
+         * The value associated with the transfer when it was prepared.
+         */
+        private final Object userData;
+
+        /**
+         * The {@link System#nanoTime()} at which the transfer in progress will complete.
+         */
+        private long completion;
+
+        /**
+         * Set when cancellation of the transfer in progress has been requested.
+         */
+        private volatile boolean cancelled;
+
+        private LoopbackTransfer(ByteBuffer data, Listener listener, Object userData) {
+            this.data = data;
+            this.listener = listener;
+            this.userData = userData;
+        }
+
+        @Override
+        public int submit() {
+            synchronized (LoopbackFrameTransport.this) {
+                if (closed) {
+                    return LibUsb.ERROR_NO_DEVICE;
+                }
+                cancelled = false;
+                completion = scheduleTransfer(data.capacity());
+                pending.add(this);
+                LoopbackFrameTransport.this.notifyAll();
+            }
+            return LibUsb.SUCCESS;
+        }
+
+        @Override
+        public int cancel() {
+            synchronized (LoopbackFrameTransport.this) {
+                if (!pending.contains(this)) {
+                    return LibUsb.ERROR_NOT_FOUND;
+                }
+                cancelled = true;
+                if (completionThread != null) {
+                    LockSupport.unpark(completionThread);  // It may be waiting for this transfer.
+                }
+            }
+            return LibUsb.SUCCESS;
+        }
+
+        @Override
+        public void free() {
+            // Nothing to release.
+        }
+
+        @Override
+        public Object userData() {
+            return userData;
+        }
+    }
+
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = completionThread;
+            completionThread = null;
+            notifyAll();
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                System.err.println("Interrupted waiting for loopback transport thread to finish.");
+            }
+        }
+    }
+}
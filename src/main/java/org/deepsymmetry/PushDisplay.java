@@ -0,0 +1,1895 @@
+package org.deepsymmetry;
+
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+
+/**
+ * An open Push 2 graphical display, with its own image to draw in, its own buffers and transfers, and its
+ * own lock, so that several displays can be drawn to and sent frames in parallel from different threads.
+ * Obtained from {@link Wayang#openAll()}, {@link Wayang#openDisplay(FrameTransport)}, or (for the display
+ * used by the static methods of {@link Wayang}) {@link Wayang#getDisplay()}.
+ *
+ * @author James Elliott
+ */
+public class PushDisplay {
+
+    /**
+     * Identifies the display, for example by the USB bus and port to which it is attached.
+     */
+    private final String name;
+
+    /**
+     * While the display is open, this holds the transport we use to send frames to it. If it is null, the
+     * display has been closed, unless {@link #awaitingReconnect} is set.
+     */
+    private FrameTransport transport;
+
+    /**
+     * Whether losing the connection to the device leaves the display open, waiting to be reconnected,
+     * rather than making every later frame fail.
+     */
+    private boolean autoReconnect = false;
+
+    /**
+     * Set when the connection to the device has been lost, and the display is waiting for
+     * {@link #reconnect(FrameTransport)} to be given a new transport.
+     */
+    private boolean awaitingReconnect = false;
+
+    /**
+     * Identifies where the most recent frame came from, so it can be sent again when the display is reconnected.
+     */
+    private enum ResumeSource {
+
+        /**
+         * Nothing worth re-sending: no frames yet, or frames that are replayed on their own schedule.
+         */
+        NOTHING,
+
+        /**
+         * The display image, which is simply encoded again.
+         */
+        DISPLAY_IMAGE,
+
+        /**
+         * ARGB pixels which were converted into {@link #resumeFrame}.
+         */
+        CONVERTED,
+
+        /**
+         * The frame mailbox, which is asked to re-send the frame it last sent.
+         */
+        MAILBOX
+    }
+
+    /**
+     * Where the most recent frame came from.
+     */
+    private ResumeSource resumeSource = ResumeSource.NOTHING;
+
+    /**
+     * When {@link #resumeSource} is {@link ResumeSource#CONVERTED}, the buffer holding the converted frame.
+     */
+    private ByteBuffer resumeFrame = null;
+
+    /**
+     * The long-lived direct buffer we use to send pixel data to the display, unless it is sent straight
+     * from the display image.
+     */
+    private final ByteBuffer transferBuffer;
+
+    /**
+     * The frame header followed by {@link #transferBuffer}, so they can be sent in a single transfer when
+     * {@link #setCombinedHeader(boolean)} has been called; {@code null} if there is no transfer buffer.
+     */
+    private final ByteBuffer combinedTransferBuffer;
+
+    /**
+     * Whether the frame header is sent in the same transfer as the first pixels, rather than on its own.
+     */
+    private boolean combinedHeader = false;
+
+    /**
+     * How many milliseconds a transfer may take before LibUsb gives up on it.
+     */
+    private long transferTimeout = Wayang.DEFAULT_TRANSFER_TIMEOUT;
+
+    /**
+     * Where the pixels of the display image are stored.
+     */
+    private final RasterMode rasterMode;
+
+    /**
+     * Holds the pixels of the display image, if they are stored in native memory.
+     */
+    private final DirectDisplayRaster directRaster;
+
+    /**
+     * A smaller buffer used to send the frame header.
+     */
+    private final ByteBuffer headerBuffer;
+
+    /**
+     * The image where we can draw, and obtain pixel samples in a compatible format to send to the display.
+     */
+    private final BufferedImage displayImage;
+
+    /**
+     * The array backing the raster of {@link #displayImage}, so we can read its pixels without copying them
+     * out first, if they are stored on the heap.
+     */
+    private final short[] displayPixels;
+
+    /**
+     * Receives the number of bytes actually sent by synchronous transfers; reused so that sending a frame
+     * does not need to allocate anything.
+     */
+    private final IntBuffer transferred = IntBuffer.allocate(1);
+
+    /**
+     * Keeps track of how well frames are reaching the display.
+     */
+    private final FrameMetrics metrics = new FrameMetrics();
+
+    /**
+     * Expands and masks the pixels of the display image into the format the Push wants.
+     */
+    private FrameEncoder frameEncoder;
+
+    /**
+     * When the frame encoder is a {@link LookupTableFrameEncoder}, the generation of its table which was in use
+     * when the display image was last encoded, so we can tell when a color correction change means the image
+     * needs to be encoded again even though it has not changed.
+     */
+    private long encoderGeneration = 0;
+
+    /**
+     * Notices when the display image is unchanged since the last frame was sent, so it need not be
+     * encoded or sent again until a keep-alive frame is due.
+     */
+    private final UnchangedFrameFilter unchangedFrameFilter = new UnchangedFrameFilter();
+
+    /**
+     * Indicates that {@link #transferBuffer} holds the complete, encoded pixels of the frame most
+     * recently sent, so it can be sent again as a keep-alive without re-encoding it.
+     */
+    private boolean transferBufferHoldsFrame = false;
+
+    /**
+     * The number of frames which can be queued to the display asynchronously at once.
+     */
+    private int asyncBufferCount;
+
+    /**
+     * Will hold the pre-allocated buffers and transfers used by {@link #sendFrameAsync()}.
+     */
+    private TransferRing transferRing = null;
+
+    /**
+     * The number of display lines encoded and sent together as a stripe, in its own USB bulk transfer. As
+     * @cansik pointed out, we get the best frames per second if we send the whole display at once, which is
+     * the default, but smaller stripes get the first lines to the display sooner, and some hosts do better with
+     * them; see {@link #setStripeLines(int)} and {@link TransferTuner}.
+     */
+    private int stripeLines = Wayang.DISPLAY_HEIGHT;
+
+    /**
+     * When the frame is split into more than one stripe, these encode each stripe on the common fork/join
+     * pool. They are reused for every frame, so sending frames does not need to allocate them.
+     */
+    private StripeTask[] stripeTasks = null;
+
+    /**
+     * When the frame is split into more than one stripe, these are the parts of the buffer sent by
+     * {@link #sendFrame()} which hold each stripe.
+     */
+    private ByteBuffer[] stripeSlices = null;
+
+    /**
+     * When the frame is split into more than one stripe, the frame header followed by the first stripe, so
+     * they can be sent in a single transfer; {@code null} if there is no transfer buffer.
+     */
+    private ByteBuffer combinedFirstStripe = null;
+
+    /**
+     * Holds the render loop started by {@link #startRenderLoop(double, RenderLoop.OverrunPolicy, RenderLoop.Callback)},
+     * if there is one.
+     */
+    private RenderLoop renderLoop = null;
+
+    /**
+     * Holds the frame mailbox started by {@link #startMailbox(int)}, if there is one.
+     */
+    private FrameMailbox mailbox = null;
+
+    /**
+     * Whether ARGB frames are converted with ordered dithering.
+     */
+    private boolean dithering = false;
+
+    /**
+     * Holds converted ARGB frames when there is no {@link #transferBuffer}; allocated when first needed.
+     */
+    private ByteBuffer convertedFrameBuffer = null;
+
+    /**
+     * Holds a line of pixels read from an image which can't be converted directly; allocated when first needed.
+     */
+    private int[] scratchLine = null;
+
+    /**
+     * When frames are being recorded, this will hold the recorder capturing them.
+     */
+    private FrameRecorder recorder = null;
+
+    /**
+     * When frames are being recorded as an animated GIF, this will hold the recorder capturing them.
+     */
+    private GifRecorder gifRecorder = null;
+
+    /**
+     * Whether only the lines of the display image which have been marked dirty are encoded again.
+     */
+    private boolean dirtyTracking = false;
+
+    /**
+     * The lines of the display image which have been drawn to since the last frame was encoded. Guarded by
+     * itself rather than the display's lock, so drawing threads can mark lines while a frame is being sent.
+     */
+    private final BitSet dirtyLines = new BitSet(Wayang.DISPLAY_HEIGHT);
+
+    /**
+     * The lines being encoded for the frame that is being sent, taken from {@link #dirtyLines}.
+     */
+    private final BitSet encodingLines = new BitSet(Wayang.DISPLAY_HEIGHT);
+
+    /**
+     * Allocates the buffers and display image needed to send frames over a transport, and publishes the
+     * display's metrics over JMX.
+     *
+     * @param name             identifies the display.
+     * @param transport        the transport over which frames will be sent.
+     * @param encoder          the initial frame encoder.
+     * @param keepAliveMs      the initial keep-alive interval, see {@link #setKeepAliveInterval(long)}.
+     * @param asyncBufferCount the initial number of asynchronous frame buffers.
+     * @param rasterMode       where the pixels of the display image will be stored.
+     */
+    PushDisplay(String name, FrameTransport transport, FrameEncoder encoder, long keepAliveMs, int asyncBufferCount,
+                RasterMode rasterMode) {
+        metrics.connecting(System.nanoTime());
+        this.name = name;
+        this.transport = transport;
+        this.frameEncoder = encoder;
+        this.asyncBufferCount = asyncBufferCount;
+        this.rasterMode = rasterMode;
+        unchangedFrameFilter.setKeepAliveInterval(keepAliveMs);
+        headerBuffer = Wayang.createHeaderBuffer();
+        if (rasterMode == RasterMode.HEAP) {
+            directRaster = null;
+            displayImage = Wayang.createDisplayImage();
+            displayPixels = Wayang.displayPixels(displayImage);
+        } else {
+            directRaster = new DirectDisplayRaster();
+            displayImage = directRaster.getImage();
+            displayPixels = null;
+        }
+        if (rasterMode == RasterMode.DIRECT_IN_PLACE) {
+            combinedTransferBuffer = null;
+            transferBuffer = null;
+        } else {
+            combinedTransferBuffer = Wayang.allocateCombinedBuffer(Wayang.BYTES_PER_LINE * Wayang.DISPLAY_HEIGHT);
+            transferBuffer = Wayang.framePart(combinedTransferBuffer);
+        }
+        metrics.setTransport(transport);
+        metrics.register(getMetricsObjectName());
+    }
+
+    /**
+     * Get the name which identifies this display. For a Push 2, this is made up of the USB bus number and
+     * the chain of ports through which it is attached, so it stays the same when the device is reconnected
+     * to the same port.
+     *
+     * @return the display name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the image in which anything drawn will be sent to the display whenever a frame is sent.
+     *
+     * @return the display image.
+     */
+    public BufferedImage getImage() {
+        return displayImage;
+    }
+
+    /**
+     * Find out where the pixels of the display image are stored, which determines how they are prepared
+     * for sending.
+     *
+     * @return the raster mode chosen when the display was opened.
+     */
+    public RasterMode getRasterMode() {
+        return rasterMode;
+    }
+
+    /**
+     * Choose whether frames sent from the display image only encode the lines which have changed since the
+     * last frame, reusing the previously masked bytes for the rest of the transfer buffer, so encoding costs
+     * depend on how much was drawn rather than the size of the display. The whole frame is still sent, as the
+     * Push requires. When this is on, everything drawn to the display image must either be drawn through
+     * graphics obtained from {@link #createGraphics()}, which keep track of what they touch, or be reported
+     * by calling {@link #markDirty(int, int)}; anything else will not reach the display until those lines
+     * are marked, or a frame is sent some other way. It has no effect with {@link RasterMode#DIRECT_IN_PLACE},
+     * which masks the whole image in place to send it, or on {@link #sendFrameAsync()}, whose buffers take
+     * turns holding frames.
+     *
+     * @param enabled {@code true} to encode only the lines which have been marked dirty.
+     */
+    public synchronized void setDirtyTracking(boolean enabled) {
+        if (enabled != dirtyTracking) {
+            dirtyTracking = enabled;
+            transferBufferHoldsFrame = false;  // Anything may have been drawn while we were not tracking.
+            if (!enabled) {
+                unchangedFrameFilter.invalidate();  // It was not kept up to date while we were tracking.
+            }
+        }
+    }
+
+    /**
+     * Check whether frames sent from the display image only encode the lines which have changed.
+     *
+     * @return {@code true} if only lines marked dirty are encoded.
+     */
+    public synchronized boolean isDirtyTracking() {
+        return dirtyTracking;
+    }
+
+    /**
+     * Create graphics for drawing in the display image, which record the lines touched by everything drawn
+     * with them, so that when {@link #setDirtyTracking(boolean)} is on, only those lines are encoded for the
+     * next frame.
+     *
+     * @return graphics which draw into the display image.
+     */
+    public Graphics2D createGraphics() {
+        return new DirtyTrackingGraphics(displayImage.createGraphics(), this);
+    }
+
+    /**
+     * Record that the whole display image has changed, so it will all be encoded for the next frame.
+     */
+    public void markDirty() {
+        markDirty(0, Wayang.DISPLAY_HEIGHT);
+    }
+
+    /**
+     * Record that some lines of the display image have changed outside of the graphics returned by
+     * {@link #createGraphics()}, so they will be encoded for the next frame when dirty tracking is on. Lines
+     * outside the display are ignored.
+     *
+     * @param firstLine the first line which has changed.
+     * @param lineCount the number of lines which have changed.
+     */
+    public void markDirty(int firstLine, int lineCount) {
+        int first = Math.max(0, firstLine);
+        int end = Math.min(Wayang.DISPLAY_HEIGHT, firstLine + Math.max(0, lineCount));
+        if (first < end) {
+            synchronized (dirtyLines) {
+                dirtyLines.set(first, end);
+            }
+        }
+    }
+
+    /**
+     * Move the lines which have been marked dirty into {@link #encodingLines}, so drawing can carry on marking
+     * lines for the next frame.
+     */
+    private void takeDirtyLines() {
+        encodingLines.clear();
+        synchronized (dirtyLines) {
+            encodingLines.or(dirtyLines);
+            dirtyLines.clear();
+        }
+    }
+
+    /**
+     * Check whether the display is still open.
+     *
+     * @return {@code true} if frames can be sent, or the display is waiting to be reconnected after losing its
+     *         connection (see {@link #setAutoReconnect(boolean)}).
+     */
+    public synchronized boolean isOpen() {
+        return transport != null || awaitingReconnect;
+    }
+
+    /**
+     * Check whether the display is connected, so that frames sent to it actually reach the device.
+     *
+     * @return {@code true} unless the display has been closed, or lost its connection and is waiting to be
+     *         reconnected.
+     */
+    public synchronized boolean isConnected() {
+        return transport != null;
+    }
+
+    /**
+     * Choose what happens if the device disappears, for example because its cable was pulled. Normally every
+     * frame sent after that fails with a {@link LibUsbException}. With automatic reconnection, the display
+     * instead releases the device and stays open: frames sent while it is disconnected are quietly dropped
+     * (and counted as such in the metrics), apart from asynchronous ones, whose futures fail, so rendering
+     * code can carry on as if nothing had happened. When {@link #reconnect(FrameTransport)} is called, which
+     * {@link Wayang#setAutoReconnect(boolean)} arranges to happen as soon as the Push is plugged back into the
+     * same port, the most recent frame is sent again straight away, using the same display image and buffers.
+     *
+     * @param enabled {@code true} to wait for the device to return when its connection is lost.
+     */
+    public synchronized void setAutoReconnect(boolean enabled) {
+        autoReconnect = enabled;
+    }
+
+    /**
+     * Check whether the display waits to be reconnected when the device disappears.
+     *
+     * @return {@code true} if automatic reconnection is enabled.
+     */
+    public synchronized boolean isAutoReconnect() {
+        return autoReconnect;
+    }
+
+    /**
+     * Check whether a problem sending a frame means the device has disappeared, and if we are supposed to
+     * wait for it to return, release it so we can.
+     *
+     * @param e the problem that occurred.
+     *
+     * @return {@code true} if the connection was lost and the display is now waiting to be reconnected, so the
+     *         frame should be quietly dropped.
+     */
+    private boolean lostConnection(LibUsbException e) {
+        if (!autoReconnect || e.getErrorCode() != LibUsb.ERROR_NO_DEVICE) {
+            return false;
+        }
+        connectionLost();
+        return true;
+    }
+
+    /**
+     * Release the transport of a display whose device has disappeared, along with its native transfers, and
+     * wait to be reconnected. Everything else, including the display image and the frame buffers, is kept.
+     * Does nothing if the display is closed or already waiting.
+     */
+    synchronized void connectionLost() {
+        if (transport == null) {
+            return;
+        }
+        if (transferRing != null) {
+            if (transferRing.drain(200)) {  // Transfers to a missing device fail quickly.
+                transferRing.free();
+            } else {  // Freeing transfers that LibUsb still owns would crash, so leak them instead.
+                System.err.println("Asynchronous frame transfers did not complete, unable to free them.");
+                transferRing = null;
+            }
+        }
+        unchangedFrameFilter.invalidate();
+        transferBufferHoldsFrame = false;
+        transport.close();
+        transport = null;
+        awaitingReconnect = true;
+        metrics.setTransport(null);
+        metrics.connectionLost();
+        System.err.println("Lost connection to Push 2 display " + name + ", waiting for it to be reconnected.");
+        Wayang.displayDisconnected();
+    }
+
+    /**
+     * Resume sending frames to a display which lost its connection, over a new transport, reusing the
+     * display image and all the buffers that were already allocated. The most recent frame is sent again
+     * at once (if it came from the display image, a converted ARGB frame, or the frame mailbox; replayed
+     * and animated frames resume on their own schedule). The time from calling this until that frame has
+     * been sent is reported as {@link FrameMetrics#getTimeToFirstFrameMicros()}.
+     *
+     * @param newTransport the transport over which frames should now be sent; it will be closed when the
+     *                     display is closed.
+     *
+     * @return {@code true} if the display was waiting to be reconnected and is now using the new transport,
+     *         {@code false} if it was not, in which case the transport has not been used.
+     *
+     * @throws IllegalArgumentException if {@code newTransport} is {@code null}.
+     */
+    public boolean reconnect(FrameTransport newTransport) {
+        return reconnect(newTransport, System.nanoTime());
+    }
+
+    /**
+     * Resume sending frames to a display which lost its connection, as described in
+     * {@link #reconnect(FrameTransport)}.
+     *
+     * @param newTransport the transport over which frames should now be sent.
+     * @param startedAt    the {@link System#nanoTime()} at which we started looking for the device.
+     *
+     * @return {@code true} if the display was waiting to be reconnected and is now using the new transport.
+     *
+     * @throws IllegalArgumentException if {@code newTransport} is {@code null}.
+     */
+    synchronized boolean reconnect(FrameTransport newTransport, long startedAt) {
+        if (newTransport == null) {
+            throw new IllegalArgumentException("newTransport must not be null");
+        }
+        if (!awaitingReconnect) {
+            return false;
+        }
+        transport = newTransport;
+        awaitingReconnect = false;
+        metrics.setTransport(newTransport);
+        metrics.reconnected(startedAt);
+        if (transferRing != null) {
+            transferRing.prepare(newTransport);
+        }
+        resume();
+        return true;
+    }
+
+    /**
+     * Send the most recent frame again, after the display has been reconnected.
+     */
+    private void resume() {
+        try {
+            switch (resumeSource) {
+                case DISPLAY_IMAGE:
+                    sendDisplayImage();
+                    break;
+
+                case CONVERTED:
+                    sendConverted(resumeFrame, System.nanoTime());
+                    break;
+
+                case MAILBOX:
+                    if (mailbox != null) {
+                        mailbox.resend();
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        } catch (LibUsbException e) {
+            if (!lostConnection(e)) {
+                System.err.println("Unable to resume sending frames to reconnected Push 2 display: " + e);
+            }
+        }
+    }
+
+    /**
+     * Get the statistics describing how well frames are reaching this display. These are also published
+     * over JMX while the display is open, under the name returned by {@link #getMetricsObjectName()}.
+     *
+     * @return the frame metrics.
+     */
+    public FrameMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the name under which this display's metrics are registered with the platform MBean server.
+     *
+     * @return {@value Wayang#METRICS_OBJECT_NAME} followed by a {@code display} key holding {@link #getName()}.
+     */
+    public String getMetricsObjectName() {
+        return Wayang.METRICS_OBJECT_NAME + ",display=" + name;
+    }
+
+    /**
+     * Close the display, stopping its render loop and recording if they are running, and waiting for any
+     * frames still being sent asynchronously.
+     */
+    public void close() {
+        // This must happen before we grab the lock, because the render loop and mailbox need it to finish.
+        stopRenderLoop();
+        stopMailbox();
+        closeTransport();
+        Wayang.displayClosed(this);
+    }
+
+    /**
+     * Release everything needed to send frames to the display.
+     */
+    private synchronized void closeTransport() {
+        stopRecording();
+        stopGifRecording();
+
+        releaseTransferRing();
+
+        if (transport != null || awaitingReconnect) {
+            unchangedFrameFilter.invalidate();
+            transferBufferHoldsFrame = false;
+
+            if (transport != null) {
+                transport.close();
+                transport = null;
+            }
+            awaitingReconnect = false;
+            metrics.setTransport(null);
+            metrics.unregister();
+        }
+    }
+
+    /**
+     * Wait for any frames still being sent asynchronously, then free the transfers used to send them, so a
+     * new set can be allocated if needed.
+     */
+    private void releaseTransferRing() {
+        if (transferRing != null) {
+            if (transferRing.drain(transferTimeout)) {
+                transferRing.free();
+            } else {  // Freeing transfers that LibUsb still owns would crash, so leak them instead.
+                System.err.println("Asynchronous frame transfers did not complete, unable to free them.");
+            }
+            transferRing = null;
+        }
+    }
+
+    /**
+     * Make sure the display is still open.
+     *
+     * @throws IllegalStateException if it has been closed.
+     */
+    private void checkOpen() {
+        if (transport == null && !awaitingReconnect) {
+            throw new IllegalStateException("Push 2 display has been closed");
+        }
+    }
+
+    /**
+     * Choose how pixels will be expanded and masked to prepare them for sending to the display. This only
+     * matters when the display image is stored on the heap; see {@link RasterMode}.
+     *
+     * @param encoder the encoder to use for subsequent frames.
+     *
+     * @throws IllegalArgumentException if {@code encoder} is {@code null}.
+     */
+    public synchronized void setFrameEncoder(FrameEncoder encoder) {
+        if (encoder == null) {
+            throw new IllegalArgumentException("encoder must not be null");
+        }
+        frameEncoder = encoder;
+        unchangedFrameFilter.invalidate();
+        transferBufferHoldsFrame = false;  // Lines encoded by the old encoder must not be reused.
+    }
+
+    /**
+     * Check how pixels are being expanded and masked to prepare them for sending to the display.
+     *
+     * @return the encoder in use.
+     */
+    public synchronized FrameEncoder getFrameEncoder() {
+        return frameEncoder;
+    }
+
+    /**
+     * Set how often frames must be sent even if the display image has not changed. When this is greater
+     * than zero, calls to {@link #sendFrame()} or {@link #sendFrameAsync()} compare the display image with
+     * the last frame that was sent, and if it is unchanged, do nothing until this many milliseconds have
+     * passed since the display was last updated, at which point the already-encoded frame is sent again so
+     * the Push does not blank its display (which it does after two seconds without a frame). This brings
+     * the cost of idle frames close to zero. A value of zero encodes and sends every frame.
+     *
+     * @param milliseconds the longest time to go without sending a frame, or zero to always send them.
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is negative.
+     */
+    public synchronized void setKeepAliveInterval(long milliseconds) {
+        unchangedFrameFilter.setKeepAliveInterval(milliseconds);
+    }
+
+    /**
+     * Check how often frames are sent even if the display image has not changed.
+     *
+     * @return the longest time to go without sending a frame, in milliseconds, or zero if every frame is sent.
+     */
+    public synchronized long getKeepAliveInterval() {
+        return unchangedFrameFilter.getKeepAliveInterval();
+    }
+
+    /**
+     * Set the number of frames which can be queued to the display asynchronously at once, each of which
+     * needs its own frame buffer. If frames are being sent asynchronously, waits for them to finish, since
+     * the buffers need replacing.
+     *
+     * @param count the number of frame buffers to allocate for asynchronous sending.
+     *
+     * @throws IllegalArgumentException if {@code count} is less than one.
+     */
+    public synchronized void setAsyncBufferCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one asynchronous frame buffer is required");
+        }
+        if (count != asyncBufferCount) {
+            releaseTransferRing();
+            asyncBufferCount = count;
+        }
+    }
+
+    /**
+     * Check the number of frames which can be queued to the display asynchronously at once.
+     *
+     * @return the number of asynchronous frame buffers.
+     */
+    public synchronized int getAsyncBufferCount() {
+        return asyncBufferCount;
+    }
+
+    /**
+     * Choose whether the 16-byte frame header is sent in the same USB bulk transfer as the first pixels of the
+     * frame, saving a transfer (and its round trip through LibUsb) for every frame. The Push reads the header
+     * and pixels as a single stream, but whether this is faster depends on the host and any hubs in between,
+     * so it is off by default; {@link TransferTuner} can measure it. It has no effect when the display image is
+     * sent straight from native memory ({@link RasterMode#DIRECT_IN_PLACE}), or for frames sent from buffers
+     * prepared elsewhere, such as by a {@link Compositor} or {@link FramePlayer}. If frames are being sent
+     * asynchronously, waits for them to finish, since their transfers need replacing.
+     *
+     * @param combined {@code true} to send the header along with the pixels.
+     */
+    public synchronized void setCombinedHeader(boolean combined) {
+        if (combined != combinedHeader) {
+            releaseTransferRing();
+            combinedHeader = combined;
+        }
+    }
+
+    /**
+     * Check whether the frame header is sent in the same transfer as the first pixels of the frame.
+     *
+     * @return {@code true} if the header is combined with the pixels.
+     */
+    public synchronized boolean isCombinedHeader() {
+        return combinedHeader;
+    }
+
+    /**
+     * Set how long a USB transfer may take before it is abandoned and reported as a failure, which also
+     * limits how long {@link #sendFrameAsync()} waits for a free frame buffer (twice this). If frames are
+     * being sent asynchronously, waits for them to finish, since their transfers need replacing.
+     *
+     * @param milliseconds the transfer timeout; the default is {@value Wayang#DEFAULT_TRANSFER_TIMEOUT}.
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is not positive.
+     */
+    public synchronized void setTransferTimeout(long milliseconds) {
+        if (milliseconds < 1) {
+            throw new IllegalArgumentException("Transfer timeout must be positive");
+        }
+        if (milliseconds != transferTimeout) {
+            releaseTransferRing();
+            transferTimeout = milliseconds;
+        }
+    }
+
+    /**
+     * Check how long a USB transfer may take before it is abandoned.
+     *
+     * @return the transfer timeout, in milliseconds.
+     */
+    public synchronized long getTransferTimeout() {
+        return transferTimeout;
+    }
+
+    /**
+     * Set how many lines of the display are encoded and sent together. With the default of
+     * {@value Wayang#DISPLAY_HEIGHT}, the whole frame is encoded on the thread sending it, and then sent in a
+     * single USB bulk transfer, which gives the best throughput. With a smaller value, the frame is split
+     * into stripes which are encoded in parallel on the common fork/join pool, and each stripe is sent in its
+     * own bulk transfer as soon as it is ready, so encoding later stripes overlaps with sending earlier ones.
+     * This reduces the time from sending a frame until it is fully on the display (reported by
+     * {@link FrameMetrics#getFrameLatencyP50Micros()}), at the cost of the overhead of more transfers. If
+     * frames are being sent asynchronously, waits for them to finish, since their transfers need replacing.
+     *
+     * @param lines the number of lines in each stripe, which must divide the display height evenly.
+     *
+     * @throws IllegalArgumentException if {@code lines} does not evenly divide {@value Wayang#DISPLAY_HEIGHT}.
+     */
+    public synchronized void setStripeLines(int lines) {
+        if (lines < 1 || lines > Wayang.DISPLAY_HEIGHT || Wayang.DISPLAY_HEIGHT % lines != 0) {
+            throw new IllegalArgumentException("Stripe lines must evenly divide the display height of " +
+                    Wayang.DISPLAY_HEIGHT + ", got " + lines);
+        }
+        if (lines == stripeLines) {
+            return;
+        }
+        releaseTransferRing();  // Its transfers are the size of the old stripes.
+        stripeLines = lines;
+        if (lines == Wayang.DISPLAY_HEIGHT) {
+            stripeTasks = null;
+            stripeSlices = null;
+            combinedFirstStripe = null;
+            return;
+        }
+        ByteBuffer frame = (rasterMode == RasterMode.DIRECT_IN_PLACE) ? directRaster.getBuffer() : transferBuffer;
+        int stripeCount = Wayang.DISPLAY_HEIGHT / lines;
+        stripeTasks = new StripeTask[stripeCount];
+        stripeSlices = new ByteBuffer[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripeTasks[i] = new StripeTask(i * lines, lines);
+            ByteBuffer view = frame.duplicate();
+            view.limit((i + 1) * lines * Wayang.BYTES_PER_LINE).position(i * lines * Wayang.BYTES_PER_LINE);
+            stripeSlices[i] = view.slice();
+        }
+        if (combinedTransferBuffer != null) {
+            ByteBuffer view = combinedTransferBuffer.duplicate();
+            view.limit(headerBuffer.capacity() + (lines * Wayang.BYTES_PER_LINE));
+            combinedFirstStripe = view.slice();
+        }
+    }
+
+    /**
+     * Check how many lines of the display are encoded and sent together.
+     *
+     * @return the number of lines in each stripe.
+     */
+    public synchronized int getStripeLines() {
+        return stripeLines;
+    }
+
+    /**
+     * Send a frame of pixels, corresponding to whatever has been drawn in the display image, to the display.
+     * If a keep-alive interval has been set, and the image is unchanged since the last frame, this may not
+     * send anything at all; see {@link #setKeepAliveInterval(long)}.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the display has been closed.
+     */
+    public synchronized void sendFrame() {
+        checkOpen();
+        resumeSource = ResumeSource.DISPLAY_IMAGE;
+        if (transport == null) {
+            metrics.frameDropped();  // Waiting to be reconnected.
+            return;
+        }
+        try {
+            sendDisplayImage();
+        } catch (LibUsbException e) {
+            if (!lostConnection(e)) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Send a frame of pixels, corresponding to whatever has been drawn in the display image, to the display,
+     * unless it is unchanged and does not yet need a keep-alive.
+     *
+     * @throws LibUsbException if there is a problem communicating.
+     */
+    private void sendDisplayImage() {
+        long now = System.nanoTime();
+        // When the image is held in native memory ready to send, we mask it in place, send it, and unmask
+        // it again. Otherwise we expand it with the row stride padding, and mask it with the signal shaping
+        // pattern, into the transfer buffer. If the frame is unchanged, that already holds what we need, and
+        // if we are tracking dirty lines, it only needs those lines updated.
+        checkEncoderGeneration();
+        boolean inPlace = rasterMode == RasterMode.DIRECT_IN_PLACE;
+        boolean partial = false;
+        UnchangedFrameFilter.Decision decision;
+        if (dirtyTracking && !inPlace) {
+            takeDirtyLines();
+            partial = transferBufferHoldsFrame;
+        }
+        if (partial) {
+            decision = encodingLines.isEmpty() ? unchangedFrameFilter.unchanged(now) :
+                    UnchangedFrameFilter.Decision.ENCODE;
+        } else {
+            decision = checkUnchanged(now);
+        }
+        if (decision == UnchangedFrameFilter.Decision.SKIP) {
+            metrics.frameSkipped();
+            return;
+        }
+        boolean combine = combinedHeader && !inPlace;
+        boolean reencode = inPlace || decision == UnchangedFrameFilter.Decision.ENCODE || !transferBufferHoldsFrame;
+        boolean striped = reencode && !partial && stripeTasks != null;
+        ByteBuffer frame = inPlace ? directRaster.getBuffer() : transferBuffer;
+        boolean masked = false;
+        long encodeStart = System.nanoTime();
+        if (reencode) {
+            transferBufferHoldsFrame = false;
+            if (striped) {  // Get the stripes encoding while the header is sent.
+                startStripes(inPlace ? null : frame);
+                masked = inPlace;
+            }
+        }
+
+        long transferNanos = 0;
+        try {
+            if (!combine) {
+                transferNanos += sendSynchronously(headerBuffer, "frame header");
+            }
+            recordFrameStart(now);
+            if (reencode && partial) {  // Small changes are not worth splitting across stripes.
+                encodeDirtyLines(frame);
+                metrics.frameEncoded(System.nanoTime() - encodeStart);
+            }
+            if (stripeTasks == null) {
+                if (reencode && !partial) {
+                    if (inPlace) {
+                        directRaster.maskInPlace();
+                        masked = true;
+                    } else {
+                        encodeLines(0, Wayang.DISPLAY_HEIGHT, frame, 0);
+                    }
+                    metrics.frameEncoded(System.nanoTime() - encodeStart);
+                }
+                transferNanos += sendSynchronously(combine ? combinedTransferBuffer : frame, "frame image");
+                recordPixels(frame);
+            } else {
+                for (int i = 0; i < stripeTasks.length; i++) {
+                    if (striped) {
+                        stripeTasks[i].join();
+                        if (i == stripeTasks.length - 1) {
+                            metrics.frameEncoded(System.nanoTime() - encodeStart);
+                        }
+                    }
+                    ByteBuffer stripe = (combine && i == 0) ? combinedFirstStripe : stripeSlices[i];
+                    transferNanos += sendSynchronously(stripe, "frame image");
+                    recordPixels(stripeSlices[i]);
+                }
+            }
+        } finally {
+            if (striped) {
+                awaitStripes();  // If sending failed, they may still be running.
+            }
+            if (masked) {
+                directRaster.maskInPlace();  // Restore the image for drawing.
+            }
+        }
+        recordFrameEnd();
+        if (reencode) {
+            if (partial) {
+                unchangedFrameFilter.invalidate();  // Only worth keeping a copy of the image for full encodes.
+            } else {
+                rememberEncoded();
+            }
+            transferBufferHoldsFrame = !inPlace;
+        }
+        unchangedFrameFilter.sent(now);
+        long finished = System.nanoTime();
+        metrics.frameSent(transferNanos, finished);
+        metrics.frameLatency(finished - now);
+    }
+
+    /**
+     * If the frame encoder's color correction has changed since the display image was last encoded, forget
+     * what was encoded, so the next frame is encoded in full with the new correction rather than being skipped,
+     * re-sent, or only partly encoded.
+     */
+    private void checkEncoderGeneration() {
+        if (frameEncoder instanceof LookupTableFrameEncoder) {
+            long generation = ((LookupTableFrameEncoder) frameEncoder).getGeneration();
+            if (generation != encoderGeneration) {
+                encoderGeneration = generation;
+                unchangedFrameFilter.invalidate();
+                transferBufferHoldsFrame = false;
+            }
+        }
+    }
+
+    /**
+     * Compare the display image with the last frame that was encoded.
+     *
+     * @param now the current {@link System#nanoTime()}.
+     *
+     * @return whether the frame needs to be encoded and sent, re-sent, or can be skipped.
+     */
+    private UnchangedFrameFilter.Decision checkUnchanged(long now) {
+        if (directRaster != null) {
+            return unchangedFrameFilter.check(directRaster.getBuffer(), now);
+        }
+        return unchangedFrameFilter.check(displayPixels, now);
+    }
+
+    /**
+     * Record that the display image has been encoded, so later frames can be compared against it.
+     */
+    private void rememberEncoded() {
+        if (directRaster != null) {
+            unchangedFrameFilter.encoded(directRaster.getBuffer());
+        } else {
+            unchangedFrameFilter.encoded(displayPixels);
+        }
+    }
+
+    /**
+     * Prepare a range of lines of the display image for sending, masking them into a buffer with the row
+     * stride padding the Push expects.
+     *
+     * @param firstLine   the first line to be prepared.
+     * @param lineCount   the number of lines to be prepared.
+     * @param destination the buffer into which the lines should be stored.
+     * @param offset      the index within the destination buffer at which the first line should be stored.
+     */
+    private void encodeLines(int firstLine, int lineCount, ByteBuffer destination, int offset) {
+        if (directRaster != null) {
+            directRaster.maskInto(firstLine, lineCount, destination, offset);
+        } else {
+            frameEncoder.encode(displayPixels, firstLine, lineCount, destination, offset);
+        }
+    }
+
+    /**
+     * Encode the runs of lines in {@link #encodingLines} into the transfer buffer, which already holds the
+     * rest of the frame.
+     *
+     * @param frame the transfer buffer.
+     */
+    private void encodeDirtyLines(ByteBuffer frame) {
+        int first = encodingLines.nextSetBit(0);
+        while (first >= 0) {
+            int end = encodingLines.nextClearBit(first);
+            encodeLines(first, end - first, frame, first * Wayang.BYTES_PER_LINE);
+            first = encodingLines.nextSetBit(end);
+        }
+    }
+
+    /**
+     * Encodes one stripe of the display image on the common fork/join pool. Each task is reused for every
+     * frame, by reinitializing it, since the display's lock ensures only one frame is encoded at a time.
+     */
+    private final class StripeTask extends RecursiveAction {
+
+        /**
+         * Identifies the version of our serialized form, which tasks never actually need.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The first line of the stripe.
+         */
+        private final int firstLine;
+
+        /**
+         * The number of lines in the stripe.
+         */
+        private final int lineCount;
+
+        /**
+         * The frame buffer into which the stripe should be encoded, at the same position it occupies in the
+         * frame, or {@code null} if the display image itself should be masked in place.
+         */
+        private ByteBuffer destination;
+
+        /**
+         * Constructor sets up the part of the frame the task will encode.
+         *
+         * @param firstLine the first line of the stripe.
+         * @param lineCount the number of lines in the stripe.
+         */
+        private StripeTask(int firstLine, int lineCount) {
+            this.firstLine = firstLine;
+            this.lineCount = lineCount;
+        }
+
+        @Override
+        protected void compute() {
+            if (destination == null) {
+                directRaster.maskInPlace(firstLine, lineCount);
+            } else {
+                encodeLines(firstLine, lineCount, destination, firstLine * Wayang.BYTES_PER_LINE);
+            }
+        }
+    }
+
+    /**
+     * Start encoding all the stripes of a frame on the common fork/join pool. Every call must be followed
+     * by {@link #awaitStripes()} before the stripes can be started again.
+     *
+     * @param destination the frame buffer into which the stripes should be encoded, or {@code null} to mask
+     *                    the display image in place.
+     */
+    private void startStripes(ByteBuffer destination) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        for (StripeTask task : stripeTasks) {
+            task.reinitialize();
+            task.destination = destination;
+            pool.execute(task);
+        }
+    }
+
+    /**
+     * Wait for all the stripes started by {@link #startStripes(ByteBuffer)} to finish, whether or not they
+     * succeeded, so they are no longer touching the frame buffer and can be reused.
+     */
+    private void awaitStripes() {
+        for (StripeTask task : stripeTasks) {
+            task.quietlyJoin();
+        }
+    }
+
+    /**
+     * Send a buffer over the transport synchronously, keeping track of the outcome in the frame metrics.
+     *
+     * @param data        the bytes to send, from index zero to the buffer's capacity.
+     * @param description what the bytes are, for the exception message if the transfer fails.
+     *
+     * @return the number of nanoseconds the transfer took.
+     *
+     * @throws LibUsbException if the transfer fails, or sends fewer bytes than it should have.
+     */
+    private long sendSynchronously(ByteBuffer data, String description) {
+        long start = System.nanoTime();
+        transferred.clear();
+        int result = transport.send(data, transferred, transferTimeout);
+        long elapsed = System.nanoTime() - start;
+        if (!metrics.transferResult(result, transferred.get(0), data.capacity())) {
+            metrics.frameFailed();
+            if (result == LibUsb.SUCCESS) {
+                throw new LibUsbException("Transfer of " + description + " to Push 2 display was short, sent " +
+                        transferred.get(0) + " of " + data.capacity() + " bytes", LibUsb.ERROR_IO);
+            }
+            throw new LibUsbException("Transfer of " + description + " to Push 2 display failed", result);
+        }
+        return elapsed;
+    }
+
+    /**
+     * Choose whether frames sent as ARGB pixels, by {@link #sendFrame(int[], int, int)} and the related
+     * methods, are converted using ordered dithering. Reducing 8-bit color channels to the 5 or 6 bits the
+     * display can show causes visible bands in smooth gradients; dithering breaks them up with a fine, regular
+     * pattern, at no extra cost per frame.
+     *
+     * @param dither {@code true} to dither, {@code false} to simply truncate each channel.
+     */
+    public synchronized void setDithering(boolean dither) {
+        dithering = dither;
+    }
+
+    /**
+     * Check whether frames sent as ARGB pixels are converted using ordered dithering.
+     *
+     * @return {@code true} if they are dithered.
+     */
+    public synchronized boolean isDithering() {
+        return dithering;
+    }
+
+    /**
+     * Send a frame of ARGB pixels to the display, instead of the contents of the display image. See
+     * {@link #sendFrame(int[], int, int)}.
+     *
+     * @param argb the pixels, {@value Wayang#DISPLAY_WIDTH} to a line, starting at index zero.
+     *
+     * @throws LibUsbException          if there is a problem communicating.
+     * @throws IllegalStateException    if the display has been closed.
+     * @throws IllegalArgumentException if the array is too small to hold a frame.
+     */
+    public void sendFrame(int[] argb) {
+        sendFrame(argb, 0, Wayang.DISPLAY_WIDTH);
+    }
+
+    /**
+     * Send a frame of ARGB pixels to the display, instead of the contents of the display image. The pixels
+     * are converted to the display's format and masked in a single pass, which is much faster than drawing
+     * them into the display image first. Alpha is ignored, and if {@link #setDithering(boolean)} has been
+     * called, ordered dithering is applied. The frame is always sent, and the next call to {@link #sendFrame()}
+     * will send the display image again even if it has not changed.
+     *
+     * @param argb           the pixels.
+     * @param offset         the index of the top left pixel of the frame.
+     * @param scanlineStride the distance between the start of each line in the array.
+     *
+     * @throws LibUsbException          if there is a problem communicating.
+     * @throws IllegalStateException    if the display has been closed.
+     * @throws IllegalArgumentException if the array is too small to hold a frame at the given offset and stride.
+     */
+    public synchronized void sendFrame(int[] argb, int offset, int scanlineStride) {
+        if (offset < 0 || scanlineStride < Wayang.DISPLAY_WIDTH ||
+                offset + ((long) scanlineStride * (Wayang.DISPLAY_HEIGHT - 1)) + Wayang.DISPLAY_WIDTH > argb.length) {
+            throw new IllegalArgumentException("Pixel array is too small to hold a " + Wayang.DISPLAY_WIDTH + "x" +
+                    Wayang.DISPLAY_HEIGHT + " frame at offset " + offset + " with stride " + scanlineStride);
+        }
+        checkOpen();
+        long now = System.nanoTime();
+        ByteBuffer frame = conversionBuffer();
+        long encodeStart = System.nanoTime();
+        converter().convert(argb, offset, scanlineStride, false, 0, Wayang.DISPLAY_HEIGHT, frame);
+        metrics.frameEncoded(System.nanoTime() - encodeStart);
+        sendConverted(frame, now);
+    }
+
+    /**
+     * Send a frame of ARGB pixels to the display, instead of the contents of the display image, as described
+     * in {@link #sendFrame(int[], int, int)}. The buffer's position is not changed.
+     *
+     * @param argb the pixels, {@value Wayang#DISPLAY_WIDTH} to a line, starting at the buffer's position.
+     *
+     * @throws LibUsbException          if there is a problem communicating.
+     * @throws IllegalStateException    if the display has been closed.
+     * @throws IllegalArgumentException if fewer pixels than a frame remain in the buffer.
+     */
+    public synchronized void sendFrame(IntBuffer argb) {
+        if (argb.remaining() < Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT) {
+            throw new IllegalArgumentException("Pixel buffer is too small to hold a " + Wayang.DISPLAY_WIDTH + "x" +
+                    Wayang.DISPLAY_HEIGHT + " frame");
+        }
+        checkOpen();
+        long now = System.nanoTime();
+        ByteBuffer frame = conversionBuffer();
+        long encodeStart = System.nanoTime();
+        converter().convert(argb, frame);
+        metrics.frameEncoded(System.nanoTime() - encodeStart);
+        sendConverted(frame, now);
+    }
+
+    /**
+     * Send the top left corner of an image to the display, instead of the contents of the display image, as
+     * described in {@link #sendFrame(int[], int, int)}. Images of type {@link BufferedImage#TYPE_INT_RGB},
+     * {@link BufferedImage#TYPE_INT_ARGB}, {@link BufferedImage#TYPE_INT_ARGB_PRE} and
+     * {@link BufferedImage#TYPE_INT_BGR} are converted straight from their pixel arrays. Other types work too,
+     * but their pixels need to be read through {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}
+     * first, which is slower.
+     *
+     * @param image the image to send.
+     *
+     * @throws LibUsbException          if there is a problem communicating.
+     * @throws IllegalStateException    if the display has been closed.
+     * @throws IllegalArgumentException if the image is smaller than the display.
+     */
+    public synchronized void sendFrame(BufferedImage image) {
+        if (image.getWidth() < Wayang.DISPLAY_WIDTH || image.getHeight() < Wayang.DISPLAY_HEIGHT) {
+            throw new IllegalArgumentException("Image must be at least " + Wayang.DISPLAY_WIDTH + "x" +
+                    Wayang.DISPLAY_HEIGHT + " pixels");
+        }
+        checkOpen();
+        long now = System.nanoTime();
+        ByteBuffer frame = conversionBuffer();
+        long encodeStart = System.nanoTime();
+        scratchLine = converter().convert(image, scratchLine, frame);
+        metrics.frameEncoded(System.nanoTime() - encodeStart);
+        sendConverted(frame, now);
+    }
+
+    /**
+     * Send the layers of a compositor to the display, instead of the contents of the display image. Only the
+     * lines of the layers which have been marked dirty since the last frame (and of those above them) are
+     * composited and masked again, and the compositor's own frame buffer is sent, without copying. The frame
+     * is always sent, even if nothing has changed (check {@link Compositor#isDirty()} first to avoid that),
+     * and the next call to {@link #sendFrame()} will send the display image again even if it has not changed.
+     *
+     * @param compositor the layers to send.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the display has been closed.
+     */
+    public synchronized void sendFrame(Compositor compositor) {
+        checkOpen();
+        long now = System.nanoTime();
+        ByteBuffer frame = compositor.update();
+        metrics.frameEncoded(System.nanoTime() - now);
+        sendConverted(frame, now);
+    }
+
+    /**
+     * Find the converter which matches our dithering setting.
+     *
+     * @return the converter to use for ARGB frames.
+     */
+    private ArgbFrameConverter converter() {
+        return dithering ? ArgbFrameConverter.DITHERED : ArgbFrameConverter.PLAIN;
+    }
+
+    /**
+     * Find the buffer into which an ARGB frame should be converted. This is the transfer buffer if we have one,
+     * which will then no longer hold the last encoded display image.
+     *
+     * @return a buffer big enough to hold an entire frame.
+     */
+    private ByteBuffer conversionBuffer() {
+        transferBufferHoldsFrame = false;
+        if (transferBuffer != null) {
+            return transferBuffer;
+        }
+        if (convertedFrameBuffer == null) {
+            convertedFrameBuffer = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        }
+        return convertedFrameBuffer;
+    }
+
+    /**
+     * Send a frame which has been converted from ARGB pixels, in a single transfer.
+     *
+     * @param frame the masked, padded pixel data for the entire display.
+     * @param now   the {@link System#nanoTime()} at which the frame was asked for.
+     *
+     * @throws LibUsbException if there is a problem communicating.
+     */
+    private void sendConverted(ByteBuffer frame, long now) {
+        resumeSource = ResumeSource.CONVERTED;
+        resumeFrame = frame;
+        if (transport == null) {
+            metrics.frameDropped();  // Waiting to be reconnected.
+            return;
+        }
+        unchangedFrameFilter.invalidate();  // The display no longer shows what was last drawn.
+        try {
+            long transferNanos;
+            if (combinedHeader && frame == transferBuffer) {
+                recordFrameStart(now);
+                transferNanos = sendSynchronously(combinedTransferBuffer, "frame image");
+            } else {
+                transferNanos = sendSynchronously(headerBuffer, "frame header");
+                recordFrameStart(now);
+                transferNanos += sendSynchronously(frame, "frame image");
+            }
+            recordPixels(frame);
+            recordFrameEnd();
+            long finished = System.nanoTime();
+            metrics.frameSent(transferNanos, finished);
+            metrics.frameLatency(finished - now);
+        } catch (LibUsbException e) {
+            if (!lostConnection(e)) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Send a frame of pixels asynchronously, corresponding to whatever has been drawn in the display image,
+     * to the display. If all the asynchronous frame buffers are still being sent, waits until one is free.
+     *
+     * <p>The returned future completes once the header and all the pixels have reached the display, or
+     * completes exceptionally with a {@link FrameTransferException} describing the libusb status (or short
+     * write) of the first transfer that failed. It is completed on the transport's event handling thread,
+     * which is shared by every display, so actions attached to it should be quick. They must not call this
+     * method, because if all the frame buffers were busy, it would wait for transfers which only that thread
+     * can finish; such calls are rejected. Actions which want to send another frame should instead call
+     * {@link #offerFrameAsync()}, which never waits, or be attached using the {@code Async} variants of the
+     * {@link CompletableFuture} methods, so they run on another thread. Callers who want to limit how many
+     * frames they have in flight can simply wait for an earlier future before sending more.</p>
+     *
+     * @return a future which reports when the frame has been sent; it is already complete if the frame was
+     *         unchanged and did not need to be sent (see {@link #setKeepAliveInterval(long)}), and already
+     *         failed with an {@link InterruptedException} if the thread was interrupted while waiting for a
+     *         free buffer, or a {@link LibUsbException} if the display is waiting to be reconnected (see
+     *         {@link #setAutoReconnect(boolean)}).
+     *
+     * @throws LibUsbException       if there is a problem communicating, or no frame buffer becomes free in time.
+     * @throws IllegalStateException if the display has been closed, or this is called on the transport's event
+     *                               handling thread.
+     */
+    public synchronized CompletableFuture<Void> sendFrameAsync() {
+        if (transport != null && transport.isCompletionThread()) {
+            throw new IllegalStateException("sendFrameAsync() cannot wait on the thread which completes transfers;" +
+                    " use offerFrameAsync(), or attach actions with the Async methods of CompletableFuture");
+        }
+        CompletableFuture<Void> future = sendFrameAsync(true);
+        if (future == null) {  // We only give up without waiting when the device has disappeared.
+            future = new CompletableFuture<Void>();
+            future.completeExceptionally(new LibUsbException("Push 2 display is disconnected",
+                    LibUsb.ERROR_NO_DEVICE));
+        }
+        return future;
+    }
+
+    /**
+     * Try to send a frame of pixels asynchronously, corresponding to whatever has been drawn in the display
+     * image, to the display. If all the asynchronous frame buffers are still being sent, the frame is dropped.
+     *
+     * @return {@code true} if the frame was queued (or, because it was unchanged, did not need to be sent; see
+     *         {@link #setKeepAliveInterval(long)}), {@code false} if it was dropped.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the display has been closed.
+     */
+    public synchronized boolean offerFrameAsync() {
+        return sendFrameAsync(false) != null;
+    }
+
+    /**
+     * Send a frame of pixels asynchronously, corresponding to whatever has been drawn in the display image,
+     * to the display.
+     *
+     * @param wait if {@code true}, wait for a free frame buffer when all are busy, otherwise drop the frame.
+     *
+     * @return a future which completes when the frame has been sent, or at once if it did not need to be, or
+     *         {@code null} if it was dropped (or failed, if the thread was interrupted while waiting for a
+     *         free buffer), which always happens while the display is waiting to be reconnected.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the display has been closed.
+     */
+    private CompletableFuture<Void> sendFrameAsync(boolean wait) {
+        checkOpen();
+        resumeSource = ResumeSource.DISPLAY_IMAGE;
+        if (transport == null) {
+            metrics.frameDropped();  // Waiting to be reconnected.
+            return null;
+        }
+        long now = System.nanoTime();
+        checkEncoderGeneration();
+        if (checkUnchanged(now) == UnchangedFrameFilter.Decision.SKIP) {
+            metrics.frameSkipped();
+            return CompletableFuture.completedFuture(null);  // Nothing has changed, and was refreshed recently.
+        }
+        if (transferRing == null) {
+            transferRing = new TransferRing(transport, headerBuffer, asyncBufferCount,
+                    stripeLines * Wayang.BYTES_PER_LINE, Wayang.DISPLAY_HEIGHT / stripeLines, combinedHeader,
+                    transferTimeout, metrics);
+        }
+
+        TransferRing.Slot slot;
+        try {
+            slot = transferRing.acquire(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompletableFuture<Void> interrupted = new CompletableFuture<Void>();
+            interrupted.completeExceptionally(e);
+            return interrupted;
+        }
+        if (slot == null) {
+            metrics.frameDropped();
+            return null;  // All buffers are busy, drop this frame.
+        }
+
+        // Expand the whole frame with the row stride padding (unless the image already has it), and mask with
+        // the signal shaping pattern, straight from the image raster into the slot's frame buffer. Even a
+        // keep-alive resend needs this, since the slot we got may not be the one which held the previous frame.
+        transferBufferHoldsFrame = false;
+        CompletableFuture<Void> future;
+        try {
+            if (stripeTasks == null) {
+                try {
+                    long encodeStart = System.nanoTime();
+                    encodeLines(0, Wayang.DISPLAY_HEIGHT, slot.frameBuffer, 0);
+                    metrics.frameEncoded(System.nanoTime() - encodeStart);
+                } catch (RuntimeException e) {
+                    transferRing.abandon(slot);
+                    throw e;
+                }
+                rememberEncoded();
+                future = transferRing.submit(slot, now);
+            } else {
+                future = submitStripes(slot, now);
+                rememberEncoded();
+            }
+        } catch (LibUsbException e) {
+            if (lostConnection(e)) {
+                return null;
+            }
+            throw e;
+        }
+        unchangedFrameFilter.sent(now);
+        recordFrameStart(now);
+        recordPixels(slot.frameBuffer);
+        recordFrameEnd();
+        return future;
+    }
+
+    /**
+     * Encode the stripes of a frame into an asynchronous frame buffer in parallel, submitting the transfer
+     * of each stripe as soon as it (and all the stripes above it) are ready.
+     *
+     * @param slot        the asynchronous frame buffer and transfers to use.
+     * @param requestedAt the {@link System#nanoTime()} at which the frame was asked for.
+     *
+     * @return a future which completes once all the frame's transfers have finished.
+     *
+     * @throws LibUsbException if there is a problem communicating.
+     */
+    private CompletableFuture<Void> submitStripes(TransferRing.Slot slot, long requestedAt) {
+        long encodeStart = System.nanoTime();
+        startStripes(slot.frameBuffer);
+        try {
+            CompletableFuture<Void> future = transferRing.submitHeader(slot, requestedAt);
+            for (int i = 0; i < stripeTasks.length; i++) {
+                try {
+                    stripeTasks[i].join();
+                } catch (RuntimeException e) {
+                    transferRing.abandonPixels(slot, i, e);
+                    throw e;
+                }
+                if (i == stripeTasks.length - 1) {
+                    metrics.frameEncoded(System.nanoTime() - encodeStart);
+                }
+                transferRing.submitPixels(slot, i);
+            }
+            return future;
+        } finally {
+            awaitStripes();  // If anything failed, they may still be running.
+        }
+    }
+
+    /**
+     * Start rendering and sending frames to the display at a steady rate, skipping frames when rendering
+     * falls behind. See {@link #startRenderLoop(double, RenderLoop.OverrunPolicy, RenderLoop.Callback)}.
+     *
+     * @param targetFps the number of frames to render each second.
+     * @param callback  the code that draws each frame.
+     *
+     * @return the running render loop, which can be asked how many frames it has rendered and skipped.
+     *
+     * @throws IllegalStateException if the display has been closed, or a render loop is already running.
+     */
+    public RenderLoop startRenderLoop(double targetFps, RenderLoop.Callback callback) {
+        return startRenderLoop(targetFps, RenderLoop.OverrunPolicy.SKIP, callback);
+    }
+
+    /**
+     * Start rendering and sending frames to the display at a steady rate, on a dedicated thread. For each
+     * frame, the callback is given the graphics context of the display image to draw in, and when it
+     * returns, the frame is sent using {@link #sendFrameAsync()}. Frames are paced against fixed deadlines,
+     * so time spent rendering does not make the frame rate drift. The loop runs until
+     * {@link #stopRenderLoop()} or {@link #close()} is called, the callback throws an exception, or a frame
+     * fails to reach the display (unless it was lost because the display was unplugged, and it is being
+     * reconnected automatically, see {@link #setAutoReconnect(boolean)}); the loop's
+     * {@link RenderLoop#getFailure()} then reports why. Each display has its own render loop, so several
+     * displays can be rendered in parallel.
+     *
+     * @param targetFps the number of frames to render each second.
+     * @param policy    what to do when rendering and sending a frame takes longer than the frame period.
+     * @param callback  the code that draws each frame.
+     *
+     * @return the running render loop, which can be asked how many frames it has rendered and skipped.
+     *
+     * @throws IllegalStateException    if the display has been closed, or a render loop is already running.
+     * @throws IllegalArgumentException if {@code targetFps} is not positive.
+     */
+    public synchronized RenderLoop startRenderLoop(double targetFps, RenderLoop.OverrunPolicy policy,
+                                                   RenderLoop.Callback callback) {
+        checkOpen();
+        if (renderLoop != null && renderLoop.isRunning()) {
+            throw new IllegalStateException("A render loop is already running");
+        }
+        RenderLoopSender sender = new RenderLoopSender();
+        renderLoop = new RenderLoop(displayImage, targetFps, policy, callback, sender);
+        sender.loop = renderLoop;
+        renderLoop.start();
+        return renderLoop;
+    }
+
+    /**
+     * Sends the frames drawn by a render loop, and watches the future of each one, stopping the loop if an
+     * asynchronous transfer fails. The check runs on the transport's event handling thread, so it must not
+     * wait for our lock; whether disconnections are tolerated is noted on the render thread as each frame is
+     * sent.
+     */
+    private final class RenderLoopSender implements Runnable, BiConsumer<Void, Throwable> {
+
+        /**
+         * The loop whose frames we send, set as soon as it has been created.
+         */
+        RenderLoop loop;
+
+        /**
+         * Whether the display was reconnecting automatically when the latest frame was sent, so frames lost
+         * because it was unplugged should not stop the loop.
+         */
+        private volatile boolean reconnecting;
+
+        @Override
+        public void run() {
+            reconnecting = isAutoReconnect();
+            sendFrameAsync().whenComplete(this);
+        }
+
+        @Override
+        public void accept(Void ignored, Throwable problem) {
+            if (problem instanceof CompletionException && problem.getCause() != null) {
+                problem = problem.getCause();
+            }
+            if (problem != null && !(reconnecting && isDisconnection(problem))) {
+                loop.fail(problem);
+            }
+        }
+    }
+
+    /**
+     * Check whether a frame failed to be sent because the display has been unplugged.
+     *
+     * @param problem the reason the frame could not be sent.
+     *
+     * @return {@code true} if LibUsb reported that the device is no longer there.
+     */
+    private static boolean isDisconnection(Throwable problem) {
+        if (problem instanceof FrameTransferException) {
+            return ((FrameTransferException) problem).getStatus() == LibUsb.TRANSFER_NO_DEVICE;
+        }
+        return problem instanceof LibUsbException &&
+                ((LibUsbException) problem).getErrorCode() == LibUsb.ERROR_NO_DEVICE;
+    }
+
+    /**
+     * Stop the render loop, if one is running, waiting for the frame it is working on to be sent.
+     */
+    public void stopRenderLoop() {
+        RenderLoop loop;
+        synchronized (this) {
+            loop = renderLoop;
+            renderLoop = null;
+        }
+        if (loop != null) {  // Must wait without holding our lock, since the loop needs it to send its frame.
+            loop.stop();
+        }
+    }
+
+    /**
+     * Start a frame mailbox with three buffers, enough for a single thread publishing frames. See
+     * {@link #startMailbox(int)}.
+     *
+     * @return the running mailbox, to which frames can be published.
+     *
+     * @throws IllegalStateException if the display has been closed, or a mailbox is already running.
+     */
+    public FrameMailbox startMailbox() {
+        return startMailbox(3);
+    }
+
+    /**
+     * Start a mailbox to which any thread can publish finished frames without waiting for USB, or for this
+     * display's lock. A dedicated thread sends the newest frame published, discarding any which were
+     * replaced before it got to them, and keeps re-sending the last one while no new frames arrive, until
+     * {@link #stopMailbox()} or {@link #close()} is called. Frames can still be sent in the usual ways at the
+     * same time, but will be interleaved with the mailbox frames.
+     *
+     * @param bufferCount the number of frame buffers to allocate: two more than the number of threads which
+     *                    will publish frames at the same time.
+     *
+     * @return the running mailbox, to which frames can be published.
+     *
+     * @throws IllegalStateException    if the display has been closed, or a mailbox is already running.
+     * @throws IllegalArgumentException if {@code bufferCount} is less than three.
+     */
+    public synchronized FrameMailbox startMailbox(int bufferCount) {
+        checkOpen();
+        if (mailbox != null && mailbox.isRunning()) {
+            throw new IllegalStateException("A frame mailbox is already running");
+        }
+        mailbox = new FrameMailbox(this, bufferCount, dithering);
+        mailbox.start();
+        return mailbox;
+    }
+
+    /**
+     * Stop the frame mailbox, if one is running, waiting for the frame it is sending to finish.
+     */
+    public void stopMailbox() {
+        FrameMailbox box;
+        synchronized (this) {
+            box = mailbox;
+            mailbox = null;
+        }
+        if (box != null) {  // Must wait without holding our lock, since the sender needs it to send its frame.
+            box.stop();
+        }
+    }
+
+    /**
+     * Send a frame published to the frame mailbox, which has already been converted, in a single transfer.
+     *
+     * @param frame       the masked, padded pixel data for the entire display.
+     * @param requestedAt the {@link System#nanoTime()} from which the frame's latency should be measured.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the display has been closed.
+     */
+    synchronized void sendEncodedFrame(ByteBuffer frame, long requestedAt) {
+        checkOpen();
+        try {
+            sendConverted(frame, requestedAt);
+        } finally {
+            resumeSource = ResumeSource.MAILBOX;  // The buffer belongs to the mailbox, which may reuse it.
+            resumeFrame = null;
+        }
+    }
+
+    /**
+     * Start capturing everything sent to the display, exactly as it is sent, into a memory-mapped capture file,
+     * until {@link #stopRecording()} or {@link #close()} is called. The capture can later be played back, with
+     * no need to draw or encode any of the frames again, by opening it with a {@link FramePlayer} and passing
+     * that to {@link #replay(FramePlayer)}.
+     *
+     * @param captureFile the file in which to record frames; it will be replaced if it already exists.
+     *
+     * @return the recorder, which can be asked how many frames it has captured.
+     *
+     * @throws IOException           if there is a problem creating the capture file.
+     * @throws IllegalStateException if the display has been closed, or frames are already being recorded.
+     */
+    public synchronized FrameRecorder startRecording(File captureFile) throws IOException {
+        checkOpen();
+        if (recorder != null) {
+            throw new IllegalStateException("Frames are already being recorded");
+        }
+        recorder = new FrameRecorder(captureFile, headerBuffer.capacity(), Wayang.BYTES_PER_LINE * Wayang.DISPLAY_HEIGHT);
+        return recorder;
+    }
+
+    /**
+     * Stop capturing frames, if they were being recorded.
+     */
+    public synchronized void stopRecording() {
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                System.err.println("Problem finishing frame capture file: " + e);
+            }
+            recorder = null;
+        }
+    }
+
+    /**
+     * Start recording everything shown on the display as an animated GIF, until {@link #stopGifRecording()}
+     * or {@link #close()} is called. Frames are captured without slowing down sending: they are converted
+     * and written on background threads, and dropped if those fall behind.
+     *
+     * @param file the file to which the GIF should be written; it will be replaced if it already exists.
+     *
+     * @return the recorder, which can be asked how many frames it has captured and dropped.
+     *
+     * @throws IOException           if there is a problem creating the file.
+     * @throws IllegalStateException if the display has been closed, or a GIF is already being recorded.
+     */
+    public synchronized GifRecorder startGifRecording(File file) throws IOException {
+        checkOpen();
+        if (gifRecorder != null) {
+            throw new IllegalStateException("A GIF is already being recorded");
+        }
+        gifRecorder = new GifRecorder(file);
+        return gifRecorder;
+    }
+
+    /**
+     * Stop recording a GIF, if one was being recorded, waiting for the frames already captured to be
+     * written to it.
+     */
+    public synchronized void stopGifRecording() {
+        if (gifRecorder != null) {
+            try {
+                gifRecorder.close();
+            } catch (IOException e) {
+                System.err.println("Problem finishing GIF recording: " + e);
+            }
+            gifRecorder = null;
+        }
+    }
+
+    /**
+     * If frames are being recorded, start capturing one which has just been sent. If that fails, recording
+     * is abandoned, rather than interfering with the display.
+     *
+     * @param now the {@link System#nanoTime()} at which the frame was sent.
+     */
+    private void recordFrameStart(long now) {
+        if (recorder != null) {
+            try {
+                recorder.beginFrame(now, headerBuffer);
+            } catch (IOException e) {
+                System.err.println("Stopping frame recording because of a problem writing the capture file: " + e);
+                stopRecording();
+            }
+        }
+        if (gifRecorder != null) {
+            gifRecorder.beginFrame(now);
+        }
+    }
+
+    /**
+     * If frames are being recorded, capture some of the pixel data of the one being sent.
+     *
+     * @param pixels the bytes sent, all of which (from index zero to its capacity) are recorded.
+     */
+    private void recordPixels(ByteBuffer pixels) {
+        if (recorder != null) {
+            recorder.appendPixels(pixels);
+        }
+        if (gifRecorder != null) {
+            gifRecorder.appendPixels(pixels);
+        }
+    }
+
+    /**
+     * If frames are being recorded, finish capturing the one that was just sent.
+     */
+    private void recordFrameEnd() {
+        if (recorder != null) {
+            recorder.endFrame();
+        }
+        if (gifRecorder != null) {
+            gifRecorder.endFrame();
+        }
+    }
+
+    /**
+     * Play back frames captured by {@link #startRecording(File)}, sending them to the display with the same
+     * timing at which they were originally sent. The captured bytes are sent straight from the memory-mapped
+     * file, with no drawing, encoding or copying. Blocks until all the frames have been sent, or
+     * {@link FramePlayer#stop()} is called. Other frames can be sent while this is going on, but will be
+     * interleaved with the ones being replayed.
+     *
+     * @param player the opened capture file.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the display has been closed.
+     */
+    public void replay(FramePlayer player) {
+        player.play(new FramePlayer.Sender() {
+            @Override
+            public void send(ByteBuffer header, ByteBuffer frame) {
+                sendCapturedFrame(header, frame);
+            }
+        });
+    }
+
+    /**
+     * Play an animated GIF on the display, following the delay of each frame, and repeating it as many times
+     * as the file asks. The first time through, each frame is composited, scaled and encoded while the one
+     * before it is showing; after that, frames come straight from the animation's cache, so playback costs
+     * little more than the USB transfers. Blocks until the animation finishes, or {@link GifAnimation#stop()}
+     * is called. Other frames can be sent while this is going on, but will be interleaved with the animation.
+     *
+     * @param animation the opened GIF file.
+     *
+     * @throws IOException           if there is a problem decoding the animation.
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the display has been closed.
+     */
+    public void play(GifAnimation animation) throws IOException {
+        animation.play(new FramePlayer.Sender() {
+            @Override
+            public void send(ByteBuffer header, ByteBuffer frame) {
+                sendCapturedFrame(header, frame);
+            }
+        });
+    }
+
+    /**
+     * Send a frame which was previously captured or cached, and so has already been encoded. Like every other
+     * frame, it is captured by any recordings in progress.
+     *
+     * @param header the frame header.
+     * @param frame  the masked, padded pixel data for the entire display.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the display has been closed.
+     */
+    private synchronized void sendCapturedFrame(ByteBuffer header, ByteBuffer frame) {
+        checkOpen();
+        resumeSource = ResumeSource.NOTHING;  // The player will carry on sending frames.
+        resumeFrame = null;
+        if (transport == null) {
+            metrics.frameDropped();  // Waiting to be reconnected.
+            return;
+        }
+        unchangedFrameFilter.invalidate();  // The display no longer shows what was last drawn.
+        try {
+            long now = System.nanoTime();
+            long transferNanos = sendSynchronously(header, "frame header");
+            recordFrameStart(now);
+            transferNanos += sendSynchronously(frame, "frame image");
+            recordPixels(frame);
+            recordFrameEnd();
+            metrics.frameSent(transferNanos, System.nanoTime());
+        } catch (LibUsbException e) {
+            if (!lostConnection(e)) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PushDisplay[name=" + name + "]";
+    }
+}
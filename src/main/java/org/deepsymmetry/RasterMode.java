@@ -0,0 +1,31 @@
+package org.deepsymmetry;
+
+/**
+ * Chooses where the pixels of a display image are stored, and so how they are prepared for sending to the
+ * Push. Set by {@link Wayang#setRasterMode(RasterMode)} before a display is opened.
+ *
+ * @author James Elliott
+ */
+public enum RasterMode {
+
+    /**
+     * The pixels are stored in an ordinary Java array, which Java2D can draw into using its fastest loops.
+     * Each frame is expanded, padded and masked into native memory by the display's {@link FrameEncoder}.
+     */
+    HEAP,
+
+    /**
+     * The pixels are stored in native memory, already laid out with the 2,048 byte line stride and byte
+     * order the Push expects. {@link PushDisplay#sendFrame()} masks them in place, sends them straight from
+     * the image, and unmasks them again, so no copy of the frame is needed at all. Drawing into the image from
+     * another thread while a frame is being sent synchronously will be corrupted by the mask.
+     */
+    DIRECT_IN_PLACE,
+
+    /**
+     * The pixels are stored in native memory, already laid out with the 2,048 byte line stride and byte
+     * order the Push expects. Each frame is masked into a separate transfer buffer in a single pass of
+     * 64-bit operations, with no need to expand or pad the lines, and the image is never disturbed.
+     */
+    DIRECT_COPY
+}
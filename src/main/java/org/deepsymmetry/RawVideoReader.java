@@ -0,0 +1,466 @@
+package org.deepsymmetry;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Drives the display from another process, such as {@code ffmpeg} writing {@code rawvideo}, or a visuals
+ * engine, which writes a stream of uncompressed frames exactly the size of the display to standard input, a
+ * named pipe, or a TCP connection on the local machine. Frames are read with NIO channels straight into the
+ * frame buffers of a {@link FrameMailbox}, so they never pass through a {@link java.awt.image.BufferedImage}.
+ * The 16-bit formats are read directly into place with a scattering read that leaves each line's padding
+ * alone, then masked where they lie; the others are read into a single reusable direct buffer and converted
+ * in one pass with the same tables as {@link PushDisplay#sendFrame(int[])}.
+ *
+ * The mailbox sends only the newest frame, so if frames arrive faster than the display can take them, the
+ * late ones are dropped rather than building up a backlog, and the display stays in step with the source.
+ * Run it from the command line with {@link #main(String[])}, or from your own code by handing a channel to
+ * the constructor and calling {@link #run(FrameMailbox)}.
+ *
+ * @author James Elliott
+ */
+public class RawVideoReader {
+
+    /**
+     * The value of the signal shaping mask for four pixels, as it is applied to a little-endian long.
+     */
+    private static final long MASK = 0xffe7f3e7ffe7f3e7L;
+
+    /**
+     * The pixel formats which can be read, named after their {@code ffmpeg} equivalents.
+     */
+    public enum Format {
+
+        /**
+         * 16 bits per pixel, little-endian, with blue in the high bits, which is what the Push itself uses, so
+         * frames need only be masked ({@code ffmpeg -pix_fmt bgr565le}).
+         */
+        BGR565(2, "bgr565le"),
+
+        /**
+         * 16 bits per pixel, little-endian, with red in the high bits; the red and blue bits are swapped while
+         * masking ({@code ffmpeg -pix_fmt rgb565le}).
+         */
+        RGB565(2, "rgb565le"),
+
+        /**
+         * 24 bits per pixel, a byte each of red, green, and blue ({@code ffmpeg -pix_fmt rgb24}).
+         */
+        RGB24(3, "rgb24"),
+
+        /**
+         * 32 bits per pixel, a byte each of blue, green, red, and (ignored) alpha ({@code ffmpeg -pix_fmt bgra}).
+         */
+        BGRA(4, "bgra");
+
+        /**
+         * The size of each pixel.
+         */
+        private final int bytesPerPixel;
+
+        /**
+         * The name {@code ffmpeg} uses for the format.
+         */
+        private final String ffmpegName;
+
+        /**
+         * Constructor simply sets the immutable fields.
+         *
+         * @param bytesPerPixel the size of each pixel.
+         * @param ffmpegName    the name {@code ffmpeg} uses for the format.
+         */
+        Format(int bytesPerPixel, String ffmpegName) {
+            this.bytesPerPixel = bytesPerPixel;
+            this.ffmpegName = ffmpegName;
+        }
+
+        /**
+         * Get the size of each pixel.
+         *
+         * @return the number of bytes in a pixel.
+         */
+        public int getBytesPerPixel() {
+            return bytesPerPixel;
+        }
+
+        /**
+         * Get the name {@code ffmpeg} uses for the format, to pass to its {@code -pix_fmt} option.
+         *
+         * @return the pixel format name.
+         */
+        public String getFfmpegName() {
+            return ffmpegName;
+        }
+
+        /**
+         * Get the size of a frame of the display in this format.
+         *
+         * @return the number of bytes in each frame of the stream.
+         */
+        public int getFrameSize() {
+            return bytesPerPixel * Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT;
+        }
+
+        /**
+         * Look up a format by its name or its {@code ffmpeg} name, ignoring case.
+         *
+         * @param name the name to look up.
+         *
+         * @return the matching format.
+         *
+         * @throws IllegalArgumentException if there is no such format.
+         */
+        public static Format forName(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name) || format.ffmpegName.equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown pixel format: " + name);
+        }
+    }
+
+    /**
+     * The channel from which frames are read.
+     */
+    private final ReadableByteChannel channel;
+
+    /**
+     * The format of the pixels in the stream.
+     */
+    private final Format format;
+
+    /**
+     * Holds a frame of the 24- and 32-bit formats while it is converted, or a frame being thrown away;
+     * allocated when first needed.
+     */
+    private ByteBuffer readBuffer = null;
+
+    /**
+     * Views of the pixels of each line of the frame buffers we have read into, so a 16-bit frame can be read
+     * into place with one scattering read.
+     */
+    private final Map<ByteBuffer, ByteBuffer[]> lineViews = new IdentityHashMap<ByteBuffer, ByteBuffer[]>();
+
+    /**
+     * Counts the frames which have been read.
+     */
+    private long framesRead = 0;
+
+    /**
+     * Create a reader for a stream of frames.
+     *
+     * @param channel the channel from which frames will be read; it must be in blocking mode.
+     * @param format  the format of the pixels in the stream.
+     */
+    public RawVideoReader(ReadableByteChannel channel, Format format) {
+        if (channel == null || format == null) {
+            throw new IllegalArgumentException("channel and format must not be null");
+        }
+        this.channel = channel;
+        this.format = format;
+    }
+
+    /**
+     * Create a reader for frames arriving on standard input, such as from {@code ffmpeg ... -f rawvideo -}.
+     *
+     * @param format the format of the pixels in the stream.
+     *
+     * @return the reader.
+     */
+    public static RawVideoReader openStandardInput(Format format) {
+        return new RawVideoReader(new FileInputStream(FileDescriptor.in).getChannel(), format);
+    }
+
+    /**
+     * Create a reader for frames arriving through a named pipe (made with {@code mkfifo}), or stored in a file.
+     * Opening a pipe waits until something opens it for writing.
+     *
+     * @param path   the path of the pipe or file.
+     * @param format the format of the pixels in the stream.
+     *
+     * @return the reader.
+     *
+     * @throws IOException if the pipe cannot be opened.
+     */
+    public static RawVideoReader openPipe(String path, Format format) throws IOException {
+        return new RawVideoReader(FileChannel.open(Paths.get(path), StandardOpenOption.READ), format);
+    }
+
+    /**
+     * Wait for another process on this machine to connect to a TCP port, and create a reader for the frames
+     * it sends. Only connections over the loopback interface are accepted.
+     *
+     * @param port   the port on which to listen.
+     * @param format the format of the pixels in the stream.
+     *
+     * @return the reader.
+     *
+     * @throws IOException if the port cannot be listened on, or the connection fails.
+     */
+    public static RawVideoReader acceptConnection(int port, Format format) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            SocketChannel connection = server.accept();
+            connection.socket().setReceiveBufferSize(format.getFrameSize() * 2);
+            return new RawVideoReader(connection, format);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Get the format of the pixels in the stream.
+     *
+     * @return the pixel format.
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Check how many frames have been read from the stream.
+     *
+     * @return the number of complete frames read, whether or not they were sent.
+     */
+    public long getFramesRead() {
+        return framesRead;
+    }
+
+    /**
+     * Read frames until the stream ends, publishing each to a mailbox, which sends the newest to the display.
+     *
+     * @param mailbox the mailbox to publish frames to, from {@link PushDisplay#startMailbox()}.
+     *
+     * @throws IOException if there is a problem reading the stream, including it ending partway through a frame.
+     */
+    public void run(FrameMailbox mailbox) throws IOException {
+        while (mailbox.isRunning() && mailbox.publish(this)) {
+            // Keep going until the stream ends.
+        }
+    }
+
+    /**
+     * Read the next frame, masking it into a frame buffer.
+     *
+     * @param destination a little-endian buffer like those returned by {@link Wayang#allocateFrameBuffer(int)}.
+     * @param converter   the converter to use for the 24- and 32-bit formats.
+     *
+     * @return {@code true} if a frame was read, {@code false} if the stream ended before it began.
+     *
+     * @throws IOException if there is a problem reading the stream, including it ending partway through a frame.
+     */
+    boolean readFrame(ByteBuffer destination, ArgbFrameConverter converter) throws IOException {
+        if (destination.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Destination buffer must be little-endian");
+        }
+        if (format.bytesPerPixel == 2) {
+            if (!readLines(destination)) {
+                return false;
+            }
+            maskInPlace(destination, format == Format.RGB565);
+        } else {
+            ByteBuffer pixels = readBuffer();
+            if (!readFully(pixels)) {
+                return false;
+            }
+            converter.convert(pixels, format.bytesPerPixel, destination);
+        }
+        framesRead++;
+        return true;
+    }
+
+    /**
+     * Read the next frame and throw it away, because there was nowhere to put it.
+     *
+     * @return {@code true} if a frame was read, {@code false} if the stream ended before it began.
+     *
+     * @throws IOException if there is a problem reading the stream, including it ending partway through a frame.
+     */
+    boolean skipFrame() throws IOException {
+        if (readFully(readBuffer())) {
+            framesRead++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the buffer which holds a whole frame of the stream, allocating it if needed.
+     *
+     * @return the buffer, cleared and ready to be read into.
+     */
+    private ByteBuffer readBuffer() {
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocateDirect(format.getFrameSize());
+        }
+        readBuffer.clear();
+        return readBuffer;
+    }
+
+    /**
+     * Read a 16-bit frame straight into the pixels of each line of a frame buffer, leaving the padding alone.
+     *
+     * @param destination the frame buffer.
+     *
+     * @return {@code true} if a frame was read, {@code false} if the stream ended before it began.
+     *
+     * @throws IOException if there is a problem reading the stream, including it ending partway through a frame.
+     */
+    private boolean readLines(ByteBuffer destination) throws IOException {
+        ByteBuffer[] lines = lineViews.get(destination);
+        if (lines == null) {
+            lines = new ByteBuffer[Wayang.DISPLAY_HEIGHT];
+            for (int y = 0; y < lines.length; y++) {
+                ByteBuffer view = destination.duplicate();
+                view.clear().position(y * Wayang.BYTES_PER_LINE);
+                view.limit(view.position() + (Wayang.DISPLAY_WIDTH * 2));
+                lines[y] = view.slice();
+            }
+            lineViews.put(destination, lines);
+        }
+        for (ByteBuffer line : lines) {
+            line.clear();
+        }
+        if (!(channel instanceof ScatteringByteChannel)) {
+            for (int y = 0; y < lines.length; y++) {
+                if (!readFully(lines[y])) {
+                    if (y == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Stream ended partway through a frame");
+                }
+            }
+            return true;
+        }
+        ScatteringByteChannel scatter = (ScatteringByteChannel) channel;
+        int next = 0;
+        long total = 0;
+        while (next < lines.length) {
+            long count = scatter.read(lines, next, lines.length - next);
+            if (count < 0) {
+                if (total == 0) {
+                    return false;
+                }
+                throw new EOFException("Stream ended partway through a frame");
+            }
+            total += count;
+            while (next < lines.length && !lines[next].hasRemaining()) {
+                next++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fill a buffer from the channel.
+     *
+     * @param buffer the buffer to fill.
+     *
+     * @return {@code true} if the buffer was filled, {@code false} if the stream ended before anything was read.
+     *
+     * @throws IOException if there is a problem reading the stream, including it ending partway through.
+     */
+    private boolean readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Stream ended partway through a frame");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply the signal shaping mask to the pixels of a frame buffer which hold 16-bit pixels read straight
+     * from the stream, swapping their red and blue bits first if they arrived with red in the high bits.
+     *
+     * @param frame the frame buffer.
+     * @param swap  whether red and blue need to be swapped.
+     */
+    static void maskInPlace(ByteBuffer frame, boolean swap) {
+        for (int y = 0; y < Wayang.DISPLAY_HEIGHT; y++) {
+            int start = y * Wayang.BYTES_PER_LINE;
+            int end = start + (Wayang.DISPLAY_WIDTH * 2);
+            for (int position = start; position < end; position += 8) {
+                long quad = frame.getLong(position);
+                if (swap) {
+                    quad = ((quad >>> 11) & 0x001f001f001f001fL) | (quad & 0x07e007e007e007e0L) |
+                            ((quad & 0x001f001f001f001fL) << 11);
+                }
+                frame.putLong(position, quad ^ MASK);
+            }
+        }
+    }
+
+    /**
+     * Close the channel from which frames are read.
+     *
+     * @throws IOException if there is a problem closing it.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Support invocation from the command line: send a raw video stream to the first Push 2 found, until the
+     * stream ends. For example:
+     *
+     * <pre>
+     * ffmpeg -re -i clip.mp4 -vf scale=960:160 -pix_fmt bgr565le -f rawvideo - | \
+     *   java -cp wayang.jar org.deepsymmetry.RawVideoReader bgr565
+     * </pre>
+     *
+     * @param args the pixel format, optionally followed by where to read from: {@code -} for standard input (the
+     *             default), {@code tcp:}<i>port</i> to accept a connection from this machine, or the path of
+     *             a named pipe or file.
+     *
+     * @throws Exception if there is a problem reading the stream or sending frames.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java org.deepsymmetry.RawVideoReader bgr565|rgb565|rgb24|bgra [-|tcp:port|pipe]");
+            return;
+        }
+        Format format = Format.forName(args[0]);
+        String source = (args.length > 1) ? args[1] : "-";
+        Wayang.open();
+        RawVideoReader reader;
+        if (source.equals("-")) {
+            reader = openStandardInput(format);
+        } else if (source.toLowerCase(Locale.ROOT).startsWith("tcp:")) {
+            reader = acceptConnection(Integer.parseInt(source.substring(4)), format);
+        } else {
+            reader = openPipe(source, format);
+        }
+        FrameMailbox mailbox = Wayang.startMailbox(3);
+        try {
+            reader.run(mailbox);
+        } finally {
+            reader.close();
+            Wayang.stopMailbox();
+            System.out.println("Read " + reader.getFramesRead() + " frames, sent " + mailbox.getFramesSent() +
+                    ", dropped " + (mailbox.getFramesDiscarded() + mailbox.getFramesRejected()) + " late.");
+            Wayang.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.deepsymmetry;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Renders and sends frames to the display at a steady rate on its own thread, so that applications do not
+ * each need to write their own timer loop. Frames are scheduled against absolute {@link System#nanoTime()}
+ * deadlines, so that time spent rendering and sending does not cause the frame rate to drift. Created by
+ * {@link Wayang#startRenderLoop(double, OverrunPolicy, Callback)}.
+ *
+ * @author James Elliott
+ */
+public class RenderLoop {
+
+    /**
+     * Implemented by code that wants to draw each frame sent by a render loop.
+     */
+    public interface Callback {
+
+        /**
+         * Draw the next frame. When this returns, whatever has been drawn is sent to the display.
+         *
+         * @param graphics the graphics context of the display image; it is reused for every frame, so any
+         *                 state (such as color or font) set on it carries over to the next one, and it must
+         *                 not be disposed
+         * @param frame    the number of this frame, counting from zero when the loop started; if frames have
+         *                 been skipped because of an overrun, their numbers are skipped too
+         */
+        void render(Graphics2D graphics, long frame);
+    }
+
+    /**
+     * Chooses what happens when rendering and sending a frame takes longer than the frame period.
+     */
+    public enum OverrunPolicy {
+
+        /**
+         * Give up on the frames whose deadlines have already passed, and resume on the original schedule at
+         * the next deadline that is still in the future. Keeps motion smooth at the expense of frame count.
+         */
+        SKIP,
+
+        /**
+         * Render the frames whose deadlines have passed immediately, one after another, until the loop is
+         * back on schedule. Preserves the frame count, as long as the loop has fallen behind by no more than
+         * a second; beyond that it gives up and starts a new schedule from the current time.
+         */
+        CATCH_UP
+    }
+
+    /**
+     * How close to a deadline, in nanoseconds, we stop parking the thread and instead yield until it
+     * arrives, because parking can overshoot by more than this.
+     */
+    private static final long SPIN_THRESHOLD = TimeUnit.MICROSECONDS.toNanos(500);
+
+    /**
+     * The time between frames, in nanoseconds.
+     */
+    private final long period;
+
+    /**
+     * What to do when a frame takes too long.
+     */
+    private final OverrunPolicy policy;
+
+    /**
+     * The code that draws each frame.
+     */
+    private final Callback callback;
+
+    /**
+     * Sends each frame once it has been drawn.
+     */
+    private final Runnable sender;
+
+    /**
+     * The graphics context of the display image, shared by every frame.
+     */
+    private final Graphics2D graphics;
+
+    /**
+     * The thread on which frames are rendered and sent.
+     */
+    private final Thread thread;
+
+    /**
+     * Set when the loop should stop.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Counts the frames which have been rendered and sent.
+     */
+    private volatile long framesRendered = 0;
+
+    /**
+     * Counts the frames which were skipped because rendering fell behind.
+     */
+    private volatile long framesSkipped = 0;
+
+    /**
+     * Holds the exception that stopped the loop, if it did not stop normally.
+     */
+    private volatile Throwable failure = null;
+
+    /**
+     * Constructor sets up the loop, but does not start it.
+     *
+     * @param image     the display image which will be drawn to.
+     * @param targetFps the number of frames to render each second.
+     * @param policy    what to do when a frame takes too long.
+     * @param callback  the code that draws each frame.
+     * @param sender    sends each frame once it has been drawn.
+     *
+     * @throws IllegalArgumentException if {@code targetFps} is not positive.
+     */
+    RenderLoop(BufferedImage image, double targetFps, OverrunPolicy policy, Callback callback, Runnable sender) {
+        if (!(targetFps > 0)) {
+            throw new IllegalArgumentException("targetFps must be positive");
+        }
+        if (policy == null || callback == null) {
+            throw new IllegalArgumentException("policy and callback must not be null");
+        }
+        this.period = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / targetFps));
+        this.policy = policy;
+        this.callback = callback;
+        this.sender = sender;
+        this.graphics = image.createGraphics();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "Wayang render loop");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start rendering frames.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop rendering frames, waiting for the frame in progress (if any) to finish, unless this is called from
+     * the render loop itself.
+     */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                System.err.println("Interrupted waiting for render loop to stop.");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Renders and sends frames until stopped, waiting for each deadline.
+     */
+    private void loop() {
+        long deadline = System.nanoTime();
+        long frame = 0;
+        try {
+            while (!stopped) {
+                callback.render(graphics, frame);
+                if (stopped) {
+                    break;
+                }
+                sender.run();
+                framesRendered++;
+                frame++;
+                deadline += period;
+
+                long lateness = System.nanoTime() - deadline;
+                if (lateness > 0) {
+                    if (policy == OverrunPolicy.SKIP) {
+                        long missed = (lateness / period) + 1;
+                        deadline += missed * period;
+                        frame += missed;
+                        framesSkipped += missed;
+                    } else if (lateness > TimeUnit.SECONDS.toNanos(1)) {
+                        deadline = System.nanoTime();  // Too far behind to catch up, start a new schedule.
+                    }
+                }
+                awaitDeadline(deadline);
+            }
+        } catch (Throwable t) {
+            failure = t;
+            System.err.println("Render loop stopped at frame " + frame +
+                    " because of a problem drawing or sending it (see getFailure() for details): " + t);
+        } finally {
+            graphics.dispose();
+        }
+    }
+
+    /**
+     * Stop the loop because a frame it sent did not reach the display, recording why. Since asynchronous
+     * transfers finish on the transport's event handling thread, this is called from there, so it does not
+     * wait for the loop to stop. Failures reported after the loop has already stopped are ignored.
+     *
+     * @param problem the reason the frame could not be sent.
+     */
+    synchronized void fail(Throwable problem) {
+        if (!stopped) {
+            failure = problem;
+            stopped = true;
+            LockSupport.unpark(thread);
+            System.err.println("Render loop stopped because a frame could not be sent to the display: " + problem);
+        }
+    }
+
+    /**
+     * Wait until the specified time has arrived, or the loop has been stopped.
+     *
+     * @param deadline the {@link System#nanoTime()} value to wait for.
+     */
+    private void awaitDeadline(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        while (remaining > 0 && !stopped) {
+            if (remaining > SPIN_THRESHOLD) {
+                LockSupport.parkNanos(this, remaining - SPIN_THRESHOLD);
+            } else {
+                Thread.yield();
+            }
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Check whether the loop is still rendering frames.
+     *
+     * @return {@code true} if it has been started and has neither been stopped nor failed.
+     */
+    public boolean isRunning() {
+        return thread.isAlive() && !stopped;
+    }
+
+    /**
+     * Check how many frames have been rendered and sent.
+     *
+     * @return the number of frames sent since the loop started.
+     */
+    public long getFramesRendered() {
+        return framesRendered;
+    }
+
+    /**
+     * Check how many frames were skipped because rendering fell behind, under {@link OverrunPolicy#SKIP}.
+     *
+     * @return the number of frames skipped since the loop started.
+     */
+    public long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    /**
+     * Find out why the loop stopped, if it was not stopped normally.
+     *
+     * @return the exception thrown by the callback or while sending a frame, or {@code null} if none was.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+}
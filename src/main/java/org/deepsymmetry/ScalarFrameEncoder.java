@@ -0,0 +1,32 @@
+package org.deepsymmetry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The straightforward frame encoder, which splits each pixel into its two bytes and masks them individually,
+ * exactly as Ableton's documentation describes. Serves as the reference against which faster encoders are
+ * checked, and as the fallback on platforms where they offer no benefit.
+ *
+ * @author James Elliott
+ */
+public class ScalarFrameEncoder implements FrameEncoder {
+
+    @Override
+    public void encode(short[] pixels, int firstLine, int lineCount, ByteBuffer destination, int offset) {
+        for (int y = 0; y < lineCount; y++) {
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x += 2) {
+                int pixelOffset = ((firstLine + y) * Wayang.DISPLAY_WIDTH) + x;
+                int destinationOffset = offset + (y * Wayang.BYTES_PER_LINE) + (x * 2);
+                destination.put(destinationOffset, (byte)((pixels[pixelOffset] & 0xff) ^ 0xe7));
+                destination.put(destinationOffset + 1, (byte)((pixels[pixelOffset] >>> 8) ^ 0xf3));
+                destination.put(destinationOffset + 2, (byte)((pixels[pixelOffset + 1] & 0xff) ^ 0xe7));
+                destination.put(destinationOffset + 3, (byte)((pixels[pixelOffset + 1] >>> 8) ^ 0xff));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ScalarFrameEncoder";
+    }
+}
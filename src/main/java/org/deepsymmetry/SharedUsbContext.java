@@ -0,0 +1,106 @@
+package org.deepsymmetry;
+
+import org.usb4java.Context;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * The LibUsb context shared by every Push 2 display we have open, along with the single thread which
+ * processes its asynchronous events. LibUsb is initialized when the first user acquires the context, and
+ * shut down (after stopping the event thread) when the last one releases it.
+ *
+ * @author James Elliott
+ */
+class SharedUsbContext {
+
+    /**
+     * The LibUsb context we will use to manage our interaction with the library.
+     */
+    private final Context context = new Context();
+
+    /**
+     * Counts the open devices (and enumerations in progress) which are using the context.
+     */
+    private int users = 0;
+
+    /**
+     * Will hold the thread which processes asynchronous events from LibUsb, once any device needs it.
+     */
+    private EventHandlingThread eventThread = null;
+
+    /**
+     * Start using the context, initializing LibUsb if nobody else is using it.
+     *
+     * @return the initialized context.
+     *
+     * @throws LibUsbException if LibUsb cannot be initialized.
+     */
+    synchronized Context acquire() {
+        if (users == 0) {
+            int result = LibUsb.init(context);
+            if (result != LibUsb.SUCCESS) {
+                throw new LibUsbException("Unable to initialize libusb", result);
+            }
+        }
+        users++;
+        return context;
+    }
+
+    /**
+     * Stop using the context. When the last user releases it, the event thread is shut down, and so is LibUsb.
+     */
+    synchronized void release() {
+        if (users < 1) {
+            throw new IllegalStateException("Shared LibUsb context released more times than acquired");
+        }
+        users--;
+        if (users == 0) {
+            if (eventThread != null) {
+                eventThread.abort();
+                try {
+                    eventThread.join();
+                } catch (InterruptedException e) {
+                    System.err.println("Interrupted waiting for event handling thread to abort.");
+                }
+                eventThread = null;
+            }
+            LibUsb.exit(context);
+        }
+    }
+
+    /**
+     * Start the thread to process asynchronous events from LibUsb if it is not already running.
+     *
+     * @throws IllegalStateException if the context has not been acquired.
+     */
+    synchronized void startEventThread() {
+        if (users < 1) {
+            throw new IllegalStateException("Shared LibUsb context is not active");
+        }
+        if (eventThread == null) {
+            eventThread = new EventHandlingThread(context);
+            eventThread.setDaemon(true);
+            eventThread.start();
+        }
+    }
+
+    /**
+     * Check whether the calling thread is the one which processes asynchronous events from LibUsb, and so
+     * calls every transfer callback.
+     *
+     * @return {@code true} if called on the event handling thread.
+     */
+    synchronized boolean isEventThread() {
+        return eventThread != null && Thread.currentThread() == eventThread;
+    }
+
+    /**
+     * Check whether the thread which processes asynchronous events from LibUsb has stopped unexpectedly,
+     * in which case asynchronous transfers will never complete.
+     *
+     * @return {@code true} if the thread was started and is no longer running.
+     */
+    synchronized boolean hasEventThreadDied() {
+        return eventThread != null && !eventThread.isAlive();
+    }
+}
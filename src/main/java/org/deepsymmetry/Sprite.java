@@ -0,0 +1,73 @@
+package org.deepsymmetry;
+
+/**
+ * An image which has been converted to the display's pixel format by a {@link SpriteAtlas}, ready to be
+ * copied into a {@link DisplaySurface}. Its opaque pixels are recorded as horizontal runs, so each run can be
+ * copied with a single {@link System#arraycopy(Object, int, Object, int, int)}; a fully opaque sprite has
+ * exactly one run per row.
+ *
+ * @author James Elliott
+ */
+public final class Sprite {
+
+    /**
+     * The atlas page holding the pixels.
+     */
+    final short[] pixels;
+
+    /**
+     * The index within {@link #pixels} of the top left pixel. Rows follow each other with no gaps.
+     */
+    final int offset;
+
+    /**
+     * The width of the sprite in pixels.
+     */
+    private final int width;
+
+    /**
+     * The height of the sprite in pixels.
+     */
+    private final int height;
+
+    /**
+     * The runs of opaque pixels, three values each: the row, the column at which the run starts, and its
+     * length. Runs are in order from top to bottom and left to right.
+     */
+    final int[] runs;
+
+    /**
+     * Constructor used by {@link SpriteAtlas} once it has stored the pixels.
+     *
+     * @param pixels the atlas page holding the pixels.
+     * @param offset the index of the top left pixel.
+     * @param width  the width of the sprite.
+     * @param height the height of the sprite.
+     * @param runs   the runs of opaque pixels.
+     */
+    Sprite(short[] pixels, int offset, int width, int height, int[] runs) {
+        this.pixels = pixels;
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.runs = runs;
+    }
+
+    /**
+     * Get the width of the sprite.
+     *
+     * @return the width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the height of the sprite.
+     *
+     * @return the height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+}
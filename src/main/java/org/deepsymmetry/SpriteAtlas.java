@@ -0,0 +1,183 @@
+package org.deepsymmetry;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds images and text glyphs which have been rasterized once, ahead of time, and converted to the display's
+ * 16-bit pixel format, so that they can be copied into a {@link DisplaySurface} a row at a time with
+ * {@link System#arraycopy(Object, int, Object, int, int)} rather than being drawn through Java2D every frame.
+ * This suits interfaces which keep redrawing the same labels, values and icons in fixed places.
+ *
+ * Pixels are packed into pages of {@value #PAGE_SIZE} shorts, so that many small glyphs share a few large
+ * arrays. Adding sprites is thread-safe, and the sprites themselves never change once created, so they can
+ * be drawn from any thread.
+ *
+ * @author James Elliott
+ */
+public class SpriteAtlas {
+
+    /**
+     * The number of pixels in each page of the atlas. Sprites larger than this get a page of their own.
+     */
+    static final int PAGE_SIZE = 65536;
+
+    /**
+     * Alpha values at or above this make a sprite pixel opaque; below it, the pixel is transparent.
+     */
+    private static final int ALPHA_THRESHOLD = 128;
+
+    /**
+     * The page into which new sprites are currently being packed.
+     */
+    private short[] page = new short[PAGE_SIZE];
+
+    /**
+     * The number of pixels of the current page which are already in use.
+     */
+    private int used = 0;
+
+    /**
+     * The total number of pixels held by all pages, for reporting.
+     */
+    private long pixelCount = 0;
+
+    /**
+     * Convert a color to the display's 16-bit pixel format, rounding each channel to the nearest level the
+     * display can show, as Java2D does when drawing into the display image.
+     *
+     * @param rgb the color, with red in bits 16-23, green in bits 8-15 and blue in bits 0-7.
+     *
+     * @return the BGR565 pixel, before any signal shaping mask is applied.
+     */
+    static short pack(int rgb) {
+        int red = (((rgb >> 16) & 0xff) * 31 + 127) / 255;
+        int green = (((rgb >> 8) & 0xff) * 63 + 127) / 255;
+        int blue = ((rgb & 0xff) * 31 + 127) / 255;
+        return (short) ((blue << 11) | (green << 5) | red);
+    }
+
+    /**
+     * Convert an image into a sprite. Pixels whose alpha is at least half are drawn; the rest are left
+     * transparent, so the sprite can be drawn over any background. Antialiased edges do not blend, so for
+     * the best results draw sprites onto a known background color before adding them, and leave them opaque.
+     *
+     * @param image the pixels of the sprite.
+     *
+     * @return the sprite, ready to be drawn into a {@link DisplaySurface}.
+     */
+    public synchronized Sprite addSprite(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int size = width * height;
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        short[] pixels;
+        int offset;
+        if (size > PAGE_SIZE) {
+            pixels = new short[size];
+            offset = 0;
+        } else {
+            if (used + size > PAGE_SIZE) {
+                page = new short[PAGE_SIZE];
+                used = 0;
+            }
+            pixels = page;
+            offset = used;
+            used += size;
+        }
+        pixelCount += size;
+        List<Integer> runs = new ArrayList<Integer>();
+        for (int y = 0; y < height; y++) {
+            int runStart = -1;
+            for (int x = 0; x <= width; x++) {
+                boolean opaque = false;
+                if (x < width) {
+                    int pixel = argb[(y * width) + x];
+                    pixels[offset + (y * width) + x] = pack(pixel);
+                    opaque = !hasAlpha || (pixel >>> 24) >= ALPHA_THRESHOLD;
+                }
+                if (opaque && runStart < 0) {
+                    runStart = x;
+                } else if (!opaque && runStart >= 0) {
+                    runs.add(y);
+                    runs.add(runStart);
+                    runs.add(x - runStart);
+                    runStart = -1;
+                }
+            }
+        }
+        int[] runArray = new int[runs.size()];
+        for (int i = 0; i < runArray.length; i++) {
+            runArray[i] = runs.get(i);
+        }
+        return new Sprite(pixels, offset, width, height, runArray);
+    }
+
+    /**
+     * Rasterize the glyphs of a font which will be needed to draw text. Each character becomes a sprite as
+     * wide as the character's advance and as tall as the font's ascent plus descent. Text is drawn
+     * character by character, so kerning and ligatures are not applied, and any part of a glyph which
+     * extends past its advance (as in some italic fonts) is cut off.
+     *
+     * @param font       the font in which to draw the characters.
+     * @param foreground the color of the characters.
+     * @param background the color behind the characters, which allows them to be antialiased; if
+     *                   {@code null}, they are drawn without antialiasing, and only their own pixels are
+     *                   drawn.
+     * @param characters the characters that will be needed.
+     *
+     * @return the glyphs, ready to be drawn with {@link DisplaySurface#drawText(GlyphSet, CharSequence, int, int)}.
+     */
+    public GlyphSet addGlyphs(Font font, Color foreground, Color background, String characters) {
+        BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = scratch.createGraphics();
+        FontMetrics metrics = graphics.getFontMetrics(font);
+        graphics.dispose();
+        int ascent = metrics.getAscent();
+        int height = ascent + metrics.getDescent();
+
+        char first = Character.MAX_VALUE;
+        char last = Character.MIN_VALUE;
+        for (int i = 0; i < characters.length(); i++) {
+            first = (char) Math.min(first, characters.charAt(i));
+            last = (char) Math.max(last, characters.charAt(i));
+        }
+        Sprite[] glyphs = new Sprite[(characters.length() > 0) ? (last - first + 1) : 0];
+        for (int i = 0; i < characters.length(); i++) {
+            char c = characters.charAt(i);
+            int width = metrics.charWidth(c);
+            if (glyphs[c - first] != null || width < 1) {
+                continue;
+            }
+            BufferedImage cell = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            graphics = cell.createGraphics();
+            if (background != null) {
+                graphics.setColor(background);
+                graphics.fillRect(0, 0, width, height);
+                graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                        RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            } else {
+                graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                        RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+            }
+            graphics.setFont(font);
+            graphics.setColor(foreground);
+            graphics.drawString(String.valueOf(c), 0, ascent);
+            graphics.dispose();
+            glyphs[c - first] = addSprite(cell);
+        }
+        return new GlyphSet(first, glyphs, ascent, height);
+    }
+
+    /**
+     * Check how much memory the atlas is using for pixels.
+     *
+     * @return the number of pixels held by all the sprites added so far, each of which takes two bytes.
+     */
+    public synchronized long getPixelCount() {
+        return pixelCount;
+    }
+}
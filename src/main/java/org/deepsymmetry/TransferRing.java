@@ -0,0 +1,479 @@
+package org.deepsymmetry;
+
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Manages a fixed ring of pre-allocated frame buffers and matching, pre-filled transfers, so that
+ * several frames can be queued to the Push asynchronously without one overwriting the pixels of another
+ * while it is still in flight, and without allocating native transfers for every frame.
+ *
+ * @author James Elliott
+ */
+class TransferRing {
+
+    /**
+     * Holds everything needed to send one frame asynchronously: a direct buffer holding the masked pixels,
+     * the transfer which sends the frame header (unless it is combined with the first pixel transfer), and the
+     * transfers which send the pixel data.
+     */
+    static class Slot {
+
+        /**
+         * The direct buffer into which a frame's masked pixels are encoded.
+         */
+        final ByteBuffer frameBuffer;
+
+        /**
+         * When the header is sent in the same transfer as the first pixels, the buffer holding the header
+         * followed by {@link #frameBuffer}; otherwise {@code null}.
+         */
+        final ByteBuffer combinedBuffer;
+
+        /**
+         * The transfer which sends the frame header ahead of the pixels. Set when the ring is prepared, unless
+         * the header is combined with the first pixel transfer.
+         */
+        FrameTransport.Transfer headerTransfer;
+
+        /**
+         * The transfers which send the pixel data, each covering its own slice of the frame buffer.
+         */
+        final FrameTransport.Transfer[] frameTransfers;
+
+        /**
+         * Counts the transfers of this slot which have been submitted but whose callbacks have not yet fired.
+         */
+        final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * The {@link System#nanoTime()} at which the slot's transfers were submitted.
+         */
+        volatile long submittedAt;
+
+        /**
+         * The {@link System#nanoTime()} at which the frame being sent by the slot was asked for, before it
+         * was encoded.
+         */
+        volatile long requestedAt;
+
+        /**
+         * Holds the first problem which kept the frame from reaching the display intact, if any of the slot's
+         * transfers failed.
+         */
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        /**
+         * Will be completed once all the slot's transfers have finished, exceptionally if any failed.
+         */
+        volatile CompletableFuture<Void> future;
+
+        /**
+         * Constructor sets up the frame buffer, and room for the transfers that will send it.
+         *
+         * @param frameBuffer       the buffer that will hold the pixel data for the frame.
+         * @param combinedBuffer    the buffer holding the header followed by the pixel data, if they are sent
+         *                          together, or {@code null}.
+         * @param transfersPerFrame the number of transfers needed to send the pixel data.
+         */
+        private Slot(ByteBuffer frameBuffer, ByteBuffer combinedBuffer, int transfersPerFrame) {
+            this.frameBuffer = frameBuffer;
+            this.combinedBuffer = combinedBuffer;
+            this.frameTransfers = new FrameTransport.Transfer[transfersPerFrame];
+        }
+    }
+
+    /**
+     * All the slots we allocated, so they can be freed when we are done.
+     */
+    private final Slot[] slots;
+
+    /**
+     * The slots which are not currently involved in any transfer, and so are ready to receive a new frame.
+     */
+    private final BlockingQueue<Slot> available;
+
+    /**
+     * How long, in milliseconds, a transfer may take before LibUsb gives up on it.
+     */
+    private final long timeout;
+
+    /**
+     * The size of the frame header sent by each slot's header transfer.
+     */
+    private final int headerSize;
+
+    /**
+     * The number of pixel bytes sent by each of a slot's frame transfers.
+     */
+    private final int bytesPerTransfer;
+
+    /**
+     * Where we report the outcome of each transfer and frame.
+     */
+    private final FrameMetrics metrics;
+
+    /**
+     * The buffer holding the frame header, shared by the header transfers of every slot.
+     */
+    private final ByteBuffer headerBuffer;
+
+    /**
+     * Whether the header is sent in the same transfer as the first pixels of each frame.
+     */
+    private final boolean combinedHeader;
+
+    /**
+     * Set while the slots have native transfers, between {@link #prepare(FrameTransport)} and {@link #free()}.
+     */
+    private boolean prepared = false;
+
+    /**
+     * Shared by every transfer we allocate: records the outcome of the transfer, and once all of a slot's
+     * transfers have completed, puts it back into the pool of available slots.
+     */
+    private final FrameTransport.Listener listener = new FrameTransport.Listener() {
+        @Override
+        public void transferFinished(FrameTransport.Transfer transfer, int status, int actualLength) {
+            Slot slot = (Slot) transfer.userData();
+            int expected = bytesPerTransfer;
+            if (transfer == slot.headerTransfer) {
+                expected = headerSize;
+            } else if (slot.combinedBuffer != null && transfer == slot.frameTransfers[0]) {
+                expected = headerSize + bytesPerTransfer;
+            }
+            if (!metrics.transferFinished(status, actualLength, expected)) {
+                slot.failure.compareAndSet(null, new FrameTransferException(status, actualLength, expected));
+            }
+            release(slot, 1);
+        }
+    };
+
+    /**
+     * Allocates the buffers and transfers that make up the ring.
+     *
+     * @param transport         the transport over which frames will be sent.
+     * @param headerBuffer      the buffer holding the frame header, which is only ever read, so it can be
+     *                          shared by all slots.
+     * @param slotCount         how many frames can be in flight at once.
+     * @param bytesPerTransfer  the number of pixel bytes sent in each bulk transfer.
+     * @param transfersPerFrame the number of bulk transfers needed to send all the pixels of a frame.
+     * @param combinedHeader    if {@code true}, each frame's header is sent in the same transfer as its first
+     *                          pixels, rather than in a transfer of its own.
+     * @param timeout           the number of milliseconds a transfer may take before LibUsb gives up on it.
+     * @param metrics           where the outcome of each transfer and frame is recorded.
+     */
+    TransferRing(FrameTransport transport, ByteBuffer headerBuffer, int slotCount, int bytesPerTransfer,
+                 int transfersPerFrame, boolean combinedHeader, long timeout, FrameMetrics metrics) {
+        this.timeout = timeout;
+        this.headerBuffer = headerBuffer;
+        this.headerSize = headerBuffer.capacity();
+        this.bytesPerTransfer = bytesPerTransfer;
+        this.combinedHeader = combinedHeader;
+        this.metrics = metrics;
+        slots = new Slot[slotCount];
+        available = new ArrayBlockingQueue<Slot>(slotCount);
+        int frameSize = bytesPerTransfer * transfersPerFrame;
+        for (int i = 0; i < slotCount; i++) {
+            if (combinedHeader) {
+                ByteBuffer combined = Wayang.allocateCombinedBuffer(frameSize);
+                slots[i] = new Slot(Wayang.framePart(combined), combined, transfersPerFrame);
+            } else {
+                ByteBuffer frameBuffer = ByteBuffer.allocateDirect(frameSize).order(ByteOrder.LITTLE_ENDIAN);
+                slots[i] = new Slot(frameBuffer, null, transfersPerFrame);
+            }
+        }
+        prepare(transport);
+    }
+
+    /**
+     * Fill in the native transfers which send each slot's header and pixels over a transport, and make the
+     * slots available. Called when the ring is built, and again after {@link #free()} when the display has
+     * been reconnected over a new transport, so the frame buffers can be reused.
+     *
+     * @param transport the transport over which frames will be sent.
+     *
+     * @throws IllegalStateException if the slots already have transfers.
+     */
+    void prepare(FrameTransport transport) {
+        if (prepared) {
+            throw new IllegalStateException("Transfer ring has already been prepared");
+        }
+        for (Slot slot : slots) {
+            // When the header is combined, it sits just before the pixels, and the first transfer includes it.
+            ByteBuffer buffer = combinedHeader ? slot.combinedBuffer.duplicate() : slot.frameBuffer.duplicate();
+            int start = combinedHeader ? headerSize : 0;
+            if (!combinedHeader) {
+                slot.headerTransfer = transport.prepare(headerBuffer.duplicate(), listener, slot, timeout);
+            }
+            for (int j = 0; j < slot.frameTransfers.length; j++) {
+                buffer.clear();
+                buffer.position((j == 0) ? 0 : start + (j * bytesPerTransfer));
+                buffer.limit(start + ((j + 1) * bytesPerTransfer));
+                slot.frameTransfers[j] = transport.prepare(buffer.slice(), listener, slot, timeout);
+            }
+            available.add(slot);
+        }
+        prepared = true;
+    }
+
+    /**
+     * Check whether the slots currently have native transfers.
+     *
+     * @return {@code true} if the ring has been prepared, and not freed since.
+     */
+    boolean isPrepared() {
+        return prepared;
+    }
+
+    /**
+     * Obtain a slot into which a new frame can be encoded.
+     *
+     * @param wait if {@code true}, block until a slot becomes available (failing if that takes longer than
+     *             a transfer could legitimately take); otherwise return immediately.
+     *
+     * @return the slot, or {@code null} if {@code wait} was {@code false} and all slots are busy.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for a slot.
+     * @throws LibUsbException      if no slot became available in time.
+     */
+    Slot acquire(boolean wait) throws InterruptedException {
+        if (!wait) {
+            return available.poll();
+        }
+        Slot slot = available.poll(timeout * 2, TimeUnit.MILLISECONDS);
+        if (slot == null) {
+            throw new LibUsbException("Timed out waiting for an asynchronous frame buffer", LibUsb.ERROR_TIMEOUT);
+        }
+        return slot;
+    }
+
+    /**
+     * Submit the header and pixel transfers of a slot whose frame buffer has been filled. The slot will
+     * return to the pool once all of its transfers have completed.
+     *
+     * @param slot        a slot obtained from {@link #acquire(boolean)}.
+     * @param requestedAt the {@link System#nanoTime()} at which the frame was asked for.
+     *
+     * @return a future which completes once all the transfers have finished; see {@link #submitHeader(Slot, long)}.
+     *
+     * @throws LibUsbException if any of the transfers could not be submitted.
+     */
+    CompletableFuture<Void> submit(Slot slot, long requestedAt) {
+        CompletableFuture<Void> future = submitHeader(slot, requestedAt);
+        for (int i = 0; i < slot.frameTransfers.length; i++) {
+            submitPixels(slot, i);
+        }
+        return future;
+    }
+
+    /**
+     * Submit just the header transfer of a slot (or, if the header is combined with the first pixel transfer,
+     * simply get the slot ready), so that its pixel transfers can follow one at a time, as soon as each part
+     * of the frame buffer has been filled, using {@link #submitPixels(Slot, int)}. Every
+     * one of them must then either be submitted, or given up on by calling {@link #abandonPixels(Slot, int)},
+     * before the slot can return to the pool.
+     *
+     * @param slot        a slot obtained from {@link #acquire(boolean)}.
+     * @param requestedAt the {@link System#nanoTime()} at which the frame was asked for.
+     *
+     * @return a future which completes once all the slot's transfers have finished, on the thread which
+     *         reports the last of them, after the slot has returned to the pool. It completes exceptionally
+     *         with a {@link FrameTransferException} if a transfer failed or was short, a
+     *         {@link LibUsbException} if one could not be submitted, or whatever problem kept the pixels
+     *         from being prepared.
+     *
+     * @throws LibUsbException if the transfer could not be submitted.
+     */
+    CompletableFuture<Void> submitHeader(Slot slot, long requestedAt) {
+        int count = slot.frameTransfers.length + (combinedHeader ? 0 : 1);
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        slot.future = future;
+        slot.failure.set(null);
+        slot.pending.set(count);
+        slot.requestedAt = requestedAt;
+        slot.submittedAt = System.nanoTime();
+        if (combinedHeader) {
+            return future;  // The header will go with the first pixels.
+        }
+        int result = slot.headerTransfer.submit();
+        if (result != LibUsb.SUCCESS) {
+            LibUsbException e = new LibUsbException("Asynchronous transfer of frame header to Push 2 display failed",
+                    result);
+            failSubmission(slot, count, result, e);
+            throw e;
+        }
+        metrics.transferSubmitted();
+        return future;
+    }
+
+    /**
+     * Submit one of the pixel transfers of a slot whose header has been submitted. They must be submitted
+     * in order, so the display receives the lines of the frame from top to bottom.
+     *
+     * @param slot  a slot whose header has been submitted by {@link #submitHeader(Slot, long)}.
+     * @param index the pixel transfer to submit.
+     *
+     * @throws LibUsbException if the transfer could not be submitted, in which case the slot's remaining
+     *                         transfers are given up on.
+     */
+    void submitPixels(Slot slot, int index) {
+        int result = slot.frameTransfers[index].submit();
+        if (result != LibUsb.SUCCESS) {
+            LibUsbException e = new LibUsbException("Asynchronous transfer of frame image to Push 2 display failed",
+                    result);
+            failSubmission(slot, slot.frameTransfers.length - index, result, e);
+            throw e;
+        }
+        metrics.transferSubmitted();
+    }
+
+    /**
+     * Give up on the pixel transfers of a slot which have not yet been submitted, because the pixels they
+     * would send could not be prepared. The frame counts as failed, and the slot returns to the pool once
+     * the transfers already submitted have completed.
+     *
+     * @param slot  a slot whose header has been submitted by {@link #submitHeader(Slot, long)}.
+     * @param index the first pixel transfer which will not be submitted.
+     * @param cause the problem which kept the pixels from being prepared.
+     */
+    void abandonPixels(Slot slot, int index, RuntimeException cause) {
+        slot.failure.compareAndSet(null, cause);
+        release(slot, slot.frameTransfers.length - index);
+    }
+
+    /**
+     * Records that some of a slot's transfers could not be submitted, so the frame has failed.
+     *
+     * @param slot   the slot being submitted.
+     * @param count  the number of transfers which will now never be submitted.
+     * @param result the error reported when submitting the first of them.
+     * @param cause  the exception reporting that error.
+     */
+    private void failSubmission(Slot slot, int count, int result, LibUsbException cause) {
+        metrics.transferError(result);
+        slot.failure.compareAndSet(null, cause);
+        release(slot, count);
+    }
+
+    /**
+     * Return a slot to the pool without submitting it, because it turned out not to be needed.
+     *
+     * @param slot a slot obtained from {@link #acquire(boolean)}.
+     */
+    void abandon(Slot slot) {
+        available.add(slot);
+    }
+
+    /**
+     * Records that some of a slot's transfers have finished (or will never be submitted), returning it to
+     * the pool when none remain outstanding.
+     *
+     * @param slot  the slot whose transfers have finished.
+     * @param count the number of transfers which have finished.
+     */
+    private void release(Slot slot, int count) {
+        if (slot.pending.addAndGet(-count) == 0) {
+            // Grab what we need before the slot returns to the pool, where it can be reused right away.
+            CompletableFuture<Void> future = slot.future;
+            RuntimeException failure = slot.failure.get();
+            if (failure != null) {
+                metrics.frameFailed();
+            } else {
+                long now = System.nanoTime();
+                metrics.frameSent(now - slot.submittedAt, now);
+                metrics.frameLatency(now - slot.requestedAt);
+            }
+            available.add(slot);
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else {
+                future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Wait until no transfers are in flight. If they have not all completed within the timeout, ask LibUsb
+     * to cancel the ones that remain, and give them one more timeout period to report back.
+     *
+     * @param timeoutMs how long to wait, in milliseconds, before cancelling outstanding transfers.
+     *
+     * @return {@code true} if all slots are idle, so it is safe to {@link #free()} the ring.
+     */
+    boolean drain(long timeoutMs) {
+        if (!prepared) {
+            return true;  // There are no transfers which could be in flight.
+        }
+        try {
+            if (awaitIdle(timeoutMs)) {
+                return true;
+            }
+            for (Slot slot : slots) {
+                if (slot.pending.get() > 0) {
+                    if (slot.headerTransfer != null) {
+                        slot.headerTransfer.cancel();
+                    }
+                    for (FrameTransport.Transfer transfer : slot.frameTransfers) {
+                        transfer.cancel();
+                    }
+                }
+            }
+            return awaitIdle(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Wait for all slots to be returned to the pool.
+     *
+     * @param timeoutMs how long to wait, in milliseconds.
+     *
+     * @return {@code true} if all slots became available in time.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (available.size() < slots.length) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Release the native transfers, keeping the frame buffers so the ring can be prepared again. Must only
+     * be called once {@link #drain(long)} has reported that no transfers remain in flight.
+     */
+    void free() {
+        if (!prepared) {
+            return;
+        }
+        for (Slot slot : slots) {
+            if (slot.headerTransfer != null) {
+                slot.headerTransfer.free();
+                slot.headerTransfer = null;
+            }
+            for (int i = 0; i < slot.frameTransfers.length; i++) {
+                slot.frameTransfers[i].free();
+                slot.frameTransfers[i] = null;
+            }
+        }
+        available.clear();
+        prepared = false;
+    }
+}
@@ -0,0 +1,460 @@
+package org.deepsymmetry;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * Finds the way of sending frames which gives a display the most frames per second on the computer it is
+ * attached to. How fast frames reach the Push depends a great deal on the host's USB controller and any hubs
+ * in between, and the best choice of stripe size ({@link PushDisplay#setStripeLines(int)}), number of frames
+ * in flight at once ({@link PushDisplay#setAsyncBufferCount(int)}), and whether the header shares a transfer
+ * with the pixels ({@link PushDisplay#setCombinedHeader(boolean)}) differs from one machine to the next.
+ *
+ * Tuning tries each combination of the candidate settings in turn, keeping as many asynchronous frames in
+ * flight as the setting allows for a short trial period, and measures how many frames per second reach the
+ * display. The fastest combination is applied to the display, and can be remembered (in the user's
+ * {@link Preferences}, by host and USB port), so later runs can simply apply it. Tuning sends whatever is in
+ * the display image, so it is best done at startup before anything else is drawn, and nothing else may send
+ * frames to the display while it runs.
+ *
+ * Sending the header along with the pixels saves a transfer for every frame, but is not among the candidates
+ * unless {@link #setTryCombinedHeader(boolean)} is called, since a setting the Push cannot actually display
+ * could still measure as fast.
+ *
+ * @author James Elliott
+ */
+public class TransferTuner {
+
+    /**
+     * The outcome of trying one combination of settings.
+     */
+    public static class Trial {
+
+        /**
+         * The number of lines sent in each transfer.
+         */
+        private final int stripeLines;
+
+        /**
+         * The number of frames which could be in flight at once.
+         */
+        private final int bufferCount;
+
+        /**
+         * Whether the header was sent in the same transfer as the first pixels.
+         */
+        private final boolean combinedHeader;
+
+        /**
+         * How many frames per second reached the display, or zero if the frames failed.
+         */
+        private final double framesPerSecond;
+
+        /**
+         * Constructor simply sets the immutable fields.
+         *
+         * @param stripeLines     the number of lines sent in each transfer.
+         * @param bufferCount     the number of frames which could be in flight at once.
+         * @param combinedHeader  whether the header was sent in the same transfer as the first pixels.
+         * @param framesPerSecond how many frames per second reached the display.
+         */
+        Trial(int stripeLines, int bufferCount, boolean combinedHeader, double framesPerSecond) {
+            this.stripeLines = stripeLines;
+            this.bufferCount = bufferCount;
+            this.combinedHeader = combinedHeader;
+            this.framesPerSecond = framesPerSecond;
+        }
+
+        /**
+         * Get the number of lines sent in each transfer.
+         *
+         * @return the value to pass to {@link PushDisplay#setStripeLines(int)}.
+         */
+        public int getStripeLines() {
+            return stripeLines;
+        }
+
+        /**
+         * Get the number of frames which could be in flight at once.
+         *
+         * @return the value to pass to {@link PushDisplay#setAsyncBufferCount(int)}.
+         */
+        public int getBufferCount() {
+            return bufferCount;
+        }
+
+        /**
+         * Check whether the header was sent in the same transfer as the first pixels.
+         *
+         * @return the value to pass to {@link PushDisplay#setCombinedHeader(boolean)}.
+         */
+        public boolean isCombinedHeader() {
+            return combinedHeader;
+        }
+
+        /**
+         * Get the measured throughput.
+         *
+         * @return how many frames per second reached the display, zero if the frames failed, or -1 if the
+         *         settings were remembered rather than measured.
+         */
+        public double getFramesPerSecond() {
+            return framesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "Trial[stripeLines=" + stripeLines + ", bufferCount=" + bufferCount + ", combinedHeader=" +
+                    combinedHeader + ", framesPerSecond=" + String.format("%.1f", framesPerSecond) + "]";
+        }
+    }
+
+    /**
+     * The display being tuned.
+     */
+    private final PushDisplay display;
+
+    /**
+     * The stripe sizes to try.
+     */
+    private int[] stripeLineCandidates = new int[] {Wayang.DISPLAY_HEIGHT, 80, 40};
+
+    /**
+     * The numbers of frames in flight to try.
+     */
+    private int[] bufferCountCandidates = new int[] {1, 2, 3};
+
+    /**
+     * Whether to try sending the header in the same transfer as the first pixels.
+     */
+    private boolean tryCombinedHeader = false;
+
+    /**
+     * How long each combination is measured for.
+     */
+    private long trialMillis = 400;
+
+    /**
+     * The trials of the most recent tuning run, in the order they were made.
+     */
+    private final List<Trial> results = new ArrayList<Trial>();
+
+    /**
+     * Create a tuner for a display, which will try the default candidates: whole frames, halves and quarters,
+     * with one, two, or three frames in flight.
+     *
+     * @param display the display whose transfers should be tuned.
+     */
+    public TransferTuner(PushDisplay display) {
+        this.display = display;
+    }
+
+    /**
+     * Choose the stripe sizes to try.
+     *
+     * @param lines the numbers of lines to send in each transfer, each of which must divide the display height
+     *              evenly.
+     *
+     * @throws IllegalArgumentException if no sizes are given, or one does not evenly divide
+     *                                  {@value Wayang#DISPLAY_HEIGHT}.
+     */
+    public void setStripeLineCandidates(int... lines) {
+        if (lines.length == 0) {
+            throw new IllegalArgumentException("At least one stripe size must be tried");
+        }
+        for (int candidate : lines) {
+            if (candidate < 1 || candidate > Wayang.DISPLAY_HEIGHT || Wayang.DISPLAY_HEIGHT % candidate != 0) {
+                throw new IllegalArgumentException("Stripe lines must evenly divide the display height of " +
+                        Wayang.DISPLAY_HEIGHT + ", got " + candidate);
+            }
+        }
+        stripeLineCandidates = lines.clone();
+    }
+
+    /**
+     * Choose the numbers of frames in flight to try.
+     *
+     * @param counts the numbers of asynchronous frame buffers to try.
+     *
+     * @throws IllegalArgumentException if no counts are given, or one is less than one.
+     */
+    public void setBufferCountCandidates(int... counts) {
+        if (counts.length == 0) {
+            throw new IllegalArgumentException("At least one buffer count must be tried");
+        }
+        for (int candidate : counts) {
+            if (candidate < 1) {
+                throw new IllegalArgumentException("At least one asynchronous frame buffer is required");
+            }
+        }
+        bufferCountCandidates = counts.clone();
+    }
+
+    /**
+     * Choose whether to also try sending the header in the same transfer as the first pixels, doubling the
+     * number of combinations. Only enable this after checking by eye that frames sent that way look right on
+     * your Push, since the tuner can only tell how fast the transfers went, not what the display showed.
+     *
+     * @param tryIt {@code true} to try combined headers as well as separate ones.
+     */
+    public void setTryCombinedHeader(boolean tryIt) {
+        tryCombinedHeader = tryIt;
+    }
+
+    /**
+     * Set how long each combination of settings is measured for. Longer trials give steadier results, but
+     * tuning takes this long for every combination, plus a brief warm-up for each.
+     *
+     * @param milliseconds the length of each trial.
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is not positive.
+     */
+    public void setTrialDuration(long milliseconds) {
+        if (milliseconds < 1) {
+            throw new IllegalArgumentException("Trial duration must be positive");
+        }
+        trialMillis = milliseconds;
+    }
+
+    /**
+     * Try every combination of the candidate settings, apply the fastest to the display, and report it. The
+     * display's keep-alive interval is set to zero while tuning, so that every frame is really sent, and then
+     * restored. If every combination fails, the display's original settings are put back, and returned, so
+     * that the result can always safely be passed to {@link #remember(PushDisplay, Trial)}.
+     *
+     * @return the fastest combination, or if none succeeded, the original settings with a throughput of zero.
+     *
+     * @throws org.usb4java.LibUsbException if there is a problem communicating.
+     * @throws IllegalStateException        if the display has been closed, or is waiting to be reconnected.
+     */
+    public Trial tune() {
+        Trial original = currentSettings(display);
+        long keepAlive = display.getKeepAliveInterval();
+        results.clear();
+        Trial best = null;
+        display.setKeepAliveInterval(0);
+        try {
+            for (int combined = 0; combined < (tryCombinedHeader ? 2 : 1); combined++) {
+                for (int lines : stripeLineCandidates) {
+                    for (int count : bufferCountCandidates) {
+                        Trial trial = measure(lines, count, combined == 1);
+                        results.add(trial);
+                        if (best == null || trial.framesPerSecond > best.framesPerSecond) {
+                            best = trial;
+                        }
+                    }
+                }
+            }
+        } finally {
+            display.setKeepAliveInterval(keepAlive);
+            apply(display, (best == null || best.framesPerSecond <= 0) ? original : best);
+        }
+        if (best == null || best.framesPerSecond <= 0) {
+            return new Trial(original.stripeLines, original.bufferCount, original.combinedHeader, 0);
+        }
+        return best;
+    }
+
+    /**
+     * Get the results of each combination tried by the most recent call to {@link #tune()}.
+     *
+     * @return the trials, in the order they were made.
+     */
+    public List<Trial> getResults() {
+        return Collections.unmodifiableList(new ArrayList<Trial>(results));
+    }
+
+    /**
+     * Measure how fast frames are sent with one combination of settings.
+     *
+     * @param lines    the number of lines to send in each transfer.
+     * @param count    the number of frames to keep in flight.
+     * @param combined whether to send the header in the same transfer as the first pixels.
+     *
+     * @return the outcome, with a throughput of zero if any frame failed.
+     */
+    private Trial measure(int lines, int count, boolean combined) {
+        apply(display, new Trial(lines, count, combined, -1));
+        long timeout = display.getTransferTimeout() * 2;
+        Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<CompletableFuture<Void>>();
+        try {
+            for (int i = 0; i < count; i++) {  // Warm up, allocating the buffers and transfers.
+                inFlight.add(display.sendFrameAsync());
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.remove().get(timeout, TimeUnit.MILLISECONDS);
+            }
+
+            long started = System.nanoTime();
+            long deadline = started + TimeUnit.MILLISECONDS.toNanos(trialMillis);
+            long frames = 0;
+            while (System.nanoTime() < deadline) {
+                if (inFlight.size() >= count) {
+                    inFlight.remove().get(timeout, TimeUnit.MILLISECONDS);
+                    frames++;
+                }
+                inFlight.add(display.sendFrameAsync());
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.remove().get(timeout, TimeUnit.MILLISECONDS);
+                frames++;
+            }
+            double seconds = (System.nanoTime() - started) / 1.0e9;
+            return new Trial(lines, count, combined, frames / seconds);
+        } catch (ExecutionException e) {
+            System.err.println("Frames failed while tuning " + display + " with " + lines + " lines, " +
+                    count + " buffers, combined header " + combined + ": " + e.getCause());
+        } catch (TimeoutException e) {
+            System.err.println("Frames timed out while tuning " + display + " with " + lines + " lines, " +
+                    count + " buffers, combined header " + combined);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while tuning transfers", e);
+        }
+        for (CompletableFuture<Void> future : inFlight) {  // Let any stragglers finish before moving on.
+            try {
+                future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // Already reported the problem which stopped this trial.
+            }
+        }
+        return new Trial(lines, count, combined, 0);
+    }
+
+    /**
+     * Find out how a display is currently sending frames.
+     *
+     * @param display the display to check.
+     *
+     * @return its settings, with an unknown throughput.
+     */
+    private static Trial currentSettings(PushDisplay display) {
+        return new Trial(display.getStripeLines(), display.getAsyncBufferCount(), display.isCombinedHeader(), -1);
+    }
+
+    /**
+     * Configure a display to send frames with the settings of a trial.
+     *
+     * @param display the display to configure.
+     * @param trial   the settings to apply.
+     */
+    public static void apply(PushDisplay display, Trial trial) {
+        display.setStripeLines(trial.stripeLines);
+        display.setAsyncBufferCount(trial.bufferCount);
+        display.setCombinedHeader(trial.combinedHeader);
+    }
+
+    /**
+     * Find the preferences node in which settings are remembered for this computer, since preferences may be
+     * shared by machines with very different USB hardware when home directories roam.
+     *
+     * @return the preferences node for the local host.
+     */
+    private static Preferences hostPreferences() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return Preferences.userNodeForPackage(TransferTuner.class).node("transfers").node(host.replace('/', '_'));
+    }
+
+    /**
+     * Remember the best settings for a display on this computer, so they can be applied by
+     * {@link #applyRemembered(PushDisplay)} in future runs without tuning again. Problems saving them are
+     * reported but otherwise ignored, since they only cost tuning again later.
+     *
+     * @param display the display, whose name identifies the USB port to which it is attached.
+     * @param trial   the settings to remember.
+     */
+    public static void remember(PushDisplay display, Trial trial) {
+        try {
+            Preferences preferences = hostPreferences();
+            preferences.put(display.getName(), trial.stripeLines + "," + trial.bufferCount + "," +
+                    trial.combinedHeader);
+            preferences.flush();
+        } catch (BackingStoreException e) {
+            System.err.println("Unable to remember transfer settings for " + display + ": " + e);
+        } catch (RuntimeException e) {  // Such as a security manager refusing access.
+            System.err.println("Unable to remember transfer settings for " + display + ": " + e);
+        }
+    }
+
+    /**
+     * Look up the settings remembered for a display on this computer.
+     *
+     * @param display the display, whose name identifies the USB port to which it is attached.
+     *
+     * @return the remembered settings (with a throughput of -1), or {@code null} if there are none.
+     */
+    public static Trial recall(PushDisplay display) {
+        String value;
+        try {
+            value = hostPreferences().get(display.getName(), null);
+        } catch (RuntimeException e) {  // Such as a security manager refusing access.
+            System.err.println("Unable to recall transfer settings for " + display + ": " + e);
+            return null;
+        }
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        try {
+            int lines = Integer.parseInt(parts[0]);
+            int count = Integer.parseInt(parts[1]);
+            if (parts.length == 3 && lines > 0 && lines <= Wayang.DISPLAY_HEIGHT &&
+                    Wayang.DISPLAY_HEIGHT % lines == 0 && count > 0) {
+                return new Trial(lines, count, Boolean.parseBoolean(parts[2]), -1);
+            }
+        } catch (RuntimeException e) {
+            // Fall through to report the problem.
+        }
+        System.err.println("Ignoring unrecognized transfer settings for " + display + ": " + value);
+        return null;
+    }
+
+    /**
+     * Discard the settings remembered for a display on this computer, so it will be tuned again.
+     *
+     * @param display the display, whose name identifies the USB port to which it is attached.
+     */
+    public static void forget(PushDisplay display) {
+        try {
+            Preferences preferences = hostPreferences();
+            preferences.remove(display.getName());
+            preferences.flush();
+        } catch (BackingStoreException e) {
+            System.err.println("Unable to forget transfer settings for " + display + ": " + e);
+        } catch (RuntimeException e) {  // Such as a security manager refusing access.
+            System.err.println("Unable to forget transfer settings for " + display + ": " + e);
+        }
+    }
+
+    /**
+     * Apply the settings remembered for a display on this computer, if there are any.
+     *
+     * @param display the display to configure.
+     *
+     * @return {@code true} if remembered settings were found and applied.
+     */
+    public static boolean applyRemembered(PushDisplay display) {
+        Trial trial = recall(display);
+        if (trial == null) {
+            return false;
+        }
+        apply(display, trial);
+        return true;
+    }
+}
@@ -0,0 +1,189 @@
+package org.deepsymmetry;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notices when the display image has not changed since the last frame was sent, so the work of encoding
+ * and sending it again can be avoided, apart from the occasional keep-alive frame which prevents the Push
+ * from blanking its display.
+ *
+ * @author James Elliott
+ */
+class UnchangedFrameFilter {
+
+    /**
+     * The possible outcomes of checking a frame.
+     */
+    enum Decision {
+        /**
+         * The frame has changed (or we can't tell), so it needs to be encoded and sent.
+         */
+        ENCODE,
+
+        /**
+         * The frame is unchanged, but it is time for a keep-alive, so the previously encoded bytes should
+         * be sent again.
+         */
+        RESEND,
+
+        /**
+         * The frame is unchanged, and the display has been refreshed recently enough, so nothing needs to
+         * be sent.
+         */
+        SKIP
+    }
+
+    /**
+     * How long we can go without sending a frame, in nanoseconds. If zero, every frame is encoded and sent.
+     */
+    private long keepAliveNanos = 0;
+
+    /**
+     * A copy of the pixels most recently encoded, to compare against the next frame. Allocated the first time
+     * it is needed.
+     */
+    private short[] previousPixels = null;
+
+    /**
+     * A copy of the pixels most recently encoded from a display image held in native memory, to compare
+     * against the next frame. Allocated the first time it is needed.
+     */
+    private ByteBuffer previousBuffer = null;
+
+    /**
+     * Indicates whether {@link #previousPixels} matches what was most recently encoded.
+     */
+    private boolean previousValid = false;
+
+    /**
+     * The {@link System#nanoTime()} at which a frame was last sent.
+     */
+    private long lastSent = 0;
+
+    /**
+     * Set how long we can go without sending a frame when the image is unchanged.
+     *
+     * @param milliseconds the keep-alive interval, or zero to encode and send every frame.
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is negative.
+     */
+    void setKeepAliveInterval(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException("Keep-alive interval cannot be negative");
+        }
+        keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(milliseconds);
+        if (keepAliveNanos == 0) {
+            previousPixels = null;
+            previousBuffer = null;
+            previousValid = false;
+        }
+    }
+
+    /**
+     * Check how long we can go without sending a frame when the image is unchanged.
+     *
+     * @return the keep-alive interval in milliseconds, or zero if every frame is encoded and sent.
+     */
+    long getKeepAliveInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(keepAliveNanos);
+    }
+
+    /**
+     * Decide what needs to be done to send a frame.
+     *
+     * @param pixels the pixels that make up the frame.
+     * @param now    the current {@link System#nanoTime()}.
+     *
+     * @return whether the frame needs to be encoded and sent, re-sent, or can be skipped.
+     */
+    Decision check(short[] pixels, long now) {
+        if (keepAliveNanos == 0 || !previousValid || !Arrays.equals(pixels, previousPixels)) {
+            return Decision.ENCODE;
+        }
+        return (now - lastSent >= keepAliveNanos) ? Decision.RESEND : Decision.SKIP;
+    }
+
+    /**
+     * Decide what needs to be done to send a frame whose pixels are held in native memory.
+     *
+     * @param pixels the buffer holding the pixels that make up the frame.
+     * @param now    the current {@link System#nanoTime()}.
+     *
+     * @return whether the frame needs to be encoded and sent, re-sent, or can be skipped.
+     */
+    Decision check(ByteBuffer pixels, long now) {
+        if (keepAliveNanos == 0 || !previousValid || previousBuffer == null ||
+                !DirectDisplayRaster.sameContent(pixels, previousBuffer)) {
+            return Decision.ENCODE;
+        }
+        return (now - lastSent >= keepAliveNanos) ? Decision.RESEND : Decision.SKIP;
+    }
+
+    /**
+     * Decide what to do about a frame which is already known to be unchanged since the last one encoded, such
+     * as when no lines have been marked dirty.
+     *
+     * @param now the current {@link System#nanoTime()}.
+     *
+     * @return {@link Decision#SKIP} if a frame was sent recently enough, {@link Decision#RESEND} if not, or if
+     *         there is no keep-alive interval, in which case every frame is sent.
+     */
+    Decision unchanged(long now) {
+        if (keepAliveNanos > 0 && now - lastSent < keepAliveNanos) {
+            return Decision.SKIP;
+        }
+        return Decision.RESEND;
+    }
+
+    /**
+     * Record that a frame has been encoded, so later frames can be compared against it.
+     *
+     * @param pixels the pixels that were encoded.
+     */
+    void encoded(short[] pixels) {
+        if (keepAliveNanos > 0) {
+            if (previousPixels == null || previousPixels.length != pixels.length) {
+                previousPixels = new short[pixels.length];
+            }
+            System.arraycopy(pixels, 0, previousPixels, 0, pixels.length);
+            previousBuffer = null;
+            previousValid = true;
+        }
+    }
+
+    /**
+     * Record that a frame whose pixels are held in native memory has been encoded, so later frames can be
+     * compared against it.
+     *
+     * @param pixels the buffer holding the pixels that were encoded.
+     */
+    void encoded(ByteBuffer pixels) {
+        if (keepAliveNanos > 0) {
+            if (previousBuffer == null || previousBuffer.capacity() != pixels.capacity()) {
+                previousBuffer = ByteBuffer.allocateDirect(pixels.capacity()).order(pixels.order());
+            }
+            DirectDisplayRaster.copy(pixels, previousBuffer);
+            previousPixels = null;
+            previousValid = true;
+        }
+    }
+
+    /**
+     * Record that a frame has been sent to the display.
+     *
+     * @param now the current {@link System#nanoTime()}.
+     */
+    void sent(long now) {
+        lastSent = now;
+    }
+
+    /**
+     * Forget the previously encoded frame, because the encoded bytes are no longer available or would now
+     * be encoded differently, so the next frame must be encoded and sent.
+     */
+    void invalidate() {
+        previousValid = false;
+    }
+}
@@ -0,0 +1,126 @@
+package org.deepsymmetry;
+
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.TransferCallback;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Sends frames to an opened Push 2 display using LibUsb bulk transfers to its display endpoint. All the
+ * displays we open share one LibUsb context, and one thread to process its events, which is started the
+ * first time any of them prepares an asynchronous transfer. Created by {@link Wayang} when it opens a display.
+ *
+ * @author James Elliott
+ */
+public class UsbFrameTransport implements FrameTransport {
+
+    /**
+     * The endpoint to which display data is sent.
+     */
+    private static final byte ENDPOINT = 0x01;
+
+    /**
+     * The LibUsb context in which the device was opened, shared with other displays.
+     */
+    private final SharedUsbContext context;
+
+    /**
+     * The opened Push 2 device, whose display interface has been claimed.
+     */
+    private final DeviceHandle handle;
+
+    /**
+     * Constructor sets the device to which frames will be sent.
+     *
+     * @param context the shared LibUsb context in which the device was opened, which must have been acquired
+     *                on behalf of this transport; it will be released when this transport is closed.
+     * @param handle  the opened device, whose display interface has already been claimed; it will be closed
+     *                when this transport is closed.
+     */
+    UsbFrameTransport(SharedUsbContext context, DeviceHandle handle) {
+        this.context = context;
+        this.handle = handle;
+    }
+
+    @Override
+    public int send(ByteBuffer data, IntBuffer transferred, long timeout) {
+        return LibUsb.bulkTransfer(handle, ENDPOINT, data, transferred, timeout);
+    }
+
+    /**
+     * Check whether the thread which processes asynchronous events from LibUsb has stopped unexpectedly,
+     * in which case asynchronous transfers will never complete.
+     *
+     * @return {@code true} if the thread was started and is no longer running.
+     */
+    public boolean hasEventThreadDied() {
+        return context.hasEventThreadDied();
+    }
+
+    @Override
+    public boolean isCompletionThread() {
+        return context.isEventThread();
+    }
+
+    @Override
+    public FrameTransport.Transfer prepare(ByteBuffer data, final Listener listener, Object userData, long timeout) {
+        context.startEventThread();
+        final UsbTransfer result = new UsbTransfer(LibUsb.allocTransfer(), userData);
+        LibUsb.fillBulkTransfer(result.transfer, handle, ENDPOINT, data, new TransferCallback() {
+            @Override
+            public void processTransfer(org.usb4java.Transfer transfer) {
+                listener.transferFinished(result, transfer.status(), transfer.actualLength());
+            }
+        }, null, timeout);
+        return result;
+    }
+
+    /**
+     * Wraps a native LibUsb transfer.
+     */
+    private static class UsbTransfer implements FrameTransport.Transfer {
+
+        /**
+         * The native transfer.
+         */
+        private final org.usb4java.Transfer transfer;
+
+        /**
+         * The value associated with the transfer when it was prepared.
+         */
+        private final Object userData;
+
+        private UsbTransfer(org.usb4java.Transfer transfer, Object userData) {
+            this.transfer = transfer;
+            this.userData = userData;
+        }
+
+        @Override
+        public int submit() {
+            return LibUsb.submitTransfer(transfer);
+        }
+
+        @Override
+        public int cancel() {
+            return LibUsb.cancelTransfer(transfer);
+        }
+
+        @Override
+        public void free() {
+            LibUsb.freeTransfer(transfer);
+        }
+
+        @Override
+        public Object userData() {
+            return userData;
+        }
+    }
+
+    @Override
+    public void close() {
+        LibUsb.close(handle);
+        context.release();
+    }
+}
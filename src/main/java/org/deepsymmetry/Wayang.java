@@ -2,34 +2,34 @@ package org.deepsymmetry;
 
 import org.usb4java.*;
 
+import java.awt.Graphics2D;
 import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Supports drawing images on the Ableton Push 2 graphical display. Uses the excellent documentation Ableton
  * provided at https://github.com/Ableton/push-interface
  *
+ * The static methods work with a single display, the first Push 2 found by {@link #open()}. To drive several
+ * Push 2 units at once, call {@link #openAll()} and work with each {@link PushDisplay} it returns; they share
+ * a single LibUsb context and event thread, but each has its own buffers, image and lock, so frames for
+ * different displays can be encoded and sent in parallel.
+ *
  * @author James Elliott
  */
 public class Wayang {
 
     /**
-     * The libusb context we will use to manage our interaction with the library.
-     */
-    private static final Context context = new Context();
-
-    /**
-     * When we have initialized the library, this will hold the long-lived direct buffer we use to
-     * send pixel data to the display. If it is null, it means the library has not been initialized,
-     * or it has been shut down.
+     * The libusb context shared by all the displays we open.
      */
-    private static ByteBuffer transferBuffer = null;
-
-    /**
-     * A smaller buffer used to send the frame header.
-     */
-    private static ByteBuffer headerBuffer = null;
+    private static final SharedUsbContext usbContext = new SharedUsbContext();
 
     /**
      * The header sent before each frame of display pixels.
@@ -52,120 +52,339 @@ public class Wayang {
     public static final int DISPLAY_HEIGHT = 160;
 
     /**
-     * The number of display lines we send in each USB bulk transfer operation. As @cansik pointed out, we
-     * get better frames per second if we send the whole display at once.
+     * The number of bytes the Push expects to receive for each line of the display.
+     */
+    public static final int BYTES_PER_LINE = 2048;
+
+    /**
+     * The USB vendor ID of Ableton.
      */
-    private static final int LINES_PER_TRANSFER = DISPLAY_HEIGHT;
+    static final short PUSH_VENDOR_ID = 0x2982;
 
     /**
-     * The number of bytes the Push expects to receive for each line of the display.
+     * The USB product ID of the Push 2.
      */
-    private static final int BYTES_PER_LINE = 2048;
+    static final short PUSH_PRODUCT_ID = 0x1967;
 
     /**
-     * When we have opened the Push display, this will hold the device handle we used to open it.
+     * How many milliseconds a USB transfer may take, unless changed by {@link #setTransferTimeout(long)}.
      */
-    private static DeviceHandle pushHandle = null;
+    public static final long DEFAULT_TRANSFER_TIMEOUT = 1000;
 
     /**
-     * When we have opened the Push display, this image will be where we can draw, and obtain pixel
-     * samples in a compatible format to send to it.
+     * The type under which the {@link FrameMetrics} of each open display are registered with the platform
+     * MBean server; a {@code display} key holding the display name completes the object name.
      */
-    private static BufferedImage displayImage = null;
+    public static final String METRICS_OBJECT_NAME = "org.deepsymmetry.wayang:type=FrameMetrics";
 
     /**
-     * Close the Push 2 interface if it is open, and shut down our LibUsb context if it is active.
+     * All the displays which are currently open.
      */
-    public static synchronized void close() {
+    private static final List<PushDisplay> openDisplays = new ArrayList<PushDisplay>();
 
-        // Shut down the asynchronous event processing thread if it was started.
-        if (eventThread != null) {
-            eventThread.abort();
-            try {
-                eventThread.join();
-            } catch (InterruptedException e) {
-                System.err.println("Interrupted waiting for event handling thread to abort.");
-            }
-            eventThread = null;
-        }
+    /**
+     * The display used by the static methods of this class, if one has been opened.
+     */
+    private static PushDisplay defaultDisplay = null;
 
-        if (pushHandle != null) {
-            displayImage = null;
+    /**
+     * Counts the displays opened on transports other than a USB connection to a Push 2, to give them names.
+     */
+    private static int customTransportCount = 0;
 
-            LibUsb.close(pushHandle);
-            pushHandle = null;
+    /**
+     * Close all open Push 2 displays, including the one opened by {@link #open()}, and shut down our LibUsb
+     * context if it is active. Stops their render loops first, if any are running.
+     */
+    public static void close() {
+        List<PushDisplay> displays;
+        HotplugMonitor monitor;
+        synchronized (Wayang.class) {
+            displays = new ArrayList<PushDisplay>(openDisplays);
+            monitor = hotplugMonitor;
+            hotplugMonitor = null;
+        }
+        if (monitor != null) {  // Stop it first, so it does not reconnect displays as we close them.
+            monitor.stop();
         }
-        if (transferBuffer != null) {
-            LibUsb.exit(context);
-            headerBuffer = null;
-            transferBuffer = null;
+        // Close them without holding our lock, so their render loops can finish any frame in progress.
+        for (PushDisplay display : displays) {
+            display.close();
+        }
+    }
+
+    /**
+     * Called when a display has been closed, so we stop keeping track of it.
+     *
+     * @param display the display which was closed.
+     */
+    static synchronized void displayClosed(PushDisplay display) {
+        openDisplays.remove(display);
+        if (defaultDisplay == display) {
+            defaultDisplay = null;
         }
     }
 
     /**
-     * Locate the Push 2 in the USB environment.
+     * Find a display we already have open.
      *
-     * @return the device object representing it, or null if it could not be found.
+     * @param name the name of the display.
      *
-     * @throws LibUsbException if there is a problem communicating with the USB environment.
+     * @return the display with that name, or {@code null} if we have none open.
      */
-    private static DeviceHandle findPush() {
-        // Read the USB device list
-        DeviceList list = new DeviceList();
-        int result = LibUsb.getDeviceList(context, list);
-        if (result < 0) {
-            throw new LibUsbException("Unable to get device list", result);
+    private static PushDisplay findOpenDisplay(String name) {
+        for (PushDisplay display : openDisplays) {
+            if (display.getName().equals(name)) {
+                return display;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Come up with a name for a Push 2 which stays the same while it is attached to the same USB port.
+     *
+     * @param device the device.
+     *
+     * @return the bus number, followed by the port numbers through which it is attached.
+     */
+    static String deviceName(Device device) {
+        StringBuilder name = new StringBuilder("usb-").append(LibUsb.getBusNumber(device));
+        ByteBuffer ports = ByteBuffer.allocateDirect(8);
+        int count = LibUsb.getPortNumbers(device, ports);
+        if (count > 0) {
+            for (int i = 0; i < count; i++) {
+                name.append(i == 0 ? '-' : '.').append(ports.get(i) & 0xff);
+            }
+        } else {  // Port numbers are not available on this platform, fall back to the device address.
+            name.append("-address").append(LibUsb.getDeviceAddress(device));
         }
+        return name.toString();
+    }
 
+    /**
+     * Locate the Push 2 units in the USB environment, and open the ones we do not already have open. A Push
+     * whose display cannot be claimed, for example because another program is using it, is reported and
+     * skipped. If enumeration fails partway through, the displays opened so far are closed again, rather than
+     * being left claimed but never returned.
+     *
+     * @param firstOnly if {@code true}, stop as soon as one has been found.
+     * @param opened    the displays which were not already open, and so may need to be tuned, are added to this.
+     *
+     * @return the displays of all the Push 2 units found, which may be empty.
+     *
+     * @throws LibUsbException if there is a problem communicating with the USB environment, or a Push 2 was
+     *                         found but none of them could be opened.
+     */
+    private static List<PushDisplay> openPushDisplays(boolean firstOnly, List<PushDisplay> opened) {
+        final long started = System.nanoTime();
+        List<PushDisplay> result = new ArrayList<PushDisplay>();
+        LibUsbException claimFailure = null;
+        Context context = usbContext.acquire();  // Keep it initialized while we look.
         try {
-            // Iterate over all devices and scan for the right one
-            for (Device device : list) {
-                DeviceDescriptor descriptor = new DeviceDescriptor();
-                result = LibUsb.getDeviceDescriptor(device, descriptor);
-                if (result != LibUsb.SUCCESS) {
-                    throw new LibUsbException("Unable to read device descriptor", result);
-                }
-                if (descriptor.bDeviceClass() == LibUsb.CLASS_PER_INTERFACE &&
-                        descriptor.idVendor() == 0x2982 && descriptor.idProduct() == 0x1967) {
-
-                    DeviceHandle handle = new DeviceHandle();
-                    result = LibUsb.open(device, handle);
-                    if (result == LibUsb.SUCCESS) {
-                        return handle;
-                    }  // Just ignore failures; Windows has spurious, non-working entries which match but fail to open
+            // Read the USB device list
+            DeviceList list = new DeviceList();
+            int status = LibUsb.getDeviceList(context, list);
+            if (status < 0) {
+                throw new LibUsbException("Unable to get device list", status);
+            }
+
+            try {
+                // Iterate over all devices and scan for the right ones
+                for (Device device : list) {
+                    if (isPush(device)) {
+                        String name = deviceName(device);
+                        PushDisplay display = findOpenDisplay(name);
+                        if (display == null) {
+                            DeviceHandle handle = new DeviceHandle();
+                            status = LibUsb.open(device, handle);
+                            if (status == LibUsb.SUCCESS) {
+                                try {
+                                    display = openPushDisplay(name, handle);
+                                    display.getMetrics().connecting(started);
+                                    opened.add(display);
+                                } catch (LibUsbException e) {  // Probably in use by another program, try the others.
+                                    System.err.println("Unable to open Push 2 " + name + ", skipping it: " +
+                                            e.getMessage());
+                                    claimFailure = e;
+                                }
+                            }  // Just ignore failures; Windows has spurious, non-working entries which match but fail to open
+                        }
+                        if (display != null) {
+                            result.add(display);
+                            if (firstOnly) {
+                                break;
+                            }
+                        }
+                    }
                 }
+            } finally {
+                // Ensure the allocated device list is freed
+                LibUsb.freeDeviceList(list, true);
             }
+        } catch (RuntimeException e) {
+            for (PushDisplay display : opened) {  // Nobody else knows about them, so don't leave them claimed.
+                display.close();
+            }
+            opened.clear();
+            throw e;
         } finally {
-            // Ensure the allocated device list is freed
-            LibUsb.freeDeviceList(list, true);
+            usbContext.release();
+        }
+        if (result.isEmpty() && claimFailure != null) {
+            throw claimFailure;  // More helpful than reporting that no Push 2 could be found.
         }
+        if (autoReconnect && hotplugMonitor == null && !result.isEmpty()) {
+            startHotplugMonitor();
+        }
+        return result;
+    }
 
-        // Device not found
-        return null;
+    /**
+     * Check whether a USB device is a Push 2.
+     *
+     * @param device the device to check.
+     *
+     * @return {@code true} if it has the vendor and product IDs, and device class, of a Push 2.
+     *
+     * @throws LibUsbException if the device descriptor cannot be read.
+     */
+    private static boolean isPush(Device device) {
+        DeviceDescriptor descriptor = new DeviceDescriptor();
+        int status = LibUsb.getDeviceDescriptor(device, descriptor);
+        if (status != LibUsb.SUCCESS) {
+            throw new LibUsbException("Unable to read device descriptor", status);
+        }
+        return descriptor.bDeviceClass() == LibUsb.CLASS_PER_INTERFACE &&
+                descriptor.idVendor() == PUSH_VENDOR_ID && descriptor.idProduct() == PUSH_PRODUCT_ID;
     }
 
     /**
      * Opens the Push 2 display interface when the device has been found and opened.
      *
+     * @param name   the name which identifies the device.
      * @param handle the opened Push 2 device.
      *
+     * @return the opened display.
+     *
      * @throws LibUsbException if there is a problem communicating with the USB environment.
      */
-    private static void openPushDisplay(DeviceHandle handle) {
+    private static PushDisplay openPushDisplay(String name, DeviceHandle handle) {
         int result = LibUsb.claimInterface(handle, 0);
         if (result < 0) {
             LibUsb.close(handle);
             throw new LibUsbException("Unable to claim interface 0 of Push 2 device", result);
         }
-        pushHandle = handle;
+        usbContext.acquire();  // Held on behalf of the transport, which releases it when closed.
+        return openDisplay(name, new UsbFrameTransport(usbContext, handle));
+    }
+
+    /**
+     * Creates a display which sends frames over a transport, configured with the current defaults, and
+     * starts keeping track of it. If it is the first display, it becomes the one used by our static methods.
+     *
+     * @param name           the name which identifies the display.
+     * @param frameTransport the transport over which frames will be sent.
+     *
+     * @return the opened display.
+     */
+    private static PushDisplay openDisplay(String name, FrameTransport frameTransport) {
+        PushDisplay display;
+        try {
+            display = new PushDisplay(name, frameTransport, frameEncoder, keepAliveInterval, asyncBufferCount,
+                    rasterMode);
+            display.setStripeLines(stripeLines);
+            display.setCombinedHeader(combinedHeader);
+            display.setTransferTimeout(transferTimeout);
+            display.setDithering(dithering);
+            display.setDirtyTracking(dirtyTracking);
+            display.setAutoReconnect(autoReconnect);
+        } catch (RuntimeException e) {
+            frameTransport.close();
+            throw e;
+        }
+        openDisplays.add(display);
+        if (defaultDisplay == null) {
+            defaultDisplay = display;
+        }
+        return display;
+    }
 
-        // Create the buffered image which we can draw to, and which will convert that into pixel data
-        // in the arrangement the Push wants.
+    /**
+     * Create the buffered image which we can draw to, and which will convert that into pixel data
+     * in the arrangement the Push wants.
+     *
+     * @return an image with the dimensions and pixel format of the Push 2 display.
+     */
+    static BufferedImage createDisplayImage() {
         ColorModel colorModel = new DirectColorModel(16, 0x001f, 0x07e0, 0xf800);
         int[] bandMasks = new int[] {0x001f, 0x07e0, 0xf800};
         WritableRaster raster = WritableRaster.createPackedRaster(DataBuffer.TYPE_USHORT,
                 DISPLAY_WIDTH, DISPLAY_HEIGHT, bandMasks, null);
-        displayImage = new BufferedImage(colorModel, raster, false, null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Find the array which holds the pixels of an image created by {@link #createDisplayImage()}, one per
+     * short, with no padding between lines.
+     *
+     * @param image the display image.
+     *
+     * @return the array backing its raster.
+     */
+    static short[] displayPixels(BufferedImage image) {
+        return ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Allocate a direct buffer suitable for sending pixel data to the display, in the byte order that
+     * {@link FrameEncoder} implementations rely on.
+     *
+     * @param lines the number of display lines the buffer needs to hold.
+     *
+     * @return the newly allocated buffer.
+     */
+    public static ByteBuffer allocateFrameBuffer(int lines) {
+        return ByteBuffer.allocateDirect(BYTES_PER_LINE * lines).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Allocate a direct buffer holding the header which is sent before each frame.
+     *
+     * @return the newly allocated buffer.
+     */
+    static ByteBuffer createHeaderBuffer() {
+        ByteBuffer headerBuffer = ByteBuffer.allocateDirect(frameHeader.length);
+        headerBuffer.put(frameHeader);
+        return headerBuffer;
+    }
+
+    /**
+     * Allocate a direct buffer holding the frame header, followed by room for pixel data, so that both can be
+     * sent in a single transfer.
+     *
+     * @param frameBytes the number of bytes of pixel data the buffer needs to hold.
+     *
+     * @return the newly allocated buffer, with the header already in place.
+     */
+    static ByteBuffer allocateCombinedBuffer(int frameBytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frameHeader.length + frameBytes);
+        buffer.put(frameHeader);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Find the part of a buffer returned by {@link #allocateCombinedBuffer(int)} which holds pixel data.
+     *
+     * @param combined the buffer holding a header followed by pixel data.
+     *
+     * @return a little-endian view of just the pixel data, which {@link FrameEncoder}s can write into.
+     */
+    static ByteBuffer framePart(ByteBuffer combined) {
+        ByteBuffer view = combined.duplicate();
+        view.clear().position(frameHeader.length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
     }
 
     /**
@@ -175,8 +394,9 @@ public class Wayang {
     private static boolean shutdownHookInstalled = false;
 
     /**
-     * Set up a connection to libusb, find the Push 2, and open its display interface.
-     * If the display is already open, simply returns the existing buffered image.
+     * Set up a connection to libusb, find the Push 2, and open its display interface. If several are
+     * attached, the first one found is used. If the display is already open, simply returns the existing
+     * buffered image.
      *
      * @return an image in which anything drawn will be sent to the Push 2 display whenever you call
      *         the sendFrame method.
@@ -184,9 +404,135 @@ public class Wayang {
      * @throws LibUsbException       if there is a problem communicating with the USB environment.
      * @throws IllegalStateException if no Push 2 can be found.
      */
-    public static synchronized BufferedImage open() {
+    public static BufferedImage open() {
+        List<PushDisplay> opened = new ArrayList<PushDisplay>();
+        PushDisplay display;
+        boolean tune;
+        synchronized (Wayang.class) {
+            installShutdownHook();
+
+            if (defaultDisplay == null) {  // We are not already open
+                List<PushDisplay> displays = openPushDisplays(true, opened);
+                if (displays.isEmpty()) {
+                    throw new IllegalStateException("Unable to find Ableton Push 2 display device");
+                }
+                defaultDisplay = displays.get(0);
+            }
+            display = defaultDisplay;
+            tune = autoTuneTransfers;
+        }
+        if (tune) {
+            autoTune(opened);
+        }
+
+        return display.getImage();
+    }
+
+    /**
+     * Find every Push 2 attached to the computer, and open the display of each one that we do not already
+     * have open. The displays share a single LibUsb context and event thread, but are otherwise independent,
+     * so each can be drawn to and sent frames from its own thread (for example by its own render loop)
+     * without waiting for the others. If no display had been opened yet, the first one returned becomes the
+     * one used by the static methods of this class. Units whose displays cannot be claimed, for example because
+     * another program is using them, are reported and skipped.
+     *
+     * @return the displays of all attached Push 2 units, which will be empty if none could be found.
+     *
+     * @throws LibUsbException if there is a problem communicating with the USB environment, or none of the
+     *                         Push 2 units found could be opened.
+     */
+    public static List<PushDisplay> openAll() {
+        List<PushDisplay> opened = new ArrayList<PushDisplay>();
+        List<PushDisplay> result;
+        boolean tune;
+        synchronized (Wayang.class) {
+            installShutdownHook();
+            result = openPushDisplays(false, opened);
+            tune = autoTuneTransfers;
+        }
+        if (tune) {
+            autoTune(opened);
+        }
+        return result;
+    }
+
+    /**
+     * Open the display using a transport other than the default LibUsb connection to a Push 2, for example a
+     * {@link LoopbackFrameTransport} to test or profile an application without hardware. Everything else
+     * works just as if {@link #open()} had been called. If the display is already open, simply returns the
+     * existing buffered image, and the transport is not used.
+     *
+     * @param frameTransport the transport over which frames will be sent; it will be closed by {@link #close()}.
+     *
+     * @return an image in which anything drawn will be sent over the transport whenever you call
+     *         the sendFrame method.
+     */
+    public static synchronized BufferedImage open(FrameTransport frameTransport) {
+        if (frameTransport == null) {
+            throw new IllegalArgumentException("frameTransport must not be null");
+        }
+        if (defaultDisplay == null) {  // We are not already open
+            openDisplay(frameTransport);
+        }
+        return defaultDisplay.getImage();
+    }
+
+    /**
+     * Open an additional display which sends its frames over the specified transport, for example a
+     * {@link LoopbackFrameTransport} to test or profile an application that drives several displays. If no
+     * display had been opened yet, this becomes the one used by the static methods of this class.
+     *
+     * @param frameTransport the transport over which frames will be sent; it will be closed when the
+     *                       display is closed.
+     *
+     * @return the opened display.
+     */
+    public static synchronized PushDisplay openDisplay(FrameTransport frameTransport) {
+        if (frameTransport == null) {
+            throw new IllegalArgumentException("frameTransport must not be null");
+        }
+        installShutdownHook();
+        customTransportCount++;
+        return openDisplay("transport-" + customTransportCount, frameTransport);
+    }
+
+    /**
+     * Get the display used by the static methods of this class.
+     *
+     * @return the display opened by {@link #open()}, or the first one opened some other way, or {@code null}
+     *         if no display is open.
+     */
+    public static synchronized PushDisplay getDisplay() {
+        return defaultDisplay;
+    }
+
+    /**
+     * Get all the displays which are currently open.
+     *
+     * @return a snapshot of the open displays.
+     */
+    public static synchronized List<PushDisplay> getDisplays() {
+        return new ArrayList<PushDisplay>(openDisplays);
+    }
+
+    /**
+     * Get the display used by the static methods of this class, making sure there is one.
+     *
+     * @return the display.
+     *
+     * @throws IllegalStateException if no display has been opened.
+     */
+    private static synchronized PushDisplay requireDisplay() {
+        if (defaultDisplay == null) {
+            throw new IllegalStateException("Push 2 device has not been opened");
+        }
+        return defaultDisplay;
+    }
 
-        // Set up hook to close gracefully at shutdown, if we have not already done so.
+    /**
+     * Set up hook to close gracefully at shutdown, if we have not already done so.
+     */
+    private static synchronized void installShutdownHook() {
         if (!shutdownHookInstalled) {
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 public void run() {
@@ -195,156 +541,860 @@ public class Wayang {
             });
             shutdownHookInstalled = true;
         }
+    }
 
-        if (displayImage == null) {  // We are not already open
-            // Try initializing libusb
-            int result = LibUsb.init(context);
-            if (result != LibUsb.SUCCESS) {
-                throw new LibUsbException("Unable to initialize libusb", result);
-            }
+    /**
+     * Get the statistics describing how well frames are reaching the display: how many have been sent,
+     * skipped, dropped or failed, the achieved frame rate, how long encoding and transfers take, and which
+     * errors LibUsb has reported. These are also published over JMX while the display is open, under the
+     * type {@value #METRICS_OBJECT_NAME}. They start from zero each time the display is opened.
+     *
+     * @return the frame metrics of the display opened by {@link #open()}.
+     *
+     * @throws IllegalStateException if the Push 2 has not been opened.
+     */
+    public static FrameMetrics getMetrics() {
+        return requireDisplay().getMetrics();
+    }
 
-            // Things look promising so allocate our byte buffers
-            transferBuffer = ByteBuffer.allocateDirect(BYTES_PER_LINE * LINES_PER_TRANSFER);
-            headerBuffer = ByteBuffer.allocateDirect(frameHeader.length);
-            headerBuffer.put(frameHeader);
+    /**
+     * Name of the system property which can be set to {@code scalar} or {@code wide} to override the choice
+     * of frame encoder made by {@link #defaultFrameEncoder()}.
+     */
+    public static final String FRAME_ENCODER_PROPERTY = "org.deepsymmetry.wayang.encoder";
 
-            try {
-                DeviceHandle handle = findPush();
-                if (handle != null) {
-                    openPushDisplay(handle);
-                } else {
-                    throw new IllegalStateException("Unable to find Ableton Push 2 display device");
-                }
-            } catch (RuntimeException e) {
-                close();
-                throw e;
-            }
+    /**
+     * Choose the frame encoder to use when none has been explicitly configured. The wide encoder relies on
+     * little-endian long writes, so it is chosen when those are native to the platform, unless overridden
+     * by the {@link #FRAME_ENCODER_PROPERTY} system property.
+     *
+     * @return the encoder most likely to be fastest on this platform.
+     */
+    static FrameEncoder defaultFrameEncoder() {
+        String choice = System.getProperty(FRAME_ENCODER_PROPERTY);
+        if ("scalar".equalsIgnoreCase(choice)) {
+            return new ScalarFrameEncoder();
+        }
+        if ("wide".equalsIgnoreCase(choice) || ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            return new WideFrameEncoder();
         }
+        return new ScalarFrameEncoder();
+    }
+
+    /**
+     * The encoder given to displays when they are opened.
+     */
+    private static FrameEncoder frameEncoder = defaultFrameEncoder();
 
-        return displayImage;
+    /**
+     * Choose how pixels will be expanded and masked to prepare them for sending to the display opened by
+     * {@link #open()}, and to any displays opened later. Displays which are already open can be configured
+     * using {@link PushDisplay#setFrameEncoder(FrameEncoder)}.
+     *
+     * @param encoder the encoder to use for subsequent frames.
+     *
+     * @throws IllegalArgumentException if {@code encoder} is {@code null}.
+     */
+    public static synchronized void setFrameEncoder(FrameEncoder encoder) {
+        if (encoder == null) {
+            throw new IllegalArgumentException("encoder must not be null");
+        }
+        frameEncoder = encoder;
+        if (defaultDisplay != null) {
+            defaultDisplay.setFrameEncoder(encoder);
+        }
     }
 
     /**
-     * Expand an array of shorts representing eight rows of individual pixel samples into an array of bytes
-     * with padding at the end of each row so it takes an even 2,048 bytes, masking the pixel data with the
-     * "signal shaping pattern" required by the Push 2 display.
+     * Check how pixels are being expanded and masked to prepare them for sending to the display.
      *
-     * @param pixels      the unmasked, un-padded pixel data, with one pixel in each short
-     * @param destination an array into which the split, padded, and masked pixel bytes should be stored
+     * @return the encoder used by the display opened by {@link #open()}, or which will be used by displays
+     *         opened in the future if none is open.
      */
-    private static void maskPixels(short[] pixels, byte[] destination) {
-        for (int y = 0; y < LINES_PER_TRANSFER; y++) {
-            for (int x = 0; x < DISPLAY_WIDTH; x+= 2) {
-                int pixelOffset = (y * DISPLAY_WIDTH) + x;
-                int destinationOffset = (y * BYTES_PER_LINE) + (x * 2);
-                destination[destinationOffset] = (byte)((pixels[pixelOffset] & 0xff) ^ 0xe7);
-                destination[destinationOffset + 1] = (byte)((pixels[pixelOffset] >>> 8) ^ 0xf3);
-                destination[destinationOffset + 2] = (byte)((pixels[pixelOffset + 1] &0xff) ^ 0xe7);
-                destination[destinationOffset + 3] = (byte)((pixels[pixelOffset + 1] >>> 8) ^ 0xff);
-            }
+    public static synchronized FrameEncoder getFrameEncoder() {
+        return (defaultDisplay == null) ? frameEncoder : defaultDisplay.getFrameEncoder();
+    }
+
+    /**
+     * The keep-alive interval given to displays when they are opened.
+     */
+    private static long keepAliveInterval = 0;
+
+    /**
+     * Set how often frames must be sent even if the display image has not changed, for the display opened
+     * by {@link #open()} and any displays opened later. See {@link PushDisplay#setKeepAliveInterval(long)}
+     * for details. The default value, zero, encodes and sends every frame.
+     *
+     * @param milliseconds the longest time to go without sending a frame, or zero to always send them.
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is negative.
+     */
+    public static synchronized void setKeepAliveInterval(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException("Keep-alive interval cannot be negative");
+        }
+        keepAliveInterval = milliseconds;
+        if (defaultDisplay != null) {
+            defaultDisplay.setKeepAliveInterval(milliseconds);
         }
     }
 
     /**
-     * Send a frame of pixels, corresponding to whatever has been drawn in the image returned by open(),
-     * to the display.
+     * Check how often frames are sent even if the display image has not changed.
      *
-     * @throws LibUsbException       if there is a problem communicating.
-     * @throws IllegalStateException if the Push 2 has not been opened.
+     * @return the longest time to go without sending a frame, in milliseconds, or zero if every frame is sent.
      */
-    public static synchronized void sendFrame() {
-        if (transferBuffer == null) {
-            throw new IllegalStateException("Push 2 device has not been opened");
+    public static synchronized long getKeepAliveInterval() {
+        return (defaultDisplay == null) ? keepAliveInterval : defaultDisplay.getKeepAliveInterval();
+    }
+
+    /**
+     * The number of asynchronous frame buffers given to displays when they are opened.
+     */
+    private static int asyncBufferCount = 3;
+
+    /**
+     * Set the number of frames which can be queued to the display asynchronously at once, each of which
+     * needs its own frame buffer, for displays opened later and for the display opened by {@link #open()}.
+     *
+     * @param count the number of frame buffers to allocate for asynchronous sending.
+     *
+     * @throws IllegalArgumentException if {@code count} is less than one.
+     */
+    public static synchronized void setAsyncBufferCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one asynchronous frame buffer is required");
         }
-        IntBuffer transferred = IntBuffer.allocate(1);
-        int result = LibUsb.bulkTransfer(pushHandle, (byte) 0x01, headerBuffer, transferred, 1000);
-        if (result != LibUsb.SUCCESS) {
-            throw new LibUsbException("Transfer of frame header to Push 2 display failed", result);
-        }
-
-        // We send many lines at a time to the display; allocate buffers big enough to receive them,
-        // expand with the row stride padding, and mask with the signal shaping pattern.
-        short[] pixels = new short[LINES_PER_TRANSFER * DISPLAY_WIDTH];
-        byte[] maskedChunk = new byte[LINES_PER_TRANSFER * BYTES_PER_LINE];
-        for (int i = 0; i < (DISPLAY_HEIGHT / LINES_PER_TRANSFER); i++) {
-            displayImage.getRaster().getDataElements(
-                    0, i * LINES_PER_TRANSFER, DISPLAY_WIDTH, LINES_PER_TRANSFER, pixels);
-            maskPixels(pixels, maskedChunk);
-            transferBuffer.clear();
-            transferBuffer.put(maskedChunk);
-            transferred.clear();
-            result = LibUsb.bulkTransfer(pushHandle, (byte) 0x01, transferBuffer, transferred, 1000);
-            if (result != LibUsb.SUCCESS) {
-                throw new LibUsbException("Transfer of frame image to Push 2 display failed", result);
-            }
+        asyncBufferCount = count;
+        if (defaultDisplay != null) {
+            defaultDisplay.setAsyncBufferCount(count);
         }
     }
 
     /**
-     * Will hold the thread which processes asynchronous events from LibUsb when {@link #sendFrameAsync()} is used.
+     * Check the number of frames which can be queued to the display asynchronously at once.
+     *
+     * @return the number of asynchronous frame buffers.
+     */
+    public static synchronized int getAsyncBufferCount() {
+        return (defaultDisplay == null) ? asyncBufferCount : defaultDisplay.getAsyncBufferCount();
+    }
+
+    /**
+     * Whether displays send the frame header in the same transfer as the first pixels when they are opened.
      */
-    private static EventHandlingThread eventThread = null;
+    private static boolean combinedHeader = false;
 
     /**
-     * Start the thread to process asynchronous events from LibUsb if it is not already running.
+     * Choose whether the frame header is sent in the same USB transfer as the first pixels of each frame, for
+     * displays opened later and for the display opened by {@link #open()}. See
+     * {@link PushDisplay#setCombinedHeader(boolean)} for details.
+     *
+     * @param combined {@code true} to send the header along with the pixels.
      */
-    private static synchronized void startEventThread() {
-        if (eventThread == null) {
-            eventThread = new EventHandlingThread(context);
-            eventThread.start();
+    public static synchronized void setCombinedHeader(boolean combined) {
+        combinedHeader = combined;
+        if (defaultDisplay != null) {
+            defaultDisplay.setCombinedHeader(combined);
         }
     }
 
     /**
-     * Send a frame of pixels asynchronously, corresponding to whatever has been drawn in the image returned by open(),
-     * to the display.
+     * Check whether the frame header is sent in the same transfer as the first pixels of each frame.
      *
-     * @throws LibUsbException       if there is a problem communicating.
-     * @throws IllegalStateException if the Push 2 has not been opened.
+     * @return {@code true} if the header is combined with the pixels.
      */
-    public static synchronized void sendFrameAsync() {
-        if (transferBuffer == null) {
-            throw new IllegalStateException("Push 2 device has not been opened.");
-        }
-        startEventThread();
-        Transfer headerTransfer = LibUsb.allocTransfer();
-        LibUsb.fillBulkTransfer(headerTransfer, pushHandle, (byte) 0x01, headerBuffer, new TransferCallback() {
-            @Override
-            public void processTransfer(Transfer transfer) {
-                // Could look at transfer.status and transfer.actualLength here and report issues once we have
-                // a logging framework or outer callback interface.
-                LibUsb.freeTransfer(transfer);
-            }
-        }, null, 1000);
-
-        int result = LibUsb.submitTransfer(headerTransfer);
-        if (result != LibUsb.SUCCESS) {
-            throw new LibUsbException("Asynchronous transfer of frame header to Push 2 display failed", result);
-        }
-
-        // We send many lines at a time to the display; allocate buffers big enough to receive them,
-        // expand with the row stride padding, and mask with the signal shaping pattern.
-        short[] pixels = new short[LINES_PER_TRANSFER * DISPLAY_WIDTH];
-        byte[] maskedChunk = new byte[LINES_PER_TRANSFER * BYTES_PER_LINE];
-        for (int i = 0; i < (DISPLAY_HEIGHT / LINES_PER_TRANSFER); i++) {
-            displayImage.getRaster().getDataElements(
-                    0, i * LINES_PER_TRANSFER, DISPLAY_WIDTH, LINES_PER_TRANSFER, pixels);
-            maskPixels(pixels, maskedChunk);
-            transferBuffer.clear();
-            transferBuffer.put(maskedChunk);
-            Transfer frameTransfer = LibUsb.allocTransfer();
-            LibUsb.fillBulkTransfer(frameTransfer, pushHandle, (byte) 0x01, transferBuffer, new TransferCallback() {
-                @Override
-                public void processTransfer(Transfer transfer) {
-                    // Again could report issues based on transfer.status and transfer.actualLength once there's a way.
-                    LibUsb.freeTransfer(transfer);
-                }
-            }, null, 1000);
-            result = LibUsb.submitTransfer(frameTransfer);
+    public static synchronized boolean isCombinedHeader() {
+        return (defaultDisplay == null) ? combinedHeader : defaultDisplay.isCombinedHeader();
+    }
 
-            if (result != LibUsb.SUCCESS) {
-                throw new LibUsbException("Asynchronous transfer of frame image to Push 2 display failed", result);
-            }
+    /**
+     * How long USB transfers may take before they are abandoned, for displays when they are opened.
+     */
+    private static long transferTimeout = DEFAULT_TRANSFER_TIMEOUT;
+
+    /**
+     * Set how long a USB transfer may take before it is abandoned and reported as a failure, for displays
+     * opened later and for the display opened by {@link #open()}.
+     *
+     * @param milliseconds the transfer timeout; the default is {@value #DEFAULT_TRANSFER_TIMEOUT}.
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is not positive.
+     */
+    public static synchronized void setTransferTimeout(long milliseconds) {
+        if (milliseconds < 1) {
+            throw new IllegalArgumentException("Transfer timeout must be positive");
+        }
+        transferTimeout = milliseconds;
+        if (defaultDisplay != null) {
+            defaultDisplay.setTransferTimeout(milliseconds);
+        }
+    }
+
+    /**
+     * Check how long a USB transfer may take before it is abandoned.
+     *
+     * @return the transfer timeout, in milliseconds.
+     */
+    public static synchronized long getTransferTimeout() {
+        return (defaultDisplay == null) ? transferTimeout : defaultDisplay.getTransferTimeout();
+    }
+
+    /**
+     * Whether Push 2 displays have their transfers tuned when they are opened.
+     */
+    private static boolean autoTuneTransfers = false;
+
+    /**
+     * Choose whether Push 2 displays opened later have their way of sending frames tuned for this computer.
+     * When enabled, a display opened over USB is given the settings remembered for its USB port by an earlier
+     * run, or if there are none, is tuned by a {@link TransferTuner} with its default candidates (which takes
+     * a few seconds, sending whatever is in the display image), and the result remembered for next time.
+     *
+     * @param enabled {@code true} to tune displays when they are opened.
+     */
+    public static synchronized void setAutoTuneTransfers(boolean enabled) {
+        autoTuneTransfers = enabled;
+    }
+
+    /**
+     * Check whether Push 2 displays have their transfers tuned when they are opened.
+     *
+     * @return {@code true} if displays are tuned when they are opened.
+     */
+    public static synchronized boolean isAutoTuneTransfers() {
+        return autoTuneTransfers;
+    }
+
+    /**
+     * Tune the way the display opened by {@link #open()} sends frames, using a {@link TransferTuner} with its
+     * default candidates, and remember the result for next time. This takes a few seconds, sending whatever is
+     * in the display image, and nothing else may send frames while it runs.
+     *
+     * @return the fastest combination of settings, which has been applied to the display.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the device has not been opened.
+     */
+    public static TransferTuner.Trial tuneTransfers() {
+        PushDisplay display = requireDisplay();
+        TransferTuner.Trial best = new TransferTuner(display).tune();
+        if (best.getFramesPerSecond() > 0) {
+            TransferTuner.remember(display, best);
         }
+        return best;
+    }
+
+    /**
+     * Apply remembered transfer settings to newly opened Push 2 displays, or find and remember them. Since
+     * tuning takes a few seconds, this is called without holding our lock, so other displays can be opened and
+     * used meanwhile. Each display is tuned while holding its own lock instead, so nothing else can send it
+     * frames or change its settings until tuning is done.
+     *
+     * @param displays the displays which have just been opened.
+     */
+    private static void autoTune(List<PushDisplay> displays) {
+        for (PushDisplay display : displays) {
+            synchronized (display) {
+                if (display.isOpen() && !TransferTuner.applyRemembered(display)) {
+                    TransferTuner.Trial best = new TransferTuner(display).tune();
+                    if (best.getFramesPerSecond() > 0) {
+                        TransferTuner.remember(display, best);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of lines encoded and sent together by displays when they are opened.
+     */
+    private static int stripeLines = DISPLAY_HEIGHT;
+
+    /**
+     * Set how many lines of the display are encoded and sent together, for displays opened later and for
+     * the display opened by {@link #open()}. The default sends the whole frame in one transfer; smaller
+     * stripes are encoded in parallel and sent as soon as each is ready, getting frames onto the display
+     * sooner. See {@link PushDisplay#setStripeLines(int)} for details.
+     *
+     * @param lines the number of lines in each stripe, which must divide the display height evenly.
+     *
+     * @throws IllegalArgumentException if {@code lines} does not evenly divide {@value #DISPLAY_HEIGHT}.
+     */
+    public static synchronized void setStripeLines(int lines) {
+        if (lines < 1 || lines > DISPLAY_HEIGHT || DISPLAY_HEIGHT % lines != 0) {
+            throw new IllegalArgumentException("Stripe lines must evenly divide the display height of " +
+                    DISPLAY_HEIGHT + ", got " + lines);
+        }
+        stripeLines = lines;
+        if (defaultDisplay != null) {
+            defaultDisplay.setStripeLines(lines);
+        }
+    }
+
+    /**
+     * Check how many lines of the display are encoded and sent together.
+     *
+     * @return the number of lines in each stripe.
+     */
+    public static synchronized int getStripeLines() {
+        return (defaultDisplay == null) ? stripeLines : defaultDisplay.getStripeLines();
+    }
+
+    /**
+     * Where the pixels of the display image are stored in displays when they are opened.
+     */
+    private static RasterMode rasterMode = RasterMode.HEAP;
+
+    /**
+     * Choose where the pixels of the display image will be stored, for displays opened after this is called.
+     * The default, {@link RasterMode#HEAP}, gives the fastest drawing; the direct modes store the image in
+     * native memory already laid out the way the Push expects, so sending a frame needs much less work.
+     * See {@link RasterMode} for details.
+     *
+     * @param mode where display images should be stored.
+     *
+     * @throws IllegalArgumentException if {@code mode} is {@code null}.
+     */
+    public static synchronized void setRasterMode(RasterMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        rasterMode = mode;
+    }
+
+    /**
+     * Check where the pixels of the display image will be stored in displays opened in the future.
+     *
+     * @return the raster mode that will be used.
+     */
+    public static synchronized RasterMode getRasterMode() {
+        return rasterMode;
+    }
+
+    /**
+     * Send a frame of pixels, corresponding to whatever has been drawn in the image returned by open(),
+     * to the display. If a keep-alive interval has been set, and the image is unchanged since the last
+     * frame, this may not send anything at all; see {@link #setKeepAliveInterval(long)}.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the Push 2 has not been opened.
+     */
+    public static void sendFrame() {
+        requireDisplay().sendFrame();
+    }
+
+    /**
+     * Whether displays only encode the lines of their image which have been marked dirty when they are opened.
+     */
+    private static boolean dirtyTracking = false;
+
+    /**
+     * Choose whether frames sent from the display image only encode the lines which have changed since the
+     * last frame, for displays opened later and for the display opened by {@link #open()}. When this is on,
+     * draw with the graphics returned by {@link #createGraphics()}, which keep track of what they touch, or
+     * report other changes with {@link #markDirty(int, int)}. See {@link PushDisplay#setDirtyTracking(boolean)}
+     * for details.
+     *
+     * @param enabled {@code true} to encode only the lines which have been marked dirty.
+     */
+    public static synchronized void setDirtyTracking(boolean enabled) {
+        dirtyTracking = enabled;
+        if (defaultDisplay != null) {
+            defaultDisplay.setDirtyTracking(enabled);
+        }
+    }
+
+    /**
+     * Check whether frames sent from the display image only encode the lines which have changed.
+     *
+     * @return {@code true} if only lines marked dirty are encoded.
+     */
+    public static synchronized boolean isDirtyTracking() {
+        return (defaultDisplay == null) ? dirtyTracking : defaultDisplay.isDirtyTracking();
+    }
+
+    /**
+     * Create graphics for drawing in the image returned by open(), which record the lines touched by
+     * everything drawn with them, for {@link #setDirtyTracking(boolean)}.
+     *
+     * @return graphics which draw into the display image.
+     *
+     * @throws IllegalStateException if the Push 2 has not been opened.
+     */
+    public static Graphics2D createGraphics() {
+        return requireDisplay().createGraphics();
+    }
+
+    /**
+     * Record that some lines of the image returned by open() have changed outside of the graphics returned by
+     * {@link #createGraphics()}, so they will be encoded for the next frame when dirty tracking is on.
+     *
+     * @param firstLine the first line which has changed.
+     * @param lineCount the number of lines which have changed.
+     *
+     * @throws IllegalStateException if the Push 2 has not been opened.
+     */
+    public static void markDirty(int firstLine, int lineCount) {
+        requireDisplay().markDirty(firstLine, lineCount);
+    }
+
+    /**
+     * Whether displays wait to be reconnected when their device disappears.
+     */
+    private static boolean autoReconnect = false;
+
+    /**
+     * Watches for Push 2 units returning, while automatic reconnection is enabled and a Push 2 has been opened.
+     * Volatile so that displays can tell it they lost their connection without taking our lock.
+     */
+    private static volatile HotplugMonitor hotplugMonitor = null;
+
+    /**
+     * Choose whether displays survive their Push 2 being unplugged, for all open displays and any opened later.
+     * When enabled, a display whose device disappears stays open, quietly dropping frames, and we watch for
+     * a Push 2 to be plugged back into the same USB port (using hotplug notification where LibUsb supports it,
+     * or by polling while any display is waiting), then reconnect it and send its most recent frame again.
+     * See {@link PushDisplay#setAutoReconnect(boolean)}.
+     *
+     * @param enabled {@code true} to reconnect displays automatically.
+     *
+     * @throws LibUsbException if the watch for returning devices cannot be started.
+     */
+    public static void setAutoReconnect(boolean enabled) {
+        HotplugMonitor stopping = null;
+        synchronized (Wayang.class) {
+            autoReconnect = enabled;
+            for (PushDisplay display : openDisplays) {
+                display.setAutoReconnect(enabled);
+            }
+            if (enabled) {
+                if (hotplugMonitor == null && findUsbDisplay()) {
+                    startHotplugMonitor();
+                }
+            } else {
+                stopping = hotplugMonitor;
+                hotplugMonitor = null;
+            }
+        }
+        if (stopping != null) {  // Without our lock, since it may be in the middle of reconnecting a display.
+            stopping.stop();
+        }
+    }
+
+    /**
+     * Check whether displays are reconnected automatically when their Push 2 is plugged back in.
+     *
+     * @return {@code true} if automatic reconnection is enabled.
+     */
+    public static synchronized boolean isAutoReconnect() {
+        return autoReconnect;
+    }
+
+    /**
+     * Check whether any of the open displays is attached to a Push 2 over USB, so there is something for the
+     * hotplug monitor to watch for.
+     *
+     * @return {@code true} if at least one display was opened by finding a Push 2.
+     */
+    private static boolean findUsbDisplay() {
+        for (PushDisplay display : openDisplays) {
+            if (display.getName().startsWith("usb-")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Start watching for Push 2 units being plugged back in. Must be called while holding our lock.
+     *
+     * @throws LibUsbException if LibUsb cannot be initialized.
+     */
+    private static void startHotplugMonitor() {
+        HotplugMonitor monitor = new HotplugMonitor(usbContext);
+        monitor.start();
+        hotplugMonitor = monitor;
+    }
+
+    /**
+     * Called by a display which has lost its connection, so that we start looking for its device to return.
+     * Takes no locks, because the display is holding its own.
+     */
+    static void displayDisconnected() {
+        HotplugMonitor monitor = hotplugMonitor;
+        if (monitor != null) {
+            monitor.displayDisconnected();
+        }
+    }
+
+    /**
+     * Called by the hotplug monitor when LibUsb reports that a Push 2 has been unplugged, so that its display
+     * can release the device right away, rather than waiting until it next tries to send a frame.
+     *
+     * @param name the name of the device which left.
+     */
+    static void deviceDeparted(String name) {
+        PushDisplay display;
+        synchronized (Wayang.class) {
+            display = findOpenDisplay(name);
+        }
+        if (display != null && display.isAutoReconnect()) {
+            display.connectionLost();
+        }
+    }
+
+    /**
+     * Called by the hotplug monitor to look for Push 2 units which have been plugged back into the port used
+     * by a display that is waiting to be reconnected, and reconnect them.
+     *
+     * @throws LibUsbException if there is a problem communicating with the USB environment.
+     */
+    static void reconnectDisplays() {
+        final long started = System.nanoTime();
+        List<PushDisplay> waiting = new ArrayList<PushDisplay>();
+        synchronized (Wayang.class) {
+            for (PushDisplay display : openDisplays) {
+                if (display.getName().startsWith("usb-") && display.isOpen() && !display.isConnected()) {
+                    waiting.add(display);
+                }
+            }
+        }
+        if (waiting.isEmpty()) {
+            return;
+        }
+
+        // Open the devices without holding our lock, since displays take it while being closed.
+        Context context = usbContext.acquire();
+        try {
+            DeviceList list = new DeviceList();
+            int status = LibUsb.getDeviceList(context, list);
+            if (status < 0) {
+                throw new LibUsbException("Unable to get device list", status);
+            }
+            try {
+                for (Device device : list) {
+                    if (isPush(device)) {
+                        String name = deviceName(device);
+                        for (PushDisplay display : waiting) {
+                            if (display.getName().equals(name)) {
+                                reconnectDisplay(display, device, started);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                LibUsb.freeDeviceList(list, true);
+            }
+        } finally {
+            usbContext.release();
+        }
+    }
+
+    /**
+     * Open a Push 2 which has been plugged back in, and give it to the display which was waiting for it.
+     * Failures are reported but otherwise ignored, since the device may not be ready yet; we will try again.
+     *
+     * @param display the display waiting to be reconnected.
+     * @param device  the device which has returned to the port the display was using.
+     * @param started the {@link System#nanoTime()} at which we started looking for it.
+     */
+    private static void reconnectDisplay(PushDisplay display, Device device, long started) {
+        DeviceHandle handle = new DeviceHandle();
+        int status = LibUsb.open(device, handle);
+        if (status != LibUsb.SUCCESS) {
+            System.err.println("Unable to reopen Push 2 " + display.getName() + ": " + LibUsb.errorName(status));
+            return;
+        }
+        status = LibUsb.claimInterface(handle, 0);
+        if (status < 0) {
+            LibUsb.close(handle);
+            System.err.println("Unable to claim interface 0 of Push 2 " + display.getName() + ": " +
+                    LibUsb.errorName(status));
+            return;
+        }
+        usbContext.acquire();  // Held on behalf of the transport, which releases it when closed.
+        FrameTransport transport = new UsbFrameTransport(usbContext, handle);
+        if (display.reconnect(transport, started)) {
+            System.err.println("Reconnected Push 2 display " + display.getName() + ".");
+        } else {  // It was closed, or reconnected some other way, while we were opening the device.
+            transport.close();
+        }
+    }
+
+    /**
+     * Whether displays convert ARGB frames using ordered dithering when they are opened.
+     */
+    private static boolean dithering = false;
+
+    /**
+     * Choose whether frames sent as ARGB pixels are converted using ordered dithering, for the display opened
+     * by {@link #open()} and any displays opened later. See {@link PushDisplay#setDithering(boolean)}.
+     *
+     * @param dither {@code true} to dither, {@code false} to simply truncate each channel.
+     */
+    public static synchronized void setDithering(boolean dither) {
+        dithering = dither;
+        if (defaultDisplay != null) {
+            defaultDisplay.setDithering(dither);
+        }
+    }
+
+    /**
+     * Check whether frames sent as ARGB pixels are converted using ordered dithering.
+     *
+     * @return {@code true} if they are dithered.
+     */
+    public static synchronized boolean isDithering() {
+        return (defaultDisplay == null) ? dithering : defaultDisplay.isDithering();
+    }
+
+    /**
+     * Send a frame of ARGB pixels to the display, instead of the contents of the image returned by open().
+     * See {@link PushDisplay#sendFrame(int[], int, int)}.
+     *
+     * @param argb the pixels, {@value #DISPLAY_WIDTH} to a line, starting at index zero.
+     *
+     * @throws LibUsbException          if there is a problem communicating.
+     * @throws IllegalStateException    if the Push 2 has not been opened.
+     * @throws IllegalArgumentException if the array is too small to hold a frame.
+     */
+    public static void sendFrame(int[] argb) {
+        requireDisplay().sendFrame(argb);
+    }
+
+    /**
+     * Send a frame of ARGB pixels to the display, instead of the contents of the image returned by open().
+     * See {@link PushDisplay#sendFrame(int[], int, int)}.
+     *
+     * @param argb           the pixels.
+     * @param offset         the index of the top left pixel of the frame.
+     * @param scanlineStride the distance between the start of each line in the array.
+     *
+     * @throws LibUsbException          if there is a problem communicating.
+     * @throws IllegalStateException    if the Push 2 has not been opened.
+     * @throws IllegalArgumentException if the array is too small to hold a frame at the given offset and stride.
+     */
+    public static void sendFrame(int[] argb, int offset, int scanlineStride) {
+        requireDisplay().sendFrame(argb, offset, scanlineStride);
+    }
+
+    /**
+     * Send a frame of ARGB pixels to the display, instead of the contents of the image returned by open().
+     * See {@link PushDisplay#sendFrame(IntBuffer)}.
+     *
+     * @param argb the pixels, {@value #DISPLAY_WIDTH} to a line, starting at the buffer's position.
+     *
+     * @throws LibUsbException          if there is a problem communicating.
+     * @throws IllegalStateException    if the Push 2 has not been opened.
+     * @throws IllegalArgumentException if fewer pixels than a frame remain in the buffer.
+     */
+    public static void sendFrame(IntBuffer argb) {
+        requireDisplay().sendFrame(argb);
+    }
+
+    /**
+     * Send the top left corner of an image to the display, instead of the contents of the image returned by
+     * open(). See {@link PushDisplay#sendFrame(BufferedImage)}.
+     *
+     * @param image the image to send.
+     *
+     * @throws LibUsbException          if there is a problem communicating.
+     * @throws IllegalStateException    if the Push 2 has not been opened.
+     * @throws IllegalArgumentException if the image is smaller than the display.
+     */
+    public static void sendFrame(BufferedImage image) {
+        requireDisplay().sendFrame(image);
+    }
+
+    /**
+     * Send the layers of a compositor to the display, instead of the contents of the image returned by open().
+     * See {@link PushDisplay#sendFrame(Compositor)}.
+     *
+     * @param compositor the layers to send.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the Push 2 has not been opened.
+     */
+    public static void sendFrame(Compositor compositor) {
+        requireDisplay().sendFrame(compositor);
+    }
+
+    /**
+     * Send a frame of pixels asynchronously, corresponding to whatever has been drawn in the image returned by open(),
+     * to the display. If all the asynchronous frame buffers are still being sent, waits until one is free.
+     * See {@link PushDisplay#sendFrameAsync()} for how and where the returned future is completed.
+     *
+     * @return a future which completes when the frame has been sent, or exceptionally with a
+     *         {@link FrameTransferException} if any of its transfers failed.
+     *
+     * @throws LibUsbException       if there is a problem communicating, or no frame buffer becomes free in time.
+     * @throws IllegalStateException if the Push 2 has not been opened, or this is called on the thread which
+     *                               completes transfers.
+     */
+    public static CompletableFuture<Void> sendFrameAsync() {
+        return requireDisplay().sendFrameAsync();
+    }
+
+    /**
+     * Try to send a frame of pixels asynchronously, corresponding to whatever has been drawn in the image returned
+     * by open(), to the display. If all the asynchronous frame buffers are still being sent, the frame is dropped.
+     *
+     * @return {@code true} if the frame was queued (or, because it was unchanged, did not need to be sent; see
+     *         {@link #setKeepAliveInterval(long)}), {@code false} if it was dropped.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the Push 2 has not been opened.
+     */
+    public static boolean offerFrameAsync() {
+        return requireDisplay().offerFrameAsync();
+    }
+
+    /**
+     * Start rendering and sending frames to the display at a steady rate, skipping frames when rendering
+     * falls behind. See {@link #startRenderLoop(double, RenderLoop.OverrunPolicy, RenderLoop.Callback)}.
+     *
+     * @param targetFps the number of frames to render each second.
+     * @param callback  the code that draws each frame.
+     *
+     * @return the running render loop, which can be asked how many frames it has rendered and skipped.
+     *
+     * @throws IllegalStateException if the Push 2 has not been opened, or a render loop is already running.
+     */
+    public static RenderLoop startRenderLoop(double targetFps, RenderLoop.Callback callback) {
+        return startRenderLoop(targetFps, RenderLoop.OverrunPolicy.SKIP, callback);
+    }
+
+    /**
+     * Start rendering and sending frames to the display opened by {@link #open()} at a steady rate, on a
+     * dedicated thread. See {@link PushDisplay#startRenderLoop(double, RenderLoop.OverrunPolicy, RenderLoop.Callback)}.
+     *
+     * @param targetFps the number of frames to render each second.
+     * @param policy    what to do when rendering and sending a frame takes longer than the frame period.
+     * @param callback  the code that draws each frame.
+     *
+     * @return the running render loop, which can be asked how many frames it has rendered and skipped.
+     *
+     * @throws IllegalStateException    if the Push 2 has not been opened, or a render loop is already running.
+     * @throws IllegalArgumentException if {@code targetFps} is not positive.
+     */
+    public static RenderLoop startRenderLoop(double targetFps, RenderLoop.OverrunPolicy policy,
+                                             RenderLoop.Callback callback) {
+        return requireDisplay().startRenderLoop(targetFps, policy, callback);
+    }
+
+    /**
+     * Stop the render loop of the display opened by {@link #open()}, if one is running, waiting for the frame
+     * it is working on to be sent.
+     */
+    public static void stopRenderLoop() {
+        PushDisplay display = getDisplay();
+        if (display != null) {
+            display.stopRenderLoop();
+        }
+    }
+
+    /**
+     * Start a mailbox to which any thread can publish frames for the display opened by {@link #open()} without
+     * waiting for USB. See {@link PushDisplay#startMailbox(int)}.
+     *
+     * @param bufferCount the number of frame buffers to allocate: two more than the number of threads which
+     *                    will publish frames at the same time.
+     *
+     * @return the running mailbox, to which frames can be published.
+     *
+     * @throws IllegalStateException    if the Push 2 has not been opened, or a mailbox is already running.
+     * @throws IllegalArgumentException if {@code bufferCount} is less than three.
+     */
+    public static FrameMailbox startMailbox(int bufferCount) {
+        return requireDisplay().startMailbox(bufferCount);
+    }
+
+    /**
+     * Stop the frame mailbox of the display opened by {@link #open()}, if one is running, waiting for the
+     * frame it is sending to finish.
+     */
+    public static void stopMailbox() {
+        PushDisplay display = getDisplay();
+        if (display != null) {
+            display.stopMailbox();
+        }
+    }
+
+    /**
+     * Start capturing everything sent to the display opened by {@link #open()} into a memory-mapped capture
+     * file. See {@link PushDisplay#startRecording(File)}.
+     *
+     * @param captureFile the file in which to record frames; it will be replaced if it already exists.
+     *
+     * @return the recorder, which can be asked how many frames it has captured.
+     *
+     * @throws IOException           if there is a problem creating the capture file.
+     * @throws IllegalStateException if the Push 2 has not been opened, or frames are already being recorded.
+     */
+    public static FrameRecorder startRecording(File captureFile) throws IOException {
+        return requireDisplay().startRecording(captureFile);
+    }
+
+    /**
+     * Stop capturing frames sent to the display opened by {@link #open()}, if they were being recorded.
+     */
+    public static void stopRecording() {
+        PushDisplay display = getDisplay();
+        if (display != null) {
+            display.stopRecording();
+        }
+    }
+
+    /**
+     * Start recording everything shown on the display opened by {@link #open()} as an animated GIF.
+     * See {@link PushDisplay#startGifRecording(File)}.
+     *
+     * @param file the file to which the GIF should be written; it will be replaced if it already exists.
+     *
+     * @return the recorder, which can be asked how many frames it has captured and dropped.
+     *
+     * @throws IOException           if there is a problem creating the file.
+     * @throws IllegalStateException if the Push 2 has not been opened, or a GIF is already being recorded.
+     */
+    public static GifRecorder startGifRecording(File file) throws IOException {
+        return requireDisplay().startGifRecording(file);
+    }
+
+    /**
+     * Stop recording a GIF of the display opened by {@link #open()}, if one was being recorded, waiting for
+     * it to be finished.
+     */
+    public static void stopGifRecording() {
+        PushDisplay display = getDisplay();
+        if (display != null) {
+            display.stopGifRecording();
+        }
+    }
+
+    /**
+     * Play back frames captured by {@link #startRecording(File)} on the display opened by {@link #open()}.
+     * See {@link PushDisplay#replay(FramePlayer)}.
+     *
+     * @param player the opened capture file.
+     *
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the Push 2 has not been opened.
+     */
+    public static void replay(FramePlayer player) {
+        requireDisplay().replay(player);
+    }
+
+    /**
+     * Play an animated GIF on the display opened by {@link #open()}. See {@link PushDisplay#play(GifAnimation)}.
+     *
+     * @param animation the opened GIF file.
+     *
+     * @throws IOException           if there is a problem decoding the animation.
+     * @throws LibUsbException       if there is a problem communicating.
+     * @throws IllegalStateException if the Push 2 has not been opened.
+     */
+    public static void play(GifAnimation animation) throws IOException {
+        requireDisplay().play(animation);
     }
 }
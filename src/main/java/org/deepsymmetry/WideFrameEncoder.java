@@ -0,0 +1,46 @@
+package org.deepsymmetry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A frame encoder which takes advantage of the fact that the signal shaping pattern repeats every four bytes,
+ * and every line starts on an aligned 2,048 byte boundary. It gathers four pixels at a time into a long, masks
+ * them with a single 64-bit XOR, and stores them with one little-endian write, rather than performing four
+ * separate byte operations for every pair of pixels.
+ *
+ * @author James Elliott
+ */
+public class WideFrameEncoder implements FrameEncoder {
+
+    /**
+     * The signal shaping pattern, as it appears when four pixels are packed into a little-endian long.
+     */
+    private static final long MASK = 0xffe7f3e7ffe7f3e7L;
+
+    /**
+     * @throws IllegalArgumentException if the destination buffer is not little-endian.
+     */
+    @Override
+    public void encode(short[] pixels, int firstLine, int lineCount, ByteBuffer destination, int offset) {
+        if (destination.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Destination buffer must be little-endian");
+        }
+        for (int y = 0; y < lineCount; y++) {
+            int pixelOffset = (firstLine + y) * Wayang.DISPLAY_WIDTH;
+            int destinationOffset = offset + (y * Wayang.BYTES_PER_LINE);
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x += 4) {
+                long quad = (pixels[pixelOffset + x] & 0xffffL) |
+                        ((pixels[pixelOffset + x + 1] & 0xffffL) << 16) |
+                        ((pixels[pixelOffset + x + 2] & 0xffffL) << 32) |
+                        ((long) pixels[pixelOffset + x + 3] << 48);
+                destination.putLong(destinationOffset + (x * 2), quad ^ MASK);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WideFrameEncoder";
+    }
+}
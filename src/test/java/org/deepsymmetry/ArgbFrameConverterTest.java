@@ -0,0 +1,177 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Checks that frames sent as ARGB pixels reach the display as if they had been drawn into the display image.
+ */
+public class ArgbFrameConverterTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ArgbFrameConverterTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ArgbFrameConverterTest.class );
+    }
+
+    /**
+     * Create an image of a given type holding gradients and shapes in a variety of colors.
+     *
+     * @param type the type of image to create.
+     *
+     * @return the image.
+     */
+    private static BufferedImage createTestImage(int type) {
+        BufferedImage image = new BufferedImage(Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, type);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.MAGENTA, Wayang.DISPLAY_WIDTH, 0, Color.GREEN));
+        graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT / 2);
+        graphics.setPaint(new GradientPaint(0, 0, Color.BLACK, Wayang.DISPLAY_WIDTH, 0, Color.WHITE));
+        graphics.fillRect(0, Wayang.DISPLAY_HEIGHT / 2, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT / 2);
+        graphics.setColor(new Color(17, 130, 201));
+        graphics.fillOval(200, 30, 300, 100);
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Make sure converting pixels gives the same colors as drawing them into the display image and encoding
+     * that. Java2D's generic conversion rounds slightly differently, so channels may differ by one level.
+     */
+    public void testMatchesDisplayImage() {
+        BufferedImage source = createTestImage(BufferedImage.TYPE_INT_RGB);
+        BufferedImage displayImage = Wayang.createDisplayImage();
+        Graphics2D graphics = displayImage.createGraphics();
+        graphics.drawImage(source, 0, 0, null);
+        graphics.dispose();
+        ByteBuffer expected = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        new ScalarFrameEncoder().encode(Wayang.displayPixels(displayImage), 0, Wayang.DISPLAY_HEIGHT, expected, 0);
+
+        int[] pixels = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+        ByteBuffer actual = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        ArgbFrameConverter.PLAIN.convert(pixels, 0, Wayang.DISPLAY_WIDTH, false, 0, Wayang.DISPLAY_HEIGHT, actual);
+        for (int y = 0; y < Wayang.DISPLAY_HEIGHT; y++) {
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                int index = (y * Wayang.BYTES_PER_LINE) + (x * 2);
+                int mask = ((x & 1) == 0) ? 0xf3e7 : 0xffe7;
+                int drawn = expected.getShort(index) ^ mask;
+                int converted = actual.getShort(index) ^ mask;
+                for (int channelMask : new int[] {0x001f, 0x07e0, 0xf800}) {
+                    int shift = Integer.numberOfTrailingZeros(channelMask);
+                    int difference = ((drawn & channelMask) >> shift) - ((converted & channelMask) >> shift);
+                    assertTrue("Pixel " + x + ", " + y, Math.abs(difference) <= 1);
+                }
+            }
+        }
+        assertEquals("Padding should be left alone", 0, actual.getShort(Wayang.BYTES_PER_LINE - 2));
+    }
+
+    /**
+     * Send the same picture as an array, a direct buffer, and images of several types (including one which is
+     * part of a larger image), and make sure the same bytes arrive every time.
+     */
+    public void testSendFrameOverloads() {
+        final ByteBuffer[] received = new ByteBuffer[1];
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        transport.setReceiver(new LoopbackFrameTransport.Receiver() {
+            @Override
+            public void received(ByteBuffer data) {
+                if (data.capacity() > 16) {
+                    ByteBuffer copy = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+                    DirectDisplayRaster.copy(data, copy);
+                    received[0] = copy;
+                }
+            }
+        });
+        BufferedImage argb = createTestImage(BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = argb.getRGB(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, null, 0, Wayang.DISPLAY_WIDTH);
+        IntBuffer direct = ByteBuffer.allocateDirect(pixels.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        direct.put(pixels).flip();
+        BufferedImage larger = new BufferedImage(Wayang.DISPLAY_WIDTH + 20, Wayang.DISPLAY_HEIGHT + 10,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = larger.createGraphics();
+        graphics.drawImage(argb, 7, 3, null);
+        graphics.dispose();
+
+        try {
+            Wayang.open(transport);
+            Wayang.sendFrame(pixels);
+            ByteBuffer expected = received[0];
+            Wayang.sendFrame(direct);
+            assertEquals("Direct buffer", expected, received[0]);
+            assertEquals(0, direct.position());
+            Wayang.sendFrame(argb);
+            assertEquals("ARGB image", expected, received[0]);
+            for (int type : new int[] {BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR}) {
+                BufferedImage converted = new BufferedImage(Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, type);
+                graphics = converted.createGraphics();
+                graphics.drawImage(argb, 0, 0, null);
+                graphics.dispose();
+                Wayang.sendFrame(converted);
+                assertEquals("Image of type " + type, expected, received[0]);
+            }
+            Wayang.sendFrame(larger.getSubimage(7, 3, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT));
+            assertEquals("Subimage", expected, received[0]);
+            assertEquals(6, Wayang.getMetrics().getFramesSent());
+
+            try {
+                Wayang.sendFrame(new int[Wayang.DISPLAY_WIDTH]);
+                fail("Should not accept an array smaller than a frame");
+            } catch (IllegalArgumentException e) {
+                assertEquals(6, Wayang.getMetrics().getFramesSent());
+            }
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure dithering a flat color that falls between two levels the display can show mixes those levels
+     * in the right proportion, while leaving black and white alone.
+     */
+    public void testDithering() {
+        int level = 84;  // Scales to 10.21, between red levels 10 and 11.
+        int[] pixels = new int[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        java.util.Arrays.fill(pixels, 0xff000000 | (level << 16));
+        pixels[0] = 0xffffffff;
+        pixels[1] = 0xff000000;
+        ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        ArgbFrameConverter.DITHERED.convert(pixels, 0, Wayang.DISPLAY_WIDTH, false, 0, Wayang.DISPLAY_HEIGHT, frame);
+
+        assertEquals((short) (0xffff ^ 0xf3e7), frame.getShort(0));
+        assertEquals((short) 0xffe7, frame.getShort(2));
+        int total = 0;
+        for (int y = 4; y < 8; y++) {
+            for (int x = 4; x < 8; x++) {
+                int mask = ((x & 1) == 0) ? 0xf3e7 : 0xffe7;
+                int pixel = (frame.getShort((y * Wayang.BYTES_PER_LINE) + (x * 2)) ^ mask) & 0xffff;
+                int red = pixel & 0x1f;
+                assertTrue("Red level " + red, red == 10 || red == 11);
+                assertEquals("Dithering should not disturb other channels", 0, pixel & 0xffe0);
+                total += red;
+            }
+        }
+        assertEquals(10 * 16 + 3, total);  // The three highest thresholds are below 0.21.
+    }
+}
@@ -0,0 +1,214 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that layers are composited correctly, and that only the ones which changed are worked out again.
+ */
+public class CompositorTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CompositorTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CompositorTest.class );
+    }
+
+    /**
+     * Find the display-format pixel that was encoded into a frame buffer, by removing the signal shaping mask.
+     *
+     * @param frame the encoded frame.
+     * @param x     the column of the pixel.
+     * @param y     the line of the pixel.
+     *
+     * @return the unmasked pixel.
+     */
+    private static int pixelAt(ByteBuffer frame, int x, int y) {
+        int mask = (x % 2 == 0) ? 0xf3e7 : 0xffe7;
+        return (frame.getShort(y * Wayang.BYTES_PER_LINE + x * 2) & 0xffff) ^ mask;
+    }
+
+    /**
+     * Convert a color to the display's format.
+     *
+     * @param color the color.
+     *
+     * @return the unmasked pixel.
+     */
+    private static int packed(Color color) {
+        return SpriteAtlas.pack(color.getRGB()) & 0xffff;
+    }
+
+    /**
+     * Build the usual kind of screen: a red background, and an overlay keyed on black with a white box.
+     *
+     * @param compositor the compositor to add the layers to.
+     *
+     * @return the overlay.
+     */
+    private static Layer keyedOverlay(Compositor compositor) {
+        compositor.addLayer().clear(Color.RED);
+        Layer overlay = compositor.addLayer();
+        overlay.setColorKey(Color.BLACK);
+        Graphics2D graphics = overlay.getImage().createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(10, 20, 30, 40);
+        graphics.dispose();
+        return overlay;
+    }
+
+    /**
+     * Make sure a color-keyed overlay shows over the background, and the background shows through the key.
+     */
+    public void testColorKey() {
+        Compositor compositor = new Compositor();
+        keyedOverlay(compositor);
+        ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        compositor.encode(frame);
+        assertEquals(packed(Color.RED), pixelAt(frame, 0, 0));
+        assertEquals(packed(Color.WHITE), pixelAt(frame, 10, 20));
+        assertEquals(packed(Color.WHITE), pixelAt(frame, 39, 59));
+        assertEquals(packed(Color.RED), pixelAt(frame, 40, 59));
+        assertFalse(compositor.isDirty());
+    }
+
+    /**
+     * Make sure layers are blended according to their opacity, and hidden layers have no effect.
+     */
+    public void testOpacityAndVisibility() {
+        Compositor compositor = new Compositor();
+        compositor.addLayer();  // Black.
+        Layer white = compositor.addLayer();
+        white.clear(Color.WHITE);
+        white.setOpacity(128);
+        Layer blue = compositor.addLayer();
+        blue.clear(Color.BLUE);
+        blue.setVisible(false);
+        ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        compositor.encode(frame);
+        int gray = pixelAt(frame, 100, 100);
+        assertEquals(15, gray & 0x1f);  // Red, half of 31.
+        assertEquals(31, (gray >> 5) & 0x3f);  // Green, half of 63.
+        assertEquals(15, gray >> 11);  // Blue.
+
+        blue.setVisible(true);
+        assertTrue(compositor.isDirty());
+        compositor.encode(frame);
+        assertEquals(packed(Color.BLUE), pixelAt(frame, 100, 100));
+    }
+
+    /**
+     * Make sure that only the lines of layers which changed, and of the layers above them, are composited
+     * again, and layers beneath an opaque one are not composited at all.
+     */
+    public void testCaching() {
+        Compositor compositor = new Compositor();
+        Layer overlay = keyedOverlay(compositor);
+        Layer meter = compositor.addLayer();
+        meter.setColorKey(Color.BLACK);
+        ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        compositor.encode(frame);
+        assertEquals("The background needs no compositing", 2 * Wayang.DISPLAY_HEIGHT,
+                compositor.getLinesComposited());
+
+        Graphics2D graphics = meter.getImage().createGraphics();
+        graphics.setColor(Color.GREEN);
+        graphics.fillRect(200, 100, 20, 10);
+        graphics.dispose();
+        meter.markDirty(100, 10);
+        compositor.encode(frame);
+        assertEquals("Only the changed lines are composited", 2 * Wayang.DISPLAY_HEIGHT + 10,
+                compositor.getLinesComposited());
+        assertEquals(packed(Color.GREEN), pixelAt(frame, 200, 100));
+        assertEquals(packed(Color.WHITE), pixelAt(frame, 10, 20));
+
+        overlay.clear(Color.BLACK);
+        overlay.markDirty();
+        graphics = overlay.getImage().createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(300, 50, 10, 5);
+        graphics.dispose();
+        compositor.encode(frame);
+        assertEquals("Layers above a change are composited too", 4 * Wayang.DISPLAY_HEIGHT + 10,
+                compositor.getLinesComposited());
+        assertEquals(packed(Color.RED), pixelAt(frame, 10, 20));
+        assertEquals(packed(Color.WHITE), pixelAt(frame, 300, 50));
+
+        overlay.markDirty(50, 5);
+        compositor.encode(frame);
+        assertEquals(4 * Wayang.DISPLAY_HEIGHT + 20, compositor.getLinesComposited());
+
+        Layer cover = compositor.addLayer();
+        cover.clear(Color.BLUE);
+        compositor.encode(frame);
+        meter.markDirty();
+        overlay.markDirty();
+        compositor.encode(frame);
+        assertEquals("Nothing is composited beneath an opaque top layer", 4 * Wayang.DISPLAY_HEIGHT + 20,
+                compositor.getLinesComposited());
+        assertEquals(packed(Color.BLUE), pixelAt(frame, 300, 50));
+
+        assertTrue(compositor.removeLayer(cover));
+        compositor.encode(frame);
+        assertEquals(packed(Color.GREEN), pixelAt(frame, 200, 100));
+        assertEquals(packed(Color.WHITE), pixelAt(frame, 300, 50));
+    }
+
+    /**
+     * Remembers the first four pixels of the last frame image the loopback transport received.
+     */
+    private static class LastFrame implements LoopbackFrameTransport.Receiver {
+
+        /**
+         * The first eight bytes of the most recent frame image.
+         */
+        final AtomicLong firstPixels = new AtomicLong();
+
+        @Override
+        public void received(ByteBuffer data) {
+            if (data.capacity() == Wayang.DISPLAY_HEIGHT * Wayang.BYTES_PER_LINE) {
+                firstPixels.set(data.getLong(0));
+            }
+        }
+    }
+
+    /**
+     * Make sure a compositor's frames are sent to the display.
+     */
+    public void testSendFrame() {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        LastFrame lastFrame = new LastFrame();
+        transport.setReceiver(lastFrame);
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            Compositor compositor = new Compositor();
+            keyedOverlay(compositor);
+            display.sendFrame(compositor);
+            ByteBuffer expected = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+            compositor.encode(expected);
+            assertEquals(expected.getLong(0), lastFrame.firstPixels.get());
+            assertEquals(packed(Color.RED), pixelAt(expected, 0, 0));
+            assertEquals(1, display.getMetrics().getFramesSent());
+        } finally {
+            Wayang.close();
+        }
+    }
+}
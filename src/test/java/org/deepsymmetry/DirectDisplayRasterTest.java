@@ -0,0 +1,112 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that display images stored in native memory produce exactly the same frames as ordinary ones.
+ */
+public class DirectDisplayRasterTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public DirectDisplayRasterTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( DirectDisplayRasterTest.class );
+    }
+
+    /**
+     * Draw something with a variety of colors and shapes.
+     *
+     * @param image the image to draw in.
+     */
+    private static void drawTestPattern(BufferedImage image) {
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.RED, Wayang.DISPLAY_WIDTH, 0, Color.CYAN));
+        graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        graphics.setColor(Color.WHITE);
+        graphics.fillOval(300, 20, 200, 120);
+        graphics.setColor(Color.BLACK);
+        graphics.drawString("Wayang", 600, 80);
+        graphics.dispose();
+    }
+
+    /**
+     * Make sure that masking a direct image gives the same bytes as encoding an ordinary one, and that
+     * masking it in place twice leaves it as it was.
+     */
+    public void testMaskMatchesEncoder() {
+        BufferedImage heapImage = Wayang.createDisplayImage();
+        drawTestPattern(heapImage);
+        DirectDisplayRaster raster = new DirectDisplayRaster();
+        drawTestPattern(raster.getImage());
+
+        ByteBuffer expected = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        new ScalarFrameEncoder().encode(Wayang.displayPixels(heapImage), 0, Wayang.DISPLAY_HEIGHT, expected, 0);
+        ByteBuffer actual = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        raster.maskInto(0, Wayang.DISPLAY_HEIGHT, actual, 0);
+        assertEquals(expected, actual);
+
+        ByteBuffer unmasked = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        DirectDisplayRaster.copy(raster.getBuffer(), unmasked);
+        raster.maskInPlace();
+        assertEquals(expected, raster.getBuffer());
+        raster.maskInPlace();
+        assertTrue(DirectDisplayRaster.sameContent(unmasked, raster.getBuffer()));
+        assertEquals(heapImage.getRGB(400, 80), raster.getImage().getRGB(400, 80));
+    }
+
+    /**
+     * Send the same drawing through displays using each raster mode, over loopback transports, and make sure
+     * the same bytes arrive every time, leaving the direct images intact.
+     */
+    public void testRasterModesSendSameFrames() {
+        final ByteBuffer[] received = new ByteBuffer[RasterMode.values().length];
+        try {
+            for (final RasterMode mode : RasterMode.values()) {
+                Wayang.setRasterMode(mode);
+                LoopbackFrameTransport transport = new LoopbackFrameTransport();
+                transport.setReceiver(new LoopbackFrameTransport.Receiver() {
+                    @Override
+                    public void received(ByteBuffer data) {
+                        if (data.capacity() > 16) {
+                            ByteBuffer copy = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+                            DirectDisplayRaster.copy(data, copy);
+                            received[mode.ordinal()] = copy;
+                        }
+                    }
+                });
+                PushDisplay display = Wayang.openDisplay(transport);
+                assertEquals(mode, display.getRasterMode());
+                drawTestPattern(display.getImage());
+                int before = display.getImage().getRGB(400, 80);
+                display.sendFrame();
+                assertEquals("Sending should not disturb the image", before, display.getImage().getRGB(400, 80));
+                display.close();
+            }
+        } finally {
+            Wayang.setRasterMode(RasterMode.HEAP);
+            Wayang.close();
+        }
+        for (RasterMode mode : RasterMode.values()) {
+            assertEquals("Frame sent in " + mode + " mode", received[0], received[mode.ordinal()]);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks that graphics from the display record every line they draw on, and that only those lines are encoded
+ * again while the rest of the frame keeps its previously masked bytes.
+ */
+public class DirtyTrackingTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public DirtyTrackingTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( DirtyTrackingTest.class );
+    }
+
+    /**
+     * Keeps a copy of the last frame image the loopback transport received, whether it arrived in one transfer
+     * or in stripes.
+     */
+    private static class LastFrame implements LoopbackFrameTransport.Receiver {
+
+        /**
+         * The bytes of the most recent frame image.
+         */
+        final byte[] bytes = new byte[Wayang.DISPLAY_HEIGHT * Wayang.BYTES_PER_LINE];
+
+        /**
+         * Where the next transfer of pixels belongs in the frame.
+         */
+        private int position = 0;
+
+        @Override
+        public void received(ByteBuffer data) {
+            ByteBuffer source = data.duplicate();
+            source.clear();
+            if (source.capacity() == 16) {  // A frame header, the pixels follow.
+                position = 0;
+            } else {
+                source.get(bytes, position, source.capacity());
+                position += source.capacity();
+            }
+        }
+    }
+
+    /**
+     * Encode the whole of a display image from scratch, the way the frame should look.
+     *
+     * @param image the display image.
+     *
+     * @return the masked frame.
+     */
+    private static byte[] fullyEncoded(BufferedImage image) {
+        short[] pixels = new short[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        image.getRaster().getDataElements(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, pixels);
+        ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        new ScalarFrameEncoder().encode(pixels, 0, Wayang.DISPLAY_HEIGHT, frame, 0);
+        byte[] result = new byte[frame.capacity()];
+        frame.get(result);
+        return result;
+    }
+
+    /**
+     * Check whether one line of two frames holds the same pixels.
+     *
+     * @param expected the frame that should have been sent.
+     * @param actual   the frame which was.
+     * @param line     the line to compare.
+     *
+     * @return {@code true} if the pixels of the line match.
+     */
+    private static boolean lineMatches(byte[] expected, byte[] actual, int line) {
+        int start = line * Wayang.BYTES_PER_LINE;
+        int end = start + Wayang.DISPLAY_WIDTH * 2;
+        return Arrays.equals(Arrays.copyOfRange(expected, start, end), Arrays.copyOfRange(actual, start, end));
+    }
+
+    /**
+     * Check whether every line of two frames holds the same pixels, ignoring their padding.
+     *
+     * @param expected the frame that should have been sent.
+     * @param actual   the frame which was.
+     *
+     * @return {@code true} if the pixels match.
+     */
+    private static boolean pixelsMatch(byte[] expected, byte[] actual) {
+        for (int line = 0; line < Wayang.DISPLAY_HEIGHT; line++) {
+            if (!lineMatches(expected, actual, line)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Make sure that everything drawn through tracking graphics reaches the display, whatever the transform,
+     * stroke, or kind of drawing, while lines drawn behind their back are left alone until marked, in each
+     * mode where the transfer buffer keeps the previous frame.
+     */
+    public void testOnlyDirtyLinesEncoded() {
+        for (RasterMode mode : new RasterMode[] {RasterMode.HEAP, RasterMode.DIRECT_COPY}) {
+            Wayang.setRasterMode(mode);
+            LastFrame lastFrame = new LastFrame();
+            LoopbackFrameTransport transport = new LoopbackFrameTransport();
+            transport.setReceiver(lastFrame);
+            PushDisplay display = Wayang.openDisplay(transport);
+            try {
+                display.setDirtyTracking(true);
+                display.sendFrame();
+
+                Graphics2D graphics = display.createGraphics();
+                graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                graphics.setColor(Color.ORANGE);
+                graphics.fillRect(100, 20, 120, 20);
+                graphics.setStroke(new BasicStroke(7));
+                graphics.drawLine(300, 60, 500, 75);
+                graphics.setFont(new Font(Font.SERIF, Font.ITALIC, 30));
+                graphics.drawString("Wayang, jiggly", 520, 120);
+                Graphics2D rotated = (Graphics2D) graphics.create();
+                rotated.transform(AffineTransform.getRotateInstance(0.3, 700, 40));
+                rotated.setColor(Color.CYAN);
+                rotated.fillRect(680, 30, 200, 10);
+                rotated.dispose();
+                graphics.setClip(0, 0, 960, 100);
+                graphics.fillOval(40, 90, 30, 60);  // Only partly inside the clip.
+                graphics.setClip(null);
+                BufferedImage sprite = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+                sprite.setRGB(5, 5, 0xffffff);
+                graphics.drawImage(sprite, 880, 100, 40, 40, null);
+                graphics.copyArea(100, 20, 50, 10, 0, 100);
+                graphics.dispose();
+
+                Graphics2D untracked = display.getImage().createGraphics();
+                untracked.setColor(Color.RED);
+                untracked.fillRect(0, 155, Wayang.DISPLAY_WIDTH, 5);
+                untracked.dispose();
+
+                display.sendFrame();
+                byte[] expected = fullyEncoded(display.getImage());
+                for (int line = 0; line < 155; line++) {
+                    assertTrue(mode + " line " + line, lineMatches(expected, lastFrame.bytes, line));
+                }
+                assertFalse(lineMatches(expected, lastFrame.bytes, 157));
+
+                display.markDirty(155, 5);
+                display.sendFrame();
+                assertTrue(pixelsMatch(expected, lastFrame.bytes));
+
+                display.setDirtyTracking(false);  // Everything is encoded again, tracked or not.
+                untracked = display.getImage().createGraphics();
+                untracked.setColor(Color.GREEN);
+                untracked.fillRect(0, 0, 10, 10);
+                untracked.dispose();
+                display.sendFrame();
+                assertTrue(pixelsMatch(fullyEncoded(display.getImage()), lastFrame.bytes));
+            } finally {
+                Wayang.close();
+                Wayang.setRasterMode(RasterMode.HEAP);
+            }
+        }
+    }
+
+    /**
+     * Make sure that when nothing has been marked dirty, the keep-alive interval decides whether the previous
+     * frame is sent again, with nothing encoded, and that stripes still work with partial frames.
+     */
+    public void testUnchangedFrames() {
+        LastFrame lastFrame = new LastFrame();
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        transport.setReceiver(lastFrame);
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            display.setDirtyTracking(true);
+            display.setStripeLines(40);
+            display.sendFrame();
+            display.sendFrame();
+            assertEquals(2, display.getMetrics().getFramesSent());
+
+            display.setKeepAliveInterval(60000);
+            display.sendFrame();
+            assertEquals(1, display.getMetrics().getFramesSkipped());
+
+            Graphics2D graphics = display.createGraphics();
+            graphics.setColor(Color.MAGENTA);
+            graphics.fillRect(0, 70, 960, 30);  // Spans two stripes.
+            graphics.dispose();
+            display.sendFrame();
+            assertEquals(3, display.getMetrics().getFramesSent());
+            assertTrue(pixelsMatch(fullyEncoded(display.getImage()), lastFrame.bytes));
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure that changing the frame encoder while tracking dirty lines encodes the whole of the next frame
+     * with the new encoder, rather than keeping the old encoder's bytes for lines which were not drawn on.
+     */
+    public void testEncoderChange() {
+        LastFrame lastFrame = new LastFrame();
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        transport.setReceiver(lastFrame);
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            display.setDirtyTracking(true);
+            Graphics2D graphics = display.createGraphics();
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+            display.sendFrame();
+            assertTrue(pixelsMatch(fullyEncoded(display.getImage()), lastFrame.bytes));
+
+            display.setFrameEncoder(new LookupTableFrameEncoder(0.0, 1.0, 1.0, 1.0, 1.0));
+            graphics.setColor(Color.BLACK);
+            graphics.fillRect(0, 0, 10, 10);
+            graphics.dispose();
+            display.sendFrame();
+            byte[] black = fullyEncoded(Wayang.createDisplayImage());
+            assertTrue(pixelsMatch(black, lastFrame.bytes));
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure that drawing through a display surface or scaler created for the display marks the lines they
+     * write as dirty, so what they draw is sent even though they bypass the display's graphics.
+     */
+    public void testSurfaceAndScalerMarkDirty() {
+        LastFrame lastFrame = new LastFrame();
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        transport.setReceiver(lastFrame);
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            display.setDirtyTracking(true);
+            display.sendFrame();
+
+            DisplaySurface surface = DisplaySurface.forDisplay(display);
+            surface.fillRect(100, 40, 50, 30, Color.RED);
+            display.sendFrame();
+            assertTrue(pixelsMatch(fullyEncoded(display.getImage()), lastFrame.bytes));
+
+            BufferedImage source = new BufferedImage(96, 16, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = source.createGraphics();
+            graphics.setColor(Color.GREEN);
+            graphics.fillRect(0, 0, 96, 16);
+            graphics.dispose();
+            new ImageScaler(96, 16, ImageScaler.Mode.STRETCH, ImageScaler.Filter.AREA_AVERAGE)
+                    .scale(source, display);
+            display.sendFrame();
+            assertTrue(pixelsMatch(fullyEncoded(display.getImage()), lastFrame.bytes));
+        } finally {
+            Wayang.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Unit test for the frame encoders.
+ */
+public class FrameEncoderTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public FrameEncoderTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( FrameEncoderTest.class );
+    }
+
+    /**
+     * Encode a frame with the specified encoder into a fresh buffer.
+     *
+     * @param encoder the encoder to use
+     * @param pixels the frame of pixel samples to encode
+     * @param firstLine the first line to encode
+     * @param lineCount the number of lines to encode
+     * @return a buffer holding the encoded lines
+     */
+    private static ByteBuffer encode(FrameEncoder encoder, short[] pixels, int firstLine, int lineCount) {
+        ByteBuffer result = Wayang.allocateFrameBuffer(lineCount);
+        encoder.encode(pixels, firstLine, lineCount, result, 0);
+        return result;
+    }
+
+    /**
+     * Make sure the wide encoder produces exactly the same bytes as the reference scalar encoder.
+     */
+    public void testWideMatchesScalar() {
+        Random random = new Random(0x5075684c);
+        short[] pixels = new short[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        for (int frame = 0; frame < 20; frame++) {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = (short) random.nextInt();
+            }
+            ByteBuffer expected = encode(new ScalarFrameEncoder(), pixels, 0, Wayang.DISPLAY_HEIGHT);
+            ByteBuffer actual = encode(new WideFrameEncoder(), pixels, 0, Wayang.DISPLAY_HEIGHT);
+            assertEquals("Frame " + frame + " encoded differently", expected, actual);
+        }
+    }
+
+    /**
+     * Make sure the encoders agree when encoding a range of lines into the middle of a buffer.
+     */
+    public void testWideMatchesScalarForPartialFrame() {
+        Random random = new Random(0x57696465);
+        short[] pixels = new short[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) random.nextInt();
+        }
+        ByteBuffer expected = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        ByteBuffer actual = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        int offset = 37 * Wayang.BYTES_PER_LINE;
+        new ScalarFrameEncoder().encode(pixels, 37, 11, expected, offset);
+        new WideFrameEncoder().encode(pixels, 37, 11, actual, offset);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Check the scalar encoder against the signal shaping pattern documented by Ableton.
+     */
+    public void testScalarAppliesSignalShapingPattern() {
+        short[] pixels = new short[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        pixels[0] = (short) 0x1234;
+        pixels[1] = (short) 0xabcd;
+        ByteBuffer result = encode(new ScalarFrameEncoder(), pixels, 0, 1);
+        assertEquals((byte) (0x34 ^ 0xe7), result.get(0));
+        assertEquals((byte) (0x12 ^ 0xf3), result.get(1));
+        assertEquals((byte) (0xcd ^ 0xe7), result.get(2));
+        assertEquals((byte) (0xab ^ 0xff), result.get(3));
+        assertEquals("Line padding should be left alone", 0, result.get(Wayang.DISPLAY_WIDTH * 2));
+    }
+
+    /**
+     * Make sure the lookup table encoder produces exactly the same bytes as the reference scalar encoder when
+     * it has no correction to apply, including for a range of lines in the middle of a buffer.
+     */
+    public void testLookupTableMatchesScalar() {
+        Random random = new Random(0x4c555420);
+        short[] pixels = new short[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) random.nextInt();
+        }
+        LookupTableFrameEncoder encoder = new LookupTableFrameEncoder();
+        assertEquals(encode(new ScalarFrameEncoder(), pixels, 0, Wayang.DISPLAY_HEIGHT),
+                encode(encoder, pixels, 0, Wayang.DISPLAY_HEIGHT));
+
+        ByteBuffer expected = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        ByteBuffer actual = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        int offset = 37 * Wayang.BYTES_PER_LINE;
+        new ScalarFrameEncoder().encode(pixels, 37, 11, expected, offset);
+        encoder.encode(pixels, 37, 11, actual, offset);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Make sure brightness, gamma and color balance are applied to each channel, and that changing them takes
+     * effect on the next frame.
+     */
+    public void testLookupTableCorrection() {
+        short[] pixels = new short[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        short white = (short) 0xffff;
+        short grey = (short) (16 | (32 << 5) | (16 << 11));
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i % 3 == 0) ? white : grey;
+        }
+        short[] expected = pixels.clone();
+        LookupTableFrameEncoder encoder = new LookupTableFrameEncoder(0.5, 1.0, 1.0, 1.0, 1.0);
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (pixels[i] == white) ? (short) (16 | (32 << 5) | (16 << 11)) :
+                    (short) (8 | (16 << 5) | (8 << 11));
+        }
+        assertEquals(encode(new ScalarFrameEncoder(), expected, 0, Wayang.DISPLAY_HEIGHT),
+                encode(encoder, pixels, 0, Wayang.DISPLAY_HEIGHT));
+
+        encoder.setCorrection(1.0, 2.0, 1.0, 0.0, 1.0);  // No green, and mid tones darkened.
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (pixels[i] == white) ? (short) (31 | (31 << 11)) : (short) (8 | (8 << 11));
+        }
+        assertEquals(encode(new ScalarFrameEncoder(), expected, 0, Wayang.DISPLAY_HEIGHT),
+                encode(encoder, pixels, 0, Wayang.DISPLAY_HEIGHT));
+
+        encoder.setBrightness(0.0);
+        assertEquals(0.0, encoder.getBrightness());
+        assertEquals(2.0, encoder.getGamma());
+        assertEquals(0.0, encoder.getGreenGain());
+        assertEquals(encode(new ScalarFrameEncoder(), new short[pixels.length], 0, Wayang.DISPLAY_HEIGHT),
+                encode(encoder, pixels, 0, Wayang.DISPLAY_HEIGHT));
+
+        try {
+            encoder.setBrightness(1.5);
+            fail("Brightness above one should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0.0, encoder.getBrightness());
+        }
+    }
+
+    /**
+     * Remembers the first pixels of the last frame image the loopback transport received.
+     */
+    private static class FirstPixels implements LoopbackFrameTransport.Receiver {
+
+        /**
+         * The first two bytes of the most recent frame image.
+         */
+        volatile short first;
+
+        @Override
+        public void received(ByteBuffer data) {
+            if (data.capacity() == Wayang.DISPLAY_HEIGHT * Wayang.BYTES_PER_LINE) {
+                first = data.getShort(0);
+            }
+        }
+    }
+
+    /**
+     * Make sure that changing the color correction of an unchanged image sends the newly corrected bytes,
+     * rather than skipping the frame or re-sending the old ones, with and without dirty line tracking.
+     */
+    public void testCorrectionChangeReachesDisplay() {
+        for (boolean tracking : new boolean[] {false, true}) {
+            FirstPixels firstPixels = new FirstPixels();
+            LoopbackFrameTransport transport = new LoopbackFrameTransport();
+            transport.setReceiver(firstPixels);
+            PushDisplay display = Wayang.openDisplay(transport);
+            try {
+                LookupTableFrameEncoder encoder = new LookupTableFrameEncoder();
+                display.setFrameEncoder(encoder);
+                display.setKeepAliveInterval(60000);
+                display.setDirtyTracking(tracking);
+                Wayang.displayPixels(display.getImage())[0] = (short) 0xffff;
+                display.sendFrame();
+                assertEquals((short) (0xffff ^ 0xf3e7), firstPixels.first);
+                display.sendFrame();
+                assertEquals(1, display.getMetrics().getFramesSkipped());
+
+                encoder.setBrightness(0.0);
+                display.sendFrame();
+                assertEquals(2, display.getMetrics().getFramesSent());
+                assertEquals("Tracking " + tracking, (short) 0xf3e7, firstPixels.first);
+            } finally {
+                Wayang.close();
+            }
+        }
+    }
+}
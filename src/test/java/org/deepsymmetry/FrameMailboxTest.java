@@ -0,0 +1,255 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that frames published to a mailbox are sent newest first, without making publishers wait.
+ */
+public class FrameMailboxTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public FrameMailboxTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( FrameMailboxTest.class );
+    }
+
+    /**
+     * The colors of successive frames.
+     */
+    private static final Color[] COLORS = {Color.RED, Color.GREEN, Color.BLUE, Color.WHITE};
+
+    /**
+     * Remembers the first four pixels of the last frame image the loopback transport received.
+     */
+    private static class LastFrame implements LoopbackFrameTransport.Receiver {
+
+        /**
+         * The first eight bytes of the most recent frame image.
+         */
+        final AtomicLong firstPixels = new AtomicLong();
+
+        @Override
+        public void received(ByteBuffer data) {
+            if (data.capacity() == Wayang.DISPLAY_HEIGHT * Wayang.BYTES_PER_LINE) {
+                firstPixels.set(data.getLong(0));
+            }
+        }
+    }
+
+    /**
+     * Work out what the first four pixels of a frame of a single color look like when sent.
+     *
+     * @param color the color of the frame.
+     *
+     * @return the first eight bytes of the converted frame.
+     */
+    private static long expectedPixels(Color color) {
+        int[] line = new int[Wayang.DISPLAY_WIDTH];
+        Arrays.fill(line, color.getRGB());
+        ByteBuffer frame = Wayang.allocateFrameBuffer(1);
+        ArgbFrameConverter.PLAIN.convert(line, 0, Wayang.DISPLAY_WIDTH, false, 0, 1, frame);
+        return frame.getLong(0);
+    }
+
+    /**
+     * Wait until the mailbox has dealt with every frame published to it.
+     *
+     * @param mailbox the mailbox frames were published to.
+     */
+    private static void awaitIdle(FrameMailbox mailbox) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + 5000;
+        while (mailbox.getFramesSent() + mailbox.getFramesDiscarded() < mailbox.getFramesPublished()) {
+            assertTrue("Mailbox should finish sending frames", System.currentTimeMillis() < giveUp);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Publish frames much faster than a slow link can send them, while another thread holds the display's
+     * lock, and make sure publishing never waits, stale frames are discarded, and the last frame is the one
+     * that ends up on the display.
+     */
+    public void testNewestFrameWins() throws InterruptedException {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport(20000, 40000000);
+        LastFrame lastFrame = new LastFrame();
+        transport.setReceiver(lastFrame);
+        final PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            FrameMailbox mailbox = display.startMailbox();
+            final CountDownLatch locked = new CountDownLatch(1);
+            Thread blocker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (display) {
+                        locked.countDown();
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            });
+            blocker.start();
+            locked.await();
+
+            final int frameCount = 40;
+            int[] pixels = new int[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+            for (int i = 0; i < frameCount; i++) {
+                Arrays.fill(pixels, COLORS[i % COLORS.length].getRGB());
+                assertTrue(mailbox.publish(pixels));
+            }
+            assertTrue("Publishing should not wait for the display lock", blocker.isAlive());
+            blocker.join();
+            awaitIdle(mailbox);
+
+            assertEquals(frameCount, mailbox.getFramesPublished());
+            assertEquals(0, mailbox.getFramesRejected());
+            assertTrue("Stale frames should be discarded", mailbox.getFramesDiscarded() > 0);
+            assertEquals(expectedPixels(COLORS[(frameCount - 1) % COLORS.length]), lastFrame.firstPixels.get());
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Publish from several threads at once, with enough buffers for all of them, and make sure every frame
+     * is either sent or discarded.
+     */
+    public void testSeveralPublishers() throws InterruptedException {
+        PushDisplay display = Wayang.openDisplay(new LoopbackFrameTransport(1000, 40000000));
+        try {
+            final int threadCount = 3;
+            final FrameMailbox mailbox = display.startMailbox(threadCount + 2);
+            Thread[] threads = new Thread[threadCount];
+            for (int t = 0; t < threadCount; t++) {
+                final int color = COLORS[t].getRGB();
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        int[] pixels = new int[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+                        Arrays.fill(pixels, color);
+                        for (int i = 0; i < 20; i++) {
+                            mailbox.publish(pixels);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            awaitIdle(mailbox);
+            assertEquals(0, mailbox.getFramesRejected());
+            assertEquals(threadCount * 20, mailbox.getFramesPublished());
+            assertTrue(mailbox.getFramesSent() >= 1);
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure the last frame is re-sent while no new ones are published, and that the mailbox stops when the
+     * display is closed.
+     */
+    public void testKeepAliveAndClose() throws InterruptedException {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        PushDisplay display = Wayang.openDisplay(transport);
+        FrameMailbox mailbox;
+        try {
+            mailbox = display.startMailbox();
+            try {
+                display.startMailbox();
+                fail("Should not start a second mailbox");
+            } catch (IllegalStateException e) {
+                assertTrue(mailbox.isRunning());
+            }
+            assertTrue(mailbox.publish(Wayang.createDisplayImage()));
+            Thread.sleep(1300);
+            assertEquals(1, mailbox.getFramesSent());
+            assertTrue("Frame should have been re-sent", transport.getTransfersReceived() >= 4);
+        } finally {
+            Wayang.close();
+        }
+        assertFalse(mailbox.isRunning());
+        assertFalse(mailbox.publish(new int[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT]));
+        assertEquals(1, mailbox.getFramesRejected());
+    }
+
+    /**
+     * Make sure a mailbox with nothing published yet sleeps rather than spinning, even once the keep-alive
+     * interval has passed, and still sends the first frame as soon as it is published.
+     */
+    public void testIdleMailboxSleeps() throws InterruptedException {
+        PushDisplay display = Wayang.openDisplay(new LoopbackFrameTransport());
+        try {
+            FrameMailbox mailbox = display.startMailbox();
+            Thread.sleep(1500);
+            assertTrue("Idle mailbox looped " + mailbox.getLoopPasses() + " times", mailbox.getLoopPasses() < 10);
+            assertTrue(mailbox.publish(Wayang.createDisplayImage()));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mailbox.getFramesSent() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, mailbox.getFramesSent());
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure an unexpected exception while sending a frame is counted and reported, and the mailbox keeps
+     * sending the frames published after it, rather than its sender thread dying.
+     */
+    public void testSurvivesUnexpectedFailure() throws InterruptedException {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        final AtomicLong framesReceived = new AtomicLong();
+        transport.setReceiver(new LoopbackFrameTransport.Receiver() {
+            @Override
+            public void received(ByteBuffer data) {
+                if (data.capacity() > 16 && framesReceived.incrementAndGet() == 1) {
+                    throw new RuntimeException("Deliberate test failure");
+                }
+            }
+        });
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            FrameMailbox mailbox = display.startMailbox();
+            assertTrue(mailbox.publish(Wayang.createDisplayImage()));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mailbox.getSendErrors() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, mailbox.getSendErrors());
+            assertEquals(1, display.getMetrics().getFramesFailed());
+            assertTrue(mailbox.publish(Wayang.createDisplayImage()));
+            while (mailbox.getFramesSent() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, mailbox.getFramesSent());
+        } finally {
+            Wayang.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.usb4java.LibUsb;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * Checks that the frame metrics count what happens to frames, and are published over JMX.
+ */
+public class FrameMetricsTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public FrameMetricsTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( FrameMetricsTest.class );
+    }
+
+    /**
+     * Send frames over a loopback transport and make sure they are counted, both directly and over JMX,
+     * and that the metrics are withdrawn from JMX when the display is closed.
+     */
+    public void testPipelineMetrics() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name;
+        FrameMetrics metrics;
+        try {
+            Wayang.open(new LoopbackFrameTransport(100, 40000000));
+            name = new ObjectName(Wayang.getDisplay().getMetricsObjectName());
+            metrics = Wayang.getMetrics();
+            assertTrue(server.isRegistered(name));
+            assertEquals(0L, server.getAttribute(name, "FramesSent"));
+            for (int i = 0; i < 5; i++) {
+                Wayang.sendFrame();
+            }
+            for (int i = 0; i < 10; i++) {
+                Wayang.sendFrameAsync();
+            }
+            Wayang.setKeepAliveInterval(60000);
+            Wayang.sendFrame();  // Encoded and sent, so later unchanged frames can be skipped.
+            Wayang.sendFrame();
+            Wayang.sendFrameAsync();
+        } finally {
+            Wayang.setKeepAliveInterval(0);
+            Wayang.close();  // Waits for the asynchronous frames to finish.
+        }
+        assertFalse(server.isRegistered(name));
+        assertEquals(16, metrics.getFramesSent());
+        assertEquals(2, metrics.getFramesSkipped());
+        assertEquals(0, metrics.getFramesFailed());
+        assertEquals(0, metrics.getTransfersInFlight());
+        assertTrue(metrics.getErrorCounts().isEmpty());
+        assertTrue(metrics.getEncodeTimeP50Micros() > 0);
+        assertTrue(metrics.getTransferTimeP99Micros() >= metrics.getTransferTimeP50Micros());
+        assertTrue(metrics.getTransferTimeMaxMicros() >= metrics.getTransferTimeP99Micros());
+        assertTrue(metrics.getFramesPerSecond() > 0);
+
+        long histogramTotal = 0;
+        for (long count : metrics.getTransferTimeHistogram()) {
+            histogramTotal += count;
+        }
+        assertEquals(16, histogramTotal);
+    }
+
+    /**
+     * Make sure failures are counted by the name of the LibUsb error or transfer status, and timeouts of
+     * both kinds are totalled.
+     */
+    public void testErrorCounts() {
+        FrameMetrics metrics = new FrameMetrics();
+        assertTrue(metrics.transferResult(LibUsb.SUCCESS, 10, 10));
+        assertFalse(metrics.transferResult(LibUsb.ERROR_TIMEOUT, 0, 10));
+        assertFalse(metrics.transferResult(LibUsb.ERROR_NO_DEVICE, 0, 10));
+        metrics.transferSubmitted();
+        metrics.transferSubmitted();
+        assertFalse(metrics.transferFinished(LibUsb.TRANSFER_TIMED_OUT, 0, 10));
+        assertFalse(metrics.transferFinished(LibUsb.TRANSFER_COMPLETED, 5, 10));
+        assertEquals(0, metrics.getTransfersInFlight());
+        assertEquals(2, metrics.getTimeouts());
+        assertEquals(1, metrics.getShortTransfers());
+
+        Map<String, Long> errors = metrics.getErrorCounts();
+        assertEquals(3, errors.size());
+        assertEquals(Long.valueOf(1), errors.get("LIBUSB_ERROR_TIMEOUT"));
+        assertEquals(Long.valueOf(1), errors.get("LIBUSB_ERROR_NO_DEVICE"));
+        assertEquals(Long.valueOf(1), errors.get("LIBUSB_TRANSFER_TIMED_OUT"));
+
+        metrics.reset();
+        assertTrue(metrics.getErrorCounts().isEmpty());
+        assertEquals(0, metrics.getTimeouts());
+    }
+
+    /**
+     * Make sure a transfer which sends fewer bytes than it should have is counted as short, and reported as a
+     * failure, whether it was synchronous or asynchronous.
+     */
+    public void testShortTransfers() {
+        FrameMetrics metrics = new FrameMetrics();
+        assertFalse(metrics.transferResult(LibUsb.SUCCESS, 5, 10));
+        assertEquals(1, metrics.getShortTransfers());
+        metrics.transferSubmitted();
+        assertFalse(metrics.transferFinished(LibUsb.TRANSFER_COMPLETED, 5, 10));
+        assertEquals(2, metrics.getShortTransfers());
+        assertTrue(metrics.transferResult(LibUsb.SUCCESS, 10, 10));
+        metrics.transferSubmitted();
+        assertTrue(metrics.transferFinished(LibUsb.TRANSFER_COMPLETED, 10, 10));
+        assertEquals(2, metrics.getShortTransfers());
+        assertTrue(metrics.getErrorCounts().isEmpty());
+    }
+}
@@ -0,0 +1,127 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Unit test for recording and replaying frames, over a loopback transport so no Push 2 is needed.
+ */
+public class FrameRecordingTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public FrameRecordingTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( FrameRecordingTest.class );
+    }
+
+    /**
+     * Collects copies of everything sent over a loopback transport.
+     */
+    private static class Collector implements LoopbackFrameTransport.Receiver {
+        final List<ByteBuffer> received = new ArrayList<ByteBuffer>();
+
+        @Override
+        public synchronized void received(ByteBuffer data) {
+            ByteBuffer copy = ByteBuffer.allocate(data.capacity());
+            ByteBuffer source = data.duplicate();
+            source.clear();
+            copy.put(source);
+            copy.flip();
+            received.add(copy);
+        }
+    }
+
+    /**
+     * Record frames sent both synchronously and asynchronously, more than fit in one mapped segment, then
+     * make sure that replaying them sends exactly the same bytes, with the same spacing in time.
+     */
+    public void testRecordAndReplay() throws IOException {
+        File captureFile = File.createTempFile("wayang", ".frames");
+        captureFile.deleteOnExit();
+        Collector original = new Collector();
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        transport.setReceiver(original);
+        final int frameCount = 20;
+        try {
+            BufferedImage displayImage = Wayang.open(transport);
+            Graphics2D graphics = displayImage.createGraphics();
+            FrameRecorder recorder = Wayang.startRecording(captureFile);
+            for (int i = 0; i < frameCount; i++) {
+                graphics.setColor(new Color(i * 12, 255 - i * 12, i * 7));
+                graphics.fillRect(i * 40, 0, 40, Wayang.DISPLAY_HEIGHT);
+                if (i % 2 == 0) {
+                    Wayang.sendFrame();
+                } else {
+                    Wayang.sendFrameAsync();
+                }
+            }
+            graphics.dispose();
+            assertEquals(frameCount, recorder.getFrameCount());
+            Wayang.stopRecording();
+        } finally {
+            Wayang.close();
+        }
+
+        FramePlayer player = new FramePlayer(captureFile);
+        try {
+            assertEquals(frameCount, player.getFrameCount());
+            for (int i = 1; i < frameCount; i++) {
+                assertTrue("Timestamps should increase", player.getTimestamp(i) > player.getTimestamp(i - 1));
+            }
+
+            Collector replayed = new Collector();
+            transport = new LoopbackFrameTransport();
+            transport.setReceiver(replayed);
+            Wayang.open(transport);
+            try {
+                long start = System.nanoTime();
+                Wayang.replay(player);
+                assertTrue("Replay should take as long as the recording",
+                        System.nanoTime() - start >= player.getDuration());
+            } finally {
+                Wayang.close();
+            }
+            // Asynchronous completions are reported on a different thread than synchronous sends, so the
+            // original frames may not have been received in order; every frame is different, though.
+            assertEquals(frameCount * 2, replayed.received.size());
+            assertEquals(new HashSet<ByteBuffer>(original.received), new HashSet<ByteBuffer>(replayed.received));
+        } finally {
+            player.close();
+        }
+    }
+
+    /**
+     * Make sure files that are not captures are rejected.
+     */
+    public void testRejectsOtherFiles() throws IOException {
+        try {
+            new FramePlayer(new File("assets/Wayang_Pandawa.jpg"));
+            fail("Should not be able to play a JPEG");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Not a Wayang frame capture file"));
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.usb4java.LibUsb;
+
+import java.awt.Graphics2D;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Checks that asynchronous frame sends report their completion, and their failures, through futures.
+ */
+public class FutureSendTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public FutureSendTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( FutureSendTest.class );
+    }
+
+    /**
+     * Wraps a loopback transport so that chosen asynchronous transfers report a failure, or send only part of
+     * their data, when they complete.
+     */
+    private static class FailingTransport implements FrameTransport {
+
+        /**
+         * The transport which actually carries the transfers.
+         */
+        private final LoopbackFrameTransport delegate = new LoopbackFrameTransport();
+
+        /**
+         * The status the next failing transfer will report.
+         */
+        private volatile int failStatus = LibUsb.TRANSFER_COMPLETED;
+
+        /**
+         * If greater than zero, the number of transfers to complete before one fails.
+         */
+        private final AtomicInteger failAfter = new AtomicInteger();
+
+        /**
+         * Arrange for a transfer to fail.
+         *
+         * @param transfers how many transfers should complete normally first.
+         * @param status    the status to report, where {@link LibUsb#TRANSFER_COMPLETED} means a short write.
+         */
+        void failAfter(int transfers, int status) {
+            failStatus = status;
+            failAfter.set(transfers + 1);
+        }
+
+        @Override
+        public int send(ByteBuffer data, IntBuffer transferred, long timeout) {
+            return delegate.send(data, transferred, timeout);
+        }
+
+        @Override
+        public boolean isCompletionThread() {
+            return delegate.isCompletionThread();
+        }
+
+        @Override
+        public Transfer prepare(ByteBuffer data, final Listener listener, Object userData, long timeout) {
+            return delegate.prepare(data, new Listener() {
+                @Override
+                public void transferFinished(Transfer transfer, int status, int actualLength) {
+                    if (failAfter.get() > 0 && failAfter.decrementAndGet() == 0) {
+                        listener.transferFinished(transfer, failStatus,
+                                (failStatus == LibUsb.TRANSFER_COMPLETED) ? actualLength / 2 : 0);
+                    } else {
+                        listener.transferFinished(transfer, status, actualLength);
+                    }
+                }
+            }, userData, timeout);
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Send frames asynchronously and make sure each future completes normally, including the one for a frame
+     * which was unchanged and did not need to be sent.
+     */
+    public void testFuturesComplete() throws Exception {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport(100, 40000000);
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            display.setKeepAliveInterval(1000);
+            CompletableFuture<Void> first = display.sendFrameAsync();
+            first.get(5, TimeUnit.SECONDS);
+            CompletableFuture<Void> unchanged = display.sendFrameAsync();
+            assertTrue("Unchanged frame should need no sending", unchanged.isDone());
+            unchanged.get();
+            assertEquals(1, display.getMetrics().getFramesSent());
+            assertEquals(1, display.getMetrics().getFramesSkipped());
+        } finally {
+            Wayang.close();
+        }
+        assertEquals(2, transport.getTransfersReceived());
+    }
+
+    /**
+     * Make sure a failed transfer and a short write are reported through the futures of their frames, without
+     * affecting the frames around them.
+     */
+    public void testFuturesFail() throws Exception {
+        FailingTransport transport = new FailingTransport();
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            display.setKeepAliveInterval(0);
+            display.sendFrameAsync().get(5, TimeUnit.SECONDS);
+
+            transport.failAfter(1, LibUsb.TRANSFER_ERROR);  // The header succeeds, the pixels fail.
+            assertFailure(display.sendFrameAsync(), LibUsb.TRANSFER_ERROR, false);
+            display.sendFrameAsync().get(5, TimeUnit.SECONDS);
+
+            transport.failAfter(0, LibUsb.TRANSFER_COMPLETED);  // The header is cut short.
+            assertFailure(display.sendFrameAsync(), LibUsb.TRANSFER_COMPLETED, true);
+            display.sendFrameAsync().get(5, TimeUnit.SECONDS);
+
+            assertEquals(2, display.getMetrics().getFramesFailed());
+            assertEquals(3, display.getMetrics().getFramesSent());
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Wait for a future which should fail, and check how it reports the problem.
+     *
+     * @param future the future of a frame whose transfer will fail.
+     * @param status the libusb status the failure should report.
+     * @param header {@code true} if the failing transfer was the frame header.
+     */
+    private void assertFailure(CompletableFuture<Void> future, int status, boolean header) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Frame should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FrameTransferException);
+            FrameTransferException problem = (FrameTransferException) e.getCause();
+            assertEquals(status, problem.getStatus());
+            int expected = header ? 16 : Wayang.DISPLAY_HEIGHT * Wayang.BYTES_PER_LINE;
+            assertEquals(expected, problem.getExpectedLength());
+            assertEquals(header ? expected / 2 : 0, problem.getActualLength());
+        }
+    }
+
+    /**
+     * Keep no more than two frames in flight by waiting for the oldest future before sending another, and
+     * make sure every frame is sent.
+     */
+    public void testBackpressure() throws Exception {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport(2000, 40000000);
+        PushDisplay display = Wayang.openDisplay(transport);
+        final int frameCount = 20;
+        try {
+            display.setKeepAliveInterval(0);
+            ArrayDeque<CompletableFuture<Void>> inFlight = new ArrayDeque<CompletableFuture<Void>>();
+            for (int i = 0; i < frameCount; i++) {
+                if (inFlight.size() == 2) {
+                    inFlight.removeFirst().get(5, TimeUnit.SECONDS);
+                }
+                inFlight.addLast(display.sendFrameAsync());
+                assertTrue(inFlight.size() <= 2);
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.removeFirst().get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(frameCount, display.getMetrics().getFramesSent());
+            assertEquals(0, display.getMetrics().getFramesDropped());
+        } finally {
+            Wayang.close();
+        }
+        assertEquals(frameCount * 2, transport.getTransfersReceived());
+    }
+
+    /**
+     * Records the status of each loopback transfer as it finishes.
+     */
+    private static class Statuses implements FrameTransport.Listener {
+
+        /**
+         * The statuses reported, in the order the transfers finished.
+         */
+        final BlockingQueue<Integer> finished = new LinkedBlockingQueue<Integer>();
+
+        @Override
+        public void transferFinished(FrameTransport.Transfer transfer, int status, int actualLength) {
+            finished.add(status);
+        }
+    }
+
+    /**
+     * Make sure that cancelling the loopback transfer whose completion is being awaited, and closing the
+     * transport with transfers still pending, finish them as cancelled at once, so a frame's future never
+     * waits forever.
+     */
+    public void testLoopbackCancelAndClose() throws Exception {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport(TimeUnit.SECONDS.toMicros(30), 0);
+        Statuses statuses = new Statuses();
+        FrameTransport.Transfer first = transport.prepare(ByteBuffer.allocateDirect(16), statuses, null, 1000);
+        FrameTransport.Transfer second = transport.prepare(ByteBuffer.allocateDirect(16), statuses, null, 1000);
+        assertEquals(LibUsb.SUCCESS, first.submit());
+        assertEquals(LibUsb.SUCCESS, second.submit());
+        Thread.sleep(50);  // Let the completion thread start waiting for the first transfer.
+        assertEquals(LibUsb.SUCCESS, first.cancel());
+        assertEquals(Integer.valueOf(LibUsb.TRANSFER_CANCELLED), statuses.finished.poll(5, TimeUnit.SECONDS));
+        transport.close();
+        assertEquals(Integer.valueOf(LibUsb.TRANSFER_CANCELLED), statuses.finished.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, transport.getTransfersReceived());
+
+        LoopbackFrameTransport slow = new LoopbackFrameTransport(TimeUnit.SECONDS.toMicros(30), 0);
+        PushDisplay display = Wayang.openDisplay(slow);
+        try {
+            CompletableFuture<Void> future = display.sendFrameAsync();
+            Thread.sleep(50);
+            slow.close();
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Frame whose transport was closed should not have been sent");
+            } catch (ExecutionException e) {
+                assertTrue(future.isCompletedExceptionally());
+            }
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure an action attached to a frame's future, which runs on the thread that completes transfers, is
+     * stopped from waiting for a free buffer there, but can still offer another frame.
+     */
+    public void testSendFromCompletionThread() throws Exception {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport(100000, 0);  // Attach before completion.
+        final PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            final CompletableFuture<Boolean> offered = new CompletableFuture<Boolean>();
+            display.sendFrameAsync().whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void ignored, Throwable problem) {
+                    try {
+                        display.sendFrameAsync();
+                        offered.completeExceptionally(new AssertionError("Waiting send should have been rejected"));
+                    } catch (IllegalStateException e) {
+                        display.getImage().setRGB(0, 0, 0xffffff);  // Make sure the next frame is sent.
+                        offered.complete(display.offerFrameAsync());
+                    }
+                }
+            });
+            assertTrue(offered.get(5, TimeUnit.SECONDS));
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure a render loop whose frames stop reaching the display stops too, and reports why, rather than
+     * carrying on as if nothing were wrong.
+     */
+    public void testRenderLoopStopsOnTransferFailure() throws Exception {
+        FailingTransport transport = new FailingTransport();
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            transport.failAfter(5, LibUsb.TRANSFER_STALL);
+            RenderLoop loop = display.startRenderLoop(100, new RenderLoop.Callback() {
+                @Override
+                public void render(Graphics2D graphics, long frame) {
+                    graphics.fillRect((int) (frame % Wayang.DISPLAY_WIDTH), 0, 1, 1);
+                }
+            });
+            long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (loop.isRunning() && System.nanoTime() < giveUp) {
+                Thread.sleep(10);
+            }
+            assertFalse("Render loop should have stopped", loop.isRunning());
+            assertTrue(loop.getFailure() instanceof FrameTransferException);
+            assertEquals(LibUsb.TRANSFER_STALL, ((FrameTransferException) loop.getFailure()).getStatus());
+        } finally {
+            Wayang.close();
+        }
+    }
+}
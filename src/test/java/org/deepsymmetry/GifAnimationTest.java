@@ -0,0 +1,205 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that animated GIFs are composited, scaled, cached and played correctly.
+ */
+public class GifAnimationTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public GifAnimationTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( GifAnimationTest.class );
+    }
+
+    /**
+     * Create a solid block of color.
+     *
+     * @param width  the width of the block.
+     * @param height the height of the block.
+     * @param color  the color of the block.
+     *
+     * @return an image filled with the color.
+     */
+    private static BufferedImage block(int width, int height, Color color) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Add a frame to a GIF file being written.
+     *
+     * @param writer   the GIF writer.
+     * @param image    the pixels of the frame.
+     * @param left     the horizontal position of the frame.
+     * @param disposal the frame's disposal method.
+     *
+     * @throws IOException if there is a problem writing the frame.
+     */
+    private static void writeFrame(ImageWriter writer, BufferedImage image, int left, String disposal)
+            throws IOException {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+        IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+        control.setAttribute("disposalMethod", disposal);
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", "5");
+        control.setAttribute("transparentColorIndex", "0");
+        root.appendChild(control);
+        IIOMetadataNode descriptor = (IIOMetadataNode) root.getElementsByTagName("ImageDescriptor").item(0);
+        descriptor.setAttribute("imageLeftPosition", Integer.toString(left));
+        metadata.setFromTree(format, root);
+        writer.writeToSequence(new IIOImage(image, null, metadata), param);
+    }
+
+    /**
+     * Find the color sent for a point on the display.
+     *
+     * @param frame the masked frame that was sent.
+     * @param x     the horizontal position of the pixel.
+     * @param y     the vertical position of the pixel.
+     *
+     * @return the unmasked BGR565 pixel value.
+     */
+    private static int pixel(ByteBuffer frame, int x, int y) {
+        int mask = ((x & 1) == 0) ? 0xf3e7 : 0xffe7;
+        return (frame.getShort((y * Wayang.BYTES_PER_LINE) + (x * 2)) ^ mask) & 0xffff;
+    }
+
+    /**
+     * Write a 64x16 animation with a red background, then a blue square on the left that is disposed of by
+     * restoring the previous canvas, then a green square on the right that stays. Play it twice over a
+     * loopback transport, and make sure the frames are composited and scaled to fill the display height
+     * (160 pixels of display for each 16 of animation, centered horizontally), and that the second
+     * time through, every frame comes from the cache. Every frame played should also be captured by a
+     * recording in progress.
+     */
+    public void testPlayback() throws IOException {
+        File file = File.createTempFile("wayang", ".gif");
+        file.deleteOnExit();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        ImageOutputStream output = ImageIO.createImageOutputStream(file);
+        writer.setOutput(output);
+        writer.prepareWriteSequence(null);
+        writeFrame(writer, block(64, 16, Color.RED), 0, "none");
+        writeFrame(writer, block(16, 16, Color.BLUE), 0, "restoreToPrevious");
+        writeFrame(writer, block(16, 16, Color.GREEN), 48, "none");
+        writer.endWriteSequence();
+        output.close();
+        writer.dispose();
+
+        File captureFile = File.createTempFile("wayang", ".frames");
+        captureFile.deleteOnExit();
+        final List<ByteBuffer> received = new ArrayList<ByteBuffer>();
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        transport.setReceiver(new LoopbackFrameTransport.Receiver() {
+            @Override
+            public void received(ByteBuffer data) {
+                if (data.capacity() > 16) {
+                    ByteBuffer copy = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+                    DirectDisplayRaster.copy(data, copy);
+                    received.add(copy);
+                }
+            }
+        });
+        EncodedFrameCache cache = new EncodedFrameCache(10L * 1024 * 1024);
+        GifAnimation animation = new GifAnimation(file, cache);
+        try {
+            assertEquals(3, animation.getFrameCount());
+            assertEquals(50, animation.getDelay(1));
+            assertEquals(0, animation.getRepeatCount());
+            Wayang.open(transport);
+            FrameRecorder recorder = Wayang.startRecording(captureFile);
+            long start = System.nanoTime();
+            Wayang.play(animation);
+            long elapsed = System.nanoTime() - start;
+            assertTrue("Playback should follow frame delays", elapsed >= 100000000L);
+            assertEquals(3, cache.getMisses());
+            Wayang.play(animation);
+            assertEquals(3, cache.getHits());
+            assertEquals(3, cache.getMisses());
+            assertEquals(6, recorder.getFrameCount());
+            Wayang.stopRecording();
+        } finally {
+            Wayang.close();
+            animation.close();
+        }
+        assertEquals(0, cache.getFrameCount());
+
+        final int red = 0x001f;
+        final int blue = 0xf800;
+        final int green = 0x07e0;
+        assertEquals(6, received.size());
+        for (int pass = 0; pass < 2; pass++) {
+            ByteBuffer first = received.get(pass * 3);
+            ByteBuffer second = received.get(pass * 3 + 1);
+            ByteBuffer third = received.get(pass * 3 + 2);
+            assertEquals("Outside the animation", 0, pixel(first, 100, 80));
+            assertEquals(red, pixel(first, 240, 80));
+            assertEquals(blue, pixel(second, 240, 80));
+            assertEquals(red, pixel(second, 720, 80));
+            assertEquals("Blue square should be disposed", red, pixel(third, 240, 80));
+            assertEquals(green, pixel(third, 720, 80));
+        }
+    }
+
+    /**
+     * Make sure the cache stays within its size limit, discarding the least recently used frames.
+     */
+    public void testCacheEviction() {
+        int frameSize = Wayang.BYTES_PER_LINE * Wayang.DISPLAY_HEIGHT;
+        EncodedFrameCache cache = new EncodedFrameCache(frameSize * 2L);
+        Object owner = new Object();
+        cache.put(owner, 0, Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT));
+        cache.put(owner, 1, Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT));
+        assertNotNull(cache.get(owner, 0));  // Now frame 1 is the least recently used.
+        cache.put(owner, 2, Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT));
+        assertEquals(2, cache.getFrameCount());
+        assertEquals(frameSize * 2L, cache.getBytes());
+        assertNotNull(cache.get(owner, 0));
+        assertNull(cache.get(owner, 1));
+        assertNotNull(cache.get(owner, 2));
+        cache.setMaxBytes(frameSize);
+        assertEquals(1, cache.getFrameCount());
+        assertNotNull(cache.get(owner, 2));
+    }
+}
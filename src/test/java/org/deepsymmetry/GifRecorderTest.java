@@ -0,0 +1,153 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that frames sent to the display are recorded to an animated GIF in the background.
+ */
+public class GifRecorderTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public GifRecorderTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( GifRecorderTest.class );
+    }
+
+    /**
+     * The colors shown in successive frames, all of which are exactly representable in the recording palette.
+     */
+    private static final Color[] COLORS = {Color.RED, Color.GREEN, Color.BLUE, Color.WHITE, Color.BLACK};
+
+    /**
+     * Send frames of different colors, both synchronously and as ARGB pixels, then read back the GIF and make
+     * sure it holds each of them, with delays matching how far apart they were sent.
+     */
+    public void testRecordsFrames() throws IOException, InterruptedException {
+        File file = File.createTempFile("wayang", ".gif");
+        file.deleteOnExit();
+        GifRecorder recorder;
+        try {
+            BufferedImage displayImage = Wayang.open(new LoopbackFrameTransport());
+            Graphics2D graphics = displayImage.createGraphics();
+            recorder = Wayang.startGifRecording(file);
+            for (int i = 0; i < COLORS.length; i++) {
+                if (i % 2 == 0) {
+                    graphics.setColor(COLORS[i]);
+                    graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+                    Wayang.sendFrame();
+                } else {
+                    int[] pixels = new int[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+                    java.util.Arrays.fill(pixels, COLORS[i].getRGB());
+                    Wayang.sendFrame(pixels);
+                }
+                Thread.sleep(100);
+            }
+            graphics.dispose();
+            Wayang.stopGifRecording();
+        } finally {
+            Wayang.close();
+        }
+        assertEquals(COLORS.length, recorder.getCapturedCount());
+        assertEquals(0, recorder.getDroppedCount());
+        assertEquals(COLORS.length, recorder.getWrittenCount());
+
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        try {
+            reader.setInput(input);
+            assertEquals(COLORS.length, reader.getNumImages(true));
+            for (int i = 0; i < COLORS.length; i++) {
+                BufferedImage frame = reader.read(i);
+                assertEquals(Wayang.DISPLAY_WIDTH, frame.getWidth());
+                assertEquals(Wayang.DISPLAY_HEIGHT, frame.getHeight());
+                assertEquals("Frame " + i, COLORS[i].getRGB(), frame.getRGB(500, 80));
+                if (i < COLORS.length - 1) {
+                    IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i)
+                            .getAsTree("javax_imageio_gif_image_1.0");
+                    IIOMetadataNode control = (IIOMetadataNode) root.getElementsByTagName("GraphicControlExtension")
+                            .item(0);
+                    int delay = Integer.parseInt(control.getAttribute("delayTime"));
+                    assertTrue("Delay " + delay + " should reflect sending interval", delay >= 9 && delay <= 20);
+                }
+            }
+        } finally {
+            reader.dispose();
+            input.close();
+        }
+    }
+
+    /**
+     * Capture frames far faster than they can be written, with only two buffers, and make sure every frame is
+     * either written or dropped, and that frames sent too close together are merged.
+     */
+    public void testDropsUnderPressure() throws IOException {
+        ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(new ByteArrayOutputStream());
+        GifRecorder recorder = new GifRecorder(output, 2, 1);
+        final int frameCount = 50;
+        long now = System.nanoTime();
+        for (int i = 0; i < frameCount; i++) {
+            recorder.beginFrame(now + (i * 50000000L));
+            recorder.appendPixels(frame);
+            recorder.endFrame();
+        }
+        // Two frames 5 ms apart: the second replaces the first.
+        recorder.beginFrame(now + (frameCount * 50000000L));
+        recorder.appendPixels(frame);
+        recorder.endFrame();
+        recorder.beginFrame(now + (frameCount * 50000000L) + 5000000L);
+        recorder.appendPixels(frame);
+        recorder.endFrame();
+        recorder.close();
+        output.close();
+
+        assertEquals(frameCount + 2, recorder.getWrittenCount() + recorder.getDroppedCount());
+        assertTrue(recorder.getWrittenCount() >= 1);
+        assertTrue(recorder.getCapturedCount() >= recorder.getWrittenCount());
+    }
+
+    /**
+     * Make sure the recording palette maps the display's colors to the nearest entry.
+     */
+    public void testPalette() {
+        int[] colors = {0x000000, 0xffffff, 0xff0000, 0x00ff00, 0x0000ff, 0x2449aa};
+        ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        for (int x = 0; x < colors.length; x++) {
+            int mask = ((x & 1) == 0) ? 0xf3e7 : 0xffe7;
+            frame.putShort(x * 2, (short) (SpriteAtlas.pack(colors[x]) ^ mask));
+        }
+        byte[] indices = new byte[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        GifRecorder.quantize(frame, indices);
+        for (int x = 0; x < colors.length; x++) {
+            assertEquals("Color " + Integer.toHexString(colors[x]), 0xff000000 | colors[x],
+                    GifRecorder.PALETTE.getRGB(indices[x] & 0xff));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that images are fitted to the display as requested, that flat areas stay flat, and that every way of
+ * delivering the scaled image gives the same pixels.
+ */
+public class ImageScalerTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ImageScalerTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ImageScalerTest.class );
+    }
+
+    /**
+     * Build an image filled with a single color.
+     *
+     * @param width  the width of the image.
+     * @param height the height of the image.
+     * @param type   the image type.
+     * @param color  the color to fill it with.
+     *
+     * @return the image.
+     */
+    private static BufferedImage solidImage(int width, int height, int type, Color color) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Make sure each mode places the scaled image where it should.
+     */
+    public void testTargetBounds() {
+        ImageScaler fit = new ImageScaler(1280, 720, ImageScaler.Mode.FIT, ImageScaler.Filter.AREA_AVERAGE);
+        assertEquals(new Rectangle(338, 0, 284, 160), fit.getTargetBounds());
+        ImageScaler tall = new ImageScaler(100, 400, ImageScaler.Mode.FIT, ImageScaler.Filter.AREA_AVERAGE);
+        assertEquals(new Rectangle(460, 0, 40, 160), tall.getTargetBounds());
+        ImageScaler wide = new ImageScaler(3000, 100, ImageScaler.Mode.FIT, ImageScaler.Filter.LANCZOS3);
+        assertEquals(new Rectangle(0, 64, 960, 32), wide.getTargetBounds());
+        Rectangle whole = new Rectangle(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        assertEquals(whole, new ImageScaler(1280, 720, ImageScaler.Mode.FILL,
+                ImageScaler.Filter.LANCZOS3).getTargetBounds());
+        assertEquals(whole, new ImageScaler(1280, 720, ImageScaler.Mode.STRETCH,
+                ImageScaler.Filter.LANCZOS3).getTargetBounds());
+        try {
+            new ImageScaler(0, 720, ImageScaler.Mode.FIT, ImageScaler.Filter.AREA_AVERAGE);
+            fail("Empty images can't be scaled");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Make sure a solid color stays exactly that color with every filter, whether shrinking or enlarging, and
+     * that fitting leaves black bars around the image.
+     */
+    public void testFlatColor() {
+        Color color = new Color(200, 100, 40);
+        short expected = SpriteAtlas.pack(color.getRGB());
+        int[][] sizes = {{1280, 720}, {97, 13}, {960, 160}, {4000, 90}};
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR};
+        for (ImageScaler.Filter filter : ImageScaler.Filter.values()) {
+            for (ImageScaler.Mode mode : ImageScaler.Mode.values()) {
+                for (int[] size : sizes) {
+                    BufferedImage source = solidImage(size[0], size[1], types[size[0] % 2], color);
+                    ImageScaler scaler = new ImageScaler(size[0], size[1], mode, filter);
+                    BufferedImage display = Wayang.createDisplayImage();
+                    scaler.scale(source, display);
+                    short[] pixels = Wayang.displayPixels(display);
+                    Rectangle target = scaler.getTargetBounds();
+                    for (int y = 0; y < Wayang.DISPLAY_HEIGHT; y++) {
+                        for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                            short pixel = pixels[y * Wayang.DISPLAY_WIDTH + x];
+                            assertEquals(filter + " " + mode + " " + size[0] + "x" + size[1] + " at " + x + "," + y,
+                                    target.contains(x, y) ? expected : 0, pixel);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Make sure shrinking averages detail away rather than skipping it: a fine checkerboard should become an
+     * even grey, not a pattern.
+     */
+    public void testAveragesDetail() {
+        BufferedImage source = new BufferedImage(1920, 320, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, ((x + y) % 2 == 0) ? 0xffffff : 0);
+            }
+        }
+        for (ImageScaler.Filter filter : ImageScaler.Filter.values()) {
+            ImageScaler scaler = new ImageScaler(1920, 320, ImageScaler.Mode.STRETCH, filter);
+            BufferedImage display = Wayang.createDisplayImage();
+            scaler.scale(source, display);
+            for (int y = 2; y < Wayang.DISPLAY_HEIGHT - 2; y++) {
+                for (int x = 2; x < Wayang.DISPLAY_WIDTH - 2; x++) {
+                    int green = (display.getRGB(x, y) >> 8) & 0xff;
+                    assertTrue(filter + " at " + x + "," + y + " was " + green, Math.abs(green - 128) < 8);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make sure pixel arrays, direct display rasters and frame buffers all receive the same scaled pixels as
+     * an ordinary display image.
+     */
+    public void testOutputsAgree() {
+        BufferedImage source = new BufferedImage(640, 360, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = source.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.RED, 640, 360, Color.CYAN));
+        graphics.fillRect(0, 0, 640, 360);
+        graphics.setColor(Color.WHITE);
+        graphics.drawString("Wayang", 100, 100);
+        graphics.dispose();
+        ImageScaler scaler = new ImageScaler(640, 360, ImageScaler.Mode.FILL, ImageScaler.Filter.LANCZOS3);
+
+        BufferedImage expected = Wayang.createDisplayImage();
+        scaler.scale(source, expected);
+        short[] expectedPixels = Wayang.displayPixels(expected);
+
+        BufferedImage fromArray = Wayang.createDisplayImage();
+        int[] argb = source.getRGB(0, 0, 640, 360, null, 0, 640);
+        scaler.scale(argb, 0, 640, fromArray);
+        assertTrue(java.util.Arrays.equals(expectedPixels, Wayang.displayPixels(fromArray)));
+
+        BufferedImage direct = new DirectDisplayRaster().getImage();
+        scaler.scale(source, direct);
+        for (int y = 0; y < Wayang.DISPLAY_HEIGHT; y++) {
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                assertEquals(expected.getRGB(x, y), direct.getRGB(x, y));
+            }
+        }
+
+        ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        scaler.encode(source, frame, ArgbFrameConverter.PLAIN);
+        for (int y = 0; y < Wayang.DISPLAY_HEIGHT; y++) {
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                int mask = (x % 2 == 0) ? 0xf3e7 : 0xffe7;
+                assertEquals((short) (expectedPixels[y * Wayang.DISPLAY_WIDTH + x] ^ mask),
+                        frame.getShort(y * Wayang.BYTES_PER_LINE + x * 2));
+            }
+        }
+
+        try {
+            scaler.scale(new BufferedImage(641, 360, BufferedImage.TYPE_INT_RGB), expected);
+            fail("Scaler only works with the size it was created for");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
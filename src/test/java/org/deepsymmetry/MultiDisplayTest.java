@@ -0,0 +1,120 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that several displays can be open and sent frames at the same time.
+ */
+public class MultiDisplayTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MultiDisplayTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( MultiDisplayTest.class );
+    }
+
+    /**
+     * Open three displays over loopback transports, and send frames to all of them at once from separate
+     * threads, making sure each display receives only its own frames, and that closing everything
+     * closes them all.
+     */
+    public void testParallelDisplays() throws Exception {
+        final int displayCount = 3;
+        final int frames = 20;
+        LoopbackFrameTransport[] transports = new LoopbackFrameTransport[displayCount];
+        final PushDisplay[] displays = new PushDisplay[displayCount];
+        try {
+            for (int i = 0; i < displayCount; i++) {
+                transports[i] = new LoopbackFrameTransport(100, 40000000);
+                displays[i] = Wayang.openDisplay(transports[i]);
+            }
+            assertSame(displays[0], Wayang.getDisplay());
+            assertEquals(displayCount, Wayang.getDisplays().size());
+            assertNotSame(displays[0].getImage(), displays[1].getImage());
+            assertFalse(displays[0].getName().equals(displays[1].getName()));
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread[] threads = new Thread[displayCount];
+            for (int i = 0; i < displayCount; i++) {
+                final PushDisplay display = displays[i];
+                final int width = (i + 1) * 100;
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            Graphics2D graphics = display.getImage().createGraphics();
+                            graphics.setColor(Color.WHITE);
+                            graphics.fillRect(0, 0, width, Wayang.DISPLAY_HEIGHT);
+                            graphics.dispose();
+                            for (int j = 0; j < frames; j++) {
+                                if (j % 2 == 0) {
+                                    display.sendFrame();
+                                } else {
+                                    display.sendFrameAsync();
+                                }
+                            }
+                        } catch (Throwable t) {
+                            failure.set(t);
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+        } finally {
+            Wayang.close();
+        }
+
+        assertNull(Wayang.getDisplay());
+        assertTrue(Wayang.getDisplays().isEmpty());
+        long frameBytes = 16 + Wayang.BYTES_PER_LINE * Wayang.DISPLAY_HEIGHT;
+        for (int i = 0; i < displayCount; i++) {
+            assertFalse(displays[i].isOpen());
+            assertEquals(frames, displays[i].getMetrics().getFramesSent());
+            assertEquals(frames * 2, transports[i].getTransfersReceived());
+            assertEquals(frames * frameBytes, transports[i].getBytesReceived());
+        }
+    }
+
+    /**
+     * Make sure that using a display after it has been closed is reported clearly.
+     */
+    public void testClosedDisplay() {
+        PushDisplay display = Wayang.openDisplay(new LoopbackFrameTransport());
+        display.close();
+        assertNull(Wayang.getDisplay());
+        try {
+            display.sendFrame();
+            fail("Sending a frame to a closed display should fail");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
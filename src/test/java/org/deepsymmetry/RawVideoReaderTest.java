@@ -0,0 +1,245 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that raw video frames are read and masked correctly in each pixel format, and sent to the display.
+ */
+public class RawVideoReaderTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public RawVideoReaderTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( RawVideoReaderTest.class );
+    }
+
+    /**
+     * Build a frame whose pixels vary across the display, as an {@code ffmpeg} rawvideo stream would hold it.
+     *
+     * @param format the pixel format.
+     * @param seed   varies the pixels from one frame to the next.
+     *
+     * @return the bytes of the frame.
+     */
+    private static byte[] rawFrame(RawVideoReader.Format format, int seed) {
+        ByteBuffer frame = ByteBuffer.allocate(format.getFrameSize()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT; i++) {
+            int argb = argb(i, seed);
+            int red = (argb >> 16) & 0xff;
+            int green = (argb >> 8) & 0xff;
+            int blue = argb & 0xff;
+            switch (format) {
+                case BGR565:
+                    frame.putShort((short) ((red >> 3) | ((green >> 2) << 5) | ((blue >> 3) << 11)));
+                    break;
+                case RGB565:
+                    frame.putShort((short) ((blue >> 3) | ((green >> 2) << 5) | ((red >> 3) << 11)));
+                    break;
+                case RGB24:
+                    frame.put((byte) red).put((byte) green).put((byte) blue);
+                    break;
+                case BGRA:
+                    frame.putInt(argb);
+                    break;
+            }
+        }
+        return frame.array();
+    }
+
+    /**
+     * Work out the color of a pixel of a test frame.
+     *
+     * @param index the index of the pixel.
+     * @param seed  varies the pixels from one frame to the next.
+     *
+     * @return the ARGB color of the pixel.
+     */
+    private static int argb(int index, int seed) {
+        return 0xff000000 | ((index * 7 + seed) & 0xff) << 16 | ((index * 3) & 0xff) << 8 | ((index + seed * 5) & 0xff);
+    }
+
+    /**
+     * Work out how a test frame should look once it has been masked into a frame buffer.
+     *
+     * @param format the pixel format the frame was sent in.
+     * @param seed   varies the pixels from one frame to the next.
+     *
+     * @return the expected frame buffer.
+     */
+    private static ByteBuffer expectedFrame(RawVideoReader.Format format, int seed) {
+        ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        if (format.getBytesPerPixel() == 2) {  // Truncated, the way the 16-bit test frames were built.
+            for (int y = 0; y < Wayang.DISPLAY_HEIGHT; y++) {
+                for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                    int argb = argb(y * Wayang.DISPLAY_WIDTH + x, seed);
+                    int pixel = ((argb >> 19) & 0x1f) | (((argb >> 10) & 0x3f) << 5) | (((argb >> 3) & 0x1f) << 11);
+                    int mask = (x % 2 == 0) ? 0xf3e7 : 0xffe7;
+                    frame.putShort(y * Wayang.BYTES_PER_LINE + x * 2, (short) (pixel ^ mask));
+                }
+            }
+            return frame;
+        }
+        int[] pixels = new int[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = argb(i, seed);
+        }
+        ArgbFrameConverter.PLAIN.convert(pixels, 0, Wayang.DISPLAY_WIDTH, false, 0, Wayang.DISPLAY_HEIGHT, frame);
+        return frame;
+    }
+
+    /**
+     * Check that the pixels of two frame buffers match, ignoring their padding.
+     *
+     * @param expected the frame buffer that should have been produced.
+     * @param actual   the frame buffer which was.
+     */
+    private static void assertPixelsEqual(ByteBuffer expected, ByteBuffer actual) {
+        for (int y = 0; y < Wayang.DISPLAY_HEIGHT; y++) {
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                int position = y * Wayang.BYTES_PER_LINE + x * 2;
+                assertEquals("Pixel " + x + "," + y, expected.getShort(position), actual.getShort(position));
+            }
+        }
+    }
+
+    /**
+     * Make sure every format is read correctly, from a stream and from a file, which can be read with a single
+     * scattering read.
+     */
+    public void testFormats() throws Exception {
+        for (RawVideoReader.Format format : RawVideoReader.Format.values()) {
+            byte[] first = rawFrame(format, 1);
+            byte[] second = rawFrame(format, 2);
+            byte[] both = Arrays.copyOf(first, first.length * 2);
+            System.arraycopy(second, 0, both, first.length, second.length);
+            RawVideoReader reader = new RawVideoReader(Channels.newChannel(new ByteArrayInputStream(both)), format);
+            ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+            assertTrue(reader.readFrame(frame, ArgbFrameConverter.PLAIN));
+            assertPixelsEqual(expectedFrame(format, 1), frame);
+            assertTrue(reader.readFrame(frame, ArgbFrameConverter.PLAIN));
+            assertPixelsEqual(expectedFrame(format, 2), frame);
+            assertFalse(reader.readFrame(frame, ArgbFrameConverter.PLAIN));
+            assertEquals(2, reader.getFramesRead());
+
+            File file = File.createTempFile("wayang-raw", "." + format.getFfmpegName());
+            try {
+                FileOutputStream output = new FileOutputStream(file);
+                output.write(both);
+                output.close();
+                reader = RawVideoReader.openPipe(file.getPath(), format);
+                assertTrue(reader.skipFrame());
+                assertTrue(reader.readFrame(frame, ArgbFrameConverter.PLAIN));
+                assertPixelsEqual(expectedFrame(format, 2), frame);
+                assertFalse(reader.readFrame(frame, ArgbFrameConverter.PLAIN));
+                reader.close();
+            } finally {
+                assertTrue(file.delete());
+            }
+        }
+    }
+
+    /**
+     * Make sure a stream which ends partway through a frame is reported.
+     */
+    public void testTruncatedStream() throws Exception {
+        byte[] partial = Arrays.copyOf(rawFrame(RawVideoReader.Format.BGR565, 0), Wayang.BYTES_PER_LINE * 3);
+        RawVideoReader reader = new RawVideoReader(Channels.newChannel(new ByteArrayInputStream(partial)),
+                RawVideoReader.Format.BGR565);
+        try {
+            reader.readFrame(Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT), ArgbFrameConverter.PLAIN);
+            fail("Partial frame should be reported");
+        } catch (EOFException e) {
+            assertEquals(0, reader.getFramesRead());
+        }
+    }
+
+    /**
+     * Remembers the first four pixels of the last frame image the loopback transport received.
+     */
+    private static class LastFrame implements LoopbackFrameTransport.Receiver {
+
+        /**
+         * The first eight bytes of the most recent frame image.
+         */
+        final AtomicLong firstPixels = new AtomicLong();
+
+        @Override
+        public void received(ByteBuffer data) {
+            if (data.capacity() == Wayang.DISPLAY_HEIGHT * Wayang.BYTES_PER_LINE) {
+                firstPixels.set(data.getLong(0));
+            }
+        }
+    }
+
+    /**
+     * Make sure frames written to a pipe by another thread reach the display, ending with the last one.
+     */
+    public void testSendsFrames() throws Exception {
+        final RawVideoReader.Format format = RawVideoReader.Format.RGB24;
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        LastFrame lastFrame = new LastFrame();
+        transport.setReceiver(lastFrame);
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            final Pipe pipe = Pipe.open();
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int seed = 1; seed <= 5; seed++) {
+                            ByteBuffer frame = ByteBuffer.wrap(rawFrame(format, seed));
+                            while (frame.hasRemaining()) {
+                                pipe.sink().write(frame);
+                            }
+                        }
+                        pipe.sink().close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            writer.start();
+            RawVideoReader reader = new RawVideoReader(pipe.source(), format);
+            FrameMailbox mailbox = display.startMailbox();
+            reader.run(mailbox);
+            writer.join();
+            assertEquals(5, reader.getFramesRead());
+            assertEquals(5, mailbox.getFramesPublished() + mailbox.getFramesRejected());
+
+            long expected = expectedFrame(format, 5).getLong(0);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (lastFrame.firstPixels.get() != expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(expected, lastFrame.firstPixels.get());
+        } finally {
+            Wayang.close();
+        }
+    }
+}
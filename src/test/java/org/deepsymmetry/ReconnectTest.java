@@ -0,0 +1,316 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that displays survive their device disappearing, and carry on where they left off when reconnected.
+ */
+public class ReconnectTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ReconnectTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ReconnectTest.class );
+    }
+
+    /**
+     * Wraps a loopback transport so that it can behave like a device whose cable has been pulled.
+     */
+    private static class UnpluggableTransport implements FrameTransport {
+
+        /**
+         * The transport which carries frames while we are plugged in.
+         */
+        private final LoopbackFrameTransport delegate = new LoopbackFrameTransport();
+
+        /**
+         * Set once the device has gone away.
+         */
+        private volatile boolean unplugged = false;
+
+        /**
+         * Make every later attempt to send fail as if the device had disappeared.
+         */
+        void unplug() {
+            unplugged = true;
+        }
+
+        @Override
+        public int send(ByteBuffer data, IntBuffer transferred, long timeout) {
+            if (unplugged) {
+                return LibUsb.ERROR_NO_DEVICE;
+            }
+            return delegate.send(data, transferred, timeout);
+        }
+
+        @Override
+        public boolean isCompletionThread() {
+            return delegate.isCompletionThread();
+        }
+
+        @Override
+        public Transfer prepare(ByteBuffer data, final Listener listener, Object userData, long timeout) {
+            final UnpluggableTransfer wrapper = new UnpluggableTransfer();
+            wrapper.transfer = delegate.prepare(data, new Listener() {
+                @Override
+                public void transferFinished(Transfer transfer, int status, int actualLength) {
+                    listener.transferFinished(wrapper, status, actualLength);
+                }
+            }, userData, timeout);
+            return wrapper;
+        }
+
+        /**
+         * Wraps a loopback transfer so that it cannot be submitted once the device has gone away.
+         */
+        private class UnpluggableTransfer implements Transfer {
+
+            /**
+             * The transfer which actually sends the data.
+             */
+            Transfer transfer;
+
+            @Override
+            public int submit() {
+                return unplugged ? LibUsb.ERROR_NO_DEVICE : transfer.submit();
+            }
+
+            @Override
+            public int cancel() {
+                return transfer.cancel();
+            }
+
+            @Override
+            public void free() {
+                transfer.free();
+            }
+
+            @Override
+            public Object userData() {
+                return transfer.userData();
+            }
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Remembers the first four pixels of the last frame image the loopback transport received.
+     */
+    private static class LastFrame implements LoopbackFrameTransport.Receiver {
+
+        /**
+         * The first eight bytes of the most recent frame image.
+         */
+        final AtomicLong firstPixels = new AtomicLong();
+
+        @Override
+        public void received(ByteBuffer data) {
+            if (data.capacity() == Wayang.DISPLAY_HEIGHT * Wayang.BYTES_PER_LINE) {
+                firstPixels.set(data.getLong(0));
+            }
+        }
+    }
+
+    /**
+     * Create a loopback transport which remembers the last frame it received.
+     *
+     * @param lastFrame where the frame should be remembered.
+     *
+     * @return the transport with which to reconnect a display.
+     */
+    private static LoopbackFrameTransport replacement(LastFrame lastFrame) {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        transport.setReceiver(lastFrame);
+        return transport;
+    }
+
+    /**
+     * Pull the cable while drawing to the display image, and make sure drawing carries on without errors, and
+     * the last frame drawn is shown as soon as the display is reconnected.
+     */
+    public void testDisplayImageResumes() {
+        UnpluggableTransport transport = new UnpluggableTransport();
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            display.setAutoReconnect(true);
+            Graphics2D graphics = display.getImage().createGraphics();
+            display.sendFrame();
+            assertTrue(display.getMetrics().getTimeToFirstFrameMicros() >= 0);
+
+            transport.unplug();
+            graphics.setColor(Color.GREEN);
+            graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+            display.sendFrame();  // Discovers the device is gone.
+            display.sendFrame();  // Quietly dropped.
+            assertTrue(display.isOpen());
+            assertFalse(display.isConnected());
+            assertEquals(1, display.getMetrics().getConnectionsLost());
+            assertEquals(-1, display.getMetrics().getTimeToFirstFrameMicros());
+
+            LastFrame lastFrame = new LastFrame();
+            BufferedImage image = display.getImage();
+            assertTrue(display.reconnect(replacement(lastFrame)));
+            assertFalse("Should only reconnect once", display.reconnect(new LoopbackFrameTransport()));
+            assertTrue(display.isConnected());
+            assertSame(image, display.getImage());
+            assertEquals(expectedGreen(), lastFrame.firstPixels.get());
+            assertEquals(1, display.getMetrics().getReconnections());
+            assertEquals(2, display.getMetrics().getFramesSent());
+            assertTrue(display.getMetrics().getFramesDropped() >= 1);
+            assertTrue(display.getMetrics().getTimeToFirstFrameMicros() >= 0);
+        } finally {
+            Wayang.close();
+        }
+        assertFalse(display.isOpen());
+    }
+
+    /**
+     * Work out what the first four pixels of a green frame look like when sent.
+     *
+     * @return the first eight bytes of the encoded frame.
+     */
+    private static long expectedGreen() {
+        int[] line = new int[Wayang.DISPLAY_WIDTH];
+        Arrays.fill(line, Color.GREEN.getRGB());
+        ByteBuffer frame = Wayang.allocateFrameBuffer(1);
+        ArgbFrameConverter.PLAIN.convert(line, 0, Wayang.DISPLAY_WIDTH, false, 0, 1, frame);
+        return frame.getLong(0);
+    }
+
+    /**
+     * Make sure the last ARGB frame sent before the cable was pulled is the one shown after reconnecting.
+     */
+    public void testConvertedFrameResumes() {
+        UnpluggableTransport transport = new UnpluggableTransport();
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            display.setAutoReconnect(true);
+            int[] pixels = new int[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+            Arrays.fill(pixels, Color.GREEN.getRGB());
+            transport.unplug();
+            display.sendFrame(pixels);
+            assertFalse(display.isConnected());
+            Arrays.fill(pixels, Color.RED.getRGB());  // Changing our copy must not change what is resumed.
+
+            LastFrame lastFrame = new LastFrame();
+            assertTrue(display.reconnect(replacement(lastFrame)));
+            assertEquals(expectedGreen(), lastFrame.firstPixels.get());
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure asynchronous frames report that the display is disconnected, rather than hanging or throwing.
+     */
+    public void testAsyncWhileDisconnected() throws Exception {
+        UnpluggableTransport transport = new UnpluggableTransport();
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            display.setAutoReconnect(true);
+            display.setKeepAliveInterval(0);
+            display.sendFrameAsync().get(5, TimeUnit.SECONDS);
+
+            transport.unplug();
+            assertFailed(display.sendFrameAsync());  // Discovers the device is gone.
+            assertFalse(display.isConnected());
+            assertFailed(display.sendFrameAsync());
+            assertFalse(display.offerFrameAsync());
+
+            assertTrue(display.reconnect(new LoopbackFrameTransport()));
+            display.getImage().createGraphics().fillRect(0, 0, 10, 10);
+            display.sendFrameAsync().get(5, TimeUnit.SECONDS);
+            assertEquals(1, display.getMetrics().getReconnections());
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Check that a frame future failed because the display is disconnected.
+     *
+     * @param future the future of a frame sent while the device is missing.
+     */
+    private void assertFailed(CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Frame should not have been sent");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof LibUsbException);
+            assertEquals(LibUsb.ERROR_NO_DEVICE, ((LibUsbException) e.getCause()).getErrorCode());
+        }
+    }
+
+    /**
+     * Make sure a missing device is still reported as an error when automatic reconnection is not enabled.
+     */
+    public void testErrorWithoutAutoReconnect() {
+        UnpluggableTransport transport = new UnpluggableTransport();
+        PushDisplay display = Wayang.openDisplay(transport);
+        try {
+            assertFalse(display.isAutoReconnect());
+            transport.unplug();
+            try {
+                display.sendFrame();
+                fail("Missing device should be reported");
+            } catch (LibUsbException e) {
+                assertEquals(LibUsb.ERROR_NO_DEVICE, e.getErrorCode());
+            }
+            assertTrue(display.isConnected());
+            assertFalse(display.reconnect(new LoopbackFrameTransport()));
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure the global setting is applied to open displays and those opened later, without needing a Push.
+     */
+    public void testGlobalSetting() {
+        PushDisplay first = Wayang.openDisplay(new LoopbackFrameTransport());
+        try {
+            Wayang.setAutoReconnect(true);
+            assertTrue(Wayang.isAutoReconnect());
+            assertTrue(first.isAutoReconnect());
+            PushDisplay second = Wayang.openDisplay(new LoopbackFrameTransport());
+            assertTrue(second.isAutoReconnect());
+            Wayang.setAutoReconnect(false);
+            assertFalse(first.isAutoReconnect());
+            assertFalse(second.isAutoReconnect());
+        } finally {
+            Wayang.setAutoReconnect(false);
+            Wayang.close();
+        }
+    }
+}
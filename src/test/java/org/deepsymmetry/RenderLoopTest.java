@@ -0,0 +1,113 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit test for the render loop, sending frames nowhere so no Push 2 is needed.
+ */
+public class RenderLoopTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public RenderLoopTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( RenderLoopTest.class );
+    }
+
+    /**
+     * A sender that just counts the frames it is asked to send.
+     */
+    private static class CountingSender implements Runnable {
+        final AtomicLong sent = new AtomicLong();
+
+        @Override
+        public void run() {
+            sent.incrementAndGet();
+        }
+    }
+
+    /**
+     * Make sure frames are rendered at roughly the requested rate, and the loop stops when asked.
+     */
+    public void testPacesFrames() throws InterruptedException {
+        CountingSender sender = new CountingSender();
+        RenderLoop loop = new RenderLoop(Wayang.createDisplayImage(), 100, RenderLoop.OverrunPolicy.SKIP,
+                new RenderLoop.Callback() {
+                    @Override
+                    public void render(Graphics2D graphics, long frame) {
+                        graphics.fillRect(0, 0, 10, 10);
+                    }
+                }, sender);
+        loop.start();
+        Thread.sleep(500);
+        loop.stop();
+        assertFalse(loop.isRunning());
+        assertNull(loop.getFailure());
+        long sent = sender.sent.get();
+        assertEquals(sent, loop.getFramesRendered());
+        assertTrue("Expected about 50 frames, got " + sent, sent >= 30 && sent <= 55);
+        Thread.sleep(50);
+        assertEquals("Frames sent after stopping", sent, sender.sent.get());
+    }
+
+    /**
+     * Make sure that when a frame overruns, the skip policy gives up on the frames that were missed.
+     */
+    public void testSkipsOverrunFrames() throws InterruptedException {
+        CountingSender sender = new CountingSender();
+        RenderLoop loop = new RenderLoop(Wayang.createDisplayImage(), 100, RenderLoop.OverrunPolicy.SKIP,
+                new RenderLoop.Callback() {
+                    @Override
+                    public void render(Graphics2D graphics, long frame) {
+                        if (frame == 2) {
+                            try {
+                                Thread.sleep(55);
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    }
+                }, sender);
+        loop.start();
+        Thread.sleep(200);
+        loop.stop();
+        assertTrue("Expected at least five skipped frames, got " + loop.getFramesSkipped(),
+                loop.getFramesSkipped() >= 5);
+    }
+
+    /**
+     * Make sure an exception thrown while rendering stops the loop and is reported.
+     */
+    public void testStopsOnFailure() throws InterruptedException {
+        final RuntimeException problem = new RuntimeException("Deliberate test failure");
+        RenderLoop loop = new RenderLoop(Wayang.createDisplayImage(), 100, RenderLoop.OverrunPolicy.CATCH_UP,
+                new RenderLoop.Callback() {
+                    @Override
+                    public void render(Graphics2D graphics, long frame) {
+                        throw problem;
+                    }
+                }, new CountingSender());
+        loop.start();
+        Thread.sleep(50);
+        assertFalse(loop.isRunning());
+        assertSame(problem, loop.getFailure());
+        loop.stop();
+    }
+}
@@ -0,0 +1,171 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that sprites, text and rectangles drawn without Java2D end up where they would with it.
+ */
+public class SpriteAtlasTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SpriteAtlasTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( SpriteAtlasTest.class );
+    }
+
+    /**
+     * Create a sprite image with four colored quadrants, and a transparent hole in the middle.
+     *
+     * @return the image.
+     */
+    private static BufferedImage createSpriteImage() {
+        BufferedImage image = new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillRect(0, 0, 10, 5);
+        graphics.setColor(Color.GREEN);
+        graphics.fillRect(10, 0, 10, 5);
+        graphics.setColor(Color.BLUE);
+        graphics.fillRect(0, 5, 10, 5);
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(10, 5, 10, 5);
+        graphics.setComposite(AlphaComposite.Clear);
+        graphics.fillRect(8, 3, 4, 4);
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Draw a sprite both ways, including partly off each edge of the display, over a background, and make
+     * sure the results are identical.
+     */
+    public void testMatchesJava2D() {
+        BufferedImage spriteImage = createSpriteImage();
+        Sprite sprite = new SpriteAtlas().addSprite(spriteImage);
+        assertEquals(20, sprite.getWidth());
+        assertEquals(10, sprite.getHeight());
+        int[][] positions = {{100, 50}, {-5, -3}, {Wayang.DISPLAY_WIDTH - 7, Wayang.DISPLAY_HEIGHT - 4}};
+
+        BufferedImage expected = Wayang.createDisplayImage();
+        Graphics2D graphics = expected.createGraphics();
+        graphics.setColor(Color.MAGENTA);
+        graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+        for (int[] position : positions) {
+            graphics.drawImage(spriteImage, position[0], position[1], null);
+        }
+        graphics.dispose();
+
+        BufferedImage actual = Wayang.createDisplayImage();
+        DisplaySurface surface = DisplaySurface.forImage(actual);
+        surface.fillRect(-10, -10, 2000, 2000, Color.MAGENTA);
+        for (int[] position : positions) {
+            surface.blit(sprite, position[0], position[1]);
+        }
+        short[] expectedPixels = Wayang.displayPixels(expected);
+        short[] actualPixels = Wayang.displayPixels(actual);
+        for (int i = 0; i < expectedPixels.length; i++) {
+            assertEquals("Pixel " + (i % Wayang.DISPLAY_WIDTH) + ", " + (i / Wayang.DISPLAY_WIDTH),
+                    expectedPixels[i], actualPixels[i]);
+        }
+        assertEquals("Transparent hole should show background", SpriteAtlas.pack(Color.MAGENTA.getRGB()),
+                actualPixels[(55 * Wayang.DISPLAY_WIDTH) + 110]);
+    }
+
+    /**
+     * Draw the same text, sprites and rectangles into an ordinary display image, one stored in native
+     * memory, and a frame buffer, and make sure they all end up with the same pixels.
+     */
+    public void testSurfacesAgree() {
+        SpriteAtlas atlas = new SpriteAtlas();
+        GlyphSet glyphs = atlas.addGlyphs(new Font(Font.SANS_SERIF, Font.BOLD, 18), Color.WHITE, Color.BLACK,
+                " 0123456789.%ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz");
+        Sprite sprite = atlas.addSprite(createSpriteImage());
+        assertTrue(atlas.getPixelCount() > 0);
+
+        BufferedImage heapImage = Wayang.createDisplayImage();
+        DirectDisplayRaster raster = new DirectDisplayRaster();
+        ByteBuffer frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        DisplaySurface[] surfaces = {DisplaySurface.forImage(heapImage), DisplaySurface.forImage(raster.getImage()),
+                DisplaySurface.forBuffer(frame)};
+        for (DisplaySurface surface : surfaces) {
+            surface.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT, Color.DARK_GRAY);
+            for (int slot = 0; slot < 8; slot++) {
+                surface.fillRect(slot * 120, 20, 118, 30, Color.BLACK);
+                surface.drawText(glyphs, "Param " + slot, slot * 120 + 4, 40);
+                surface.blit(sprite, slot * 120 + 50, 100 + slot);
+            }
+            surface.drawText(glyphs, "Runs off the right edge of the display", 900, 150);
+        }
+
+        short[] heapPixels = Wayang.displayPixels(heapImage);
+        for (int y = 0; y < Wayang.DISPLAY_HEIGHT; y++) {
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                short expected = heapPixels[(y * Wayang.DISPLAY_WIDTH) + x];
+                int index = (y * Wayang.BYTES_PER_LINE) + (x * 2);
+                assertEquals("Native image pixel " + x + ", " + y, expected, raster.getBuffer().getShort(index));
+                assertEquals("Frame buffer pixel " + x + ", " + y, expected, frame.getShort(index));
+            }
+        }
+        assertEquals("Padding should be left alone", 0, frame.getShort(Wayang.BYTES_PER_LINE - 2));
+    }
+
+    /**
+     * Make sure text is positioned and measured like Java2D would, and that missing characters are skipped.
+     */
+    public void testText() {
+        Font font = new Font(Font.MONOSPACED, Font.PLAIN, 16);
+        GlyphSet glyphs = new SpriteAtlas().addGlyphs(font, Color.YELLOW, null, "0123456789");
+        BufferedImage image = Wayang.createDisplayImage();
+        Graphics2D graphics = image.createGraphics();
+        FontMetrics metrics = graphics.getFontMetrics(font);
+        graphics.dispose();
+        assertEquals(metrics.getAscent(), glyphs.getAscent());
+        assertEquals(metrics.getAscent() + metrics.getDescent(), glyphs.getHeight());
+        assertEquals(metrics.stringWidth("42"), glyphs.getWidth("4?2"));
+
+        DisplaySurface surface = DisplaySurface.forImage(image);
+        int end = surface.drawText(glyphs, "4?2", 10, 30);
+        assertEquals(10 + metrics.stringWidth("42"), end);
+        short[] pixels = Wayang.displayPixels(image);
+        short yellow = SpriteAtlas.pack(Color.YELLOW.getRGB());
+        boolean found = false;
+        for (int y = 30 - glyphs.getAscent(); y < 30 - glyphs.getAscent() + glyphs.getHeight(); y++) {
+            for (int x = 0; x < Wayang.DISPLAY_WIDTH; x++) {
+                short pixel = pixels[(y * Wayang.DISPLAY_WIDTH) + x];
+                if (pixel == yellow) {
+                    found = true;
+                    assertTrue("Text should stay within its cells", x >= 10 && x < end);
+                } else {
+                    assertEquals("Unantialiased text should not touch the background", 0, pixel);
+                }
+            }
+        }
+        assertTrue("Text should have been drawn", found);
+
+        try {
+            DisplaySurface.forImage(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB));
+            fail("Should not accept an image which is not a display image");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that splitting frames into stripes which are encoded in parallel and sent separately delivers
+ * exactly the same bytes to the display as sending them whole.
+ */
+public class StripedFrameTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public StripedFrameTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( StripedFrameTest.class );
+    }
+
+    /**
+     * Reassembles the frames arriving over a loopback transport, however many transfers they are split into.
+     */
+    private static class FrameAssembler implements LoopbackFrameTransport.Receiver {
+
+        /**
+         * The frames which have been completely received.
+         */
+        final List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+
+        /**
+         * The number of pixel transfers received.
+         */
+        int pixelTransfers = 0;
+
+        /**
+         * The frame being received.
+         */
+        private ByteBuffer frame = null;
+
+        @Override
+        public synchronized void received(ByteBuffer data) {
+            if (data.capacity() == 16) {
+                frame = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+                return;
+            }
+            pixelTransfers++;
+            ByteBuffer source = data.duplicate();
+            source.clear();
+            frame.put(source);
+            if (!frame.hasRemaining()) {
+                frame.clear();
+                frames.add(frame);
+            }
+        }
+    }
+
+    /**
+     * Send the same drawing with a variety of stripe sizes and raster modes, synchronously and asynchronously,
+     * and make sure every frame arrives intact, in the expected number of transfers.
+     */
+    public void testStripesSendSameFrames() {
+        ByteBuffer expected = null;
+        try {
+            for (RasterMode mode : RasterMode.values()) {
+                Wayang.setRasterMode(mode);
+                for (int stripeLines : new int[] {160, 32, 8}) {
+                    LoopbackFrameTransport transport = new LoopbackFrameTransport(50, 40000000);
+                    FrameAssembler assembler = new FrameAssembler();
+                    transport.setReceiver(assembler);
+                    PushDisplay display = Wayang.openDisplay(transport);
+                    display.setKeepAliveInterval(0);
+                    display.setStripeLines(stripeLines);
+                    Graphics2D graphics = display.getImage().createGraphics();
+                    graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, 0, Wayang.DISPLAY_HEIGHT, Color.BLUE));
+                    graphics.fillRect(0, 0, Wayang.DISPLAY_WIDTH, Wayang.DISPLAY_HEIGHT);
+                    graphics.dispose();
+                    int before = display.getImage().getRGB(400, 80);
+                    for (int i = 0; i < 3; i++) {
+                        display.sendFrame();
+                    }
+                    // The loopback only keeps asynchronous frames in order among themselves, so send them last.
+                    for (int i = 0; i < 3; i++) {
+                        display.sendFrameAsync();
+                    }
+                    assertEquals("Sending should not disturb the image", before, display.getImage().getRGB(400, 80));
+                    display.close();
+
+                    String description = mode + " mode with " + stripeLines + " line stripes";
+                    assertEquals(description, 6, assembler.frames.size());
+                    assertEquals(description, 6 * Wayang.DISPLAY_HEIGHT / stripeLines, assembler.pixelTransfers);
+                    if (expected == null) {
+                        expected = assembler.frames.get(0);
+                    }
+                    for (ByteBuffer frame : assembler.frames) {
+                        assertEquals(description, expected, frame);
+                    }
+                    assertEquals(description, 6, display.getMetrics().getFramesSent());
+                }
+            }
+        } finally {
+            Wayang.setRasterMode(RasterMode.HEAP);
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure stripes must divide the display evenly.
+     */
+    public void testInvalidStripeLines() {
+        PushDisplay display = Wayang.openDisplay(new LoopbackFrameTransport());
+        try {
+            for (int lines : new int[] {0, 7, 161}) {
+                try {
+                    display.setStripeLines(lines);
+                    fail("Should not accept stripes of " + lines + " lines");
+                } catch (IllegalArgumentException e) {
+                    assertEquals(Wayang.DISPLAY_HEIGHT, display.getStripeLines());
+                }
+            }
+        } finally {
+            Wayang.close();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that headers can share a transfer with the pixels, and that the tuner finds and applies the fastest
+ * way of sending frames.
+ */
+public class TransferTunerTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TransferTunerTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( TransferTunerTest.class );
+    }
+
+    /**
+     * Keeps a copy of every transfer the loopback transport receives.
+     */
+    private static class Transfers implements LoopbackFrameTransport.Receiver {
+
+        /**
+         * The contents of each transfer, in the order they arrived.
+         */
+        final List<byte[]> received = new ArrayList<byte[]>();
+
+        @Override
+        public synchronized void received(ByteBuffer data) {
+            ByteBuffer source = data.duplicate();
+            source.clear();
+            byte[] copy = new byte[source.capacity()];
+            source.get(copy);
+            received.add(copy);
+        }
+
+        /**
+         * Join everything received into the stream of bytes the Push would have read.
+         *
+         * @return the concatenated transfers.
+         */
+        synchronized byte[] stream() {
+            int size = 0;
+            for (byte[] transfer : received) {
+                size += transfer.length;
+            }
+            byte[] result = new byte[size];
+            int position = 0;
+            for (byte[] transfer : received) {
+                System.arraycopy(transfer, 0, result, position, transfer.length);
+                position += transfer.length;
+            }
+            return result;
+        }
+
+        /**
+         * Forget what has been received so far.
+         */
+        synchronized void clear() {
+            received.clear();
+        }
+    }
+
+    /**
+     * Open a display over a loopback transport which records what it receives, and draw something in it.
+     *
+     * @param transfers where the transport should record transfers.
+     *
+     * @return the display.
+     */
+    private static PushDisplay openRecordedDisplay(Transfers transfers) {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport();
+        transport.setReceiver(transfers);
+        PushDisplay display = Wayang.openDisplay(transport);
+        display.setKeepAliveInterval(0);
+        Graphics2D graphics = display.getImage().createGraphics();
+        graphics.setColor(Color.ORANGE);
+        graphics.fillRect(100, 10, 300, 120);
+        graphics.dispose();
+        return display;
+    }
+
+    /**
+     * Make sure that combining the header with the pixels sends exactly the same bytes, in fewer transfers,
+     * whether frames are sent synchronously or asynchronously, whole or in stripes.
+     */
+    public void testCombinedHeader() throws Exception {
+        Transfers transfers = new Transfers();
+        PushDisplay display = openRecordedDisplay(transfers);
+        try {
+            display.sendFrame();
+            assertEquals(2, transfers.received.size());
+            byte[] expected = transfers.stream();
+            assertEquals((byte) 0xff, expected[0]);
+            assertEquals((byte) 0xcc, expected[1]);
+
+            display.setCombinedHeader(true);
+            assertTrue(display.isCombinedHeader());
+            transfers.clear();
+            display.sendFrame();
+            assertEquals(1, transfers.received.size());
+            assertTrue(Arrays.equals(expected, transfers.stream()));
+
+            transfers.clear();
+            display.sendFrameAsync().get(5, TimeUnit.SECONDS);
+            assertEquals(1, transfers.received.size());
+            assertTrue(Arrays.equals(expected, transfers.stream()));
+
+            display.setStripeLines(40);
+            transfers.clear();
+            display.sendFrame();
+            assertEquals(4, transfers.received.size());
+            assertTrue(Arrays.equals(expected, transfers.stream()));
+
+            transfers.clear();
+            display.sendFrameAsync().get(5, TimeUnit.SECONDS);
+            assertEquals(4, transfers.received.size());
+            assertTrue(Arrays.equals(expected, transfers.stream()));
+            assertEquals(0, display.getMetrics().getFramesFailed());
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure the tuner tries every combination, applies the fastest, and leaves the keep-alive alone.
+     */
+    public void testTune() {
+        PushDisplay display = Wayang.openDisplay(new LoopbackFrameTransport(200, 400000000));
+        try {
+            display.setKeepAliveInterval(500);
+            TransferTuner tuner = new TransferTuner(display);
+            tuner.setStripeLineCandidates(Wayang.DISPLAY_HEIGHT, 40);
+            tuner.setBufferCountCandidates(1, 2);
+            tuner.setTryCombinedHeader(true);
+            tuner.setTrialDuration(50);
+            TransferTuner.Trial best = tuner.tune();
+
+            assertEquals(8, tuner.getResults().size());
+            for (TransferTuner.Trial trial : tuner.getResults()) {
+                assertTrue(trial.toString(), trial.getFramesPerSecond() > 0);
+                assertTrue(best.getFramesPerSecond() >= trial.getFramesPerSecond());
+            }
+            assertEquals(best.getStripeLines(), display.getStripeLines());
+            assertEquals(best.getBufferCount(), display.getAsyncBufferCount());
+            assertEquals(best.isCombinedHeader(), display.isCombinedHeader());
+            assertEquals(500, display.getKeepAliveInterval());
+            assertEquals(0, display.getMetrics().getFramesFailed());
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure that when every combination fails, the tuner puts back and reports the display's original
+     * settings, rather than the failed combination that happened to be tried first.
+     */
+    public void testEveryTrialFails() {
+        PushDisplay display = Wayang.openDisplay(new LoopbackFrameTransport(200000, 0));  // Slower than timeout.
+        try {
+            display.setStripeLines(80);
+            display.setAsyncBufferCount(3);
+            display.setTransferTimeout(20);
+            TransferTuner tuner = new TransferTuner(display);
+            tuner.setStripeLineCandidates(Wayang.DISPLAY_HEIGHT, 40);
+            tuner.setBufferCountCandidates(1, 2);
+            tuner.setTryCombinedHeader(false);
+            tuner.setTrialDuration(50);
+            TransferTuner.Trial result = tuner.tune();
+
+            assertEquals(4, tuner.getResults().size());
+            for (TransferTuner.Trial trial : tuner.getResults()) {
+                assertEquals(trial.toString(), 0.0, trial.getFramesPerSecond());
+            }
+            assertEquals(0.0, result.getFramesPerSecond());
+            assertEquals(80, result.getStripeLines());
+            assertEquals(3, result.getBufferCount());
+            assertEquals(80, display.getStripeLines());
+            assertEquals(3, display.getAsyncBufferCount());
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure settings can be remembered, applied in a later run, and forgotten.
+     */
+    public void testRemember() {
+        PushDisplay display = Wayang.openDisplay(new LoopbackFrameTransport());
+        try {
+            TransferTuner.forget(display);
+            assertNull(TransferTuner.recall(display));
+            assertFalse(TransferTuner.applyRemembered(display));
+
+            TransferTuner.remember(display, new TransferTuner.Trial(80, 2, true, 120.0));
+            TransferTuner.Trial recalled = TransferTuner.recall(display);
+            assertNotNull(recalled);
+            assertEquals(80, recalled.getStripeLines());
+            assertEquals(2, recalled.getBufferCount());
+            assertTrue(recalled.isCombinedHeader());
+
+            assertTrue(TransferTuner.applyRemembered(display));
+            assertEquals(80, display.getStripeLines());
+            assertEquals(2, display.getAsyncBufferCount());
+            assertTrue(display.isCombinedHeader());
+        } finally {
+            TransferTuner.forget(display);
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Make sure the global settings reach the display, and are validated.
+     */
+    public void testGlobalSettings() {
+        PushDisplay display = Wayang.openDisplay(new LoopbackFrameTransport());
+        try {
+            Wayang.setTransferTimeout(250);
+            Wayang.setCombinedHeader(true);
+            assertEquals(250, display.getTransferTimeout());
+            assertTrue(display.isCombinedHeader());
+            try {
+                Wayang.setTransferTimeout(0);
+                fail("Timeout must be positive");
+            } catch (IllegalArgumentException e) {
+                assertEquals(250, Wayang.getTransferTimeout());
+            }
+        } finally {
+            Wayang.setTransferTimeout(Wayang.DEFAULT_TRANSFER_TIMEOUT);
+            Wayang.setCombinedHeader(false);
+            Wayang.close();
+        }
+    }
+}
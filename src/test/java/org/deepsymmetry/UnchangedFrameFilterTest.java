@@ -0,0 +1,73 @@
+package org.deepsymmetry;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit test for skipping unchanged frames.
+ */
+public class UnchangedFrameFilterTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public UnchangedFrameFilterTest(String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( UnchangedFrameFilterTest.class );
+    }
+
+    /**
+     * With no keep-alive interval, every frame should be encoded.
+     */
+    public void testDisabledByDefault() {
+        UnchangedFrameFilter filter = new UnchangedFrameFilter();
+        short[] pixels = new short[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        filter.encoded(pixels);
+        filter.sent(0);
+        assertEquals(UnchangedFrameFilter.Decision.ENCODE, filter.check(pixels, 1));
+    }
+
+    /**
+     * Unchanged frames should be skipped until the keep-alive interval has passed, then re-sent,
+     * while changed frames are always encoded.
+     */
+    public void testSkipsAndResendsUnchangedFrames() {
+        UnchangedFrameFilter filter = new UnchangedFrameFilter();
+        filter.setKeepAliveInterval(500);
+        long halfSecond = TimeUnit.MILLISECONDS.toNanos(500);
+        short[] pixels = new short[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT];
+        pixels[1234] = 42;
+
+        assertEquals("Nothing to compare with yet", UnchangedFrameFilter.Decision.ENCODE, filter.check(pixels, 0));
+        filter.encoded(pixels);
+        filter.sent(0);
+
+        assertEquals(UnchangedFrameFilter.Decision.SKIP, filter.check(pixels, halfSecond - 1));
+        assertEquals(UnchangedFrameFilter.Decision.RESEND, filter.check(pixels, halfSecond));
+        filter.sent(halfSecond);
+        assertEquals(UnchangedFrameFilter.Decision.SKIP, filter.check(pixels, halfSecond + 1));
+
+        pixels[Wayang.DISPLAY_WIDTH * Wayang.DISPLAY_HEIGHT - 1] = 1;
+        assertEquals(UnchangedFrameFilter.Decision.ENCODE, filter.check(pixels, halfSecond + 2));
+        filter.encoded(pixels);
+        filter.sent(halfSecond + 2);
+        assertEquals(UnchangedFrameFilter.Decision.SKIP, filter.check(pixels, halfSecond + 3));
+
+        filter.invalidate();
+        assertEquals(UnchangedFrameFilter.Decision.ENCODE, filter.check(pixels, halfSecond + 4));
+    }
+}
@@ -3,12 +3,17 @@ package org.deepsymmetry;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.usb4java.LibUsb;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unit test for Wayang.
@@ -55,4 +60,156 @@ public class WayangTest
         Wayang.sendFrame();
         Wayang.close();
     }
+
+    /**
+     * Find the management bean which can tell us how much memory a thread has allocated.
+     *
+     * @return the bean, or {@code null} if the JVM cannot measure allocation.
+     */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+                return allocationBean;
+            }
+        }
+        System.out.println("Unable to measure allocation, JVM does not support it.");
+        return null;
+    }
+
+    /**
+     * Make sure that, once warmed up, encoding frames for the display does not allocate any memory, since
+     * the resulting garbage collection pauses cause visible stutter. Does not need a Push 2.
+     */
+    public void testEncodeFrameAllocatesNothing() {
+        com.sun.management.ThreadMXBean allocationBean = allocationBean();
+        if (allocationBean == null) {
+            return;
+        }
+
+        short[] pixels = Wayang.displayPixels(Wayang.createDisplayImage());
+        ByteBuffer frameBuffer = Wayang.allocateFrameBuffer(Wayang.DISPLAY_HEIGHT);
+        FrameEncoder encoder = Wayang.getFrameEncoder();
+        final int frames = 1000;
+        for (int i = 0; i < frames; i++) {  // Warm up so that we are measuring compiled code.
+            encoder.encode(pixels, 0, Wayang.DISPLAY_HEIGHT, frameBuffer, 0);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        allocationBean.getThreadAllocatedBytes(threadId);  // Make sure measuring does not itself allocate.
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < frames; i++) {
+            encoder.encode(pixels, 0, Wayang.DISPLAY_HEIGHT, frameBuffer, 0);
+        }
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+        assertEquals("Bytes allocated encoding " + frames + " frames", 0, allocated);
+    }
+
+    /**
+     * Make sure that, once warmed up, the whole of sending a frame, including encoding it, sending the
+     * header and pixels, and recording metrics, does not allocate any memory either. Uses a loopback transport
+     * which sends instantly, so it does not need a Push 2.
+     */
+    public void testSendFrameAllocatesNothing() {
+        com.sun.management.ThreadMXBean allocationBean = allocationBean();
+        if (allocationBean == null) {
+            return;
+        }
+
+        LoopbackFrameTransport transport = new LoopbackFrameTransport(0, 0);
+        try {
+            PushDisplay display = Wayang.openDisplay(transport);
+            Graphics2D graphics = display.getImage().createGraphics();
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(100, 0, 100, Wayang.DISPLAY_HEIGHT);
+            graphics.dispose();
+            final int frames = 1000;
+            for (int i = 0; i < 10 * frames; i++) {  // Warm up until the whole send path has been compiled.
+                display.sendFrame();
+            }
+
+            long threadId = Thread.currentThread().getId();
+            allocationBean.getThreadAllocatedBytes(threadId);  // Make sure measuring does not itself allocate.
+            long before = allocationBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < frames; i++) {
+                display.sendFrame();
+            }
+            long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+            assertEquals("Bytes allocated sending " + frames + " frames", 0, allocated);
+            assertEquals(2 * 11 * frames, transport.getTransfersReceived());
+        } finally {
+            Wayang.close();
+        }
+    }
+
+    /**
+     * Run the complete open, draw and send pipeline, synchronously and asynchronously, over a loopback
+     * transport with simulated latency and bandwidth, so it can be checked without a Push 2.
+     */
+    public void testLoopbackPipeline() {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport(100, 40000000);
+        final AtomicInteger headers = new AtomicInteger();
+        final AtomicInteger frames = new AtomicInteger();
+        final AtomicInteger malformed = new AtomicInteger();
+        transport.setReceiver(new LoopbackFrameTransport.Receiver() {
+            @Override
+            public void received(ByteBuffer data) {  // Called on the transport's thread, so can't assert here.
+                if (data.capacity() == 16 && data.get(0) == (byte) 0xff && data.get(3) == (byte) 0x88) {
+                    headers.incrementAndGet();
+                } else if (data.capacity() == Wayang.BYTES_PER_LINE * Wayang.DISPLAY_HEIGHT &&
+                        data.get(0) == (byte) 0xe7 && data.get(200) == (byte) (0xff ^ 0xe7)) {
+                    frames.incrementAndGet();  // Starts with a masked black pixel, white ones at x = 100.
+                } else {
+                    malformed.incrementAndGet();
+                }
+            }
+        });
+        try {
+            BufferedImage displayImage = Wayang.open(transport);
+            Graphics2D graphics = displayImage.createGraphics();
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(100, 0, 100, Wayang.DISPLAY_HEIGHT);
+            graphics.dispose();
+            for (int i = 0; i < 10; i++) {
+                Wayang.sendFrame();
+            }
+            for (int i = 0; i < 20; i++) {
+                Wayang.sendFrameAsync();
+            }
+        } finally {
+            Wayang.close();
+        }
+        assertEquals(0, malformed.get());
+        assertEquals(30, headers.get());
+        assertEquals(30, frames.get());
+        assertEquals(30 * (16 + Wayang.BYTES_PER_LINE * Wayang.DISPLAY_HEIGHT), transport.getBytesReceived());
+    }
+
+    /**
+     * Make sure that a synchronous send on the loopback transport which cannot finish within its timeout gives
+     * up when it expires, reporting how much of the data made it across the link, and leaves the link free for
+     * the next transfer.
+     */
+    public void testLoopbackSendTimeout() {
+        LoopbackFrameTransport transport = new LoopbackFrameTransport(0, 1000000);  // A third of a second a frame.
+        try {
+            ByteBuffer frame = ByteBuffer.allocateDirect(Wayang.BYTES_PER_LINE * Wayang.DISPLAY_HEIGHT);
+            IntBuffer transferred = IntBuffer.allocate(1);
+            long started = System.nanoTime();
+            assertEquals(LibUsb.ERROR_TIMEOUT, transport.send(frame, transferred, 50));
+            long elapsedMillis = (System.nanoTime() - started) / 1000000;
+            assertTrue("Send took " + elapsedMillis + " ms", elapsedMillis >= 50 && elapsedMillis < 250);
+            assertTrue("Transferred " + transferred.get(0), transferred.get(0) > 0 &&
+                    transferred.get(0) < frame.capacity());
+            assertEquals(0, transport.getTransfersReceived());
+
+            ByteBuffer header = ByteBuffer.allocateDirect(16);
+            assertEquals(LibUsb.SUCCESS, transport.send(header, transferred, 50));
+            assertEquals(16, transferred.get(0));
+            assertEquals(1, transport.getTransfersReceived());
+        } finally {
+            transport.close();
+        }
+    }
 }